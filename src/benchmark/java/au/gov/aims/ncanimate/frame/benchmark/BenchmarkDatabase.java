@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.benchmark;
+
+import au.gov.aims.ereefs.bean.metadata.netcdf.NetCDFMetadataBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateLayerBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimatePanelBean;
+import au.gov.aims.ereefs.database.CacheStrategy;
+import au.gov.aims.ereefs.database.manager.MetadataManager;
+import au.gov.aims.ereefs.helper.NcAnimateConfigHelper;
+import au.gov.aims.ncanimate.frame.DatabaseTestBase;
+import uk.ac.rdg.resc.edal.graphics.utils.ColourPalette;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * In-memory database used by the benchmarks.
+ *
+ * Same database as the JUnit tests (test configurations, layers, styles and palettes),
+ * except the input NetCDF files are replaced with a {@link SyntheticDataset}.
+ */
+public class BenchmarkDatabase extends DatabaseTestBase {
+    public static final String GBR4_HYDRO_DEFINITION_ID = "downloads/gbr4_v2";
+    public static final String GBR4_BGC_DEFINITION_ID = "downloads/gbr4_bgc_924";
+
+    private static final File NETCDF_DIRECTORY = new File("/tmp/ncanimateTests/netcdfFiles");
+    private static final File PALETTE_DIRECTORY = new File("/tmp/ncanimateTests/s3/palettes");
+
+    private File syntheticFile;
+
+    /**
+     * Start the database, insert the test configurations and the synthetic dataset.
+     * @param gridSize The size of the synthetic dataset grid.
+     * @param timeCount The number of hourly time steps of the synthetic dataset.
+     * @throws Exception
+     */
+    public void start(SyntheticDataset.GridSize gridSize, int timeCount) throws Exception {
+        this.init();
+        this.insertData();
+
+        // Register the test palettes, as NetCDFLayerGenerator.getPaletteFile does
+        ColourPalette.addPaletteDirectory(PALETTE_DIRECTORY);
+
+        String datasetId = String.format("synthetic_%s.nc", gridSize.name().toLowerCase());
+        this.syntheticFile = SyntheticDataset.write(gridSize, timeCount, new File(NETCDF_DIRECTORY, datasetId));
+
+        // The synthetic file contains both the hydro and the BGC variables
+        this.insertMetadata(GBR4_HYDRO_DEFINITION_ID, datasetId);
+        this.insertMetadata(GBR4_BGC_DEFINITION_ID, datasetId);
+    }
+
+    public void stop() {
+        this.shutdown();
+    }
+
+    public File getSyntheticFile() {
+        return this.syntheticFile;
+    }
+
+    public NcAnimateConfigBean getNcAnimateConfig(String productId) throws Exception {
+        NcAnimateConfigHelper configHelper = new NcAnimateConfigHelper(this.getDatabaseClient(), CacheStrategy.DISK);
+        return configHelper.getNcAnimateConfig(productId);
+    }
+
+    public NetCDFMetadataBean getSyntheticMetadata(String definitionId) {
+        return NetCDFMetadataBean.create(definitionId, this.syntheticFile.getName(),
+                this.syntheticFile.toURI(), this.syntheticFile, this.syntheticFile.lastModified());
+    }
+
+    /**
+     * Find a panel by ID.
+     * @param ncAnimateConfig The product configuration.
+     * @param panelId The panel ID, or null to return the first panel.
+     * @return The panel, or null if not found.
+     */
+    public static NcAnimatePanelBean getPanel(NcAnimateConfigBean ncAnimateConfig, String panelId) {
+        List<NcAnimatePanelBean> panelConfs = ncAnimateConfig.getPanels();
+        if (panelConfs != null) {
+            for (NcAnimatePanelBean panelConf : panelConfs) {
+                if (panelId == null || (panelConf.getId() != null && panelId.equals(panelConf.getId().getValue()))) {
+                    return panelConf;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the NetCDF layer of a panel (the layer which has a variable or true colour variables).
+     * @param panelConf The panel.
+     * @return The layer, or null if the panel do not have a NetCDF layer.
+     */
+    public static NcAnimateLayerBean getNetCDFLayer(NcAnimatePanelBean panelConf) {
+        List<NcAnimateLayerBean> layerConfs = panelConf == null ? null : panelConf.getLayers();
+        if (layerConfs != null) {
+            for (NcAnimateLayerBean layerConf : layerConfs) {
+                if (layerConf.getVariable() != null || layerConf.getTrueColourVariables() != null) {
+                    return layerConf;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void insertMetadata(String definitionId, String datasetId) throws Exception {
+        NetCDFMetadataBean metadata = NetCDFMetadataBean.create(definitionId, datasetId,
+                this.syntheticFile.toURI(), this.syntheticFile, this.syntheticFile.lastModified());
+
+        MetadataManager metadataManager = new MetadataManager(this.getDatabaseClient(), CacheStrategy.DISK);
+        metadataManager.save(metadata.toJSON());
+    }
+}
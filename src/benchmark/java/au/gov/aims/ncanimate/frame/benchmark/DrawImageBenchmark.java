@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Data layer rendering.
+ *
+ * GriddedImageLayer.drawIntoImage is protected, it's called by MapImage.drawImage
+ * after the data is extracted from the dataset, the same way NetCDFLayerGenerator draws its layers.
+ * The raster layer is used as a baseline for the data extraction cost.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class DrawImageBenchmark {
+
+    @Benchmark
+    public BufferedImage rasterLayer(RenderingState state) throws Exception {
+        return state.rasterMapImage.drawImage(state.params, state.features);
+    }
+
+    @Benchmark
+    public BufferedImage dynamicArrowLayer(RenderingState state) throws Exception {
+        return state.arrowMapImage.drawImage(state.params, state.features);
+    }
+
+    @Benchmark
+    public BufferedImage trueColourLayer(RenderingState state) throws Exception {
+        return state.trueColourMapImage.drawImage(state.params, state.features);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.benchmark;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.frame.generator.FrameGenerator;
+import au.gov.aims.ncanimate.frame.generator.GroupFrameGenerator;
+import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full frame generation: layers, legends, texts and rendering of every map format of the product.
+ *
+ * The input last modified date is set in the future, so the frame files
+ * are always considered outdated and the frame is generated on every invocation.
+ * Caches (layer generators, styles, text tiles, etc) are kept between invocations,
+ * like they are kept between the frames of a production run.
+ *
+ * The raster only product compares the raster fast path with the vector path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class FrameGeneratorBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class FrameState {
+        private static final String REGION_ID = "qld";
+        private static final double TARGET_HEIGHT = -1.5;
+
+        @Param({"GBR4", "GBR1"})
+        public String gridSize;
+
+        @Param({"gbr4_v2_temp-wind-salt-current", "gbr4_v2_temp_raster-only"})
+        public String productId;
+
+        @Param({"true", "false"})
+        public boolean rasterFastPath;
+
+        public BenchmarkDatabase database;
+        public GroupFrameGenerator groupFrameGenerator;
+        public FrameGeneratorContext context;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            FrameGenerator.setRasterFastPath(this.rasterFastPath);
+
+            this.database = new BenchmarkDatabase();
+            this.database.start(SyntheticDataset.GridSize.valueOf(this.gridSize), 2);
+
+            NcAnimateConfigBean ncAnimateConfig = this.database.getNcAnimateConfig(this.productId);
+            DateTimeRange productDateRange = DateTimeRange.create(
+                    SyntheticDataset.START_DATE,
+                    SyntheticDataset.START_DATE.plusHours(2));
+            FrameTimetableMap frameTimetableMap = new FrameTimetableMap(ncAnimateConfig, productDateRange, this.database.getDatabaseClient());
+
+            this.groupFrameGenerator = new GroupFrameGenerator(
+                    this.database.getDatabaseClient(), null, ncAnimateConfig, productDateRange, frameTimetableMap,
+                    Long.MAX_VALUE, // Frame files are always outdated
+                    REGION_ID);
+
+            this.context = new FrameGeneratorContext(ncAnimateConfig);
+            this.context.setRegion(ncAnimateConfig.getRegions().get(REGION_ID));
+            this.context.setTargetHeight(TARGET_HEIGHT);
+            this.context.setDateRange(productDateRange);
+            this.context.setFrameTimeIncrement(ncAnimateConfig.getFrameTimeIncrement());
+
+            if (frameTimetableMap.keySet().isEmpty()) {
+                throw new IllegalStateException(String.format("No frame found for product %s", this.productId));
+            }
+            this.context.setFrameDateRange(frameTimetableMap.keySet().iterator().next());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            FrameGenerator.clearCache();
+            FrameGenerator.setRasterFastPath(true);
+            if (this.database != null) {
+                this.database.stop();
+            }
+        }
+    }
+
+    @Benchmark
+    public FrameGeneratorContext generateFrame(FrameState state) throws Exception {
+        state.groupFrameGenerator.getFrameGenerator().generateFrame(state.context);
+        return state.context;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.benchmark;
+
+import au.gov.aims.ncanimate.frame.generator.layer.NetCDFLayerGenerator;
+import au.gov.aims.ncanimate.frame.generator.layer.vectorLegend.LegendGenerator;
+import au.gov.aims.ncanimate.frame.generator.layer.vectorLegend.colourBar.ThresholdColourBar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Legend and colour scheme generation.
+ * Those do not depend on the grid size, they run once per layer, for every frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class LegendBenchmark {
+    // Default dimensions of the legend colour band (see LegendGenerator)
+    private static final int COLOURBAND_WIDTH = 20;
+    private static final int COLOURBAND_HEIGHT = 300;
+
+    @Benchmark
+    public ColourScheme segmentColourScheme(RenderingState state) {
+        return NetCDFLayerGenerator.getColourScheme(state.rasterVariableConf, state.rasterVariableConf.isLogarithmic());
+    }
+
+    @Benchmark
+    public ColourScheme thresholdColourScheme(RenderingState state) {
+        return NetCDFLayerGenerator.getColourScheme(state.thresholdVariableConf, state.thresholdVariableConf.isLogarithmic());
+    }
+
+    @Benchmark
+    public ColourScheme arrowThresholdColourScheme(RenderingState state) {
+        return NetCDFLayerGenerator.getColourScheme(state.arrowVariableConf, state.arrowVariableConf.isLogarithmic());
+    }
+
+    @Benchmark
+    public BufferedImage thresholdColourBar(RenderingState state) {
+        ThresholdColourBar colourBar = new ThresholdColourBar(state.thresholdVariableConf.getThresholds());
+        return colourBar.createImage(state.thresholdMapImage, COLOURBAND_WIDTH, COLOURBAND_HEIGHT);
+    }
+
+    /**
+     * Legend of a raster layer: prepare (colour bar, labels) then draw.
+     */
+    @Benchmark
+    public LegendGenerator rasterLegend(RenderingState state) {
+        LegendGenerator legendGenerator = new LegendGenerator(
+                state.context, state.layerContextMap,
+                state.rasterVariableMetadata, state.params, state.rasterVariableConf,
+                "Benchmark (legend raster)");
+
+        legendGenerator.prepare(state.rasterMapImage, 0, 0);
+        legendGenerator.drawLegend(state.canvas);
+        return legendGenerator;
+    }
+
+    /**
+     * Legend of an arrow layer with arrow thresholds: prepare (arrow colour bar, labels) then draw.
+     */
+    @Benchmark
+    public LegendGenerator arrowLegend(RenderingState state) {
+        LegendGenerator legendGenerator = new LegendGenerator(
+                state.context, state.layerContextMap,
+                state.arrowMagnitudeVariableMetadata, state.params, state.arrowVariableConf,
+                "Benchmark (legend arrows)");
+
+        legendGenerator.prepare(state.arrowMapImage, 0, 0);
+        legendGenerator.drawLegend(state.canvas);
+        return legendGenerator;
+    }
+}
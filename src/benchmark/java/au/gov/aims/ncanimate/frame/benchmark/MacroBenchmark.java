@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.benchmark;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.database.CacheStrategy;
+import au.gov.aims.ereefs.helper.NcAnimateConfigHelper;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.frame.DatabaseTestBase;
+import au.gov.aims.ncanimate.frame.generator.GroupFrameGenerator;
+import au.gov.aims.ncanimate.frame.generator.report.RunReport;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * End-to-end throughput benchmark.
+ *
+ * Renders N frames of a selection of test products, using the same in-memory database
+ * and fake NetCDF files as the JUnit tests (see {@link DatabaseTestBase}).
+ * For each product and thread count, it reports frames/sec, p50 / p99 frame latency,
+ * peak heap and bytes written, in a JSON file which can be compared between commits.
+ *
+ * Run:
+ *     mvn -P benchmark test-compile exec:exec@macrobenchmark
+ *
+ * Parameters (system properties):
+ *     macrobenchmark.products: Comma separated list of product IDs. Default: see DEFAULT_PRODUCTS
+ *     macrobenchmark.frames: Number of frames (time steps) per region / target height. Default: 12
+ *     macrobenchmark.threads: Comma separated list of thread counts. Default: 1
+ *     macrobenchmark.warmup: Number of warm up runs, not reported. Default: 1
+ *     macrobenchmark.label: Label saved in the result file, to identify the run (example: the git commit). Default: none
+ *     macrobenchmark.output: Result file. Default: target/macrobenchmark.json
+ */
+public class MacroBenchmark extends DatabaseTestBase {
+    private static final Logger LOGGER = Logger.getLogger(MacroBenchmark.class);
+
+    private static final String[] DEFAULT_PRODUCTS = {
+        "gbr4_v2_temp-wind-salt-current",         // GBR4 hydro
+        "gbr1_2-0_true-colours_combined",         // GBR1 hydro + GBR4 BGC true colour
+        "noaa_wave",                              // NOAA waves
+        "gbr4_v2_temp-multi-depth_shallow_hourly" // Multi-depth
+    };
+
+    private List<String> productIds;
+    private int frameCount;
+    private List<Integer> threadCounts;
+    private int warmupCount;
+    private String label;
+    private File outputFile;
+
+    public static void main(String ... args) throws Exception {
+        MacroBenchmark macroBenchmark = new MacroBenchmark();
+        try {
+            macroBenchmark.init();
+            macroBenchmark.run();
+        } finally {
+            macroBenchmark.shutdown();
+        }
+    }
+
+    public MacroBenchmark() {
+        this.productIds = MacroBenchmark.parseList(System.getProperty("macrobenchmark.products"), DEFAULT_PRODUCTS);
+        this.frameCount = Integer.parseInt(System.getProperty("macrobenchmark.frames", "12"));
+        this.threadCounts = new ArrayList<Integer>();
+        for (String threadCount : MacroBenchmark.parseList(System.getProperty("macrobenchmark.threads"), new String[]{ "1" })) {
+            this.threadCounts.add(Integer.parseInt(threadCount));
+        }
+        this.warmupCount = Integer.parseInt(System.getProperty("macrobenchmark.warmup", "1"));
+        String label = System.getProperty("macrobenchmark.label");
+        this.label = label == null || label.isEmpty() ? null : label;
+        this.outputFile = new File(System.getProperty("macrobenchmark.output", "target/macrobenchmark.json"));
+    }
+
+    public void run() throws Exception {
+        this.insertData();
+        this.insertInputData();
+
+        // Every run renders the same frames, the measured run must not resume from the journal of the warm up runs
+        GroupFrameGenerator.setCheckpoint(false);
+        JSONArray jsonResults = new JSONArray();
+        try {
+            for (String productId : this.productIds) {
+                for (Integer threadCount : this.threadCounts) {
+                    jsonResults.put(this.runProduct(productId, threadCount));
+                }
+            }
+        } finally {
+            GroupFrameGenerator.setCheckpoint(true);
+        }
+
+        JSONObject jsonReport = new JSONObject()
+            .put("label", this.label)
+            .put("date", new DateTime())
+            .put("javaVersion", System.getProperty("java.version"))
+            .put("availableProcessors", Runtime.getRuntime().availableProcessors())
+            .put("maxHeapBytes", Runtime.getRuntime().maxMemory())
+            .put("frames", this.frameCount)
+            .put("warmup", this.warmupCount)
+            .put("results", jsonResults);
+
+        this.writeReport(jsonReport);
+    }
+
+    // Insert every fake input file, some products use more than one
+    private void insertInputData() throws Exception {
+        this.insertInputData_fakeData_hydro_gbr4();
+        this.insertInputData_fakeData_hydro_gbr1();
+        this.insertInputData_fakeData_bgc();
+        try {
+            this.insertInputData_fakeData_noaa();
+        } catch(Exception ex) {
+            // The NOAA test files are large and may not be available
+            LOGGER.warn("Could not insert the NOAA input files. The NOAA products will fail.", ex);
+        }
+    }
+
+    private JSONObject runProduct(String productId, int threadCount) {
+        JSONObject jsonResult = new JSONObject()
+            .put("productId", productId)
+            .put("threads", threadCount);
+
+        // Frame generation uses static caches (layer generators, styles, text tiles, etc)
+        // which are not thread safe. There is no parallelism to measure yet.
+        if (threadCount != 1) {
+            LOGGER.warn(String.format("Product %s: %d threads requested. Frame generation is single threaded, skipping.", productId, threadCount));
+            return jsonResult.put("skipped", "Frame generation is single threaded");
+        }
+
+        try {
+            NcAnimateConfigHelper configHelper = new NcAnimateConfigHelper(this.getDatabaseClient(), CacheStrategy.DISK);
+            NcAnimateConfigBean ncAnimateConfig = configHelper.getNcAnimateConfig(productId);
+            if (ncAnimateConfig == null) {
+                throw new IllegalArgumentException(String.format("Product %s not found", productId));
+            }
+
+            DateTimeRange productDateRange = this.getProductDateRange(ncAnimateConfig);
+
+            for (int i=0; i<this.warmupCount; i++) {
+                LOGGER.info(String.format("Product %s: warm up run %d", productId, i+1));
+                this.generateFrames(ncAnimateConfig, productDateRange);
+            }
+
+            LOGGER.info(String.format("Product %s: measured run", productId));
+            MacroBenchmark.resetPeakHeap();
+            long start = System.nanoTime();
+            JSONObject runSummary = this.generateFrames(ncAnimateConfig, productDateRange);
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+
+            int generatedFrames = runSummary.optInt("generatedFrames", 0);
+            JSONObject jsonFrameStage = runSummary.optJSONObject("stages") == null ? null :
+                    runSummary.getJSONObject("stages").optJSONObject(RunReport.STAGE_FRAME);
+
+            jsonResult
+                .put("dateFrom", productDateRange.getStartDate())
+                .put("dateTo", productDateRange.getEndDate())
+                .put("generatedFrames", generatedFrames)
+                .put("seconds", seconds)
+                .put("framesPerSecond", seconds > 0 ? generatedFrames / seconds : 0)
+                .put("p50FrameMs", jsonFrameStage == null ? null : jsonFrameStage.opt("p50Ms"))
+                .put("p99FrameMs", jsonFrameStage == null ? null : jsonFrameStage.opt("p99Ms"))
+                .put("peakHeapBytes", MacroBenchmark.getPeakHeap())
+                .put("bytesWritten", runSummary.optLong("bytesWritten", 0))
+                .put("stages", runSummary.opt("stages"));
+
+        } catch(Exception ex) {
+            LOGGER.error(String.format("Product %s: benchmark failed", productId), ex);
+            jsonResult.put("error", ex.toString());
+        }
+
+        return jsonResult;
+    }
+
+    /**
+     * Generate the frames of the product, for every region and target height.
+     * @return The run summary (see RunReport.getSummary)
+     */
+    private JSONObject generateFrames(NcAnimateConfigBean ncAnimateConfig, DateTimeRange productDateRange) throws Exception {
+        FrameTimetableMap frameTimetableMap = new FrameTimetableMap(ncAnimateConfig, productDateRange, this.getDatabaseClient());
+
+        GroupFrameGenerator groupFrameGenerator = new GroupFrameGenerator(
+                this.getDatabaseClient(), null, ncAnimateConfig, productDateRange, frameTimetableMap,
+                Long.MAX_VALUE, // Frame files are always outdated, they are re-generated on every run
+                null);
+
+        groupFrameGenerator.generateAllFrames();
+        return groupFrameGenerator.getRunReport().getSummary();
+    }
+
+    // Date range of the first N frames available for the product
+    private DateTimeRange getProductDateRange(NcAnimateConfigBean ncAnimateConfig) throws Exception {
+        FrameTimetableMap frameTimetableMap = new FrameTimetableMap(ncAnimateConfig, DateTimeRange.create(null, null), this.getDatabaseClient());
+
+        DateTime startDate = null, endDate = null;
+        Iterator<DateTimeRange> frameDateRangeIterator = frameTimetableMap.keySet().iterator();
+        for (int i=0; i<this.frameCount && frameDateRangeIterator.hasNext(); i++) {
+            DateTimeRange frameDateRange = frameDateRangeIterator.next();
+            if (startDate == null) {
+                startDate = frameDateRange.getStartDate();
+            }
+            endDate = frameDateRange.getEndDate();
+        }
+
+        if (startDate == null) {
+            throw new IllegalStateException(String.format("No frame found for product %s", ncAnimateConfig.getId().getValue()));
+        }
+        return DateTimeRange.create(startDate, endDate);
+    }
+
+    private void writeReport(JSONObject jsonReport) throws IOException {
+        File outputDir = this.outputFile.getAbsoluteFile().getParentFile();
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException(String.format("Could not create the output directory %s", outputDir));
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(this.outputFile), StandardCharsets.UTF_8)) {
+            writer.write(jsonReport.toString(4));
+        }
+        LOGGER.info(String.format("Macro benchmark result written to %s", this.outputFile.getAbsolutePath()));
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                memoryPool.resetPeakUsage();
+            }
+        }
+    }
+
+    // Sum of the peak usage of each heap pool.
+    // The pools do not peak at the same time, it's an upper bound of the real peak.
+    private static long getPeakHeap() {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                peakHeap += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        return peakHeap;
+    }
+
+    private static List<String> parseList(String value, String[] defaultValues) {
+        List<String> values = new ArrayList<String>();
+        if (value == null || value.trim().isEmpty()) {
+            for (String defaultValue : defaultValues) {
+                values.add(defaultValue);
+            }
+        } else {
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.benchmark;
+
+import au.gov.aims.ereefs.bean.NetCDFUtils;
+import au.gov.aims.ereefs.bean.metadata.netcdf.VariableMetadataBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateLayerBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateNetCDFTrueColourVariableBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateNetCDFVariableBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimatePanelBean;
+import au.gov.aims.layers2svg.graphics.VectorRasterGraphics2D;
+import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import au.gov.aims.ncanimate.commons.generator.context.LayerContext;
+import au.gov.aims.ncanimate.frame.generator.FrameGenerator;
+import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import au.gov.aims.ncanimate.frame.generator.layer.NetCDFLayerGenerator;
+import au.gov.aims.ncanimate.frame.generator.layer.edalLayer.DynamicArrowLayer;
+import au.gov.aims.ncanimate.frame.generator.layer.edalLayer.TrueColourLayer;
+import au.gov.aims.sld.SldUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.MapImage;
+import uk.ac.rdg.resc.edal.graphics.style.RasterLayer;
+import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
+import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.graphics.utils.SimpleFeatureCatalogue;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared state of the rendering benchmarks.
+ *
+ * The synthetic dataset is written once per trial, then the drawables
+ * are built from the test configurations the same way NetCDFLayerGenerator builds them:
+ * - "temp" panel of gbr4_v2_temp-wind-salt-current_coloured-arrows: RasterLayer
+ * - "wind" panel of gbr4_v2_temp-wind-salt-current_coloured-arrows: DynamicArrowLayer, with arrow thresholds
+ * - gbr4_bgc_true-colours: TrueColourLayer
+ * - gbr4_v2_salt_threshold_legend: RasterLayer with a ThresholdColourScheme
+ */
+@State(Scope.Benchmark)
+public class RenderingState {
+    public static final String PRODUCT_ID = "gbr4_v2_temp-wind-salt-current_coloured-arrows";
+    public static final String TRUE_COLOUR_PRODUCT_ID = "gbr4_bgc_true-colours";
+    public static final String THRESHOLD_PRODUCT_ID = "gbr4_v2_salt_threshold_legend";
+
+    private static final String REGION_ID = "qld";
+    private static final double TARGET_HEIGHT = -1.5;
+    private static final int DEFAULT_ARROW_SIZE = 10;
+    private static final Color NO_DATA_COLOUR = new Color(0, true); // transparent
+
+    // Roles of the children variables of a vector variable
+    private static final String NETCDF_MAGNITUDE_TYPE = "mag";
+    private static final String NETCDF_DIRECTION_TYPE = "dir";
+
+    @Param({"GBR4", "GBR1"})
+    public String gridSize;
+
+    public BenchmarkDatabase database;
+    public SimpleFeatureCatalogue<Dataset> features;
+
+    public FrameGeneratorContext context;
+    public Map<String, LayerContext> layerContextMap;
+    public PlottingDomainParams params;
+    public VectorRasterGraphics2D canvas;
+
+    // Raster layer (temperature)
+    public NcAnimateNetCDFVariableBean rasterVariableConf;
+    public VariableMetadataBean rasterVariableMetadata;
+    public MapImage rasterMapImage;
+
+    // Arrow layer (current, with arrow thresholds)
+    public NcAnimateNetCDFVariableBean arrowVariableConf;
+    public VariableMetadataBean arrowMagnitudeVariableMetadata;
+    public MapImage arrowMapImage;
+
+    // True colour layer
+    public MapImage trueColourMapImage;
+
+    // Raster layer with thresholds (salinity)
+    public NcAnimateNetCDFVariableBean thresholdVariableConf;
+    public MapImage thresholdMapImage;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.database = new BenchmarkDatabase();
+        this.database.start(SyntheticDataset.GridSize.valueOf(this.gridSize), 1);
+
+        GriddedDataset dataset = NetCDFUtils.getNetCDFDataset(this.database.getSyntheticFile());
+        this.features = new SimpleFeatureCatalogue<Dataset>(dataset, false);
+
+        Map<String, VariableMetadataBean> variableMetadataMap =
+                this.database.getSyntheticMetadata(BenchmarkDatabase.GBR4_HYDRO_DEFINITION_ID).getVariableMetadataBeanMap();
+
+        NcAnimateConfigBean ncAnimateConfig = this.database.getNcAnimateConfig(PRODUCT_ID);
+        float scale = ncAnimateConfig.getRender().getScale();
+
+        this.context = new FrameGeneratorContext(ncAnimateConfig);
+        this.context.setRegion(ncAnimateConfig.getRegions().get(REGION_ID));
+        this.context.setTargetHeight(TARGET_HEIGHT);
+        this.layerContextMap = new HashMap<String, LayerContext>();
+
+        NcAnimatePanelBean tempPanelConf = BenchmarkDatabase.getPanel(ncAnimateConfig, "temp");
+        int panelScaledWidth = this.context.getScaledPanelWidth(tempPanelConf);
+        int panelScaledHeight = this.context.getScaledPanelHeight(tempPanelConf);
+        this.params = PlottingDomainParams.paramsForGriddedDataset(
+                panelScaledWidth, panelScaledHeight,
+                NcAnimateUtils.convertBoundingBox(this.context.getRegion().getBbox()), TARGET_HEIGHT,
+                SyntheticDataset.START_DATE);
+
+        this.canvas = new VectorRasterGraphics2D(panelScaledWidth, panelScaledHeight, 0);
+        this.canvas.disableVectorGeneration();
+        FrameGenerator.initCanvas(this.canvas);
+
+        // Raster layer
+        NcAnimateLayerBean tempLayerConf = BenchmarkDatabase.getNetCDFLayer(tempPanelConf);
+        this.rasterVariableConf = tempLayerConf.getVariable();
+        this.rasterVariableMetadata = variableMetadataMap.get(this.rasterVariableConf.getVariableId());
+        this.rasterMapImage = new MapImage();
+        this.rasterMapImage.getLayers().add(new RasterLayer(
+                this.rasterVariableMetadata.getId(),
+                NetCDFLayerGenerator.getColourScheme(this.rasterVariableConf, this.rasterVariableConf.isLogarithmic())));
+
+        // Arrow layer
+        NcAnimateLayerBean windLayerConf = BenchmarkDatabase.getNetCDFLayer(BenchmarkDatabase.getPanel(ncAnimateConfig, "wind"));
+        this.arrowVariableConf = windLayerConf.getArrowVariable();
+        this.arrowMapImage = new MapImage();
+        this.arrowMapImage.getLayers().add(this.createArrowLayer(windLayerConf, variableMetadataMap, scale));
+
+        // True colour layer
+        NcAnimateConfigBean trueColourConfig = this.database.getNcAnimateConfig(TRUE_COLOUR_PRODUCT_ID);
+        NcAnimateLayerBean trueColourLayerConf = BenchmarkDatabase.getNetCDFLayer(BenchmarkDatabase.getPanel(trueColourConfig, null));
+        this.trueColourMapImage = new MapImage();
+        this.trueColourMapImage.getLayers().add(RenderingState.createTrueColourLayer(trueColourLayerConf));
+
+        // Threshold layer
+        NcAnimateConfigBean thresholdConfig = this.database.getNcAnimateConfig(THRESHOLD_PRODUCT_ID);
+        NcAnimateLayerBean thresholdLayerConf = BenchmarkDatabase.getNetCDFLayer(BenchmarkDatabase.getPanel(thresholdConfig, null));
+        this.thresholdVariableConf = thresholdLayerConf.getVariable();
+        this.thresholdMapImage = new MapImage();
+        this.thresholdMapImage.getLayers().add(new RasterLayer(
+                this.thresholdVariableConf.getVariableId(),
+                NetCDFLayerGenerator.getColourScheme(this.thresholdVariableConf, this.thresholdVariableConf.isLogarithmic())));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FrameGenerator.clearCache();
+        if (this.database != null) {
+            this.database.stop();
+        }
+    }
+
+    // Same as NetCDFLayerGenerator.getNetCDFArrowVariable
+    private DynamicArrowLayer createArrowLayer(NcAnimateLayerBean layerConf, Map<String, VariableMetadataBean> variableMetadataMap, float scale) {
+        VariableMetadataBean variableMetadata = variableMetadataMap.get(this.arrowVariableConf.getVariableId());
+        if (variableMetadata == null) {
+            throw new IllegalStateException(String.format("Missing arrow variable %s in the synthetic dataset", this.arrowVariableConf.getVariableId()));
+        }
+
+        VariableMetadataBean directionVariableMetadata = null;
+        Map<String, VariableMetadataBean> childrenVariableMetadata = variableMetadata.getChildren();
+        if (childrenVariableMetadata != null) {
+            for (VariableMetadataBean childVariableMetadata : childrenVariableMetadata.values()) {
+                String role = childVariableMetadata.getRole();
+                if (NETCDF_DIRECTION_TYPE.equalsIgnoreCase(role)) {
+                    directionVariableMetadata = childVariableMetadata;
+                } else if (NETCDF_MAGNITUDE_TYPE.equalsIgnoreCase(role)) {
+                    this.arrowMagnitudeVariableMetadata = childVariableMetadata;
+                }
+            }
+        }
+        if (directionVariableMetadata == null || this.arrowMagnitudeVariableMetadata == null) {
+            throw new IllegalStateException(String.format("Arrow variable %s has no direction or magnitude", this.arrowVariableConf.getVariableId()));
+        }
+
+        // The arrow thresholds alternate colours and thresholds: [colour, threshold, colour, ..., colour]
+        List<Float> thresholds = new ArrayList<Float>();
+        List<String> arrowThresholds = this.arrowVariableConf.getArrowThresholds();
+        for (int i=1; i<arrowThresholds.size(); i+=2) {
+            thresholds.add(Float.parseFloat(arrowThresholds.get(i)));
+        }
+
+        Color arrowColour = this.arrowVariableConf.getArrowColour() == null ? null : SldUtils.parseHexColour(this.arrowVariableConf.getArrowColour());
+        int arrowSize = layerConf.getArrowSize() == null ? DEFAULT_ARROW_SIZE : layerConf.getArrowSize();
+
+        return new DynamicArrowLayer(
+            directionVariableMetadata.getId(), this.arrowVariableConf.getDirectionTurns(),
+            this.arrowMagnitudeVariableMetadata.getId(),
+            new NetCDFUtils.DataDomain(TARGET_HEIGHT, this.arrowVariableConf.getScaleMin(), this.arrowVariableConf.getScaleMax()),
+
+            this.arrowVariableConf.getNorthAngle(),
+            NcAnimateUtils.scale(arrowSize, scale),
+            arrowColour,
+            new Color(0, true), // Transparent background
+            thresholds,
+            NetCDFLayerGenerator.getColourScheme(this.arrowVariableConf, this.arrowVariableConf.isLogarithmic()),
+            DynamicArrowLayer.ArrowStyle.DYNA_FAT_ARROW,
+            this.arrowVariableConf.getScaleMin(), this.arrowVariableConf.getScaleMax(),
+            scale
+        );
+    }
+
+    // Same as NetCDFLayerGenerator.addNetCDFTrueColourVariables
+    private static TrueColourLayer createTrueColourLayer(NcAnimateLayerBean layerConf) {
+        TrueColourLayer trueColourLayer = new TrueColourLayer();
+        for (NcAnimateNetCDFTrueColourVariableBean trueColourVariable : layerConf.getTrueColourVariables().values()) {
+            List<String> hexColours = trueColourVariable.getHexColours();
+            Color[] colours = new Color[hexColours.size()];
+            for (int i=0; i<hexColours.size(); i++) {
+                colours[i] = SldUtils.parseHexColour(hexColours.get(i));
+            }
+
+            ColourScheme colourScheme = new SegmentColourScheme(
+                    new ScaleRange(trueColourVariable.getScaleMin(), trueColourVariable.getScaleMax(), false), null, null,
+                    NO_DATA_COLOUR,
+                    colours, 250
+            );
+            trueColourLayer.addVariable(trueColourVariable.getVariableId(), colourScheme);
+        }
+        return trueColourLayer;
+    }
+}
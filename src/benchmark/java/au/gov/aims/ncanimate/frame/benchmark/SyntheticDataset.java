@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.benchmark;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Hours;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Synthetic eReefs like NetCDF file, written in-process.
+ *
+ * The file has the same variables as the GBR4 hydro test files
+ * (temp, salt, u, v, wspeed_u, wspeed_v, botz) plus the GBR4 BGC
+ * reflectance variables (R_470, R_555, R_645) used by true colour layers.
+ * The grid is regular, with a land mask along the west side, so the data
+ * covers the "qld" region with realistic no data areas.
+ *
+ * Values are smooth analytical fields. They are not meant to look like real data,
+ * only to give the renderers the same amount of work as real data.
+ */
+public class SyntheticDataset {
+    // Model timezone, used by the time variable
+    private static final DateTimeZone MODEL_TIMEZONE = DateTimeZone.forOffsetHours(10);
+    private static final DateTime TIME_ORIGIN = new DateTime(1990, 1, 1, 0, 0, MODEL_TIMEZONE);
+
+    public static final DateTime START_DATE = new DateTime(2014, 12, 1, 0, 0, MODEL_TIMEZONE);
+
+    // Heights (the first one is the deepest, like in eReefs files)
+    private static final double[] HEIGHTS = { -49, -1.5 };
+
+    /**
+     * Grid size of the synthetic dataset.
+     * The resolution matches the resolution of the eReefs models, re-gridded on a regular grid.
+     */
+    public enum GridSize {
+        GBR4(0.03),
+        GBR1(0.01);
+
+        // Extent of the eReefs models
+        private static final double WEST = 142.0, EAST = 157.0, SOUTH = -29.0, NORTH = -7.0;
+
+        private final double resolution;
+
+        GridSize(double resolution) {
+            this.resolution = resolution;
+        }
+
+        public int getWidth() {
+            return (int)Math.round((EAST - WEST) / this.resolution);
+        }
+
+        public int getHeight() {
+            return (int)Math.round((NORTH - SOUTH) / this.resolution);
+        }
+
+        public double getLon(int x) {
+            return WEST + (x + 0.5) * this.resolution;
+        }
+
+        public double getLat(int y) {
+            return SOUTH + (y + 0.5) * this.resolution;
+        }
+    }
+
+    /**
+     * Write a synthetic NetCDF file.
+     * @param gridSize The size of the grid.
+     * @param timeCount The number of hourly time steps, starting at {@link #START_DATE}.
+     * @param file The output file. Overwritten if it already exists.
+     * @return The output file.
+     * @throws IOException If the file can not be written.
+     */
+    public static File write(GridSize gridSize, int timeCount, File file) throws IOException {
+        File parentDir = file.getParentFile();
+        if (parentDir != null && !parentDir.isDirectory() && !parentDir.mkdirs()) {
+            throw new IOException(String.format("Could not create the directory %s", parentDir));
+        }
+
+        int width = gridSize.getWidth();
+        int height = gridSize.getHeight();
+        int depthCount = HEIGHTS.length;
+
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, file.getAbsolutePath());
+        try {
+            // GBR1 files with many time steps can be larger than 2 GB
+            writer.setLargeFile(true);
+            writer.setFill(false);
+
+            writer.addGroupAttribute(null, new Attribute("title", String.format("Synthetic %s dataset", gridSize.name())));
+            writer.addGroupAttribute(null, new Attribute("Conventions", "CF-1.0"));
+
+            writer.addDimension(null, "time", timeCount);
+            writer.addDimension(null, "k", depthCount);
+            writer.addDimension(null, "latitude", height);
+            writer.addDimension(null, "longitude", width);
+
+            Variable timeVar = writer.addVariable(null, "time", DataType.DOUBLE, "time");
+            writer.addVariableAttribute(timeVar, new Attribute("units", "hours since 1990-01-01 00:00:00 +10"));
+            writer.addVariableAttribute(timeVar, new Attribute("standard_name", "time"));
+            writer.addVariableAttribute(timeVar, new Attribute("axis", "T"));
+
+            Variable heightVar = writer.addVariable(null, "zc", DataType.DOUBLE, "k");
+            writer.addVariableAttribute(heightVar, new Attribute("units", "m"));
+            writer.addVariableAttribute(heightVar, new Attribute("positive", "up"));
+            writer.addVariableAttribute(heightVar, new Attribute("axis", "Z"));
+
+            Variable latVar = writer.addVariable(null, "latitude", DataType.DOUBLE, "latitude");
+            writer.addVariableAttribute(latVar, new Attribute("units", "degrees_north"));
+            writer.addVariableAttribute(latVar, new Attribute("standard_name", "latitude"));
+
+            Variable lonVar = writer.addVariable(null, "longitude", DataType.DOUBLE, "longitude");
+            writer.addVariableAttribute(lonVar, new Attribute("units", "degrees_east"));
+            writer.addVariableAttribute(lonVar, new Attribute("standard_name", "longitude"));
+
+            String dims4D = "time k latitude longitude";
+            String dims3D = "time latitude longitude";
+            Variable tempVar = SyntheticDataset.addDataVariable(writer, "temp", dims4D, "degrees C", "Temperature", null);
+            Variable saltVar = SyntheticDataset.addDataVariable(writer, "salt", dims4D, "PSU", "Salinity", null);
+            Variable uVar = SyntheticDataset.addDataVariable(writer, "u", dims4D, "ms-1", "Eastward current", "eastward_sea_water_velocity");
+            Variable vVar = SyntheticDataset.addDataVariable(writer, "v", dims4D, "ms-1", "Northward current", "northward_sea_water_velocity");
+            Variable windUVar = SyntheticDataset.addDataVariable(writer, "wspeed_u", dims3D, "ms-1", "eastward_wind", "eastward_wind");
+            Variable windVVar = SyntheticDataset.addDataVariable(writer, "wspeed_v", dims3D, "ms-1", "northward_wind", "northward_wind");
+            Variable r470Var = SyntheticDataset.addDataVariable(writer, "R_470", dims3D, "sr-1", "Rrs_470 nm", null);
+            Variable r555Var = SyntheticDataset.addDataVariable(writer, "R_555", dims3D, "sr-1", "Rrs_555 nm", null);
+            Variable r645Var = SyntheticDataset.addDataVariable(writer, "R_645", dims3D, "sr-1", "Rrs_645 nm", null);
+            Variable botzVar = SyntheticDataset.addDataVariable(writer, "botz", "latitude longitude", "metre", "Depth of sea-bed", null);
+
+            writer.create();
+
+            // Coordinates
+            double[] times = new double[timeCount];
+            int startHours = Hours.hoursBetween(TIME_ORIGIN, START_DATE).getHours();
+            for (int t=0; t<timeCount; t++) {
+                times[t] = startHours + t;
+            }
+            double[] lats = new double[height];
+            for (int y=0; y<height; y++) {
+                lats[y] = gridSize.getLat(y);
+            }
+            double[] lons = new double[width];
+            for (int x=0; x<width; x++) {
+                lons[x] = gridSize.getLon(x);
+            }
+            writer.write(timeVar, Array.factory(DataType.DOUBLE, new int[]{ timeCount }, times));
+            writer.write(heightVar, Array.factory(DataType.DOUBLE, new int[]{ depthCount }, HEIGHTS));
+            writer.write(latVar, Array.factory(DataType.DOUBLE, new int[]{ height }, lats));
+            writer.write(lonVar, Array.factory(DataType.DOUBLE, new int[]{ width }, lons));
+
+            // Data, written one 2D slice at the time to keep the memory usage low
+            boolean[] landMask = SyntheticDataset.createLandMask(gridSize);
+            float[] slice = new float[width * height];
+            int[] shape4D = new int[]{ 1, 1, height, width };
+            int[] shape3D = new int[]{ 1, height, width };
+
+            for (int x=0; x<width; x++) {
+                for (int y=0; y<height; y++) {
+                    slice[y * width + x] = (float)(5 + 60 * (x / (double)width));
+                }
+            }
+            SyntheticDataset.applyLandMask(slice, landMask);
+            writer.write(botzVar, Array.factory(DataType.FLOAT, new int[]{ height, width }, slice));
+
+            for (int t=0; t<timeCount; t++) {
+                double phase = t * Math.PI / 12;
+
+                for (int k=0; k<depthCount; k++) {
+                    int[] origin4D = new int[]{ t, k, 0, 0 };
+                    // Deeper water is colder and saltier
+                    double depthFactor = -HEIGHTS[k] / 50.0;
+
+                    SyntheticDataset.fillSlice(gridSize, slice, 28 - 4 * depthFactor, 4, phase);
+                    SyntheticDataset.applyLandMask(slice, landMask);
+                    writer.write(tempVar, origin4D, Array.factory(DataType.FLOAT, shape4D, slice));
+
+                    SyntheticDataset.fillSlice(gridSize, slice, 34.5 + 0.5 * depthFactor, 1.5, phase + 1);
+                    SyntheticDataset.applyLandMask(slice, landMask);
+                    writer.write(saltVar, origin4D, Array.factory(DataType.FLOAT, shape4D, slice));
+
+                    SyntheticDataset.fillSlice(gridSize, slice, 0, 0.6 * (1 - depthFactor / 2), phase + 2);
+                    SyntheticDataset.applyLandMask(slice, landMask);
+                    writer.write(uVar, origin4D, Array.factory(DataType.FLOAT, shape4D, slice));
+
+                    SyntheticDataset.fillSlice(gridSize, slice, 0, 0.6 * (1 - depthFactor / 2), phase + 3);
+                    SyntheticDataset.applyLandMask(slice, landMask);
+                    writer.write(vVar, origin4D, Array.factory(DataType.FLOAT, shape4D, slice));
+                }
+
+                int[] origin3D = new int[]{ t, 0, 0 };
+
+                // Wind covers land and sea
+                SyntheticDataset.fillSlice(gridSize, slice, -4, 8, phase + 4);
+                writer.write(windUVar, origin3D, Array.factory(DataType.FLOAT, shape3D, slice));
+
+                SyntheticDataset.fillSlice(gridSize, slice, 2, 8, phase + 5);
+                writer.write(windVVar, origin3D, Array.factory(DataType.FLOAT, shape3D, slice));
+
+                SyntheticDataset.fillSlice(gridSize, slice, 0.05, 0.04, phase + 6);
+                SyntheticDataset.applyLandMask(slice, landMask);
+                writer.write(r470Var, origin3D, Array.factory(DataType.FLOAT, shape3D, slice));
+
+                SyntheticDataset.fillSlice(gridSize, slice, 0.04, 0.03, phase + 7);
+                SyntheticDataset.applyLandMask(slice, landMask);
+                writer.write(r555Var, origin3D, Array.factory(DataType.FLOAT, shape3D, slice));
+
+                SyntheticDataset.fillSlice(gridSize, slice, 0.02, 0.015, phase + 8);
+                SyntheticDataset.applyLandMask(slice, landMask);
+                writer.write(r645Var, origin3D, Array.factory(DataType.FLOAT, shape3D, slice));
+            }
+        } catch(Exception ex) {
+            throw new IOException(String.format("Could not write the synthetic NetCDF file %s", file), ex);
+        } finally {
+            writer.close();
+        }
+
+        return file;
+    }
+
+    private static Variable addDataVariable(NetcdfFileWriter writer, String name, String dimensions, String units, String longName, String standardName) {
+        Variable variable = writer.addVariable(null, name, DataType.FLOAT, dimensions);
+        writer.addVariableAttribute(variable, new Attribute("units", units));
+        writer.addVariableAttribute(variable, new Attribute("long_name", longName));
+        if (standardName != null) {
+            writer.addVariableAttribute(variable, new Attribute("standard_name", standardName));
+        }
+        writer.addVariableAttribute(variable, new Attribute("_FillValue", Float.NaN));
+        return variable;
+    }
+
+    // Smooth field: mean + amplitude * (combination of sin waves), shifted by phase
+    private static void fillSlice(GridSize gridSize, float[] slice, double mean, double amplitude, double phase) {
+        int width = gridSize.getWidth();
+        int height = gridSize.getHeight();
+        for (int y=0; y<height; y++) {
+            double lat = gridSize.getLat(y);
+            double latWave = Math.sin(lat * 0.7 + phase);
+            for (int x=0; x<width; x++) {
+                double lon = gridSize.getLon(x);
+                double value = 0.6 * latWave + 0.4 * Math.sin(lon * 1.3 - phase * 0.5);
+                slice[y * width + x] = (float)(mean + amplitude * value);
+            }
+        }
+    }
+
+    // Land is the west side of the grid, with a coastline going south-east like the Queensland coast.
+    private static boolean[] createLandMask(GridSize gridSize) {
+        int width = gridSize.getWidth();
+        int height = gridSize.getHeight();
+        boolean[] landMask = new boolean[width * height];
+        for (int y=0; y<height; y++) {
+            double lat = gridSize.getLat(y);
+            double coastLon = 145.5 + (-10 - lat) * 0.3 + 0.2 * Math.sin(lat * 3);
+            for (int x=0; x<width; x++) {
+                landMask[y * width + x] = gridSize.getLon(x) < coastLon;
+            }
+        }
+        return landMask;
+    }
+
+    private static void applyLandMask(float[] slice, boolean[] landMask) {
+        for (int i=0; i<slice.length; i++) {
+            if (landMask[i]) {
+                slice[i] = Float.NaN;
+            }
+        }
+    }
+}
@@ -13,11 +13,16 @@ import au.gov.aims.ereefs.helper.NcAnimateConfigHelper;
 import au.gov.aims.ncanimate.commons.NcAnimateUtils;
 import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
 import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.frame.generator.FrameGenerator;
 import au.gov.aims.ncanimate.frame.generator.GroupFrameGenerator;
+import au.gov.aims.ncanimate.frame.generator.plan.FrameSchedule;
+import au.gov.aims.ncanimate.frame.generator.plan.FrameShardPlan;
+import au.gov.aims.ncanimate.frame.generator.plan.WorkPlanner;
 import com.mongodb.ServerAddress;
 import com.mongodb.internal.connection.ServerAddressHelper;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
+import org.json.JSONObject;
 
 import java.util.Map;
 
@@ -28,13 +33,83 @@ public class NcAnimateFrame {
     private static final String NCANIMATE_DATABASE_SERVER_ADDRESS_ENV_VARIABLE = "DATABASE_SERVER_ADDRESS";
     private static final String NCANIMATE_DATABASE_SERVER_PORT_ENV_VARIABLE = "DATABASE_SERVER_PORT";
     private static final String NCANIMATE_DATABASE_NAME_ENV_VARIABLE = "DATABASE_NAME";
+    private static final String NCANIMATE_SVG_SHARED_DEFS_ENV_VARIABLE = "NCANIMATE_SVG_SHARED_DEFS";
+    private static final String NCANIMATE_LOCALITY_ORDERING_ENV_VARIABLE = "NCANIMATE_LOCALITY_ORDERING";
+    private static final String NCANIMATE_CHECKPOINT_ENV_VARIABLE = "NCANIMATE_CHECKPOINT";
+    // Frame render order: OLDEST_FIRST (default), NEWEST_FIRST or REGION_INTERLEAVED. See FrameSchedule
+    private static final String NCANIMATE_SCHEDULE_ENV_VARIABLE = "NCANIMATE_SCHEDULE";
+    // No frame is started after the deadline: ISO-8601 period from the start of the run (example: PT45M), or date time
+    private static final String NCANIMATE_DEADLINE_ENV_VARIABLE = "NCANIMATE_DEADLINE";
+    // Shard to render, when the product is split between multiple processes: "i/n", with 0 <= i < n
+    private static final String NCANIMATE_SHARD_ENV_VARIABLE = "NCANIMATE_SHARD";
+
+    private static final String WORKER_ARGUMENT = "--worker";
+    private static final String SHARD_MANIFEST_ARGUMENT = "--shard-manifest";
+    private static final String PLAN_ARGUMENT = "--plan";
 
     private DatabaseClient dbClient;
     private S3Client s3Client;
 
     private String regionId;
 
+    // [shard index, shard count], or null to render every frame
+    private int[] shard;
+
+    /**
+     * Generate the frames of a product:
+     *     productId dateFrom dateTo
+     * Or start a long-running worker, which reads jobs from standard input ("-"), a job file or a spool directory:
+     *     --worker source
+     * See NcAnimateFrameWorker
+     * Or print the manifest of the frames rendered by each shard, when the product is split in N shards:
+     *     --shard-manifest N productId dateFrom dateTo
+     * See FrameShardPlan
+     * Or print the work plan (stale frames, input files, cost estimate) without rendering anything:
+     *     --plan productId dateFrom dateTo
+     * See WorkPlanner
+     */
     public static void main(String ... args) {
+        if (args != null && args.length == 4 && PLAN_ARGUMENT.equals(args[0])) {
+            try {
+                NcAnimateFrame ncAnimateFrame = new NcAnimateFrame();
+                JSONObject jsonPlan = ncAnimateFrame.plan(args[1],
+                        "null".equalsIgnoreCase(args[2]) ? null : args[2],
+                        "null".equalsIgnoreCase(args[3]) ? null : args[3]);
+                System.out.println(jsonPlan.toString(4));
+            } catch(Exception ex) {
+                LOGGER.fatal("Exception occurred while creating the work plan", ex);
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
+        if (args != null && args.length == 5 && SHARD_MANIFEST_ARGUMENT.equals(args[0])) {
+            try {
+                NcAnimateFrame ncAnimateFrame = new NcAnimateFrame();
+                FrameShardPlan shardPlan = ncAnimateFrame.getShardPlan(args[2],
+                        "null".equalsIgnoreCase(args[3]) ? null : args[3],
+                        "null".equalsIgnoreCase(args[4]) ? null : args[4],
+                        Integer.parseInt(args[1]));
+                System.out.println(shardPlan.toJSON().toString(4));
+            } catch(Exception ex) {
+                LOGGER.fatal("Exception occurred while creating the shard manifest", ex);
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
+        if (args != null && args.length == 2 && WORKER_ARGUMENT.equals(args[0])) {
+            NcAnimateFrame.initSettings();
+            NcAnimateFrameWorker worker = new NcAnimateFrameWorker(new NcAnimateFrame());
+            try {
+                worker.run(args[1]);
+            } catch(Exception ex) {
+                LOGGER.fatal("Exception occurred while running the NcAnimate frame worker", ex);
+                System.exit(1);
+            }
+            System.exit(worker.getFailedJobCount() > 0 ? 1 : 0);
+        }
+
         if (args == null || args.length != 3) {
             LOGGER.error("Invalid ereefs-ncanimate2-frame parameters");
             System.exit(1);
@@ -51,6 +126,8 @@ public class NcAnimateFrame {
             dateToStr = null;
         }
 
+        NcAnimateFrame.initSettings();
+
         NcAnimateFrame ncAnimateFrame = new NcAnimateFrame();
 
         try {
@@ -61,8 +138,43 @@ public class NcAnimateFrame {
         }
     }
 
+    private static void initSettings() {
+        // Write static layers of SVG frames to a shared defs file
+        String svgSharedDefsStr = System.getenv(NCANIMATE_SVG_SHARED_DEFS_ENV_VARIABLE);
+        if (svgSharedDefsStr != null && !svgSharedDefsStr.isEmpty()) {
+            FrameGenerator.setSvgSharedDefs(Boolean.parseBoolean(svgSharedDefsStr));
+        }
+
+        // Group frames by input files, instead of rendering region by region and height by height (default: false)
+        String localityOrderingStr = System.getenv(NCANIMATE_LOCALITY_ORDERING_ENV_VARIABLE);
+        if (localityOrderingStr != null && !localityOrderingStr.isEmpty()) {
+            GroupFrameGenerator.setLocalityOrdering(Boolean.parseBoolean(localityOrderingStr));
+        }
+
+        // Trust the checkpoint journals for frames found on disk, instead of comparing them with the input files
+        String checkpointStr = System.getenv(NCANIMATE_CHECKPOINT_ENV_VARIABLE);
+        if (checkpointStr != null && !checkpointStr.isEmpty()) {
+            GroupFrameGenerator.setCheckpoint(Boolean.parseBoolean(checkpointStr));
+        }
+
+        String scheduleStr = System.getenv(NCANIMATE_SCHEDULE_ENV_VARIABLE);
+        if (scheduleStr != null && !scheduleStr.isEmpty()) {
+            GroupFrameGenerator.setSchedulePolicy(FrameSchedule.parsePolicy(scheduleStr));
+        }
+
+        String deadlineStr = System.getenv(NCANIMATE_DEADLINE_ENV_VARIABLE);
+        if (deadlineStr != null && !deadlineStr.isEmpty()) {
+            GroupFrameGenerator.setDeadline(deadlineStr);
+        }
+    }
+
     public NcAnimateFrame() {
         this(NcAnimateFrame.getDatabaseClient(), NcAnimateFrame.createS3Client(), getRegionId());
+
+        String shardStr = System.getenv(NCANIMATE_SHARD_ENV_VARIABLE);
+        if (shardStr != null && !shardStr.isEmpty()) {
+            this.shard = FrameShardPlan.parseShard(shardStr);
+        }
     }
 
     private static S3Client createS3Client() {
@@ -108,6 +220,28 @@ public class NcAnimateFrame {
         this.regionId = regionId;
     }
 
+    /**
+     * Only render the frames of one shard. See FrameShardPlan.
+     * @param shardIndex The shard to render, from 0 to shardCount-1.
+     * @param shardCount The number of shards.
+     */
+    public void setShard(int shardIndex, int shardCount) {
+        this.shard = new int[] { shardIndex, shardCount };
+    }
+
+    public FrameShardPlan getShardPlan(String productId, String dateFromStr, String dateToStr, int shardCount) throws Exception {
+        DateTimeRange productDateRange = DateTimeRange.create(
+            dateFromStr == null ? null : new DateTime(dateFromStr),
+            dateToStr == null ? null : new DateTime(dateToStr)
+        );
+
+        NcAnimateConfigHelper configHelper = new NcAnimateConfigHelper(this.dbClient, CacheStrategy.DISK);
+        NcAnimateConfigBean ncAnimateConfig = configHelper.getNcAnimateConfig(productId);
+        FrameTimetableMap frameTimetableMap = new FrameTimetableMap(ncAnimateConfig, productDateRange, this.dbClient);
+
+        return new FrameShardPlan(ncAnimateConfig, frameTimetableMap, productDateRange, shardCount);
+    }
+
     public void generateFromContext(String productId, String dateFromStr, String dateToStr) throws Exception {
         this.generateFromContext(
             productId,
@@ -127,6 +261,24 @@ public class NcAnimateFrame {
             LOGGER.info(String.format("%n    Max memory: LIMITED TO %.2f MB", (maxMemory / (1024 * 1024.0))));
         }
 
+        GroupFrameGenerator groupFrameGenerator = this.createGroupFrameGenerator(productId, productDateRange);
+        groupFrameGenerator.generateAllFrames();
+    }
+
+    /**
+     * Compute the work plan of the product, without rendering anything. See WorkPlanner
+     */
+    public JSONObject plan(String productId, String dateFromStr, String dateToStr) throws Exception {
+        DateTimeRange productDateRange = DateTimeRange.create(
+            dateFromStr == null ? null : new DateTime(dateFromStr),
+            dateToStr == null ? null : new DateTime(dateToStr)
+        );
+
+        GroupFrameGenerator groupFrameGenerator = this.createGroupFrameGenerator(productId, productDateRange);
+        return new WorkPlanner(groupFrameGenerator).plan();
+    }
+
+    private GroupFrameGenerator createGroupFrameGenerator(String productId, DateTimeRange productDateRange) throws Exception {
         NcAnimateConfigHelper configHelper = new NcAnimateConfigHelper(this.dbClient, CacheStrategy.DISK);
         NcAnimateConfigBean ncAnimateConfig = configHelper.getNcAnimateConfig(productId);
         FrameTimetableMap frameTimetableMap = new FrameTimetableMap(ncAnimateConfig, productDateRange, this.dbClient);
@@ -139,6 +291,10 @@ public class NcAnimateFrame {
             inputLastModifiedMap == null ? 0 : inputLastModifiedMap.getValue(),
             this.regionId);
 
-        groupFrameGenerator.generateAllFrames();
+        if (this.shard != null) {
+            groupFrameGenerator.setShard(this.shard[0], this.shard[1]);
+        }
+
+        return groupFrameGenerator;
     }
 }
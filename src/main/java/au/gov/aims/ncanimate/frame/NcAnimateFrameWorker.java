@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame;
+
+import au.gov.aims.ncanimate.frame.generator.FrameGenerator;
+import au.gov.aims.ncanimate.frame.generator.GroupFrameGenerator;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Long-running worker.
+ *
+ * One JVM renders a stream of jobs, to avoid paying the JVM startup, EDAL / NetCDF class loading,
+ * database connection, etc. for every product. The layer generators (loaded datasets, styles, legends)
+ * and text tiles are kept between jobs. See {@link GroupFrameGenerator#setKeepCache(boolean)}.
+ * The templates are bound to the product config of a job, they are cleared after every job.
+ *
+ * A job is one line, containing the same 3 parameters as the command line, separated with spaces:
+ *     productId dateFrom dateTo
+ * Example:
+ *     gbr4_v2_temp-wind-salt-current 2014-12-01T00:00:00.000+10:00 2014-12-02T00:00:00.000+10:00
+ * Empty lines and lines starting with "#" are ignored.
+ *
+ * Job sources:
+ *     "-": Standard input. The worker stops at the end of the stream.
+ *     File: One job per line. The worker stops at the end of the file.
+ *     Directory: Spool directory. Every "*.job" file is processed in alphabetical order,
+ *         then renamed to "*.job.done" or "*.job.failed". The directory is polled until the worker is stopped.
+ *         Job files which can not be read or renamed are logged and skipped, they are not processed again.
+ *
+ * The layer generators are cleared after a job when there is more than {@link #getMaxCachedLayerGenerators()} of them.
+ *
+ * When the JVM is asked to shutdown (SIGTERM, Ctrl-C), the worker finishes the job it's working on
+ * and do not start a new one.
+ */
+public class NcAnimateFrameWorker {
+    private static final Logger LOGGER = Logger.getLogger(NcAnimateFrameWorker.class);
+
+    public static final String STDIN_SOURCE = "-";
+    public static final String JOB_FILE_EXTENSION = ".job";
+    public static final String DONE_FILE_EXTENSION = ".done";
+    public static final String FAILED_FILE_EXTENSION = ".failed";
+
+    private static final long SPOOL_POLL_INTERVAL_MS = 5000;
+
+    // The caches are cleared after a job when there is more layer generators than that.
+    // Each layer generator may hold a loaded dataset.
+    public static final int DEFAULT_MAX_CACHED_LAYER_GENERATORS = 50;
+
+    private NcAnimateFrame ncAnimateFrame;
+
+    // Held while a job is running, used by the shutdown hook to wait for the current job
+    private final Object jobLock = new Object();
+    private volatile boolean stopped;
+
+    private int maxCachedLayerGenerators;
+
+    // Spool job files which could not be read or renamed. They are skipped on the following polls.
+    private Set<File> skippedJobFiles;
+
+    private int jobCount;
+    private int failedJobCount;
+
+    public NcAnimateFrameWorker(NcAnimateFrame ncAnimateFrame) {
+        this.ncAnimateFrame = ncAnimateFrame;
+        this.stopped = false;
+        this.maxCachedLayerGenerators = DEFAULT_MAX_CACHED_LAYER_GENERATORS;
+        this.skippedJobFiles = new HashSet<File>();
+    }
+
+    /**
+     * Run the worker until the job source is exhausted or the JVM is shutdown.
+     * @param source The job source: "-" for standard input, a job file or a spool directory.
+     * @throws Exception If the job source can not be read.
+     */
+    public void run(String source) throws Exception {
+        GroupFrameGenerator.setKeepCache(true);
+        Thread shutdownHook = new Thread() {
+            @Override
+            public void run() {
+                NcAnimateFrameWorker.this.drain();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        try {
+            if (STDIN_SOURCE.equals(source)) {
+                LOGGER.info("Worker reading jobs from standard input");
+                this.processStream(System.in);
+            } else {
+                File sourceFile = new File(source);
+                if (sourceFile.isDirectory()) {
+                    LOGGER.info(String.format("Worker reading jobs from spool directory %s", sourceFile));
+                    this.processSpoolDirectory(sourceFile);
+                } else if (sourceFile.isFile()) {
+                    LOGGER.info(String.format("Worker reading jobs from file %s", sourceFile));
+                    try (InputStream inputStream = new FileInputStream(sourceFile)) {
+                        this.processStream(inputStream);
+                    }
+                } else {
+                    throw new IOException(String.format("Invalid job source %s. Expected \"%s\", a job file or a spool directory.", source, STDIN_SOURCE));
+                }
+            }
+        } finally {
+            GroupFrameGenerator.setKeepCache(false);
+            FrameGenerator.clearCache();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch(IllegalStateException ex) {
+                // The JVM is already shutting down
+            }
+        }
+
+        LOGGER.info(String.format("Worker stopped. Jobs: %d, failed: %d", this.jobCount, this.failedJobCount));
+    }
+
+    /**
+     * Stop accepting jobs and wait for the current job, if any, to finish.
+     */
+    public void drain() {
+        if (!this.stopped) {
+            LOGGER.info("Worker stopping. Waiting for the current job to finish.");
+        }
+        this.stopped = true;
+        synchronized (this.jobLock) {
+            // Nothing to do, the lock is released when the current job is done
+        }
+    }
+
+    public boolean isStopped() {
+        return this.stopped;
+    }
+
+    public int getJobCount() {
+        return this.jobCount;
+    }
+
+    public int getFailedJobCount() {
+        return this.failedJobCount;
+    }
+
+    public int getMaxCachedLayerGenerators() {
+        return this.maxCachedLayerGenerators;
+    }
+
+    public void setMaxCachedLayerGenerators(int maxCachedLayerGenerators) {
+        this.maxCachedLayerGenerators = maxCachedLayerGenerators;
+    }
+
+    public void processStream(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        String line;
+        while (!this.stopped && (line = reader.readLine()) != null) {
+            this.processJob(line);
+        }
+    }
+
+    public void processSpoolDirectory(File spoolDirectory) throws InterruptedException {
+        while (!this.stopped) {
+            boolean jobFound = this.pollSpoolDirectory(spoolDirectory);
+            if (!jobFound && !this.stopped) {
+                Thread.sleep(SPOOL_POLL_INTERVAL_MS);
+            }
+        }
+    }
+
+    /**
+     * Process the job files found in the spool directory.
+     * @param spoolDirectory The spool directory.
+     * @return true if at least one job file was processed.
+     */
+    public boolean pollSpoolDirectory(File spoolDirectory) {
+        File[] jobFiles = spoolDirectory.listFiles();
+        boolean jobFound = false;
+        if (jobFiles != null) {
+            Arrays.sort(jobFiles);
+            for (File jobFile : jobFiles) {
+                if (this.stopped) {
+                    break;
+                }
+                if (jobFile.isFile() && jobFile.getName().endsWith(JOB_FILE_EXTENSION) && !this.skippedJobFiles.contains(jobFile)) {
+                    jobFound = true;
+                    this.processJobFile(jobFile);
+                }
+            }
+        }
+        return jobFound;
+    }
+
+    private void processJobFile(File jobFile) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(jobFile.toPath(), StandardCharsets.UTF_8);
+        } catch(IOException ex) {
+            LOGGER.error(String.format("Could not read the job file %s. The file is skipped.", jobFile), ex);
+            this.skippedJobFiles.add(jobFile);
+            return;
+        }
+
+        boolean success = true;
+        for (String line : lines) {
+            if (!this.processJob(line)) {
+                success = false;
+            }
+        }
+
+        File processedFile = new File(jobFile.getParentFile(), jobFile.getName() + (success ? DONE_FILE_EXTENSION : FAILED_FILE_EXTENSION));
+        if (!jobFile.renameTo(processedFile)) {
+            // Do not run the jobs again on the next poll
+            LOGGER.error(String.format("Could not rename the job file %s to %s. The file is skipped.", jobFile, processedFile));
+            this.skippedJobFiles.add(jobFile);
+        }
+    }
+
+    /**
+     * Parse and run a job.
+     * @param line The job line: productId dateFrom dateTo
+     * @return false if the job is invalid or failed, true otherwise (including ignored lines).
+     */
+    public boolean processJob(String line) {
+        String[] jobParameters = NcAnimateFrameWorker.parseJob(line);
+        if (jobParameters == null) {
+            return true;
+        }
+
+        synchronized (this.jobLock) {
+            if (this.stopped) {
+                return true;
+            }
+
+            this.jobCount++;
+            if (jobParameters.length != 3) {
+                LOGGER.error(String.format("Invalid job: %s. Expected: productId dateFrom dateTo", line.trim()));
+                this.failedJobCount++;
+                return false;
+            }
+
+            String productId = jobParameters[0];
+            String dateFromStr = "null".equalsIgnoreCase(jobParameters[1]) ? null : jobParameters[1];
+            String dateToStr = "null".equalsIgnoreCase(jobParameters[2]) ? null : jobParameters[2];
+
+            LOGGER.info(String.format("Job %d: product %s from %s to %s", this.jobCount, productId, dateFromStr, dateToStr));
+            boolean success = true;
+            try {
+                this.ncAnimateFrame.generateFromContext(productId, dateFromStr, dateToStr);
+            } catch(Exception ex) {
+                LOGGER.error(String.format("Exception occurred while generating NcAnimate frames for job: %s", line.trim()), ex);
+                this.failedJobCount++;
+                success = false;
+                // The cached layer generators may be in an inconsistent state
+                FrameGenerator.clearCache();
+            }
+
+            // The next job may render a different product
+            FrameGenerator.clearRunCache();
+            this.trimCache();
+            return success;
+        }
+    }
+
+    /**
+     * @param line A job line.
+     * @return The job parameters, or null if the line is empty or a comment.
+     */
+    public static String[] parseJob(String line) {
+        if (line == null) {
+            return null;
+        }
+        String trimmedLine = line.trim();
+        if (trimmedLine.isEmpty() || trimmedLine.startsWith("#")) {
+            return null;
+        }
+        return trimmedLine.split("\\s+");
+    }
+
+    // The layer generators cache is not bounded. Clear it when it holds too many layer generators.
+    private void trimCache() {
+        int cachedLayerGenerators = FrameGenerator.getCachedLayerGeneratorCount();
+        if (cachedLayerGenerators > this.maxCachedLayerGenerators) {
+            LOGGER.info(String.format("%d cached layer generators, more than %d. Clearing the caches.",
+                    cachedLayerGenerators, this.maxCachedLayerGenerators));
+            FrameGenerator.clearCache();
+        }
+    }
+}
@@ -7,14 +7,10 @@ package au.gov.aims.ncanimate.frame.generator;
 import au.gov.aims.aws.s3.FileWrapper;
 import au.gov.aims.aws.s3.entity.S3Client;
 import au.gov.aims.ereefs.Utils;
-import au.gov.aims.ereefs.bean.metadata.netcdf.NetCDFMetadataBean;
-import au.gov.aims.ereefs.bean.metadata.netcdf.VariableMetadataBean;
-import au.gov.aims.ereefs.bean.metadata.netcdf.VerticalDomainBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateCanvasBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateIdBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateLayerBean;
-import au.gov.aims.ereefs.bean.ncanimate.NcAnimateNetCDFVariableBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimatePaddingBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimatePanelBean;
 import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderBean;
@@ -22,24 +18,37 @@ import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderMapBean;
 import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderVideoBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateTextBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimatePositionBean;
-import au.gov.aims.ereefs.helper.NcAnimateConfigHelper;
 import au.gov.aims.layers2svg.graphics.GeoGraphicsFormat;
 import au.gov.aims.layers2svg.graphics.VectorRasterGraphics2D;
 import au.gov.aims.ncanimate.commons.NcAnimateUtils;
 import au.gov.aims.ncanimate.commons.generator.context.GeneratorContext;
-import au.gov.aims.ncanimate.commons.timetable.FrameTimetable;
-import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
-import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataFrame;
-import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataSet;
 import au.gov.aims.ncanimate.frame.generator.layer.edalLayer.NoDataLayer;
+import au.gov.aims.ncanimate.frame.generator.layer.edalLayer.ArrowAnchorTable;
+import au.gov.aims.ncanimate.frame.generator.layer.edalLayer.NoDataMask;
+import au.gov.aims.ncanimate.frame.generator.checkpoint.AtomicFiles;
+import au.gov.aims.ncanimate.frame.generator.checkpoint.CheckpointJournal;
 import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import au.gov.aims.ncanimate.frame.generator.download.ArtifactDownloadManager;
+import au.gov.aims.ncanimate.frame.generator.download.WMSImageCache;
 import au.gov.aims.ncanimate.commons.generator.context.LayerContext;
 import au.gov.aims.ncanimate.frame.generator.layer.AbstractLayerGenerator;
 import au.gov.aims.ncanimate.frame.generator.layer.CSVLayerGenerator;
+import au.gov.aims.ncanimate.frame.generator.layer.CSVPointTable;
+import au.gov.aims.ncanimate.frame.generator.layer.GeoJSONFeatureIndex;
 import au.gov.aims.ncanimate.frame.generator.layer.GeoJSONLayerGenerator;
 import au.gov.aims.ncanimate.frame.generator.layer.Grib2LayerGenerator;
 import au.gov.aims.ncanimate.frame.generator.layer.NetCDFLayerGenerator;
+import au.gov.aims.ncanimate.frame.generator.layer.StyleSheetCache;
 import au.gov.aims.ncanimate.frame.generator.layer.WMSLayerGenerator;
+import au.gov.aims.ncanimate.frame.generator.report.RunReport;
+import au.gov.aims.ncanimate.frame.generator.report.jfr.CanvasRenderEvent;
+import au.gov.aims.ncanimate.frame.generator.report.jfr.FrameEvent;
+import au.gov.aims.ncanimate.frame.generator.report.jfr.LayerPostRenderEvent;
+import au.gov.aims.ncanimate.frame.generator.report.jfr.LayerRenderEvent;
+import au.gov.aims.ncanimate.frame.generator.report.jfr.S3TransferEvent;
+import au.gov.aims.ncanimate.frame.generator.svg.SVGSharedDefs;
+import au.gov.aims.ncanimate.frame.generator.template.StringTemplate;
+import au.gov.aims.ncanimate.frame.generator.text.TextRenderer;
 import au.gov.aims.sld.SldUtils;
 import au.gov.aims.sld.TextAlignment;
 import org.apache.log4j.Logger;
@@ -54,8 +63,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class FrameGenerator {
     private static final Logger LOGGER = Logger.getLogger(FrameGenerator.class);
@@ -71,6 +83,19 @@ public class FrameGenerator {
 
     private static Map<String, AbstractLayerGenerator> layerGeneratorCache;
 
+    // Set to false to draw every layer and text through the vector API, even when no vector format is requested.
+    // Used to compare the output and speed of both rendering paths.
+    private static boolean rasterFastPath = true;
+
+    // Set to true to write static vector layers of SVG frames to a shared defs file,
+    // and raster layers to external image files. See SVGSharedDefs
+    // Uploaded frames are always self-contained, they are never written with shared defs.
+    private static boolean svgSharedDefs = false;
+
+    // Template of the layer config JSON, used to find the cached layer generator.
+    // Serialising the layer config to JSON for every frame is expensive.
+    private static Map<NcAnimateLayerBean, StringTemplate> layerConfTemplateCache;
+
     private GroupFrameGenerator groupFrameGenerator;
 
     public FrameGenerator(GroupFrameGenerator groupFrameGenerator) {
@@ -78,6 +103,76 @@ public class FrameGenerator {
     }
 
     public void generateFrame(FrameGeneratorContext context) throws Exception {
+        RunReport runReport = RunReport.get(context);
+        runReport.startFrame();
+        FrameEvent frameEvent = new FrameEvent();
+        frameEvent.begin();
+        boolean generated = false;
+        try {
+            generated = this.generateFrameFiles(context);
+        } finally {
+            runReport.endFrame(context, generated);
+            frameEvent.setGenerated(generated);
+            frameEvent.commit(context, null);
+        }
+    }
+
+    /**
+     * Check if the frame files already exists (PNG, SVG, etc. for that single frame)
+     * and are newer than the input files.
+     * Frames found in the checkpoint journal are up to date, their files are not checked (see {@link CheckpointJournal}).
+     * @param context Frame context
+     * @return true if at least one of the frame files is missing or outdated.
+     */
+    public boolean isFrameOutdated(FrameGeneratorContext context) {
+        if (this.isFrameJournalled(context)) {
+            return false;
+        }
+        return FrameGenerator.isFrameFileOutdated(context, this.groupFrameGenerator.getInputLastModified());
+    }
+
+    /**
+     * @param context Frame context
+     * @return true if the frame files were written by this process or a previous run (see {@link CheckpointJournal}),
+     *     after the last modification of the input files. The frame files are not checked.
+     */
+    public boolean isFrameJournalled(FrameGeneratorContext context) {
+        CheckpointJournal checkpointJournal = this.groupFrameGenerator.getCheckpointJournal(context);
+        return checkpointJournal != null && checkpointJournal.isComplete(context.getFrameDateRange(),
+                FrameGenerator.getFrameFiles(context), this.groupFrameGenerator.getInputLastModified());
+    }
+
+    private static boolean isFrameFileOutdated(FrameGeneratorContext context, long inputLastModified) {
+        for (File frameFile : FrameGenerator.getFrameFiles(context).values()) {
+            if (frameFile == null || !frameFile.exists() || frameFile.lastModified() < inputLastModified) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Frame files, keyed by format name
+    private static Map<String, File> getFrameFiles(FrameGeneratorContext context) {
+        Map<String, File> frameFiles = new HashMap<String, File>();
+        for (Map.Entry<NcAnimateRenderMapBean.MapFormat, FileWrapper> frameFileEntry : context.getFrameFileWrapperMap().entrySet()) {
+            FileWrapper frameFileWrapper = frameFileEntry.getValue();
+            frameFiles.put(frameFileEntry.getKey().name(), frameFileWrapper == null ? null : frameFileWrapper.getFile());
+        }
+        return frameFiles;
+    }
+
+    /**
+     * Generate the frame files (PNG, SVG, etc), if they are missing or outdated.
+     * @param context Frame context
+     * @return true if the frame was generated, false if it was already up to date.
+     */
+    private boolean generateFrameFiles(FrameGeneratorContext context) throws Exception {
+        // Frames of the checkpoint journal are skipped without touching the file system
+        if (this.isFrameJournalled(context)) {
+            return false;
+        }
+
+        RunReport runReport = RunReport.get(context);
         NcAnimateConfigBean ncAnimateConfig = this.groupFrameGenerator.getNcAnimateConfig();
         if (!Utils.prepareDirectory(context.getFrameDirectory())) {
             throw new IOException(String.format("Can not create the frame directory: %s", context.getFrameDirectory()));
@@ -87,16 +182,8 @@ public class FrameGenerator {
 
         S3Client s3Client = this.groupFrameGenerator.getS3Client();
 
-        boolean missingFrameFile = false;
-        // Check if the frame files already exists (PNG, SVG, etc. for that single frame)
-        for (FileWrapper frameFileWrapper : frameFileWrapperMap.values()) {
-            File frameFile = frameFileWrapper.getFile();
-
-            if (frameFile == null || !frameFile.exists() || frameFile.lastModified() < this.groupFrameGenerator.getInputLastModified()) {
-                missingFrameFile = true;
-            }
-        }
-
+        long inputLastModified = this.groupFrameGenerator.getInputLastModified();
+        boolean missingFrameFile = FrameGenerator.isFrameFileOutdated(context, inputLastModified);
         if (missingFrameFile) {
             LOGGER.info(String.format("Creating frame file %s", context.getFrameFileWithoutExtension()));
 
@@ -118,6 +205,12 @@ public class FrameGenerator {
                 }
             }
 
+            // Raster only frames use the raster fast path:
+            // static vector layers and texts which are the same on every frames
+            // are rasterised once and stamped on the frame.
+            boolean rasterOnly = FrameGenerator.rasterFastPath && !enableVectorDrawing;
+            context.setRasterOnly(rasterOnly);
+
             Map<String, NcAnimateRenderVideoBean> videoConfs = renderConf == null ? null : renderConf.getVideos();
             boolean hasVideo = videoConfs != null && !videoConfs.isEmpty();
 
@@ -150,75 +243,21 @@ public class FrameGenerator {
                 int panelScaledTopOffset = NcAnimateUtils.scale(NcAnimateUtils.getInt(paddingConf.getTop()), scale);
                 List<NcAnimatePanelBean> panelConfs = ncAnimateConfig.getPanels();
 
-                Map<String, LayerContext> layerContextMap = new HashMap<String, LayerContext>();
+                // Title of the layers which are the same on every frame, see SVGSharedDefs
+                Set<String> staticLayerTitles = new HashSet<String>();
 
-                if (panelConfs != null) {
-                    // Fill the layer context map
-                    for (NcAnimatePanelBean panelConf : panelConfs) {
-                        context.setPanelConfig(panelConf);
-
-                        List<NcAnimateLayerBean> layers = panelConf.getLayers();
-                        if (layers != null) {
-                            for (NcAnimateLayerBean layer : layers) {
-                                NcAnimateIdBean layerId = layer.getId();
-                                if (layerId != null) {
-                                    String layerIdStr = layerId.getValue();
-
-                                    FrameTimetableMap frameTimetableMap = this.groupFrameGenerator.getFrameTimetableMap();
-                                    FrameTimetable frameTimetable = frameTimetableMap.get(context.getFrameDateRange());
-                                    if (frameTimetable != null && !frameTimetable.isEmpty()) {
-                                        NetCDFMetadataSet netCDFMetadataSet = frameTimetable.get(layerIdStr);
-                                        if (netCDFMetadataSet != null) {
-                                            NetCDFMetadataFrame netCDFMetadataFrame = netCDFMetadataSet.first();
-                                            if (netCDFMetadataFrame != null) {
-                                                List<String> targetHeightStrings = new ArrayList<String>();
-                                                targetHeightStrings.add(layer.getTargetHeight());
-                                                targetHeightStrings.add("0.0");
-                                                String parsedTargetHeightStr = NcAnimateUtils.parseString(targetHeightStrings, context);
-
-                                                Double closestDepth = null;
-                                                if (parsedTargetHeightStr != null) {
-                                                    Double targetHeight = null;
-                                                    try {
-                                                        targetHeight = Double.parseDouble(parsedTargetHeightStr);
-                                                    } catch(Exception ex) {
-                                                        LOGGER.error(String.format("Invalid target height: %s", layer.getTargetHeight()), ex);
-                                                    }
-
-                                                    if (targetHeight != null) {
-                                                        NcAnimateNetCDFVariableBean variable = NcAnimateConfigHelper.getMostSignificantVariable(layer);
-                                                        if (variable != null) {
-                                                            NetCDFMetadataBean metadata = netCDFMetadataFrame.getMetadata();
-                                                            Map<String, VariableMetadataBean> variableMetadataMap = metadata.getVariableMetadataBeanMap();
-                                                            if (variableMetadataMap != null) {
-                                                                VariableMetadataBean variableMetadataBean = variableMetadataMap.get(variable.getVariableId());
-                                                                if (variableMetadataBean != null) {
-                                                                    VerticalDomainBean verticalDomainBean = variableMetadataBean.getVerticalDomainBean();
-                                                                    if (verticalDomainBean != null) {
-                                                                        closestDepth = verticalDomainBean.getClosestHeight(targetHeight);
-                                                                    }
-                                                                }
-                                                            }
-                                                        }
-                                                    }
-                                                }
-
-                                                LayerContext layerContext = new LayerContext(layerIdStr, netCDFMetadataFrame, closestDepth);
-                                                layerContextMap.put(layerIdStr, layerContext);
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
+                // Layer context map, used to replace layer placeholders in strings.
+                // It is created the first time a frame is rendered, for the context region and target height.
+                Map<String, LayerContext> layerContextMap = this.groupFrameGenerator.getLayerContextIndex().getLayerContextMap(context);
 
+                if (panelConfs != null) {
                     for (NcAnimatePanelBean panelConf : panelConfs) {
                         context.setPanelConfig(panelConf);
                         int panelScaledWidth = NcAnimateUtils.scale(NcAnimateUtils.getInt(panelConf.getWidth()), scale);
 
                         NcAnimateTextBean panelTitleBean = panelConf.getTitle();
-                        String panelTitleStr = NcAnimateUtils.parseString(panelTitleBean, context, layerContextMap);
+                        StringTemplate panelTitleTemplate = StringTemplate.get(panelTitleBean);
+                        String panelTitleStr = panelTitleTemplate.parse(context, layerContextMap);
                         String safePanelTitleStr = panelTitleStr == null ? "Unnamed panel" : panelTitleStr;
 
                         int topMargin = 0, leftMargin = 0, rightMargin = 0,
@@ -238,7 +277,9 @@ public class FrameGenerator {
                             panelScaledLeftOffset + scaledLeftMargin,
                             panelScaledTopOffset + scaledTopMargin,
                             panelConf, context, layerContextMap,
-                            panelTitleStr, safePanelTitleStr);
+                            panelTitleStr, safePanelTitleStr,
+                            rasterOnly && !panelTitleTemplate.isFrameDependent(),
+                            staticLayerTitles);
 
                         Map<String, NcAnimateTextBean> textConfs = panelConf.getTexts();
                         if (textConfs != null) {
@@ -250,7 +291,8 @@ public class FrameGenerator {
                                         panelScaledLeftOffset + scaledLeftMargin,
                                         panelScaledTopOffset + scaledTopMargin,
                                         panelConf,
-                                        context, layerContextMap);
+                                        context, layerContextMap,
+                                        rasterOnly);
                                 }
                             }
                         }
@@ -266,12 +308,13 @@ public class FrameGenerator {
                 if (textConfs != null) {
                     for (NcAnimateTextBean textConf : textConfs.values()) {
                         if (textConf != null && !textConf.isHidden()) {
-                            this.renderText(canvas, textConf, context.getScaledCanvasWidth(), context.getScaledCanvasHeight(), context, layerContextMap);
+                            this.renderText(canvas, textConf, context.getScaledCanvasWidth(), context.getScaledCanvasHeight(), context, layerContextMap, rasterOnly);
                         }
                     }
                 }
 
                 // Write graphic to file (generate PNG, SVG, etc)
+                boolean frameFilesWritten = true;
                 for (Map.Entry<NcAnimateRenderMapBean.MapFormat, FileWrapper> frameFileEntry : frameFileWrapperMap.entrySet()) {
                     NcAnimateRenderMapBean.MapFormat mapFormat = frameFileEntry.getKey();
 
@@ -295,24 +338,96 @@ public class FrameGenerator {
 
                         default:
                             LOGGER.error("Unsupported render format: " + renderFormat);
+                            frameFilesWritten = false;
                     }
 
                     if (renderFormat != null) {
                         FileWrapper fileWrapper = frameFileEntry.getValue();
-                        canvas.render(renderFormat, fileWrapper.getFile());
+                        long renderStart = runReport.start();
+                        CanvasRenderEvent canvasRenderEvent = new CanvasRenderEvent(mapFormat.name());
+                        canvasRenderEvent.begin();
+                        // Frames uploaded to S3 are left self-contained (inline defs and images),
+                        // the shared defs file and image files can only be used next to the frame, in the frame directory.
+                        boolean uploaded = hasVideo && GeneratorContext.VIDEO_FRAME_FORMAT.equals(mapFormat);
+                        boolean sharedDefs = FrameGenerator.svgSharedDefs && GeoGraphicsFormat.SVG.equals(renderFormat) && !uploaded;
+
+                        // Render to a temporary file, so a crash never leaves a truncated frame file behind
+                        File tmpFile = AtomicFiles.getTmpFile(fileWrapper.getFile());
+                        if (sharedDefs) {
+                            // The shared defs writer uses the frame temporary file
+                            tmpFile = AtomicFiles.getTmpFile(tmpFile);
+                        }
+                        try {
+                            canvas.render(renderFormat, tmpFile);
+                            if (sharedDefs) {
+                                FrameGenerator.writeSharedDefsFrame(tmpFile, fileWrapper.getFile(), staticLayerTitles);
+                            } else {
+                                AtomicFiles.commit(tmpFile, fileWrapper.getFile());
+                            }
+                        } finally {
+                            AtomicFiles.discard(tmpFile);
+                        }
+                        runReport.stop(RunReport.STAGE_RENDER + "." + mapFormat.name(), renderStart);
+                        canvasRenderEvent.setBytesWritten(fileWrapper.getFile().length());
+                        canvasRenderEvent.commit(context, null);
+
+                        runReport.addBytesWritten(fileWrapper.getFile().length());
 
                         // Upload video frames to S3 for "download video frame" feature
-                        if (hasVideo && GeneratorContext.VIDEO_FRAME_FORMAT.equals(mapFormat)) {
+                        if (uploaded) {
+                            long uploadStart = runReport.start();
+                            S3TransferEvent uploadEvent = new S3TransferEvent(S3TransferEvent.UPLOAD, fileWrapper.getS3URI());
+                            uploadEvent.begin();
                             fileWrapper.uploadFile(s3Client);
+                            runReport.stop(RunReport.STAGE_UPLOAD, uploadStart);
+                            uploadEvent.setBytes(fileWrapper.getFile().length());
+                            uploadEvent.commit(context, null);
                         }
                     }
                 }
 
+                // Only journal the frames written by this process, through AtomicFiles.
+                // Frame files found on disk may have been left truncated by a process which crashed before AtomicFiles.
+                CheckpointJournal checkpointJournal = this.groupFrameGenerator.getCheckpointJournal(context);
+                if (checkpointJournal != null && frameFilesWritten) {
+                    checkpointJournal.markComplete(context.getFrameDateRange(), FrameGenerator.getFrameFiles(context), inputLastModified);
+                }
+
             } finally {
                 // Free some memory - we won't need that canvas anymore.
                 canvas.dispose();
             }
         }
+
+        return missingFrameFile;
+    }
+
+    public static boolean isRasterFastPath() {
+        return FrameGenerator.rasterFastPath;
+    }
+
+    public static void setRasterFastPath(boolean rasterFastPath) {
+        FrameGenerator.rasterFastPath = rasterFastPath;
+    }
+
+    public static boolean isSvgSharedDefs() {
+        return FrameGenerator.svgSharedDefs;
+    }
+
+    public static void setSvgSharedDefs(boolean svgSharedDefs) {
+        FrameGenerator.svgSharedDefs = svgSharedDefs;
+    }
+
+    // Write the rendered SVG to the frame file, with references to the shared defs (see SVGSharedDefs).
+    // If that fails, the rendered SVG is used as it is, with its static layers and images inline.
+    private static void writeSharedDefsFrame(File renderedSvgFile, File svgFile, Set<String> staticLayerTitles) throws IOException {
+        try {
+            SVGSharedDefs.write(renderedSvgFile, svgFile, staticLayerTitles);
+        } catch(Exception ex) {
+            LOGGER.error(String.format("Error occurred while writing the SVG file %s with shared defs. The SVG file was written with inline defs.",
+                    svgFile), ex);
+            AtomicFiles.commit(renderedSvgFile, svgFile);
+        }
     }
 
     /**
@@ -320,7 +435,7 @@ public class FrameGenerator {
      * needs to be set on the Graphics2D.
      * This is used with the main canvas and the canvas used for caching layers.
      */
-    private static void initCanvas(VectorRasterGraphics2D canvas) {
+    public static void initCanvas(VectorRasterGraphics2D canvas) {
         // Smooth polygons
         canvas.setRenderingHint(
             RenderingHints.KEY_ANTIALIASING,
@@ -332,11 +447,15 @@ public class FrameGenerator {
     }
 
     private static void setPaintColour(VectorRasterGraphics2D canvas, String colourStr, Color defaultColour) {
+        canvas.setPaint(FrameGenerator.getColour(colourStr, defaultColour));
+    }
+
+    private static Color getColour(String colourStr, Color defaultColour) {
         Color colour = null;
         if (colourStr != null) {
             colour = SldUtils.parseHexColour(colourStr);
         }
-        canvas.setPaint(colour == null ? defaultColour : colour);
+        return colour == null ? defaultColour : colour;
     }
 
     private void renderText(
@@ -345,17 +464,21 @@ public class FrameGenerator {
             int canvasScaledWidth,
             int canvasScaledHeight,
             FrameGeneratorContext context,
-            Map<String, LayerContext> layerContextMap
+            Map<String, LayerContext> layerContextMap,
+            boolean rasterOnly
     ) {
+        RunReport runReport = RunReport.get(context);
+        long textStart = runReport.start();
 
-        String text = NcAnimateUtils.parseString(textConf, context, layerContextMap);
+        StringTemplate textTemplate = StringTemplate.get(textConf);
+        String text = textTemplate.parse(context, layerContextMap);
         if (text != null && !text.trim().isEmpty()) {
             float scale = context.getRenderScale();
 
             int rawTextFontSize = textConf.getFontSize() == null ? DEFAULT_TEXT_FONT_SIZE : textConf.getFontSize();
             int textFontSize = NcAnimateUtils.scale(rawTextFontSize, scale);
-            FrameGenerator.setPaintColour(canvas, textConf.getFontColour(), DEFAULT_FOREGROUND_COLOR);
-            canvas.setFont(new Font("SansSerif", NcAnimateUtils.getFontStyle(textConf), textFontSize));
+            Color textColour = FrameGenerator.getColour(textConf.getFontColour(), DEFAULT_FOREGROUND_COLOR);
+            Font textFont = TextRenderer.getFont(NcAnimateUtils.getFontStyle(textConf), textFontSize);
 
             // Default: Text is centred in the middle of the frame
             TextAlignment textAlign = TextAlignment.CENTRE;
@@ -379,8 +502,11 @@ public class FrameGenerator {
                 }
             }
 
-            canvas.drawString(text, x, y, textAlign);
+            TextRenderer.drawString(canvas, text, textFont, textColour, x, y, textAlign,
+                    rasterOnly && !textTemplate.isFrameDependent());
         }
+
+        runReport.stop(RunReport.STAGE_TEXT, textStart);
     }
 
     private void renderPanelText(
@@ -389,9 +515,14 @@ public class FrameGenerator {
             int leftScaledOffset, int topScaledOffset,
             NcAnimatePanelBean panelConf,
             FrameGeneratorContext context,
-            Map<String, LayerContext> layerContextMap
+            Map<String, LayerContext> layerContextMap,
+            boolean rasterOnly
     ) {
-        String text = NcAnimateUtils.parseString(textConf, context, layerContextMap);
+        RunReport runReport = RunReport.get(context);
+        long textStart = runReport.start();
+
+        StringTemplate textTemplate = StringTemplate.get(textConf);
+        String text = textTemplate.parse(context, layerContextMap);
         if (text != null && !text.trim().isEmpty()) {
             float scale = context.getRenderScale();
 
@@ -400,8 +531,8 @@ public class FrameGenerator {
 
             int rawTextFontSize = textConf.getFontSize() == null ? DEFAULT_TEXT_FONT_SIZE : textConf.getFontSize();
             int textFontSize = NcAnimateUtils.scale(rawTextFontSize, scale);
-            FrameGenerator.setPaintColour(canvas, textConf.getFontColour(), DEFAULT_FOREGROUND_COLOR);
-            canvas.setFont(new Font("SansSerif", NcAnimateUtils.getFontStyle(textConf), textFontSize));
+            Color textColour = FrameGenerator.getColour(textConf.getFontColour(), DEFAULT_FOREGROUND_COLOR);
+            Font textFont = TextRenderer.getFont(NcAnimateUtils.getFontStyle(textConf), textFontSize);
 
             // Default: Text is centred in the middle of the frame
             TextAlignment textAlign = TextAlignment.CENTRE;
@@ -425,8 +556,11 @@ public class FrameGenerator {
                 }
             }
 
-            canvas.drawString(text, leftScaledOffset + x, topScaledOffset + y, textAlign);
+            TextRenderer.drawString(canvas, text, textFont, textColour, leftScaledOffset + x, topScaledOffset + y, textAlign,
+                    rasterOnly && !textTemplate.isFrameDependent());
         }
+
+        runReport.stop(RunReport.STAGE_TEXT, textStart);
     }
 
     // Expected to return a Graphic object
@@ -436,12 +570,16 @@ public class FrameGenerator {
             NcAnimatePanelBean panelConf,
             FrameGeneratorContext context,
             Map<String, LayerContext> layerContextMap,
-            String panelTitleStr, String safePanelTitleStr
+            String panelTitleStr, String safePanelTitleStr,
+            boolean useTitleTextTile,
+            Set<String> staticLayerTitles
     ) {
         if (panelConf == null) {
             return;
         }
 
+        RunReport runReport = RunReport.get(context);
+
         float scale = context.getRenderScale();
 
         int panelScaledWidth = context.getScaledPanelWidth(panelConf),
@@ -468,6 +606,9 @@ public class FrameGenerator {
                     if (layerGenerator != null) {
                         // Collect layer generator for the post render
                         layerGenerators.add(layerGenerator);
+                        if (layerGenerator.isStaticLayer()) {
+                            staticLayerTitles.add(layerGenerator.getLayerTitle());
+                        }
                     }
                 } catch (Exception ex) {
                     LOGGER.error(String.format("Error occurred while generating the layer %s", layerConf.getId().getValue()), ex);
@@ -494,11 +635,16 @@ public class FrameGenerator {
         // NOTE: The legend is allowed to be drawn outside the panel
         if (layerGenerators != null) {
             for (AbstractLayerGenerator layerGenerator : layerGenerators) {
+                long postRenderStart = runReport.start();
+                LayerPostRenderEvent postRenderEvent = new LayerPostRenderEvent(layerGenerator.getLayerType());
+                postRenderEvent.begin();
                 try {
                     layerGenerator.postRender(canvas, leftScaledOffset, topScaledOffset);
                 } catch (Exception ex) {
                     LOGGER.error("Error occurred while post-rendering a layer", ex);
                 }
+                runReport.stop(RunReport.STAGE_LAYER_POST_RENDER + "." + layerGenerator.getLayerType(), postRenderStart);
+                postRenderEvent.commit(context, layerGenerator.getLayerId());
             }
         }
 
@@ -525,8 +671,8 @@ public class FrameGenerator {
 
             int rawFontSize = panelTitleBean.getFontSize() == null ? DEFAULT_TITLE_FONT_SIZE : panelTitleBean.getFontSize();
             int fontSize = NcAnimateUtils.scale(rawFontSize, scale);
-            FrameGenerator.setPaintColour(canvas, panelTitleBean.getFontColour(), DEFAULT_FOREGROUND_COLOR);
-            canvas.setFont(new Font("SansSerif", NcAnimateUtils.getFontStyle(panelTitleBean, true, false), fontSize));
+            Color titleColour = FrameGenerator.getColour(panelTitleBean.getFontColour(), DEFAULT_FOREGROUND_COLOR);
+            Font titleFont = TextRenderer.getFont(NcAnimateUtils.getFontStyle(panelTitleBean, true, false), fontSize);
 
             int titleX = leftScaledOffset + panelScaledWidth / 2;
             int titleY = topScaledOffset;
@@ -550,7 +696,7 @@ public class FrameGenerator {
             }
 
             if (panelTitleStr != null && !panelTitleStr.trim().isEmpty()) {
-                canvas.drawString(panelTitleStr, titleX, titleY, titleTextAlign);
+                TextRenderer.drawString(canvas, panelTitleStr, titleFont, titleColour, titleX, titleY, titleTextAlign, useTitleTextTile);
             }
         }
     }
@@ -582,9 +728,15 @@ public class FrameGenerator {
                 // - Others: One layerGenerator per config (cache generated output)
                 int panelWidth = context.getPanelWidth(panelConf),
                     panelHeight = context.getPanelHeight(panelConf);
-                String uniqueLayerId = NcAnimateLayerBean.LayerType.NETCDF.equals(layerType) || NcAnimateLayerBean.LayerType.GRIB2.equals(layerType) ?
-                        layerIdStr :
-                        context.getRegion().getId().getValue() + "_" + NcAnimateUtils.parseString(layerConf.toJSON().toString(), context, layerContextMap) + "_" + panelWidth + "x" + panelHeight;
+                // - Time-dimension WMS: One layerGenerator per region, layer and panel size (the GetMap URL changes with every frame)
+                String uniqueLayerId;
+                if (NcAnimateLayerBean.LayerType.NETCDF.equals(layerType) || NcAnimateLayerBean.LayerType.GRIB2.equals(layerType)) {
+                    uniqueLayerId = layerIdStr;
+                } else if (NcAnimateLayerBean.LayerType.WMS.equals(layerType) && WMSLayerGenerator.isTimeDimension(layerConf)) {
+                    uniqueLayerId = WMSLayerGenerator.getUniqueId(context.getRegion().getId().getValue(), layerIdStr, panelWidth, panelHeight);
+                } else {
+                    uniqueLayerId = context.getRegion().getId().getValue() + "_" + FrameGenerator.getLayerConfTemplate(layerConf).parse(context, layerContextMap) + "_" + panelWidth + "x" + panelHeight;
+                }
 
                 AbstractLayerGenerator layerGenerator = FrameGenerator.getCachedLayerGenerator(uniqueLayerId);
 
@@ -613,7 +765,9 @@ public class FrameGenerator {
                             break;
 
                         case WMS:
-                            layerGenerator = new WMSLayerGenerator(this.groupFrameGenerator.getS3Client());
+                            layerGenerator = new WMSLayerGenerator(
+                                    this.groupFrameGenerator.getS3Client(),
+                                    this.groupFrameGenerator.getSelectedFrames());
                             break;
 
                         default:
@@ -621,11 +775,25 @@ public class FrameGenerator {
                     }
 
                     FrameGenerator.cacheLayerGenerator(uniqueLayerId, layerGenerator);
+                } else if (layerGenerator instanceof NetCDFLayerGenerator) {
+                    // The layer generator may have been created by a previous run (see GroupFrameGenerator.setKeepCache)
+                    ((NetCDFLayerGenerator)layerGenerator).setFrameTimetableMap(this.groupFrameGenerator.getFrameTimetableMap());
+                } else if (layerGenerator instanceof WMSLayerGenerator) {
+                    ((WMSLayerGenerator)layerGenerator).setFrames(this.groupFrameGenerator.getSelectedFrames());
                 }
 
                 if (layerGenerator != null) {
-                    layerGenerator.init(panelConf, layerConf, panelTitleStr, context, layerContextMap);
-                    layerGenerator.render(canvas, leftScaledOffset, topScaledOffset);
+                    RunReport runReport = RunReport.get(context);
+                    long renderStart = runReport.start();
+                    LayerRenderEvent renderEvent = new LayerRenderEvent(layerGenerator.getLayerType());
+                    renderEvent.begin();
+                    try {
+                        layerGenerator.init(panelConf, layerConf, panelTitleStr, context, layerContextMap);
+                        layerGenerator.render(canvas, leftScaledOffset, topScaledOffset);
+                    } finally {
+                        runReport.stop(RunReport.STAGE_LAYER_RENDER + "." + layerGenerator.getLayerType(), renderStart);
+                        renderEvent.commit(context, layerGenerator.getLayerId());
+                    }
                     return layerGenerator;
                 }
             }
@@ -634,6 +802,20 @@ public class FrameGenerator {
         return null;
     }
 
+    private static StringTemplate getLayerConfTemplate(NcAnimateLayerBean layerConf) {
+        if (FrameGenerator.layerConfTemplateCache == null) {
+            FrameGenerator.layerConfTemplateCache = new IdentityHashMap<NcAnimateLayerBean, StringTemplate>();
+        }
+
+        StringTemplate layerConfTemplate = FrameGenerator.layerConfTemplateCache.get(layerConf);
+        if (layerConfTemplate == null) {
+            layerConfTemplate = StringTemplate.get(layerConf.toJSON().toString());
+            FrameGenerator.layerConfTemplateCache.put(layerConf, layerConfTemplate);
+        }
+
+        return layerConfTemplate;
+    }
+
     private static AbstractLayerGenerator getCachedLayerGenerator(String uniqueLayerId) {
         if (FrameGenerator.layerGeneratorCache == null) {
             return null;
@@ -650,10 +832,39 @@ public class FrameGenerator {
         FrameGenerator.layerGeneratorCache.put(uniqueLayerId, layerGenerator);
     }
 
+    public static int getCachedLayerGeneratorCount() {
+        return FrameGenerator.layerGeneratorCache == null ? 0 : FrameGenerator.layerGeneratorCache.size();
+    }
+
     public static void clearCache() {
         if (FrameGenerator.layerGeneratorCache != null) {
             FrameGenerator.layerGeneratorCache.clear();
             FrameGenerator.layerGeneratorCache = null;
         }
+        StringTemplate.clearCache();
+        TextRenderer.clearCache();
+        GeoJSONFeatureIndex.clearCache();
+        CSVPointTable.clearCache();
+        ArrowAnchorTable.clearCache();
+        NoDataMask.clearCache();
+        StyleSheetCache.clearCache();
+        ArtifactDownloadManager.clearCache();
+        WMSImageCache.clearCache();
+        FrameGenerator.clearRunCache();
+    }
+
+    /**
+     * Clear the caches which can not be reused by a following run.
+     * - The layer config templates are keyed by config instance, which are reloaded on every run.
+     * - The string templates hold values parsed for the config instances of the run.
+     * - The SVG shared defs files must be re-read from disk, they may have been modified by another process.
+     */
+    public static void clearRunCache() {
+        if (FrameGenerator.layerConfTemplateCache != null) {
+            FrameGenerator.layerConfTemplateCache.clear();
+            FrameGenerator.layerConfTemplateCache = null;
+        }
+        StringTemplate.clearCache();
+        SVGSharedDefs.clearCache();
     }
 }
@@ -13,18 +13,51 @@ import au.gov.aims.ereefs.database.DatabaseClient;
 import au.gov.aims.ncanimate.commons.NcAnimateUtils;
 import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
 import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.frame.generator.checkpoint.CheckpointJournal;
 import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import au.gov.aims.ncanimate.frame.generator.context.LayerContextIndex;
+import au.gov.aims.ncanimate.frame.generator.plan.FrameOrderPlan;
+import au.gov.aims.ncanimate.frame.generator.plan.FrameSchedule;
+import au.gov.aims.ncanimate.frame.generator.plan.FrameShardPlan;
+import au.gov.aims.ncanimate.frame.generator.report.RunReport;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
+import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class GroupFrameGenerator {
     private static final Logger LOGGER = Logger.getLogger(GroupFrameGenerator.class);
 
+    // Directory where the run reports are written. Default: [java.io.tmpdir]/ncanimate/reports
+    private static final String RUN_REPORT_DIRECTORY_ENV_VARIABLE = "NCANIMATE_RUN_REPORT_DIR";
+
+    // Set to true to keep the layer generators (loaded datasets, styles, legends), templates and text tiles
+    // from one run to the next. Used by the worker mode, see NcAnimateFrameWorker.
+    private static boolean keepCache = false;
+
+    // Set to true to group the frames by input files, instead of rendering every frame of a region / target height
+    // before moving to the next one. Disabled by default, it changes the order in which the frames are written.
+    // See FrameOrderPlan
+    private static boolean localityOrdering = false;
+
+    // Set to false to compare every frame file with the input files, instead of trusting the checkpoint journals.
+    // See CheckpointJournal
+    private static boolean checkpoint = true;
+
+    // Order in which the frames are rendered. See FrameSchedule
+    private static FrameSchedule.Policy schedulePolicy = FrameSchedule.Policy.OLDEST_FIRST;
+
+    // Optional deadline, ISO-8601 period from the start of the run or date time.
+    // No frame is started after the deadline. See FrameSchedule.parseDeadline
+    private static String deadline = null;
+
     private DatabaseClient dbClient;
     private S3Client s3Client;
 
@@ -33,13 +66,25 @@ public class GroupFrameGenerator {
     private DateTimeRange productDateRange;
 
     private FrameTimetableMap frameTimetableMap; // Complex structure containing all timestamps available for each variables from each input files
+    private LayerContextIndex layerContextIndex; // Layer context map for each entries of the frameTimetableMap
 
     private long inputLastModified; // Used to figure out if a frame is outdated
 
     private FrameGenerator frameGenerator;
+    private RunReport runReport; // Timing and counters of the run
+
+    // Completed frames, for each frame directory (region / target height). Key: frame directory
+    private Map<File, CheckpointJournal> checkpointJournalMap;
 
     private String regionId;
 
+    // Shard rendered by this process, when the product is split between multiple processes. See FrameShardPlan
+    private FrameShardPlan shardPlan;
+    private int shardIndex;
+
+    // Frames within the product date range and the shard. Reset when the shard changes. See getSelectedFrames
+    private List<DateTimeRange> selectedFrames;
+
     public GroupFrameGenerator(
             DatabaseClient dbClient,
             S3Client s3Client,
@@ -64,47 +109,291 @@ public class GroupFrameGenerator {
         this.init();
     }
 
+    public static void setKeepCache(boolean keepCache) {
+        GroupFrameGenerator.keepCache = keepCache;
+    }
+
+    public static boolean isKeepCache() {
+        return GroupFrameGenerator.keepCache;
+    }
+
+    public static void setLocalityOrdering(boolean localityOrdering) {
+        GroupFrameGenerator.localityOrdering = localityOrdering;
+    }
+
+    public static void setCheckpoint(boolean checkpoint) {
+        GroupFrameGenerator.checkpoint = checkpoint;
+    }
+
+    public static void setSchedulePolicy(FrameSchedule.Policy schedulePolicy) {
+        GroupFrameGenerator.schedulePolicy = schedulePolicy == null ? FrameSchedule.Policy.OLDEST_FIRST : schedulePolicy;
+    }
+
+    public static void setDeadline(String deadline) {
+        if (deadline != null) {
+            // Validate
+            FrameSchedule.parseDeadline(deadline, System.currentTimeMillis());
+        }
+        GroupFrameGenerator.deadline = deadline;
+    }
+
     private void init() {
-        FrameGenerator.clearCache();
+        if (GroupFrameGenerator.keepCache) {
+            FrameGenerator.clearRunCache();
+        } else {
+            FrameGenerator.clearCache();
+        }
+        this.layerContextIndex = new LayerContextIndex(this.ncAnimateConfig, this.frameTimetableMap);
         this.frameGenerator = new FrameGenerator(this);
+        this.checkpointJournalMap = new HashMap<File, CheckpointJournal>();
+        this.runReport = new RunReport(GroupFrameGenerator.getRunReportDirectory(),
+                this.ncAnimateConfig.getId().getValue(), this.regionId);
+    }
+
+    /**
+     * Only render the frames of one shard.
+     * @param shardIndex The shard to render, from 0 to shardCount-1.
+     * @param shardCount The number of shards.
+     * @return The shard plan.
+     */
+    public FrameShardPlan setShard(int shardIndex, int shardCount) {
+        if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException(String.format("Invalid shard %d/%d. Expected: i/n, with 0 <= i < n", shardIndex, shardCount));
+        }
+
+        this.shardPlan = new FrameShardPlan(this.ncAnimateConfig, this.frameTimetableMap, this.productDateRange, shardCount);
+        this.shardIndex = shardIndex;
+        this.selectedFrames = null;
+
+        LOGGER.info(String.format("Shard %d/%d of product %s: %d frames out of %d",
+                shardIndex, shardCount, this.ncAnimateConfig.getId().getValue(),
+                this.shardPlan.getFrames(shardIndex).size(), this.shardPlan.getFrameCount()));
+
+        return this.shardPlan;
+    }
+
+    public FrameShardPlan getShardPlan() {
+        return this.shardPlan;
+    }
+
+    public static File getRunReportDirectory() {
+        String runReportDirectoryStr = System.getenv(RUN_REPORT_DIRECTORY_ENV_VARIABLE);
+        if (runReportDirectoryStr != null && !runReportDirectoryStr.isEmpty()) {
+            return new File(runReportDirectoryStr);
+        }
+        return new File(System.getProperty("java.io.tmpdir"), "ncanimate/reports");
     }
 
     public void generateAllFrames() throws Exception {
         NcAnimateConfigBean ncAnimateConfig = this.getNcAnimateConfig();
 
-        Map<String, NcAnimateRegionBean> regionMap = ncAnimateConfig.getRegions();
-        List<Double> targetHeights =  ncAnimateConfig.getTargetHeights();
+        List<NcAnimateRegionBean> regions = this.getSelectedRegions();
+        List<Double> targetHeights = this.getSelectedTargetHeights();
+
+        if (regions != null) {
+            try {
+                if (GroupFrameGenerator.localityOrdering
+                        || GroupFrameGenerator.schedulePolicy != FrameSchedule.Policy.OLDEST_FIRST
+                        || GroupFrameGenerator.deadline != null) {
+                    this.generatePlannedFrames(regions, targetHeights);
+                } else {
+                    for (NcAnimateRegionBean region : regions) {
+                        for (Double targetHeight : targetHeights) {
+                            FrameGeneratorContext context = new FrameGeneratorContext(ncAnimateConfig);
+                            context.setRegion(region);
+                            context.setTargetHeight(targetHeight);
+                            context.setDateRange(this.productDateRange);
+                            this.generateFrame(context);
+                        }
+                    }
+                }
+            } finally {
+                this.closeCheckpointJournals();
+                this.runReport.close();
+            }
+        } else {
+            LOGGER.error("ERROR: No region defined.");
+        }
+    }
+
+    /**
+     * @return The regions to render (all the regions of the product, or the region selected with the region ID),
+     *     or null if the product has no region.
+     */
+    public List<NcAnimateRegionBean> getSelectedRegions() {
+        Map<String, NcAnimateRegionBean> regionMap = this.ncAnimateConfig.getRegions();
+        if (regionMap == null) {
+            return null;
+        }
+
+        Collection<NcAnimateRegionBean> regions = regionMap.values();
+        // If regionId is specified, filter out regions
+        if (this.regionId != null) {
+            regions = new ArrayList<NcAnimateRegionBean>();
+            NcAnimateRegionBean region = regionMap.get(this.regionId);
+            if (region == null) {
+                throw new IllegalArgumentException(String.format("Invalid region. Product ID %s do not support region ID %s",
+                        this.ncAnimateConfig.getId().getValue(), this.regionId));
+            }
+            regions.add(region);
+        }
+
+        return new ArrayList<NcAnimateRegionBean>(regions);
+    }
+
+    /**
+     * @return The target heights to render. Contains null if the product has no target height.
+     */
+    public List<Double> getSelectedTargetHeights() {
+        List<Double> targetHeights = this.ncAnimateConfig.getTargetHeights();
         if (targetHeights == null || targetHeights.isEmpty()) {
             targetHeights = new ArrayList<Double>();
             targetHeights.add(null);
         }
+        return targetHeights;
+    }
 
-        if (regionMap != null) {
-
-            Collection<NcAnimateRegionBean> regions = regionMap.values();
-            // If regionId is specified, filter out regions
-            if (this.regionId != null) {
-                regions = new ArrayList<NcAnimateRegionBean>();
-                NcAnimateRegionBean region = regionMap.get(this.regionId);
-                if (region == null) {
-                    throw new IllegalArgumentException(String.format("Invalid region. Product ID %s do not support region ID %s",
-                            ncAnimateConfig.getId().getValue(), this.regionId));
+    /**
+     * @return The frames to render, within the product date range and the shard, in timetable order.
+     */
+    public List<DateTimeRange> getSelectedFrames() {
+        if (this.selectedFrames == null) {
+            List<DateTimeRange> frames = new ArrayList<DateTimeRange>();
+            for (DateTimeRange frameDateRange : this.frameTimetableMap.keySet()) {
+                if (this.isFrameIncluded(frameDateRange, this.productDateRange)) {
+                    frames.add(frameDateRange);
                 }
-                regions.add(region);
             }
+            this.selectedFrames = Collections.unmodifiableList(frames);
+        }
+        return this.selectedFrames;
+    }
+
+    /**
+     * Create the frame context of a region and target height.
+     * Set the frame date range before using it.
+     */
+    public FrameGeneratorContext createContext(NcAnimateRegionBean region, Double targetHeight) {
+        FrameGeneratorContext context = new FrameGeneratorContext(this.ncAnimateConfig);
+        context.setRegion(region);
+        context.setTargetHeight(targetHeight);
+        context.setDateRange(this.productDateRange);
+        context.setFrameTimeIncrement(this.ncAnimateConfig.getFrameTimeIncrement());
+        context.setRunReport(this.runReport);
+        return context;
+    }
 
-            for (NcAnimateRegionBean region : regions) {
-                for (Double targetHeight : targetHeights) {
-                    FrameGeneratorContext context = new FrameGeneratorContext(ncAnimateConfig);
-                    context.setRegion(region);
-                    context.setTargetHeight(targetHeight);
-                    context.setDateRange(this.productDateRange);
-                    this.generateFrame(context);
+    /**
+     * Generate the frames of every region and target height, grouping the frames which use the same input files
+     * (unless locality ordering is disabled), in schedule policy order, until the deadline.
+     * See FrameOrderPlan and FrameSchedule
+     */
+    private void generatePlannedFrames(List<NcAnimateRegionBean> regions, List<Double> targetHeights) throws Exception {
+        NcAnimateConfigBean ncAnimateConfig = this.getNcAnimateConfig();
+        if (ncAnimateConfig.getRender() == null) {
+            LOGGER.warn(String.format("Render config is null for product ID %s", ncAnimateConfig.getId().getValue()));
+            return;
+        }
+
+        List<DateTimeRange> frames = this.getSelectedFrames();
+
+        FrameOrderPlan orderPlan = new FrameOrderPlan(ncAnimateConfig, this.frameTimetableMap, frames, regions, targetHeights);
+        int switchesBefore = orderPlan.getDefaultSwitchCount();
+        int switchesAfter = orderPlan.getPlannedSwitchCount();
+        LOGGER.info(String.format("Frame order of product %s: %d input file switches before planning, %d after planning",
+                ncAnimateConfig.getId().getValue(), switchesBefore, switchesAfter));
+
+        List<FrameOrderPlan.WorkItem> order = FrameSchedule.schedule(
+                GroupFrameGenerator.localityOrdering ? orderPlan.getPlannedOrder() : orderPlan.getDefaultOrder(),
+                GroupFrameGenerator.schedulePolicy);
+
+        Long deadlineMillis = GroupFrameGenerator.deadline == null ? null :
+                FrameSchedule.parseDeadline(GroupFrameGenerator.deadline, System.currentTimeMillis());
+
+        JSONObject jsonPlan = orderPlan.toJSON()
+            .put("schedulePolicy", GroupFrameGenerator.schedulePolicy.name())
+            .put("deadline", deadlineMillis == null ? null : new DateTime(deadlineMillis));
+        this.runReport.setPlan(jsonPlan);
+
+        FrameGenerator frameGenerator = this.getFrameGenerator();
+
+        // One context per region / target height
+        Map<String, FrameGeneratorContext> contextMap = new HashMap<String, FrameGeneratorContext>();
+        int frameCounter = 0;
+        int unscheduledFrameCounter = 0;
+        for (FrameOrderPlan.WorkItem workItem : order) {
+            if (deadlineMillis != null && System.currentTimeMillis() >= deadlineMillis) {
+                unscheduledFrameCounter += workItem.getFrames().size();
+                continue;
+            }
+
+            NcAnimateRegionBean region = workItem.getRegion();
+            String contextKey = region.getId().getValue() + "_" + workItem.getTargetHeight();
+            FrameGeneratorContext context = contextMap.get(contextKey);
+            if (context == null) {
+                context = this.createContext(region, workItem.getTargetHeight());
+                contextMap.put(contextKey, context);
+            }
+
+            // Resume at the first frame which is not in the checkpoint journal
+            List<DateTimeRange> workItemFrames = workItem.getFrames();
+            int firstFrame = this.getFirstUnfinishedFrame(frameGenerator, context, workItemFrames);
+            if (firstFrame > 0) {
+                LOGGER.info(String.format("Resuming region %s, target height %s at frame %d of %d",
+                        region.getId().getValue(), workItem.getTargetHeight(), firstFrame + 1, workItemFrames.size()));
+                this.runReport.addSkippedFrames(firstFrame);
+            }
+
+            for (DateTimeRange frameDateRange : workItemFrames.subList(firstFrame, workItemFrames.size())) {
+                if (deadlineMillis != null && System.currentTimeMillis() >= deadlineMillis) {
+                    unscheduledFrameCounter++;
+                    continue;
+                }
+
+                context.setFrameDateRange(frameDateRange);
+                frameGenerator.generateFrame(context);
+
+                frameCounter++;
+                if (frameCounter % 10 == 0) {
+                    NcAnimateUtils.printMemoryUsage(String.format("NcAnimate generateFrame %d", frameCounter));
                 }
             }
-        } else {
-            LOGGER.error("ERROR: No region defined.");
         }
+
+        jsonPlan.put("unscheduledFrames", unscheduledFrameCounter);
+        if (unscheduledFrameCounter > 0) {
+            LOGGER.warn(String.format("Deadline %s reached for product %s: %d frames not rendered",
+                    new DateTime(deadlineMillis), ncAnimateConfig.getId().getValue(), unscheduledFrameCounter));
+        }
+    }
+
+    /**
+     * @return The index of the first frame which is not in the checkpoint journal,
+     *     or the number of frames if they are all in the journal.
+     */
+    private int getFirstUnfinishedFrame(FrameGenerator frameGenerator, FrameGeneratorContext context, List<DateTimeRange> frames) {
+        if (this.getCheckpointJournal(context) == null) {
+            return 0;
+        }
+
+        // The frame date range of the context is set again when the frame is generated
+        int firstFrame = 0;
+        for (DateTimeRange frameDateRange : frames) {
+            context.setFrameDateRange(frameDateRange);
+            if (!frameGenerator.isFrameJournalled(context)) {
+                break;
+            }
+            firstFrame++;
+        }
+        return firstFrame;
+    }
+
+    // Date range and shard filter
+    private boolean isFrameIncluded(DateTimeRange frameDateRange, DateTimeRange productDateRange) {
+        if (!FrameShardPlan.isInDateRange(frameDateRange, productDateRange)) {
+            return false;
+        }
+        return this.shardPlan == null || this.shardPlan.isInShard(frameDateRange, this.shardIndex);
     }
 
     public void generateFrame(FrameGeneratorContext context) throws Exception {
@@ -123,27 +412,17 @@ public class GroupFrameGenerator {
         TimeIncrement frameTimeIncrement = this.ncAnimateConfig.getFrameTimeIncrement();
         FrameGenerator frameGenerator = this.getFrameGenerator();
 
-        DateTime startDate = null, endDate = null;
         DateTimeRange productDateRange = context.getDateRange();
-        if (productDateRange != null) {
-            startDate = productDateRange.getStartDate();
-            endDate = productDateRange.getEndDate();
-        }
 
         context.setFrameTimeIncrement(frameTimeIncrement);
+        if (context.getRunReport() == null) {
+            context.setRunReport(this.runReport);
+        }
 
         // Loop through all available date frames and select the one that are between start and end dates.
         int frameCounter = 0;
         for (DateTimeRange frameDateRange : this.frameTimetableMap.keySet()) {
-            boolean includeFrame = true;
-            if (startDate != null && frameDateRange.getStartDate().compareTo(startDate) < 0) {
-                includeFrame = false;
-            }
-            if (endDate != null && frameDateRange.getEndDate().compareTo(endDate) > 0) {
-                includeFrame = false;
-            }
-
-            if (includeFrame) {
+            if (this.isFrameIncluded(frameDateRange, productDateRange)) {
                 context.setFrameDateRange(frameDateRange);
                 frameGenerator.generateFrame(context);
             }
@@ -171,10 +450,43 @@ public class GroupFrameGenerator {
         return this.frameTimetableMap;
     }
 
+    public LayerContextIndex getLayerContextIndex() {
+        return this.layerContextIndex;
+    }
+
     public long getInputLastModified() {
         return this.inputLastModified;
     }
 
+    public RunReport getRunReport() {
+        return this.runReport;
+    }
+
+    /**
+     * @param context Frame context
+     * @return The checkpoint journal of the context frame directory, or null if checkpoints are disabled.
+     */
+    public CheckpointJournal getCheckpointJournal(FrameGeneratorContext context) {
+        if (!GroupFrameGenerator.checkpoint) {
+            return null;
+        }
+
+        File frameDirectory = context.getFrameDirectory();
+        CheckpointJournal checkpointJournal = this.checkpointJournalMap.get(frameDirectory);
+        if (checkpointJournal == null) {
+            checkpointJournal = new CheckpointJournal(frameDirectory);
+            this.checkpointJournalMap.put(frameDirectory, checkpointJournal);
+        }
+        return checkpointJournal;
+    }
+
+    private void closeCheckpointJournals() {
+        for (CheckpointJournal checkpointJournal : this.checkpointJournalMap.values()) {
+            checkpointJournal.close();
+        }
+        this.checkpointJournalMap.clear();
+    }
+
     public FrameGenerator getFrameGenerator() {
         return this.frameGenerator;
     }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.checkpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Crash-safe file writes.
+ *
+ * Files are written to a temporary file in the same directory, then renamed.
+ * If the process dies while writing, the output file is either missing or complete,
+ * never truncated. Left over temporary files are overwritten by the next write.
+ */
+public class AtomicFiles {
+    public static final String TMP_FILE_EXTENSION = ".tmp";
+
+    /**
+     * @param file The output file.
+     * @return The temporary file to write, in the same directory as the output file.
+     */
+    public static File getTmpFile(File file) {
+        return new File(file.getAbsoluteFile().getParentFile(), file.getName() + TMP_FILE_EXTENSION);
+    }
+
+    /**
+     * Rename the temporary file to the output file, replacing it if it exists.
+     * @param tmpFile The temporary file, see {@link #getTmpFile(File)}.
+     * @param file The output file.
+     * @throws IOException If the file can not be renamed.
+     */
+    public static void commit(File tmpFile, File file) throws IOException {
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch(AtomicMoveNotSupportedException ex) {
+            // Some file systems do not support atomic moves. A rename within a directory is the best we can do.
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Delete the temporary file, after a failed write.
+     * @param tmpFile The temporary file.
+     */
+    public static void discard(File tmpFile) {
+        if (tmpFile != null && tmpFile.exists()) {
+            tmpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.checkpoint;
+
+import au.gov.aims.ereefs.Utils;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Journal of the frames completed in a frame directory (one per product, region and target height).
+ *
+ * A line is appended (and flushed) once every file of a frame has been written:
+ *     [frame key] TAB [input last modified] TAB done
+ * The frame key contains the frame date range and every frame file, with its format:
+ *     [frame start millis]_[frame end millis]|[format]=[file path]|[format]=[file path]...
+ * Adding a format or moving the frame files gives a new key, the frame is not considered complete.
+ *
+ * Only the frames written by the frame generator (through {@link AtomicFiles}) are journalled.
+ * Frame files found on disk are not: they may have been left truncated by a process which crashed.
+ *
+ * The frame generator resumes at the first frame of each region / target height which is not in the journal.
+ * Frames found in the journal are skipped without checking their files on disk,
+ * as long as the input files have not been modified since they were rendered.
+ * Delete the journal when frame files are deleted by hand.
+ * Lines which are not terminated by "done" (process killed while writing the line) are ignored.
+ * The journal is compacted when it's loaded: invalid and duplicated lines are removed.
+ *
+ * The journal is saved next to the frame directory, as a hidden file:
+ *     .../[region]/height_-1.5  =>  .../[region]/.height_-1.5.checkpoint
+ */
+public class CheckpointJournal {
+    private static final Logger LOGGER = Logger.getLogger(CheckpointJournal.class);
+
+    public static final String JOURNAL_FILE_EXTENSION = ".checkpoint";
+
+    private static final String SEPARATOR = "\t";
+    private static final String DONE = "done";
+    private static final String FRAME_FILE_SEPARATOR = "|";
+
+    private File journalFile;
+
+    // Completed frames. Key: frame key, value: input last modified when the frame was rendered
+    private Map<String, Long> completedFrames;
+    private Writer writer;
+
+    public CheckpointJournal(File frameDirectory) {
+        File absoluteFrameDirectory = frameDirectory.getAbsoluteFile();
+        this.journalFile = new File(absoluteFrameDirectory.getParentFile(), "." + absoluteFrameDirectory.getName() + JOURNAL_FILE_EXTENSION);
+        this.completedFrames = new LinkedHashMap<String, Long>();
+        this.load();
+    }
+
+    public File getJournalFile() {
+        return this.journalFile;
+    }
+
+    public int size() {
+        return this.completedFrames.size();
+    }
+
+    /**
+     * @param frameDateRange The frame date range.
+     * @param frameFiles The frame files, keyed by format.
+     * @param inputLastModified The last modified date of the input files.
+     * @return true if the frame files were completed after the last modification of the input files.
+     */
+    public boolean isComplete(DateTimeRange frameDateRange, Map<String, File> frameFiles, long inputLastModified) {
+        Long frameInputLastModified = this.completedFrames.get(CheckpointJournal.getFrameKey(frameDateRange, frameFiles));
+        return frameInputLastModified != null && frameInputLastModified >= inputLastModified;
+    }
+
+    /**
+     * Record a completed frame. Call once every file of the frame has been written.
+     * @param frameDateRange The frame date range.
+     * @param frameFiles The frame files, keyed by format.
+     * @param inputLastModified The last modified date of the input files used to render the frame.
+     * @throws IOException If the journal can not be written.
+     */
+    public void markComplete(DateTimeRange frameDateRange, Map<String, File> frameFiles, long inputLastModified) throws IOException {
+        String frameKey = CheckpointJournal.getFrameKey(frameDateRange, frameFiles);
+        this.completedFrames.put(frameKey, inputLastModified);
+
+        if (this.writer == null) {
+            if (!Utils.prepareDirectory(this.journalFile.getParentFile())) {
+                throw new IOException(String.format("Can not create the checkpoint journal directory: %s", this.journalFile.getParentFile()));
+            }
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.journalFile, true), StandardCharsets.UTF_8));
+        }
+        this.writer.write(CheckpointJournal.getLine(frameKey, inputLastModified));
+        // Flush every line, the journal is used to resume a run which crashed
+        this.writer.flush();
+    }
+
+    public void close() {
+        if (this.writer != null) {
+            try {
+                this.writer.close();
+            } catch(IOException ex) {
+                LOGGER.warn(String.format("Could not close the checkpoint journal %s", this.journalFile), ex);
+            }
+            this.writer = null;
+        }
+    }
+
+    private void load() {
+        if (!this.journalFile.isFile()) {
+            return;
+        }
+
+        int lineCount = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.journalFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] values = line.split(SEPARATOR);
+                if (values.length == 3 && DONE.equals(values[2])) {
+                    try {
+                        this.completedFrames.put(values[0], Long.parseLong(values[1]));
+                    } catch(NumberFormatException ex) {
+                        LOGGER.warn(String.format("Invalid line in checkpoint journal %s: %s", this.journalFile, line));
+                    }
+                }
+            }
+        } catch(IOException ex) {
+            LOGGER.warn(String.format("Could not read the checkpoint journal %s. Every frame file will be checked.", this.journalFile), ex);
+            this.completedFrames.clear();
+            return;
+        }
+
+        // Frames re-rendered after a modification of the input files are appended again.
+        // Keep the last line of each frame only, and drop the truncated lines.
+        if (lineCount > this.completedFrames.size()) {
+            this.compact();
+        }
+
+        if (!this.completedFrames.isEmpty()) {
+            LOGGER.info(String.format("Resuming from checkpoint journal %s: %d completed frames", this.journalFile, this.completedFrames.size()));
+        }
+    }
+
+    /**
+     * Rewrite the journal with the completed frames only.
+     * The journal is only a shortcut, it's deleted if it can not be rewritten.
+     */
+    private void compact() {
+        File tmpFile = AtomicFiles.getTmpFile(this.journalFile);
+        try {
+            try (Writer tmpWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, Long> completedFrame : this.completedFrames.entrySet()) {
+                    tmpWriter.write(CheckpointJournal.getLine(completedFrame.getKey(), completedFrame.getValue()));
+                }
+            }
+            AtomicFiles.commit(tmpFile, this.journalFile);
+        } catch(IOException ex) {
+            LOGGER.warn(String.format("Could not compact the checkpoint journal %s. Every frame file will be checked.", this.journalFile), ex);
+            AtomicFiles.discard(tmpFile);
+            this.completedFrames.clear();
+            if (!this.journalFile.delete()) {
+                LOGGER.warn(String.format("Could not delete the checkpoint journal %s", this.journalFile));
+            }
+        }
+    }
+
+    private static String getLine(String frameKey, long inputLastModified) {
+        return frameKey + SEPARATOR + inputLastModified + SEPARATOR + DONE + "\n";
+    }
+
+    private static String getFrameKey(DateTimeRange frameDateRange, Map<String, File> frameFiles) {
+        StringBuilder frameKey = new StringBuilder()
+            .append(frameDateRange.getStartDate().getMillis())
+            .append("_")
+            .append(frameDateRange.getEndDate().getMillis());
+
+        if (frameFiles != null) {
+            // Sorted by format, the key must not depend on the map order
+            for (Map.Entry<String, File> frameFile : new TreeMap<String, File>(frameFiles).entrySet()) {
+                File file = frameFile.getValue();
+                frameKey.append(FRAME_FILE_SEPARATOR)
+                    .append(frameFile.getKey())
+                    .append("=")
+                    .append(file == null ? null : file.getAbsolutePath());
+            }
+        }
+
+        return frameKey.toString();
+    }
+}
@@ -9,6 +9,7 @@ import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
 import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderMapBean;
 import au.gov.aims.ncanimate.commons.generator.context.GeneratorContext;
 import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.frame.generator.report.RunReport;
 import org.apache.log4j.Logger;
 import org.json.JSONObject;
 
@@ -21,6 +22,13 @@ public class FrameGeneratorContext extends GeneratorContext {
     // Config
     private DateTimeRange frameDateRange;
 
+    // True when the frame is only rendered into raster formats (PNG, JPG, etc).
+    // Layers and texts can then be drawn as pre-rasterised images.
+    private boolean rasterOnly;
+
+    // Timing and counters of the run. See RunReport.get(GeneratorContext)
+    private RunReport runReport;
+
     public FrameGeneratorContext(NcAnimateConfigBean ncAnimateConfig) {
         super(ncAnimateConfig);
     }
@@ -33,6 +41,22 @@ public class FrameGeneratorContext extends GeneratorContext {
         this.frameDateRange = frameDateRange;
     }
 
+    public boolean isRasterOnly() {
+        return this.rasterOnly;
+    }
+
+    public void setRasterOnly(boolean rasterOnly) {
+        this.rasterOnly = rasterOnly;
+    }
+
+    public RunReport getRunReport() {
+        return this.runReport;
+    }
+
+    public void setRunReport(RunReport runReport) {
+        this.runReport = runReport;
+    }
+
     public File getFrameFileWithoutExtension() {
         return this.getFrameFileWithoutExtension(this.frameDateRange);
     }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.context;
+
+import au.gov.aims.ereefs.bean.metadata.netcdf.NetCDFMetadataBean;
+import au.gov.aims.ereefs.bean.metadata.netcdf.VariableMetadataBean;
+import au.gov.aims.ereefs.bean.metadata.netcdf.VerticalDomainBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateIdBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateLayerBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateNetCDFVariableBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimatePanelBean;
+import au.gov.aims.ereefs.helper.NcAnimateConfigHelper;
+import au.gov.aims.ncanimate.commons.generator.context.LayerContext;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetable;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataFrame;
+import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataSet;
+import au.gov.aims.ncanimate.frame.generator.template.StringTemplate;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the layer contexts (used to replace layer placeholders in strings).
+ *
+ * The layer context of a layer only depends on the NetCDF file used by the layer, the data time in that file
+ * and the layer closest height. Consecutive frames reading the same data (hourly frames of daily data, etc)
+ * share the same layer contexts, whatever their region or target height.
+ * The layer context map of a frame is assembled when it's requested (see {@link #getLayerContextMap(FrameGeneratorContext)}),
+ * only the most recently used layer contexts are kept (see {@link #LAYER_CONTEXT_CACHE_SIZE}).
+ * The closest height search is done once per NetCDF file, variable and target height.
+ */
+public class LayerContextIndex {
+    private static final Logger LOGGER = Logger.getLogger(LayerContextIndex.class);
+
+    // Enough for the layers of a few frames, rendered alternating between regions and target heights (see FrameOrderPlan)
+    public static final int LAYER_CONTEXT_CACHE_SIZE = 256;
+
+    private NcAnimateConfigBean ncAnimateConfig;
+    private FrameTimetableMap frameTimetableMap;
+
+    // Most recently used layer contexts. Key: See getLayerContextKey
+    private Map<String, LayerContext> layerContextCache;
+
+    // Closest height found in the vertical domain of a variable (NetCDF file + variable) for a given target height.
+    private Map<VerticalDomainBean, Map<Double, Double>> closestHeightCache;
+
+    public LayerContextIndex(NcAnimateConfigBean ncAnimateConfig, FrameTimetableMap frameTimetableMap) {
+        this.ncAnimateConfig = ncAnimateConfig;
+        this.frameTimetableMap = frameTimetableMap;
+        this.layerContextCache = new LinkedHashMap<String, LayerContext>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LayerContext> eldest) {
+                return this.size() > LAYER_CONTEXT_CACHE_SIZE;
+            }
+        };
+        this.closestHeightCache = new IdentityHashMap<VerticalDomainBean, Map<Double, Double>>();
+    }
+
+    /**
+     * Returns the layer context map for the frame of the context.
+     * The layer contexts are reused if they are already in the index.
+     * The context is not modified.
+     * @param context Frame context, with region, target height and frame date range set.
+     * @return The layer context map. Key: layer id
+     */
+    public Map<String, LayerContext> getLayerContextMap(FrameGeneratorContext context) {
+        FrameTimetable frameTimetable = this.frameTimetableMap == null ? null : this.frameTimetableMap.get(context.getFrameDateRange());
+        if (frameTimetable == null) {
+            return new HashMap<String, LayerContext>();
+        }
+
+        return this.createLayerContextMap(context, frameTimetable);
+    }
+
+    /**
+     * @return The number of layer contexts in the index.
+     */
+    public int size() {
+        return this.layerContextCache.size();
+    }
+
+    public void clear() {
+        this.layerContextCache.clear();
+        this.closestHeightCache.clear();
+    }
+
+    private Map<String, LayerContext> createLayerContextMap(FrameGeneratorContext context, FrameTimetable frameTimetable) {
+        Map<String, LayerContext> layerContextMap = new HashMap<String, LayerContext>();
+        if (frameTimetable.isEmpty()) {
+            return layerContextMap;
+        }
+
+        List<NcAnimatePanelBean> panelConfs = this.ncAnimateConfig.getPanels();
+        if (panelConfs != null) {
+            // The layer target height may reference panel placeholders.
+            // Use a copy of the context, the frame context may be in the middle of rendering a panel.
+            FrameGeneratorContext panelContext = this.createPanelContext(context);
+            for (NcAnimatePanelBean panelConf : panelConfs) {
+                panelContext.setPanelConfig(panelConf);
+
+                List<NcAnimateLayerBean> layers = panelConf.getLayers();
+                if (layers != null) {
+                    for (NcAnimateLayerBean layer : layers) {
+                        NcAnimateIdBean layerId = layer.getId();
+                        if (layerId != null) {
+                            String layerIdStr = layerId.getValue();
+
+                            NetCDFMetadataSet netCDFMetadataSet = frameTimetable.get(layerIdStr);
+                            if (netCDFMetadataSet != null) {
+                                NetCDFMetadataFrame netCDFMetadataFrame = netCDFMetadataSet.first();
+                                if (netCDFMetadataFrame != null) {
+                                    Double closestDepth = this.getClosestDepth(panelContext, layer, netCDFMetadataFrame);
+                                    layerContextMap.put(layerIdStr, this.getLayerContext(layerIdStr, netCDFMetadataFrame, closestDepth));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return layerContextMap;
+    }
+
+    private LayerContext getLayerContext(String layerId, NetCDFMetadataFrame netCDFMetadataFrame, Double closestDepth) {
+        String key = LayerContextIndex.getLayerContextKey(layerId, netCDFMetadataFrame, closestDepth);
+        LayerContext layerContext = this.layerContextCache.get(key);
+        if (layerContext == null) {
+            layerContext = new LayerContext(layerId, netCDFMetadataFrame, closestDepth);
+            this.layerContextCache.put(key, layerContext);
+        }
+        return layerContext;
+    }
+
+    // Layer ID, NetCDF file, data time in the file and closest height
+    private static String getLayerContextKey(String layerId, NetCDFMetadataFrame netCDFMetadataFrame, Double closestDepth) {
+        NetCDFMetadataBean metadata = netCDFMetadataFrame.getMetadata();
+        DateTime frameDateTime = netCDFMetadataFrame.getFrameDateTime();
+        return String.format("%s_%s_%s_%s", layerId,
+                metadata == null ? null : metadata.getId(),
+                frameDateTime == null ? null : frameDateTime.getMillis(),
+                closestDepth);
+    }
+
+    private FrameGeneratorContext createPanelContext(FrameGeneratorContext context) {
+        FrameGeneratorContext panelContext = new FrameGeneratorContext(this.ncAnimateConfig);
+        panelContext.setRegion(context.getRegion());
+        panelContext.setTargetHeight(context.getTargetHeight());
+        panelContext.setDateRange(context.getDateRange());
+        panelContext.setFrameDateRange(context.getFrameDateRange());
+        panelContext.setFrameTimeIncrement(this.ncAnimateConfig.getFrameTimeIncrement());
+        return panelContext;
+    }
+
+    private Double getClosestDepth(FrameGeneratorContext context, NcAnimateLayerBean layer, NetCDFMetadataFrame netCDFMetadataFrame) {
+        List<String> targetHeightStrings = new ArrayList<String>();
+        targetHeightStrings.add(layer.getTargetHeight());
+        targetHeightStrings.add("0.0");
+        String parsedTargetHeightStr = StringTemplate.get(targetHeightStrings).parse(context, null);
+        if (parsedTargetHeightStr == null) {
+            return null;
+        }
+
+        Double targetHeight = null;
+        try {
+            targetHeight = Double.parseDouble(parsedTargetHeightStr);
+        } catch(Exception ex) {
+            LOGGER.error(String.format("Invalid target height: %s", layer.getTargetHeight()), ex);
+        }
+        if (targetHeight == null) {
+            return null;
+        }
+
+        NcAnimateNetCDFVariableBean variable = NcAnimateConfigHelper.getMostSignificantVariable(layer);
+        if (variable == null) {
+            return null;
+        }
+
+        NetCDFMetadataBean metadata = netCDFMetadataFrame.getMetadata();
+        Map<String, VariableMetadataBean> variableMetadataMap = metadata == null ? null : metadata.getVariableMetadataBeanMap();
+        if (variableMetadataMap == null) {
+            return null;
+        }
+
+        VariableMetadataBean variableMetadataBean = variableMetadataMap.get(variable.getVariableId());
+        VerticalDomainBean verticalDomainBean = variableMetadataBean == null ? null : variableMetadataBean.getVerticalDomainBean();
+        if (verticalDomainBean == null) {
+            return null;
+        }
+
+        Map<Double, Double> closestHeightMap = this.closestHeightCache.get(verticalDomainBean);
+        if (closestHeightMap == null) {
+            closestHeightMap = new HashMap<Double, Double>();
+            this.closestHeightCache.put(verticalDomainBean, closestHeightMap);
+        }
+
+        if (!closestHeightMap.containsKey(targetHeight)) {
+            closestHeightMap.put(targetHeight, verticalDomainBean.getClosestHeight(targetHeight));
+        }
+        return closestHeightMap.get(targetHeight);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.download;
+
+import au.gov.aims.aws.s3.entity.S3Client;
+import au.gov.aims.ncanimate.frame.generator.checkpoint.AtomicFiles;
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Download manager for the small artefacts used by the layer generators:
+ * layer datasource, style and palette files.
+ *
+ * Every layer generator instance (one per region, layer and panel size) used to download its files.
+ * The manager makes sure each artefact is downloaded at most once per node, until it changes:
+ * - Concurrent requests for the same artefact wait for the same download (in-flight request coalescing).
+ * - Downloaded artefacts are recorded in an index file, saved in the download directory,
+ *     so the following runs on the same node reuse them.
+ * - Artefacts are revalidated using their version (ETag, last modified date, see {@link ArtifactSource#getVersion(URI, S3Client)}),
+ *     at most once every {@link #REVALIDATE_INTERVAL_MS}.
+ *     S3 artefacts are versioned with their ETag, using a metadata (HEAD) request (see NcAnimateArtifactSource).
+ * Artefacts without version (metadata request failed) can not be revalidated.
+ * They are not recorded in the index, and are downloaded on every request, except for concurrent requests.
+ */
+public class ArtifactDownloadManager {
+    private static final Logger LOGGER = Logger.getLogger(ArtifactDownloadManager.class);
+
+    public static final String INDEX_FILENAME = ".ncanimate-download-index.json";
+
+    // Do not check the version of an artefact more than once a minute
+    public static final long REVALIDATE_INTERVAL_MS = 60 * 1000L;
+
+    private static ArtifactDownloadManager instance;
+
+    private ArtifactSource source;
+
+    // Downloads in progress. Key: download directory + URI
+    private ConcurrentHashMap<String, FutureTask<File>> inFlightMap;
+
+    // Index of downloaded artefacts, for each download directory. Key: absolute directory path
+    private Map<String, DownloadIndex> indexMap;
+
+    private AtomicInteger fetchCount;
+
+    public ArtifactDownloadManager(ArtifactSource source) {
+        this.source = source;
+        this.inFlightMap = new ConcurrentHashMap<String, FutureTask<File>>();
+        this.indexMap = new HashMap<String, DownloadIndex>();
+        this.fetchCount = new AtomicInteger(0);
+    }
+
+    public static synchronized ArtifactDownloadManager getInstance() {
+        if (ArtifactDownloadManager.instance == null) {
+            ArtifactDownloadManager.instance = new ArtifactDownloadManager(new NcAnimateArtifactSource());
+        }
+        return ArtifactDownloadManager.instance;
+    }
+
+    public static synchronized void clearCache() {
+        ArtifactDownloadManager.instance = null;
+    }
+
+    /**
+     * @return The number of artefacts actually downloaded by this manager.
+     */
+    public int getFetchCount() {
+        return this.fetchCount.get();
+    }
+
+    /**
+     * Download an artefact, or return the local copy if it's up to date.
+     * @param uri The artefact URI.
+     * @param s3Client The S3 client.
+     * @param directory The directory where the artefact is saved.
+     * @return The local file.
+     * @throws IOException If the artefact can not be downloaded. FileNotFoundException if it doesn't exist.
+     */
+    public File download(final URI uri, final S3Client s3Client, final File directory) throws IOException {
+        String key = directory.getAbsolutePath() + "|" + uri;
+
+        FutureTask<File> newTask = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return ArtifactDownloadManager.this.getOrFetch(uri, s3Client, directory);
+            }
+        });
+
+        FutureTask<File> task = this.inFlightMap.putIfAbsent(key, newTask);
+        if (task == null) {
+            task = newTask;
+            try {
+                task.run();
+            } finally {
+                this.inFlightMap.remove(key, task);
+            }
+        }
+
+        try {
+            return task.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted while downloading %s", uri), ex);
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(String.format("Error occurred while downloading %s", uri), cause);
+        }
+    }
+
+    private File getOrFetch(URI uri, S3Client s3Client, File directory) throws IOException {
+        DownloadIndex index = this.getIndex(directory);
+        String uriStr = uri.toString();
+        long now = System.currentTimeMillis();
+
+        JSONObject entry;
+        synchronized (index) {
+            entry = index.get(uriStr);
+        }
+
+        if (entry != null) {
+            File localFile = new File(directory, entry.getString("file"));
+            if (localFile.isFile() && localFile.length() == entry.optLong("sizeBytes", -1)) {
+                if (now - entry.optLong("validated", 0) < REVALIDATE_INTERVAL_MS) {
+                    return localFile;
+                }
+
+                String version = this.source.getVersion(uri, s3Client);
+                String cachedVersion = entry.optString("version", null);
+                if (version != null && version.equals(cachedVersion)) {
+                    synchronized (index) {
+                        entry.put("validated", now);
+                    }
+                    return localFile;
+                }
+                if (version == null) {
+                    // The version can not be requested at the moment (S3 metadata request failed).
+                    // Keep using the local copy, it will be revalidated on the next request.
+                    LOGGER.warn(String.format("Could not revalidate artefact %s. Using the local copy %s", uri, localFile));
+                    return localFile;
+                }
+                LOGGER.debug(String.format("Artefact %s was modified. Cached version: %s, new version: %s", uri, cachedVersion, version));
+            }
+        }
+
+        // Get the version before the download, a modification during the download will be caught on the next revalidation
+        String version = this.source.getVersion(uri, s3Client);
+        File file = this.source.fetch(uri, s3Client, directory);
+        this.fetchCount.incrementAndGet();
+
+        // Artefacts without version can not be revalidated, they are not reused
+        if (version != null && file != null && file.isFile()) {
+            synchronized (index) {
+                index.put(uriStr, new JSONObject()
+                    .put("file", file.getName())
+                    .put("version", version)
+                    .put("sizeBytes", file.length())
+                    .put("fetched", now)
+                    .put("validated", now));
+                index.save();
+            }
+        }
+
+        return file;
+    }
+
+    private synchronized DownloadIndex getIndex(File directory) {
+        String key = directory.getAbsolutePath();
+        DownloadIndex index = this.indexMap.get(key);
+        if (index == null) {
+            index = new DownloadIndex(new File(directory, INDEX_FILENAME));
+            this.indexMap.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Persistent index of the artefacts downloaded in a directory.
+     */
+    private static class DownloadIndex {
+        private File indexFile;
+        private JSONObject jsonIndex;
+
+        public DownloadIndex(File indexFile) {
+            this.indexFile = indexFile;
+            this.jsonIndex = new JSONObject();
+
+            if (indexFile.isFile()) {
+                try {
+                    this.jsonIndex = new JSONObject(new String(Files.readAllBytes(indexFile.toPath()), StandardCharsets.UTF_8));
+                } catch(Exception ex) {
+                    LOGGER.warn(String.format("Invalid download index %s. Every artefact will be downloaded again.", indexFile), ex);
+                }
+            }
+        }
+
+        public JSONObject get(String uri) {
+            return this.jsonIndex.optJSONObject(uri);
+        }
+
+        public void put(String uri, JSONObject entry) {
+            this.jsonIndex.put(uri, entry);
+        }
+
+        public void save() {
+            File tmpFile = AtomicFiles.getTmpFile(this.indexFile);
+            try {
+                Files.write(tmpFile.toPath(), this.jsonIndex.toString(4).getBytes(StandardCharsets.UTF_8));
+                AtomicFiles.commit(tmpFile, this.indexFile);
+            } catch(IOException ex) {
+                LOGGER.warn(String.format("Could not save the download index %s", this.indexFile), ex);
+            } finally {
+                AtomicFiles.discard(tmpFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.download;
+
+import au.gov.aims.aws.s3.entity.S3Client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Where the small artefacts (layer datasource, style and palette files) are downloaded from.
+ * See ArtifactDownloadManager
+ */
+public interface ArtifactSource {
+
+    /**
+     * @param uri The artefact URI.
+     * @param s3Client The S3 client, null in tests.
+     * @return A version of the artefact which changes when the artefact is modified (ETag, last modified date),
+     *     or null if it's unknown.
+     * @throws IOException If the artefact doesn't exist.
+     */
+    String getVersion(URI uri, S3Client s3Client) throws IOException;
+
+    /**
+     * @param uri The artefact URI.
+     * @param s3Client The S3 client, null in tests.
+     * @param directory The directory where the artefact is saved.
+     * @return The downloaded file.
+     * @throws IOException If the artefact can not be downloaded.
+     */
+    File fetch(URI uri, S3Client s3Client, File directory) throws IOException;
+}
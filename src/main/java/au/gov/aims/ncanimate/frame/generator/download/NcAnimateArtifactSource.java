@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.download;
+
+import au.gov.aims.aws.s3.entity.S3Client;
+import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3URI;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Download artefacts using NcAnimateUtils.downloadFileToDirectory.
+ *
+ * S3 artefacts are versioned with their ETag (or last modified date when the ETag is missing),
+ * using a metadata (HEAD) request through the AWS client.
+ * Local files (used as a S3 stand-in in tests and on development environment) are versioned
+ * with their last modified date and size.
+ * Artefacts which metadata can not be requested have no version,
+ * they are downloaded on every request (see ArtifactDownloadManager).
+ */
+public class NcAnimateArtifactSource implements ArtifactSource {
+    private static final Logger LOGGER = Logger.getLogger(NcAnimateArtifactSource.class);
+
+    @Override
+    public String getVersion(URI uri, S3Client s3Client) throws IOException {
+        File localFile = NcAnimateArtifactSource.getLocalFile(uri);
+        if (localFile == null) {
+            return NcAnimateArtifactSource.getS3Version(uri, s3Client);
+        }
+
+        if (!localFile.exists()) {
+            throw new FileNotFoundException(String.format("File not found: %s", localFile));
+        }
+        return localFile.lastModified() + "-" + localFile.length();
+    }
+
+    @Override
+    public File fetch(URI uri, S3Client s3Client, File directory) throws IOException {
+        return NcAnimateUtils.downloadFileToDirectory(uri, s3Client, directory);
+    }
+
+    /**
+     * @param uri The URI of the file, on S3 or on the local disk.
+     * @param s3Client The S3 client, used with S3 URIs.
+     * @return The size of the file, in bytes. Null if it can not be requested.
+     * @throws IOException If the file doesn't exist.
+     */
+    public static Long getSize(URI uri, S3Client s3Client) throws IOException {
+        File localFile = NcAnimateArtifactSource.getLocalFile(uri);
+        if (localFile == null) {
+            ObjectMetadata metadata = NcAnimateArtifactSource.getS3Metadata(uri, s3Client);
+            return metadata == null ? null : metadata.getContentLength();
+        }
+
+        if (!localFile.exists()) {
+            throw new FileNotFoundException(String.format("File not found: %s", localFile));
+        }
+        return localFile.length();
+    }
+
+    private static String getS3Version(URI uri, S3Client s3Client) throws IOException {
+        ObjectMetadata metadata = NcAnimateArtifactSource.getS3Metadata(uri, s3Client);
+        if (metadata == null) {
+            return null;
+        }
+        return NcAnimateArtifactSource.getS3Version(metadata.getETag(), metadata.getLastModified() == null ? null : metadata.getLastModified().getTime());
+    }
+
+    // Returns null if the metadata can not be requested
+    private static ObjectMetadata getS3Metadata(URI uri, S3Client s3Client) throws IOException {
+        if (s3Client == null || !"s3".equalsIgnoreCase(uri.getScheme())) {
+            return null;
+        }
+
+        try {
+            AmazonS3URI s3Uri = new AmazonS3URI(uri);
+            return s3Client.getS3().getObjectMetadata(s3Uri.getBucket(), s3Uri.getKey());
+        } catch(AmazonServiceException ex) {
+            if (ex.getStatusCode() == 404) {
+                throw new FileNotFoundException(String.format("File not found: %s", uri));
+            }
+            LOGGER.warn(String.format("Could not request the metadata of %s", uri), ex);
+            return null;
+        } catch(Exception ex) {
+            LOGGER.warn(String.format("Could not request the metadata of %s", uri), ex);
+            return null;
+        }
+    }
+
+    // The ETag changes with the content of the object. The last modified date is used for objects without ETag.
+    static String getS3Version(String eTag, Long lastModified) {
+        if (eTag != null && !eTag.isEmpty()) {
+            return "etag-" + eTag;
+        }
+        if (lastModified != null) {
+            return "modified-" + lastModified;
+        }
+        return null;
+    }
+
+    // Returns null if the URI is not a local file
+    private static File getLocalFile(URI uri) {
+        String scheme = uri.getScheme();
+        if (scheme == null) {
+            return new File(uri.getPath());
+        }
+        if ("file".equalsIgnoreCase(scheme)) {
+            return new File(uri);
+        }
+        return null;
+    }
+}
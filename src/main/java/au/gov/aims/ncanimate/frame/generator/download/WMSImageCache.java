@@ -0,0 +1,530 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.download;
+
+import au.gov.aims.ncanimate.frame.generator.checkpoint.AtomicFiles;
+import org.apache.log4j.Logger;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent cache of WMS GetMap images.
+ *
+ * Images are keyed by their full GetMap URL (server, layer, style, bounding box and size),
+ * and saved to disk as raw ARGB pixels, so loading a cached image doesn't need to decode a PNG.
+ * The cache directory is shared by every process running on the node (see {@link #getCacheDirectory()}).
+ *
+ * Requests to the WMS server:
+ * - are limited to {@link #DEFAULT_MAX_CONCURRENT_FETCHES} at the time,
+ * - use connection and read timeouts, so a slow server can't stall the render thread forever,
+ * - are attempted again, with a back off delay, when they fail with an IO error or a server error (HTTP 5xx),
+ * - are coalesced when multiple threads request the same image.
+ *
+ * Cached images older than {@link #DEFAULT_MAX_AGE_MS} are requested again.
+ * Images of time-dimension layers are requested with a shorter max age ({@link #TIME_DIMENSION_MAX_AGE_MS}).
+ * If the server is unavailable, the outdated image is used.
+ *
+ * The last {@link #MEMORY_CACHE_SIZE} images are also kept in memory, so consecutive frames
+ * resolving to the same GetMap URL (same WMS TIME) share the same image.
+ * Images of the following frames can be requested in the background with {@link #prefetch(URL, long)}.
+ */
+public class WMSImageCache {
+    private static final Logger LOGGER = Logger.getLogger(WMSImageCache.class);
+
+    private static final String CACHE_DIRECTORY_ENV_VARIABLE = "NCANIMATE_WMS_CACHE_DIRECTORY";
+
+    public static final String CACHE_FILE_EXTENSION = ".argb";
+
+    // "ARGB", followed by the file format version
+    private static final int CACHE_FILE_MAGIC = 0x41524742;
+    private static final int CACHE_FILE_VERSION = 1;
+
+    public static final int DEFAULT_MAX_CONCURRENT_FETCHES = 4;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 60 * 1000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_DELAY_MS = 1000L;
+
+    // Basemaps rarely change. Refresh them once a month.
+    public static final long DEFAULT_MAX_AGE_MS = 30 * 24 * 60 * 60 * 1000L;
+
+    // The server may reprocess the data of a given TIME (late data, model re-run).
+    // Refresh the images of time-dimension layers every hour.
+    public static final long TIME_DIMENSION_MAX_AGE_MS = 60 * 60 * 1000L;
+
+    public static final int MEMORY_CACHE_SIZE = 16;
+
+    private static WMSImageCache instance;
+
+    private File cacheDirectory;
+    private Semaphore fetchPermits;
+    private int connectTimeoutMs;
+    private int readTimeoutMs;
+    private int maxAttempts;
+    private long retryDelayMs;
+    private long maxAgeMs;
+
+    // Requests in progress. Key: cache file name
+    private ConcurrentHashMap<String, FutureTask<BufferedImage>> inFlightMap;
+
+    // Last used images, in access order. Key: cache file name
+    private Map<String, BufferedImage> memoryCache;
+
+    // Background requests, started by prefetch
+    private ExecutorService prefetchExecutor;
+
+    private AtomicInteger requestCount;
+
+    public WMSImageCache(File cacheDirectory) {
+        this(cacheDirectory, DEFAULT_MAX_CONCURRENT_FETCHES, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS,
+                DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY_MS, DEFAULT_MAX_AGE_MS);
+    }
+
+    public WMSImageCache(File cacheDirectory, int maxConcurrentFetches, int connectTimeoutMs, int readTimeoutMs,
+            int maxAttempts, long retryDelayMs, long maxAgeMs) {
+        this.cacheDirectory = cacheDirectory;
+        this.fetchPermits = new Semaphore(Math.max(1, maxConcurrentFetches), true);
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMs = retryDelayMs;
+        this.maxAgeMs = maxAgeMs;
+        this.inFlightMap = new ConcurrentHashMap<String, FutureTask<BufferedImage>>();
+        this.requestCount = new AtomicInteger(0);
+
+        this.memoryCache = new LinkedHashMap<String, BufferedImage>(MEMORY_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                return this.size() > MEMORY_CACHE_SIZE;
+            }
+        };
+
+        // Daemon threads, the JVM doesn't wait for pending prefetches before exiting
+        this.prefetchExecutor = Executors.newFixedThreadPool(Math.max(1, maxConcurrentFetches), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ncanimate-wms-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized WMSImageCache getInstance() {
+        if (WMSImageCache.instance == null) {
+            WMSImageCache.instance = new WMSImageCache(WMSImageCache.getCacheDirectory());
+        }
+        return WMSImageCache.instance;
+    }
+
+    public static synchronized void clearCache() {
+        if (WMSImageCache.instance != null) {
+            WMSImageCache.instance.prefetchExecutor.shutdownNow();
+            WMSImageCache.instance = null;
+        }
+    }
+
+    public static File getCacheDirectory() {
+        String cacheDirectoryStr = System.getenv(CACHE_DIRECTORY_ENV_VARIABLE);
+        if (cacheDirectoryStr != null && !cacheDirectoryStr.isEmpty()) {
+            return new File(cacheDirectoryStr);
+        }
+        return new File(System.getProperty("java.io.tmpdir"), "ncanimate/wms");
+    }
+
+    /**
+     * @return The number of HTTP requests sent to WMS servers, including failed attempts.
+     */
+    public int getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * @param url The GetMap URL.
+     * @return The image, from the cache if available.
+     * @throws IOException If the image is not cached and can not be downloaded.
+     */
+    public BufferedImage getImage(URL url) throws IOException {
+        return this.getImage(url, this.maxAgeMs);
+    }
+
+    /**
+     * @param url The GetMap URL.
+     * @param maxAgeMs Age after which the cache file is requested again.
+     * @return The image, from the cache if available.
+     * @throws IOException If the image is not cached and can not be downloaded.
+     */
+    public BufferedImage getImage(final URL url, final long maxAgeMs) throws IOException {
+        final String cacheFilename = WMSImageCache.getCacheFilename(url);
+
+        synchronized (this.memoryCache) {
+            BufferedImage image = this.memoryCache.get(cacheFilename);
+            if (image != null) {
+                return image;
+            }
+        }
+
+        FutureTask<BufferedImage> newTask = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+            @Override
+            public BufferedImage call() throws Exception {
+                BufferedImage image = WMSImageCache.this.getOrFetch(url, new File(WMSImageCache.this.cacheDirectory, cacheFilename), maxAgeMs);
+                synchronized (WMSImageCache.this.memoryCache) {
+                    WMSImageCache.this.memoryCache.put(cacheFilename, image);
+                }
+                return image;
+            }
+        });
+
+        FutureTask<BufferedImage> task = this.inFlightMap.putIfAbsent(cacheFilename, newTask);
+        if (task == null) {
+            task = newTask;
+            try {
+                task.run();
+            } finally {
+                this.inFlightMap.remove(cacheFilename, task);
+            }
+        }
+
+        try {
+            return task.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted while requesting %s", url), ex);
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(String.format("Error occurred while requesting %s", url), cause);
+        }
+    }
+
+    /**
+     * Request an image in the background, if it's not already in memory or requested.
+     * A following call to {@link #getImage(URL)} with the same URL waits for the background request,
+     * or gets the image from memory.
+     * @param url The GetMap URL.
+     */
+    public void prefetch(URL url) {
+        this.prefetch(url, this.maxAgeMs);
+    }
+
+    /**
+     * See {@link #prefetch(URL)}
+     * @param url The GetMap URL.
+     * @param maxAgeMs Age after which the cache file is requested again.
+     */
+    public void prefetch(final URL url, final long maxAgeMs) {
+        String cacheFilename = WMSImageCache.getCacheFilename(url);
+        synchronized (this.memoryCache) {
+            if (this.memoryCache.containsKey(cacheFilename)) {
+                return;
+            }
+        }
+        if (this.inFlightMap.containsKey(cacheFilename)) {
+            return;
+        }
+
+        try {
+            this.prefetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        WMSImageCache.this.getImage(url, maxAgeMs);
+                    } catch(Exception ex) {
+                        // The request will be attempted again when the image is needed
+                        LOGGER.debug(String.format("Could not prefetch the WMS image %s", url), ex);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ex) {
+            // The cache was cleared
+            LOGGER.debug(String.format("Prefetch of the WMS image %s cancelled", url), ex);
+        }
+    }
+
+    private BufferedImage getOrFetch(URL url, File cacheFile, long maxAgeMs) throws IOException {
+        BufferedImage cachedImage = null;
+        if (cacheFile.isFile()) {
+            try {
+                cachedImage = WMSImageCache.readCacheFile(cacheFile, url);
+            } catch(Exception ex) {
+                LOGGER.warn(String.format("Invalid WMS cache file %s. The image will be requested again.", cacheFile), ex);
+            }
+
+            if (cachedImage != null && System.currentTimeMillis() - cacheFile.lastModified() < maxAgeMs) {
+                return cachedImage;
+            }
+        }
+
+        BufferedImage image;
+        try {
+            image = this.fetch(url);
+        } catch(IOException ex) {
+            if (cachedImage != null) {
+                LOGGER.warn(String.format("Could not refresh the WMS image %s. Using the cached image %s", url, cacheFile), ex);
+                return cachedImage;
+            }
+            throw ex;
+        }
+
+        try {
+            WMSImageCache.writeCacheFile(cacheFile, url, image);
+        } catch(IOException ex) {
+            LOGGER.warn(String.format("Could not save the WMS image %s to the cache file %s", url, cacheFile), ex);
+        }
+
+        return image;
+    }
+
+    private BufferedImage fetch(URL url) throws IOException {
+        try {
+            this.fetchPermits.acquire();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted while waiting to request %s", url), ex);
+        }
+
+        try {
+            IOException lastException = null;
+            for (int attempt=1; attempt<=this.maxAttempts; attempt++) {
+                if (attempt > 1) {
+                    long delay = this.retryDelayMs * (1L << (attempt - 2));
+                    LOGGER.warn(String.format("Attempt %d/%d to request %s failed: %s. Trying again in %d ms",
+                            attempt - 1, this.maxAttempts, url, lastException.getMessage(), delay));
+                    try {
+                        Thread.sleep(delay);
+                    } catch(InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(String.format("Interrupted while requesting %s", url), ex);
+                    }
+                }
+
+                try {
+                    return this.request(url);
+                } catch(RetryableException ex) {
+                    lastException = ex;
+                }
+            }
+
+            throw new IOException(String.format("Could not request %s after %d attempts", url, this.maxAttempts), lastException);
+        } finally {
+            this.fetchPermits.release();
+        }
+    }
+
+    private BufferedImage request(URL url) throws IOException {
+        this.requestCount.incrementAndGet();
+
+        URLConnection connection;
+        try {
+            connection = url.openConnection();
+            connection.setConnectTimeout(this.connectTimeoutMs);
+            connection.setReadTimeout(this.readTimeoutMs);
+            connection.connect();
+        } catch(IOException ex) {
+            throw new RetryableException(ex);
+        }
+
+        try {
+            if (connection instanceof HttpURLConnection) {
+                int status;
+                try {
+                    status = ((HttpURLConnection)connection).getResponseCode();
+                } catch(IOException ex) {
+                    // Includes read timeouts
+                    throw new RetryableException(ex);
+                }
+                if (status >= 500) {
+                    throw new RetryableException(String.format("HTTP %d", status));
+                }
+                if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                    throw new FileNotFoundException(String.format("WMS image not found: %s", url));
+                }
+                if (status >= 400) {
+                    throw new IOException(String.format("Invalid WMS request %s: HTTP %d", url, status));
+                }
+            }
+
+            byte[] content;
+            try (InputStream inputStream = connection.getInputStream()) {
+                content = WMSImageCache.readAll(inputStream);
+            } catch(IOException ex) {
+                throw new RetryableException(ex);
+            }
+
+            // WMS servers return errors as XML ServiceExceptionReport, with a HTTP 200 status
+            String contentType = connection.getContentType();
+            if (contentType != null && !contentType.startsWith("image/")) {
+                throw new IOException(String.format("Invalid WMS response for %s. Content type: %s%n%s",
+                        url, contentType, new String(content, 0, Math.min(content.length, 1000), StandardCharsets.UTF_8)));
+            }
+
+            BufferedImage decodedImage = ImageIO.read(new ByteArrayInputStream(content));
+            if (decodedImage == null) {
+                throw new IOException(String.format("Invalid WMS response for %s. Unsupported image format: %s", url, contentType));
+            }
+            return WMSImageCache.toARGB(decodedImage);
+        } finally {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection)connection).disconnect();
+            }
+        }
+    }
+
+    private static BufferedImage toARGB(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return image;
+        }
+        BufferedImage argbImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = argbImage.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return argbImage;
+    }
+
+    /*
+     * Cache file format (big endian):
+     *     int magic, int version, int URL length, URL (UTF-8), int width, int height, int[width * height] ARGB pixels
+     * The URL is saved to detect hash collisions.
+     */
+
+    private static BufferedImage readCacheFile(File cacheFile, URL url) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(cacheFile.toPath()));
+        if (buffer.getInt() != CACHE_FILE_MAGIC || buffer.getInt() != CACHE_FILE_VERSION) {
+            throw new IOException("Unsupported file format");
+        }
+
+        byte[] urlBytes = new byte[buffer.getInt()];
+        buffer.get(urlBytes);
+        if (!url.toString().equals(new String(urlBytes, StandardCharsets.UTF_8))) {
+            return null;
+        }
+
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        IntBuffer pixelBuffer = buffer.asIntBuffer();
+        if (width <= 0 || height <= 0 || pixelBuffer.remaining() != width * height) {
+            throw new IOException(String.format("Invalid image size %dx%d", width, height));
+        }
+
+        int[] pixels = new int[width * height];
+        pixelBuffer.get(pixels);
+
+        // Wrap the pixels in an ARGB raster, instead of copying them with setRGB (converted one pixel at the time)
+        DirectColorModel colourModel = (DirectColorModel)ColorModel.getRGBdefault();
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), width, height, width,
+                colourModel.getMasks(), null);
+        return new BufferedImage(colourModel, raster, false, null);
+    }
+
+    private static void writeCacheFile(File cacheFile, URL url, BufferedImage image) throws IOException {
+        File directory = cacheFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException(String.format("Could not create the WMS cache directory %s", directory));
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] urlBytes = url.toString().getBytes(StandardCharsets.UTF_8);
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+
+        ByteBuffer buffer = ByteBuffer.allocate(5 * 4 + urlBytes.length + pixels.length * 4);
+        buffer.putInt(CACHE_FILE_MAGIC);
+        buffer.putInt(CACHE_FILE_VERSION);
+        buffer.putInt(urlBytes.length);
+        buffer.put(urlBytes);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.asIntBuffer().put(pixels);
+
+        // Other processes may read the cache file while it's written
+        File tmpFile = AtomicFiles.getTmpFile(cacheFile);
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(tmpFile.toPath())) {
+                outputStream.write(buffer.array());
+            }
+            AtomicFiles.commit(tmpFile, cacheFile);
+        } finally {
+            AtomicFiles.discard(tmpFile);
+        }
+    }
+
+    private static String getCacheFilename(URL url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder filename = new StringBuilder();
+            for (byte hashByte : digest.digest(url.toString().getBytes(StandardCharsets.UTF_8))) {
+                filename.append(String.format("%02x", hashByte));
+            }
+            return filename.append(CACHE_FILE_EXTENSION).toString();
+        } catch(NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException("SHA-1 is not supported", ex);
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    // Request failures which may succeed if attempted again: network errors, timeouts, server errors
+    private static class RetryableException extends IOException {
+        public RetryableException(String message) {
+            super(message);
+        }
+
+        public RetryableException(Throwable cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import au.gov.aims.aws.s3.entity.S3Client;
+import au.gov.aims.layers2svg.graphics.VectorRasterGraphics2D;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.sld.geom.Layer;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Layer of vector features (GeoJSON features, CSV points).
+ *
+ * Only the features intersecting the region are styled and rendered.
+ * Features of time indexed files are selected for each frame, using the frame date range.
+ * The selected features are styled again only when the selection changes.
+ */
+public abstract class AbstractFeatureLayerGenerator extends AbstractLayerGenerator {
+    // Features further than that from the region are not styled nor rendered.
+    private static final double CULLING_MARGIN_PIXELS = 32;
+
+    private boolean featuresLoaded = false;
+    private boolean hasFeatures = false;
+    private double pixelSize;
+    // [minX, minY, maxX, maxY]
+    private double[] cullingBbox;
+
+    private int[] styledFeatureIds;
+    private List<Layer> styledLayers;
+
+    public AbstractFeatureLayerGenerator(S3Client s3Client) {
+        super(s3Client);
+    }
+
+    /**
+     * Load the features of the layer datasource. Called once, before the first selection.
+     * @param layerFile The layer datasource file.
+     * @return true if the features were loaded.
+     * @throws Exception If the file can not be read.
+     */
+    protected abstract boolean loadFeatures(File layerFile) throws Exception;
+
+    /**
+     * @return true if the features are selected by frame date.
+     */
+    protected abstract boolean isTimeIndexed();
+
+    /**
+     * @param bbox The culling bounding box: [minX, minY, maxX, maxY].
+     * @param fromMillis The start of the frame (inclusive). Ignored if the features are not time indexed.
+     * @param toMillis The end of the frame (exclusive). Ignored if the features are not time indexed.
+     * @return The ID of the features to display, in file order.
+     */
+    protected abstract int[] selectFeatureIds(double[] bbox, long fromMillis, long toMillis);
+
+    /**
+     * @param featureIds The ID of the selected features, as returned by {@link #selectFeatureIds(double[], long, long)}.
+     * @return The styled layers of the features.
+     * @throws Exception If the features can not be styled.
+     */
+    protected abstract List<Layer> styleFeatures(int[] featureIds) throws Exception;
+
+    /**
+     * Time indexed layers change from one frame to another, they must not be moved to the SVG shared defs.
+     * See SVGSharedDefs.
+     */
+    @Override
+    public boolean isStaticLayer() {
+        return !(this.hasFeatures && this.isTimeIndexed());
+    }
+
+    @Override
+    public void render(VectorRasterGraphics2D canvas, int leftScaledOffset, int topScaledOffset) throws Exception {
+        if (!this.featuresLoaded) {
+            this.featuresLoaded = true;
+
+            File layerFile = this.getLayerFile();
+            if (layerFile != null && layerFile.canRead()) {
+                this.initCulling();
+                this.hasFeatures = this.loadFeatures(layerFile);
+            }
+        }
+
+        if (this.hasFeatures && (this.styledFeatureIds == null || this.isTimeIndexed())) {
+            int[] featureIds = this.selectFeatureIds();
+            if (!Arrays.equals(featureIds, this.styledFeatureIds)) {
+                this.styledLayers = this.styleFeatures(featureIds);
+                this.styledFeatureIds = featureIds;
+            }
+        }
+
+        this.drawStyledLayers(canvas, this.styledLayers, leftScaledOffset, topScaledOffset);
+    }
+
+    /**
+     * @return The size of a pixel of the panel, in degrees. 0 if the panel has no region.
+     */
+    protected double getPixelSize() {
+        return this.pixelSize;
+    }
+
+    private void initCulling() {
+        // The generator is cached for a region and panel size, see FrameGenerator.
+        this.pixelSize = 0;
+        BoundingBox bbox = this.getBoundingBox();
+        Integer scaledPanelWidth = this.getScaledPanelWidth();
+        Integer scaledPanelHeight = this.getScaledPanelHeight();
+        if (bbox != null && scaledPanelWidth != null && scaledPanelHeight != null) {
+            this.pixelSize = GeoJSONReader.getPixelSize(bbox.getWidth(), bbox.getHeight(), scaledPanelWidth, scaledPanelHeight);
+        }
+
+        // Only keep the features intersecting the region.
+        // The margin keeps the features just outside the region which may have a visible stroke, symbol or label.
+        if (bbox != null) {
+            double margin = this.pixelSize * CULLING_MARGIN_PIXELS;
+            this.cullingBbox = new double[] {
+                bbox.getMinX() - margin, bbox.getMinY() - margin,
+                bbox.getMaxX() + margin, bbox.getMaxY() + margin
+            };
+        } else {
+            this.cullingBbox = new double[] {
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY
+            };
+        }
+    }
+
+    private int[] selectFeatureIds() {
+        long fromMillis = Long.MIN_VALUE;
+        long toMillis = Long.MAX_VALUE;
+        if (this.isTimeIndexed()) {
+            DateTimeRange frameDateRange = this.getContext().getFrameDateRange();
+            if (frameDateRange != null && frameDateRange.getStartDate() != null) {
+                fromMillis = frameDateRange.getStartDate().getMillis();
+            }
+            if (frameDateRange != null && frameDateRange.getEndDate() != null) {
+                toMillis = frameDateRange.getEndDate().getMillis();
+            }
+        }
+
+        return this.selectFeatureIds(this.cullingBbox, fromMillis, toMillis);
+    }
+}
@@ -5,6 +5,7 @@
 package au.gov.aims.ncanimate.frame.generator.layer;
 
 import au.gov.aims.aws.s3.entity.S3Client;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateIdBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateLayerBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimatePanelBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
@@ -12,18 +13,27 @@ import au.gov.aims.layers2svg.graphics.VectorRasterGraphics2D;
 import au.gov.aims.ncanimate.commons.NcAnimateUtils;
 import au.gov.aims.ncanimate.commons.generator.context.LayerContext;
 import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
-import au.gov.aims.sld.SldParser;
+import au.gov.aims.ncanimate.frame.generator.download.ArtifactDownloadManager;
+import au.gov.aims.ncanimate.frame.generator.report.RunReport;
+import au.gov.aims.ncanimate.frame.generator.report.jfr.S3TransferEvent;
+import au.gov.aims.ncanimate.frame.generator.template.StringTemplate;
 import au.gov.aims.sld.StyleSheet;
+import au.gov.aims.sld.geom.GeoShape;
+import au.gov.aims.sld.geom.GeoShapeGroup;
 import au.gov.aims.sld.geom.Layer;
 import org.apache.log4j.Logger;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -52,6 +62,11 @@ public abstract class AbstractLayerGenerator {
     private BoundingBox boundingBox;
     private double targetHeight;
 
+    // Styled layers rasterised into a panel size image, used with raster only frames.
+    // See drawStyledLayers
+    private List<Layer> drawnStyledLayers;
+    private BufferedImage rasterisedStyledLayersImage;
+
     public AbstractLayerGenerator(S3Client s3Client) {
         this.s3Client = s3Client;
     }
@@ -94,7 +109,7 @@ public abstract class AbstractLayerGenerator {
             List<String> targetHeightStrings = new ArrayList<String>();
             targetHeightStrings.add(targetHeightStr);
             targetHeightStrings.add("0.0");
-            String parsedTargetHeightStr = NcAnimateUtils.parseString(targetHeightStrings, this.context, this.layerContextMap);
+            String parsedTargetHeightStr = StringTemplate.get(targetHeightStrings).parse(this.context, this.layerContextMap);
             if (parsedTargetHeightStr != null) {
                 try {
                     this.targetHeight = Double.parseDouble(parsedTargetHeightStr);
@@ -118,6 +133,14 @@ public abstract class AbstractLayerGenerator {
     public void postRender(VectorRasterGraphics2D canvas, int leftScaledOffset, int topScaledOffset) throws Exception {}
     public abstract String getLayerType();
 
+    /**
+     * @return true if the layer is drawn the same way on every frame of a region.
+     *     Static layers of SVG frames can be moved to a shared defs file, see SVGSharedDefs.
+     */
+    public boolean isStaticLayer() {
+        return false;
+    }
+
     public String getLayerTitle() {
         return String.format("%s %s (%s layer)", this.getLayerTitlePrefix(), this.layerConf.getId().getValue(), this.getLayerType());
     }
@@ -134,6 +157,14 @@ public abstract class AbstractLayerGenerator {
         return this.panelConf;
     }
 
+    /**
+     * @return The layer ID, or null if the layer has no ID.
+     */
+    public String getLayerId() {
+        NcAnimateIdBean layerId = this.layerConf == null ? null : this.layerConf.getId();
+        return layerId == null ? null : layerId.getValue();
+    }
+
     public NcAnimateLayerBean getLayerConf() {
         return this.layerConf;
     }
@@ -167,14 +198,9 @@ public abstract class AbstractLayerGenerator {
 
             Layer scaledLayer = layer.createTransformedLayer(transform);
             File styleFile = this.getStyleFile();
-            StyleSheet styleSheet = this.getStyleSheet(styleFile);
+            // Shared style sheet, with the scale ratios already applied. Do not modify it.
+            StyleSheet styleSheet = StyleSheetCache.get(styleFile, scale);
             if (styleSheet != null) {
-                if (scale > 0 && scale != 1.0) {
-                    styleSheet.setFontSizeRatio(scale);
-                    styleSheet.setStrokeWidthRatio(scale);
-                    styleSheet.setPointSizeRatio(scale);
-                }
-
                 Integer mapScale = panelConf.getMapScale();
                 if (mapScale == null) {
                     mapScale = DEFAULT_MAP_SCALE;
@@ -191,11 +217,110 @@ public abstract class AbstractLayerGenerator {
         return styledLayers;
     }
 
+    /**
+     * Draw styled vector layers (GeoJSON, CSV, etc) on the canvas.
+     *
+     * When the frame is only rendered into raster formats, styled layers which are drawn
+     * on more than one frame are rasterised once into a panel size TYPE_INT_ARGB_PRE image
+     * which is stamped on the following frames, instead of rasterising every shape for every frame.
+     * Styled layers which change on every frame (time indexed layers) are drawn directly,
+     * rasterising them would cost more than drawing them.
+     *
+     * @param canvas The frame canvas
+     * @param styledLayers Styled layers, as returned by {@link #styleLayer(Layer)}
+     * @param leftScaledOffset Position of the panel on the canvas, on the X axis
+     * @param topScaledOffset Position of the panel on the canvas, on the Y axis
+     */
+    protected void drawStyledLayers(VectorRasterGraphics2D canvas, List<Layer> styledLayers, int leftScaledOffset, int topScaledOffset) throws Exception {
+        if (styledLayers == null || styledLayers.isEmpty()) {
+            return;
+        }
+
+        if (this.context.isRasterOnly()) {
+            if (this.drawnStyledLayers != styledLayers) {
+                // First frame with those styled layers
+                this.rasterisedStyledLayersImage = null;
+                this.drawnStyledLayers = styledLayers;
+            } else if (this.rasterisedStyledLayersImage == null) {
+                // The styled layers are drawn again, they are worth rasterising
+                this.rasterisedStyledLayersImage = this.rasteriseStyledLayers(styledLayers);
+            }
+
+            if (this.rasterisedStyledLayersImage != null) {
+                canvas.drawImage(this.rasterisedStyledLayersImage, leftScaledOffset, topScaledOffset, null);
+                return;
+            }
+        }
+
+        for (Layer styledLayer : styledLayers) {
+            styledLayer.setName(this.getLayerTitle());
+            canvas.fillAndStroke(styledLayer.createTransformedLayer(AffineTransform.getTranslateInstance(leftScaledOffset, topScaledOffset)));
+        }
+    }
+
+    private BufferedImage rasteriseStyledLayers(List<Layer> styledLayers) throws Exception {
+        int width = this.getScaledPanelWidth();
+        int height = this.getScaledPanelHeight();
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        LOGGER.debug(String.format("Rasterising layer %s", this.getLayerTitle()));
+
+        // The styled shapes are painted directly on the image, with the same rendering hints as the frame canvas.
+        // Pre-multiplied alpha is the fastest format to composite on the frame
+        BufferedImage rasterisedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D graphics = rasterisedImage.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            for (Layer styledLayer : styledLayers) {
+                AbstractLayerGenerator.fillAndStroke(graphics, styledLayer);
+            }
+        } finally {
+            graphics.dispose();
+        }
+
+        return rasterisedImage;
+    }
+
+    // Paint a styled shape (or group of shapes) the way VectorRasterGraphics2D.fillAndStroke paints it: fill, then stroke.
+    private static void fillAndStroke(Graphics2D graphics, GeoShape geoShape) {
+        if (geoShape instanceof GeoShapeGroup) {
+            List<GeoShape> geoShapes = ((GeoShapeGroup)geoShape).getGeoShapes();
+            if (geoShapes != null) {
+                for (GeoShape childGeoShape : geoShapes) {
+                    AbstractLayerGenerator.fillAndStroke(graphics, childGeoShape);
+                }
+            }
+            return;
+        }
+
+        Shape shape = geoShape.getShape();
+        if (shape == null) {
+            return;
+        }
+
+        Paint fillPaint = geoShape.getFillPaint();
+        if (fillPaint != null) {
+            graphics.setPaint(fillPaint);
+            graphics.fill(shape);
+        }
+
+        Paint strokePaint = geoShape.getStrokePaint();
+        Stroke stroke = geoShape.getStroke();
+        if (strokePaint != null && stroke != null) {
+            graphics.setPaint(strokePaint);
+            graphics.setStroke(stroke);
+            graphics.draw(shape);
+        }
+    }
+
     /**
      * The layers need to be scaled, flipped and translate (moved)
      * @return
      */
-    private AffineTransform getTransformation() {
+    protected AffineTransform getTransformation() {
         AffineTransform transform = new AffineTransform();
 
         int width = this.getScaledPanelWidth();
@@ -220,18 +345,6 @@ public abstract class AbstractLayerGenerator {
         return transform;
     }
 
-    private StyleSheet getStyleSheet(File sld) throws Exception {
-        StyleSheet styleSheet = null;
-        if (sld != null && sld.canRead()) {
-            try (InputStream sldStream = new FileInputStream(sld)) {
-                SldParser parser = new SldParser();
-                styleSheet = parser.parse(sldStream);
-            }
-        }
-
-        return styleSheet;
-    }
-
     public File getLayerFile() throws URISyntaxException, IOException {
         String uriStr = this.getLayerConf().getDatasource();
 
@@ -241,7 +354,15 @@ public abstract class AbstractLayerGenerator {
 
         URI uri = new URI(NcAnimateUtils.parseString(uriStr, this.context, this.layerContextMap));
         File layerDir = this.context.getLayerDirectory();
-        return NcAnimateUtils.downloadFileToDirectory(uri, this.s3Client, layerDir);
+        RunReport runReport = RunReport.get(this.context);
+        long downloadStart = runReport.start();
+        S3TransferEvent downloadEvent = new S3TransferEvent(S3TransferEvent.DOWNLOAD, uri);
+        downloadEvent.begin();
+        File layerFile = ArtifactDownloadManager.getInstance().download(uri, this.s3Client, layerDir);
+        runReport.stop(RunReport.STAGE_DOWNLOAD, downloadStart);
+        downloadEvent.setBytes(layerFile == null ? 0 : layerFile.length());
+        downloadEvent.commit(this.context, this.getLayerId());
+        return layerFile;
     }
 
     public File getStyleFile() throws URISyntaxException, IOException {
@@ -254,7 +375,14 @@ public abstract class AbstractLayerGenerator {
 
         URI uri = new URI(NcAnimateUtils.parseString(uriStr, this.context, this.layerContextMap));
         File styleDir = this.context.getStyleDirectory();
-        File styleFile = NcAnimateUtils.downloadFileToDirectory(uri, this.s3Client, styleDir);
+        RunReport runReport = RunReport.get(this.context);
+        long downloadStart = runReport.start();
+        S3TransferEvent downloadEvent = new S3TransferEvent(S3TransferEvent.DOWNLOAD, uri);
+        downloadEvent.begin();
+        File styleFile = ArtifactDownloadManager.getInstance().download(uri, this.s3Client, styleDir);
+        runReport.stop(RunReport.STAGE_DOWNLOAD, downloadStart);
+        downloadEvent.setBytes(styleFile == null ? 0 : styleFile.length());
+        downloadEvent.commit(this.context, this.getLayerId());
         if (styleFile == null || !styleFile.canRead()) {
             LOGGER.error(String.format("Could not download style URI %s to directory %s for layer %s",
                     uri,
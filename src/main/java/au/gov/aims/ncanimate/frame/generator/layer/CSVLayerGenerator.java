@@ -6,18 +6,47 @@ package au.gov.aims.ncanimate.frame.generator.layer;
 
 import au.gov.aims.aws.s3.entity.S3Client;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateLayerBean;
-import au.gov.aims.layers2svg.graphics.CSVShape;
-import au.gov.aims.layers2svg.graphics.VectorRasterGraphics2D;
+import au.gov.aims.layers2svg.graphics.GeoJSONShape;
 import au.gov.aims.sld.geom.Layer;
+import org.apache.log4j.Logger;
 
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-public class CSVLayerGenerator extends AbstractLayerGenerator {
-    private boolean cached = false;
-    private List<Layer> styledLayers;
+/**
+ * CSV point layer. The points are loaded in a {@link CSVPointTable}.
+ *
+ * Points falling in the same pixel are aggregated into a single marker when they would be
+ * displayed with the same symbol (same values for the properties used by the style).
+ * When markers share few symbols, each symbol is styled once and the styled symbol is stamped
+ * at the position of every marker, instead of styling every marker.
+ *
+ * CSV files with a time column (see {@link CSVPointTable}) are time indexed:
+ * each frame only displays the rows of its date range.
+ */
+public class CSVLayerGenerator extends AbstractFeatureLayerGenerator {
+    private static final Logger LOGGER = Logger.getLogger(CSVLayerGenerator.class);
+
+    // Symbols used by fewer markers are not worth styling separately.
+    private static final int MIN_MARKERS_PER_SYMBOL = 4;
+
+    // Properties used by SLD filters and labels. Example: <ogc:PropertyName>SCALERANK</ogc:PropertyName>
+    private static final Pattern STYLE_PROPERTY_PATTERN = Pattern.compile("<(?:\\w+:)?PropertyName>\\s*([^<]*?)\\s*</(?:\\w+:)?PropertyName>");
+
+    private CSVPointTable pointTable;
+    // Null to use every column
+    private int[] symbolColumns;
 
     public CSVLayerGenerator(S3Client s3Client) {
         super(s3Client);
@@ -29,33 +58,146 @@ public class CSVLayerGenerator extends AbstractLayerGenerator {
     }
 
     @Override
-    public void render(VectorRasterGraphics2D canvas, int leftScaledOffset, int topScaledOffset) throws Exception {
-        if (!this.cached) {
-            this.cached = true;
+    protected boolean loadFeatures(File layerFile) throws Exception {
+        NcAnimateLayerBean layerConf = this.getLayerConf();
+        this.pointTable = CSVPointTable.get(layerFile, layerConf.getLongitudeColumn(), layerConf.getLatitudeColumn());
+        if (this.pointTable == null) {
+            return false;
+        }
+        this.symbolColumns = this.getSymbolColumns(this.getStyleFile());
+        return true;
+    }
+
+    @Override
+    protected boolean isTimeIndexed() {
+        return this.pointTable != null && this.pointTable.isTimeIndexed();
+    }
+
+    @Override
+    protected int[] selectFeatureIds(double[] bbox, long fromMillis, long toMillis) {
+        return this.pointTable.getRows(bbox[0], bbox[1], bbox[2], bbox[3], fromMillis, toMillis);
+    }
+
+    @Override
+    protected List<Layer> styleFeatures(int[] rows) throws Exception {
+        AffineTransform transform = this.getTransformation();
+        List<int[]> markersBySymbol = this.pointTable.getMarkers(rows, transform, this.symbolColumns);
+
+        int markerCount = 0;
+        for (int[] markers : markersBySymbol) {
+            markerCount += markers.length;
+        }
+
+        String layerName = this.getLayerTitle();
+        LOGGER.debug(String.format("Layer %s: %d points selected out of %d, aggregated into %d markers using %d symbols",
+                layerName, rows.length, this.pointTable.size(), markerCount, markersBySymbol.size()));
+
+        if (markerCount == 0) {
+            return null;
+        }
 
-            File layerFile = this.getLayerFile();
+        if (markersBySymbol.size() * MIN_MARKERS_PER_SYMBOL > markerCount) {
+            // Almost every marker has its own symbol (labels, etc): style them all at once
+            int[] markerRows = new int[markerCount];
+            int index = 0;
+            for (int[] markers : markersBySymbol) {
+                System.arraycopy(markers, 0, markerRows, index, markers.length);
+                index += markers.length;
+            }
+            Arrays.sort(markerRows);
+            return this.styleLayer(this.getPointLayer(layerName, markerRows));
+        }
 
-            if (layerFile != null && layerFile.canRead()) {
-                NcAnimateLayerBean layerConf = this.getLayerConf();
-                Layer layer = this.getCSVLayer(this.getLayerTitle(), layerFile, layerConf.getLongitudeColumn(), layerConf.getLatitudeColumn());
-                this.styledLayers = this.styleLayer(layer);
+        // Style the first marker of each symbol, then stamp the styled symbol on the other markers.
+        List<List<Layer>> styledSymbols = new ArrayList<List<Layer>>();
+        int maxStyledLayerCount = 0;
+        for (int[] markers : markersBySymbol) {
+            List<Layer> styledSymbol = this.styleLayer(this.getPointLayer(layerName, new int[] { markers[0] }));
+            styledSymbols.add(styledSymbol);
+            if (styledSymbol != null) {
+                maxStyledLayerCount = Math.max(maxStyledLayerCount, styledSymbol.size());
             }
         }
 
-        if (this.styledLayers != null && !this.styledLayers.isEmpty()) {
-            for (Layer styledLayer : this.styledLayers) {
-                styledLayer.setName(this.getLayerTitle());
-                canvas.fillAndStroke(styledLayer.createTransformedLayer(AffineTransform.getTranslateInstance(leftScaledOffset, topScaledOffset)));
+        // Keep the order of the styled layers (style rules): labels are drawn over the symbols of every marker.
+        List<Layer> stampedLayers = new ArrayList<Layer>();
+        Point2D.Double origin = new Point2D.Double();
+        Point2D.Double position = new Point2D.Double();
+        for (int layerIndex=0; layerIndex<maxStyledLayerCount; layerIndex++) {
+            for (int symbolIndex=0; symbolIndex<markersBySymbol.size(); symbolIndex++) {
+                List<Layer> styledSymbol = styledSymbols.get(symbolIndex);
+                if (styledSymbol == null || layerIndex >= styledSymbol.size()) {
+                    continue;
+                }
+                Layer styledLayer = styledSymbol.get(layerIndex);
+
+                int[] markers = markersBySymbol.get(symbolIndex);
+                origin.setLocation(this.pointTable.getLongitude(markers[0]), this.pointTable.getLatitude(markers[0]));
+                transform.transform(origin, origin);
+                stampedLayers.add(styledLayer);
+                for (int i=1; i<markers.length; i++) {
+                    position.setLocation(this.pointTable.getLongitude(markers[i]), this.pointTable.getLatitude(markers[i]));
+                    transform.transform(position, position);
+                    stampedLayers.add(styledLayer.createTransformedLayer(AffineTransform.getTranslateInstance(
+                            position.getX() - origin.getX(), position.getY() - origin.getY())));
+                }
             }
         }
+
+        return stampedLayers;
     }
 
-    private Layer getCSVLayer(String layerName, File datasourceFile, String longitudeColumn, String latitudeColumn) throws IOException {
-        CSVShape csvShape = new CSVShape(datasourceFile, layerName, longitudeColumn, latitudeColumn);
-        csvShape.parse();
+    private Layer getPointLayer(String layerName, int[] rows) throws IOException {
+        GeoJSONShape pointShape = new GeoJSONShape(this.pointTable.getFeatureCollection(rows), layerName);
+        pointShape.parse();
         Layer layer = new Layer(layerName);
-        layer.add(csvShape);
+        layer.add(pointShape);
 
         return layer;
     }
+
+    /**
+     * @param styleFile The SLD style file.
+     * @return The index of the columns used by the style, or null if they can not be found.
+     */
+    private int[] getSymbolColumns(File styleFile) throws IOException {
+        Set<String> propertyNames = CSVLayerGenerator.getStylePropertyNames(styleFile);
+        if (propertyNames == null) {
+            return null;
+        }
+
+        Set<Integer> columns = new LinkedHashSet<Integer>();
+        for (String propertyName : propertyNames) {
+            int column = this.pointTable.getColumnIndex(propertyName);
+            if (column >= 0) {
+                columns.add(column);
+            }
+        }
+
+        int[] symbolColumns = new int[columns.size()];
+        int index = 0;
+        for (Integer column : columns) {
+            symbolColumns[index++] = column;
+        }
+        return symbolColumns;
+    }
+
+    /**
+     * @param styleFile The SLD style file.
+     * @return The properties used by the style filters and labels, or null if the style file can not be read.
+     * @throws IOException If the style file can not be read.
+     */
+    static Set<String> getStylePropertyNames(File styleFile) throws IOException {
+        if (styleFile == null || !styleFile.canRead()) {
+            return null;
+        }
+
+        String sld = new String(Files.readAllBytes(styleFile.toPath()), StandardCharsets.UTF_8);
+        Set<String> propertyNames = new LinkedHashSet<String>();
+        Matcher matcher = STYLE_PROPERTY_PATTERN.matcher(sld);
+        while (matcher.find()) {
+            propertyNames.add(matcher.group(1));
+        }
+        return propertyNames;
+    }
 }
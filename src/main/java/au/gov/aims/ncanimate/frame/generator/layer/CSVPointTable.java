@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Points of a CSV file, read in a single streaming pass.
+ *
+ * The coordinates are stored in primitive arrays and the other values are stored by column,
+ * each distinct value is only stored once (site names, categories, etc are repeated in large files).
+ * No object is created per row.
+ * Rows without valid coordinates are ignored.
+ *
+ * Files containing a "TIME" column (case insensitive) are time indexed: the rows are selected
+ * for each frame using the frame date range (see {@link TemporalIndex}). An optional "TIME_END"
+ * column defines rows valid over a time interval. Rows without a valid time are displayed on every frame.
+ *
+ * The table is built once per file and shared by every region (see {@link #get(File, String, String)}).
+ */
+public class CSVPointTable {
+    private static final Logger LOGGER = Logger.getLogger(CSVPointTable.class);
+
+    public static final String TIME_COLUMN = "TIME";
+    public static final String TIME_END_COLUMN = "TIME_END";
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Key: absolute file path and coordinate columns
+    private static Map<String, CSVPointTable> tableCache;
+
+    private long lastModified;
+
+    private List<String> header;
+    private int size;
+    private double[] longitudes;
+    private double[] latitudes;
+    private int longitudeIndex;
+    private int latitudeIndex;
+    // values[column][row]. Null for the coordinate columns.
+    private String[][] values;
+
+    // Time indexed files only. Entries: row index
+    private TemporalIndex<Integer> temporalIndex;
+    private int[] staticRows;
+
+    /**
+     * @param csvFile The CSV file.
+     * @param longitudeColumn The longitude column.
+     * @param latitudeColumn The latitude column.
+     * @return The points of the file. The file is read again if it was modified.
+     * @throws IOException If the file can not be read, or if the coordinate columns are missing.
+     */
+    public static synchronized CSVPointTable get(File csvFile, String longitudeColumn, String latitudeColumn) throws IOException {
+        if (CSVPointTable.tableCache == null) {
+            CSVPointTable.tableCache = new HashMap<String, CSVPointTable>();
+        }
+
+        String key = csvFile.getAbsolutePath() + "|" + longitudeColumn + "|" + latitudeColumn;
+        CSVPointTable table = CSVPointTable.tableCache.get(key);
+        if (table == null || table.lastModified != csvFile.lastModified()) {
+            long start = System.currentTimeMillis();
+            table = CSVPointTable.read(csvFile, longitudeColumn, latitudeColumn);
+            LOGGER.debug(String.format("CSV file %s: %d points loaded in %d ms",
+                    csvFile, table.size(), System.currentTimeMillis() - start));
+            CSVPointTable.tableCache.put(key, table);
+        }
+
+        return table;
+    }
+
+    public static synchronized void clearCache() {
+        if (CSVPointTable.tableCache != null) {
+            CSVPointTable.tableCache.clear();
+            CSVPointTable.tableCache = null;
+        }
+    }
+
+    /**
+     * Read a CSV file, without caching.
+     * @param csvFile The CSV file.
+     * @param longitudeColumn The longitude column.
+     * @param latitudeColumn The latitude column.
+     * @return The points of the file.
+     * @throws IOException If the file can not be read, or if the coordinate columns are missing.
+     */
+    public static CSVPointTable read(File csvFile, String longitudeColumn, String latitudeColumn) throws IOException {
+        CSVPointTable table = new CSVPointTable();
+        table.lastModified = csvFile.lastModified();
+
+        try (BufferedReader reader = Files.newBufferedReader(csvFile.toPath(), StandardCharsets.UTF_8)) {
+            List<String> header = CSVPointTable.readRow(reader);
+            table.header = header == null ? new ArrayList<String>() : header;
+
+            int columnCount = table.header.size();
+            int longitudeIndex = table.getColumnIndex(longitudeColumn);
+            int latitudeIndex = table.getColumnIndex(latitudeColumn);
+            table.longitudeIndex = longitudeIndex;
+            table.latitudeIndex = latitudeIndex;
+            if (header != null && (longitudeIndex < 0 || latitudeIndex < 0)) {
+                throw new IOException(String.format("Invalid CSV file %s. Missing coordinate columns %s, %s",
+                        csvFile, longitudeColumn, latitudeColumn));
+            }
+
+            table.longitudes = new double[INITIAL_CAPACITY];
+            table.latitudes = new double[INITIAL_CAPACITY];
+            table.values = new String[columnCount][];
+            for (int column=0; column<columnCount; column++) {
+                if (column != longitudeIndex && column != latitudeIndex) {
+                    table.values[column] = new String[INITIAL_CAPACITY];
+                }
+            }
+            Map<String, String> distinctValues = new HashMap<String, String>();
+
+            List<String> row;
+            while (header != null && (row = CSVPointTable.readRow(reader)) != null) {
+                if (row.size() <= Math.max(longitudeIndex, latitudeIndex)) {
+                    continue;
+                }
+                double longitude, latitude;
+                try {
+                    longitude = Double.parseDouble(row.get(longitudeIndex).trim());
+                    latitude = Double.parseDouble(row.get(latitudeIndex).trim());
+                } catch(NumberFormatException ex) {
+                    continue;
+                }
+                if (Double.isNaN(longitude) || Double.isNaN(latitude)) {
+                    continue;
+                }
+
+                table.ensureCapacity(table.size + 1);
+                table.longitudes[table.size] = longitude;
+                table.latitudes[table.size] = latitude;
+                for (int column=0; column<columnCount; column++) {
+                    if (table.values[column] == null) {
+                        continue;
+                    }
+                    String value = column < row.size() ? row.get(column) : "";
+                    String distinctValue = distinctValues.get(value);
+                    if (distinctValue == null) {
+                        distinctValue = value;
+                        distinctValues.put(value, value);
+                    }
+                    table.values[column][table.size] = distinctValue;
+                }
+                table.size++;
+            }
+        }
+
+        table.trim();
+        table.buildTemporalIndex(csvFile);
+        return table;
+    }
+
+    private CSVPointTable() {}
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.longitudes.length) {
+            int newCapacity = Math.max(capacity, this.longitudes.length * 2);
+            this.longitudes = Arrays.copyOf(this.longitudes, newCapacity);
+            this.latitudes = Arrays.copyOf(this.latitudes, newCapacity);
+            for (int column=0; column<this.values.length; column++) {
+                if (this.values[column] != null) {
+                    this.values[column] = Arrays.copyOf(this.values[column], newCapacity);
+                }
+            }
+        }
+    }
+
+    private void trim() {
+        this.longitudes = Arrays.copyOf(this.longitudes, this.size);
+        this.latitudes = Arrays.copyOf(this.latitudes, this.size);
+        for (int column=0; column<this.values.length; column++) {
+            if (this.values[column] != null) {
+                this.values[column] = Arrays.copyOf(this.values[column], this.size);
+            }
+        }
+    }
+
+    private void buildTemporalIndex(File csvFile) {
+        int timeIndex = this.getColumnIndex(TIME_COLUMN);
+        if (timeIndex < 0) {
+            return;
+        }
+        int timeEndIndex = this.getColumnIndex(TIME_END_COLUMN);
+
+        List<Integer> timedRows = new ArrayList<Integer>();
+        int[] staticRows = new int[this.size];
+        int staticRowCount = 0;
+        long[] startMillis = new long[this.size];
+        long[] endMillis = new long[this.size];
+
+        for (int row=0; row<this.size; row++) {
+            Long start = TemporalIndex.parseTime(this.getValue(row, timeIndex));
+            if (start == null) {
+                staticRows[staticRowCount++] = row;
+            } else {
+                Long end = timeEndIndex < 0 ? null : TemporalIndex.parseTime(this.getValue(row, timeEndIndex));
+                startMillis[timedRows.size()] = start;
+                endMillis[timedRows.size()] = end == null ? start : end;
+                timedRows.add(row);
+            }
+        }
+
+        if (timedRows.isEmpty()) {
+            LOGGER.warn(String.format("No row of CSV file %s has a valid time in column \"%s\". The points are displayed on every frame.",
+                    csvFile, this.header.get(timeIndex)));
+            return;
+        }
+
+        this.temporalIndex = new TemporalIndex<Integer>(timedRows,
+                Arrays.copyOf(startMillis, timedRows.size()), Arrays.copyOf(endMillis, timedRows.size()));
+        this.staticRows = Arrays.copyOf(staticRows, staticRowCount);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public List<String> getHeader() {
+        return Collections.unmodifiableList(this.header);
+    }
+
+    public double getLongitude(int row) {
+        return this.longitudes[row];
+    }
+
+    public double getLatitude(int row) {
+        return this.latitudes[row];
+    }
+
+    public String getValue(int row, int column) {
+        if (column == this.longitudeIndex) {
+            return String.valueOf(this.longitudes[row]);
+        }
+        if (column == this.latitudeIndex) {
+            return String.valueOf(this.latitudes[row]);
+        }
+        return this.values[column][row];
+    }
+
+    /**
+     * @param column The column name, case insensitive.
+     * @return The index of the column, or -1 if the file doesn't have that column.
+     */
+    public int getColumnIndex(String column) {
+        if (column != null) {
+            for (int i=0; i<this.header.size(); i++) {
+                // Ignore the UTF-8 byte order mark
+                if (column.equalsIgnoreCase(this.header.get(i).replace("\uFEFF", "").trim())) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the rows are selected by frame date. See {@link #getRows(double, double, double, double, long, long)}.
+     */
+    public boolean isTimeIndexed() {
+        return this.temporalIndex != null;
+    }
+
+    /**
+     * @return The rows within the area, in file order.
+     */
+    public int[] getRows(double minX, double minY, double maxX, double maxY) {
+        int[] rows = new int[this.size];
+        int count = 0;
+        for (int row=0; row<this.size; row++) {
+            if (this.contains(row, minX, minY, maxX, maxY)) {
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * @param fromMillis The start of the frame (inclusive).
+     * @param toMillis The end of the frame (exclusive).
+     * @return The rows within the area and the time range, and the rows without time within the area, in file order.
+     *     Equivalent to {@link #getRows(double, double, double, double)} if the file is not time indexed.
+     */
+    public int[] getRows(double minX, double minY, double maxX, double maxY, long fromMillis, long toMillis) {
+        if (this.temporalIndex == null) {
+            return this.getRows(minX, minY, maxX, maxY);
+        }
+
+        List<Integer> timedRows = this.temporalIndex.query(fromMillis, toMillis);
+        int[] rows = new int[timedRows.size() + this.staticRows.length];
+        int count = 0;
+        for (Integer row : timedRows) {
+            if (this.contains(row, minX, minY, maxX, maxY)) {
+                rows[count++] = row;
+            }
+        }
+        for (int row : this.staticRows) {
+            if (this.contains(row, minX, minY, maxX, maxY)) {
+                rows[count++] = row;
+            }
+        }
+
+        int[] selectedRows = Arrays.copyOf(rows, count);
+        Arrays.sort(selectedRows);
+        return selectedRows;
+    }
+
+    private boolean contains(int row, double minX, double minY, double maxX, double maxY) {
+        double longitude = this.longitudes[row];
+        double latitude = this.latitudes[row];
+        return longitude >= minX && longitude <= maxX && latitude >= minY && latitude <= maxY;
+    }
+
+    /**
+     * Aggregate the points falling in the same pixel, and group the resulting markers by symbol.
+     *
+     * Points are aggregated only if they have the same values in the symbol columns
+     * (the columns used by the style), so they would be displayed with the same symbol.
+     * The first point of the pixel, in file order, is used as the marker.
+     *
+     * @param rows The rows to display, in file order.
+     * @param transform Transformation from coordinates to pixels.
+     * @param symbolColumns Index of the columns defining the symbol of a point, or null to use every column except the coordinates.
+     * @return The markers of each symbol. Symbols are ordered by first occurrence, markers are in file order.
+     */
+    public List<int[]> getMarkers(int[] rows, AffineTransform transform, int[] symbolColumns) {
+        Map<SymbolKey, Symbol> symbols = new LinkedHashMap<SymbolKey, Symbol>();
+
+        Point2D.Double point = new Point2D.Double();
+        for (int row : rows) {
+            SymbolKey symbolKey = this.getSymbolKey(row, symbolColumns);
+            Symbol symbol = symbols.get(symbolKey);
+            if (symbol == null) {
+                symbol = new Symbol();
+                symbols.put(symbolKey, symbol);
+            }
+
+            point.setLocation(this.longitudes[row], this.latitudes[row]);
+            transform.transform(point, point);
+            long pixel = (((long)(int)Math.floor(point.getX())) << 32) | (((int)Math.floor(point.getY())) & 0xFFFFFFFFL);
+            if (symbol.pixels.add(pixel)) {
+                symbol.addMarker(row);
+            }
+        }
+
+        List<int[]> markersBySymbol = new ArrayList<int[]>(symbols.size());
+        for (Symbol symbol : symbols.values()) {
+            markersBySymbol.add(Arrays.copyOf(symbol.markers, symbol.markerCount));
+        }
+        return markersBySymbol;
+    }
+
+    private SymbolKey getSymbolKey(int row, int[] symbolColumns) {
+        if (symbolColumns == null) {
+            // Every column except the coordinates
+            String[] symbolValues = new String[this.values.length];
+            for (int column=0; column<this.values.length; column++) {
+                symbolValues[column] = this.values[column] == null ? null : this.values[column][row];
+            }
+            return new SymbolKey(symbolValues);
+        }
+
+        String[] symbolValues = new String[symbolColumns.length];
+        for (int i=0; i<symbolColumns.length; i++) {
+            symbolValues[i] = this.getValue(row, symbolColumns[i]);
+        }
+        return new SymbolKey(symbolValues);
+    }
+
+    /**
+     * Build the point features of some rows, without writing or parsing any file.
+     * The values are kept as strings, the way the vector library reads CSV files.
+     * @param rows The rows, in file order.
+     * @return A FeatureCollection containing a Point feature for each row.
+     */
+    public JSONObject getFeatureCollection(int[] rows) {
+        String[] propertyNames = new String[this.header.size()];
+        for (int column=0; column<propertyNames.length; column++) {
+            propertyNames[column] = this.header.get(column).replace("\uFEFF", "").trim();
+        }
+
+        JSONArray features = new JSONArray();
+        for (int row : rows) {
+            JSONObject properties = new JSONObject();
+            for (int column=0; column<propertyNames.length; column++) {
+                properties.put(propertyNames[column], this.getValue(row, column));
+            }
+
+            features.put(new JSONObject()
+                .put("type", "Feature")
+                .put("geometry", new JSONObject()
+                    .put("type", "Point")
+                    .put("coordinates", new JSONArray().put(this.longitudes[row]).put(this.latitudes[row])))
+                .put("properties", properties));
+        }
+
+        return new JSONObject()
+            .put("type", "FeatureCollection")
+            .put("features", features);
+    }
+
+    /**
+     * Read a row of a CSV file (RFC 4180). Quoted values may contain commas, quotes ("") and new lines.
+     * @return The values of the row, or null at the end of the file.
+     */
+    static List<String> readRow(BufferedReader reader) throws IOException {
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        boolean empty = true;
+
+        int c;
+        while ((c = reader.read()) != -1) {
+            empty = false;
+            if (quoted) {
+                if (c == '"') {
+                    reader.mark(1);
+                    int next = reader.read();
+                    if (next == '"') {
+                        value.append('"');
+                    } else {
+                        quoted = false;
+                        if (next != -1) {
+                            reader.reset();
+                        }
+                    }
+                } else {
+                    value.append((char)c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                value.append((char)c);
+            }
+        }
+
+        if (empty) {
+            return null;
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    private static class Symbol {
+        private Set<Long> pixels = new HashSet<Long>();
+        private int[] markers = new int[4];
+        private int markerCount = 0;
+
+        public void addMarker(int row) {
+            if (this.markerCount == this.markers.length) {
+                this.markers = Arrays.copyOf(this.markers, this.markerCount * 2);
+            }
+            this.markers[this.markerCount++] = row;
+        }
+    }
+
+    private static class SymbolKey {
+        private String[] values;
+        private int hashCode;
+
+        public SymbolKey(String[] values) {
+            this.values = values;
+            this.hashCode = Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof SymbolKey && Arrays.equals(this.values, ((SymbolKey)other).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
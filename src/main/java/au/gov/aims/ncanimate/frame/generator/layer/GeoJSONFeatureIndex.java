@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spatial index of the features of a GeoJSON file.
+ *
+ * The index is built once per file and resolution, and shared by every region of similar resolution
+ * (see {@link #get(File, double)}). The geometries are simplified as the file is read, the index
+ * never holds the full precision geometries unless asked to.
+ * Layer generators only style and render the features intersecting their region bounding box,
+ * instead of transforming and styling every feature of the file and relying on the canvas crop.
+ *
+ * Files describing moving features (ship tracks, drifters, observations, etc) can declare the
+ * feature property containing the feature time, with FeatureCollection members:
+ *     "timeProperty": "date",
+ *     "timeEndProperty": "endDate" (optional, for features valid over a time interval)
+ * The features are then also indexed by time (see {@link TemporalIndex}),
+ * so each frame only selects the features of its date range (see {@link #getFeatureIds(double, double, double, double, long, long)}).
+ * Features without a valid time are displayed on every frame.
+ */
+public class GeoJSONFeatureIndex {
+    private static final Logger LOGGER = Logger.getLogger(GeoJSONFeatureIndex.class);
+
+    private static final String FEATURES_KEY = "features";
+    private static final String PROPERTIES_KEY = "properties";
+    public static final String TIME_PROPERTY_KEY = "timeProperty";
+    public static final String TIME_END_PROPERTY_KEY = "timeEndProperty";
+
+    // Vertices closer than half a pixel to the simplified geometry are not visible.
+    public static final double SIMPLIFICATION_TOLERANCE_PIXELS = 0.5;
+    // Lines and polygons smaller than half a pixel are dropped.
+    public static final double MIN_FEATURE_SIZE_PIXELS = 0.5;
+
+    // Key: absolute file path and index pixel size
+    private static Map<String, GeoJSONFeatureIndex> indexCache;
+
+    private long lastModified;
+
+    // FeatureCollection members, without the features (type, crs, etc)
+    private JSONObject featureCollection;
+    private List<JSONObject> features;
+    private List<double[]> bboxes;
+
+    // Index of every feature. Entries: feature IDs (index in the features list)
+    private SpatialIndex<Integer> index;
+
+    // Time indexed files only. Entries: index in timedFeatureIds
+    private TemporalIndex<Integer> temporalIndex;
+    private int[] timedFeatureIds;
+    private SpatialIndex<Integer> staticFeatureIndex;
+
+    private GeoJSONFeatureIndex(JSONObject geoJSON, long lastModified) {
+        this.lastModified = lastModified;
+
+        JSONArray features = (JSONArray)geoJSON.remove(FEATURES_KEY);
+        this.featureCollection = geoJSON;
+
+        this.features = new ArrayList<JSONObject>();
+        this.bboxes = new ArrayList<double[]>();
+        List<Integer> featureIds = new ArrayList<Integer>();
+        if (features != null) {
+            for (int i=0; i<features.length(); i++) {
+                JSONObject feature = features.optJSONObject(i);
+                if (feature != null) {
+                    featureIds.add(this.features.size());
+                    this.features.add(feature);
+                    this.bboxes.add(GeoJSONFeatureIndex.getBbox(feature));
+                }
+            }
+        }
+        this.index = new SpatialIndex<Integer>(featureIds, this.bboxes);
+
+        String timeProperty = geoJSON.optString(TIME_PROPERTY_KEY, null);
+        if (timeProperty != null) {
+            this.buildTemporalIndex(timeProperty, geoJSON.optString(TIME_END_PROPERTY_KEY, null));
+        }
+    }
+
+    private void buildTemporalIndex(String timeProperty, String timeEndProperty) {
+        List<Integer> timedFeatureIds = new ArrayList<Integer>();
+        List<Integer> staticFeatureIds = new ArrayList<Integer>();
+        List<double[]> staticBboxes = new ArrayList<double[]>();
+        long[] startMillis = new long[this.features.size()];
+        long[] endMillis = new long[this.features.size()];
+
+        for (int featureId=0; featureId<this.features.size(); featureId++) {
+            JSONObject properties = this.features.get(featureId).optJSONObject(PROPERTIES_KEY);
+            Long start = properties == null ? null : TemporalIndex.parseTime(properties.opt(timeProperty));
+            if (start == null) {
+                staticFeatureIds.add(featureId);
+                staticBboxes.add(this.bboxes.get(featureId));
+            } else {
+                Long end = timeEndProperty == null ? null : TemporalIndex.parseTime(properties.opt(timeEndProperty));
+                startMillis[timedFeatureIds.size()] = start;
+                endMillis[timedFeatureIds.size()] = end == null ? start : end;
+                timedFeatureIds.add(featureId);
+            }
+        }
+
+        if (timedFeatureIds.isEmpty()) {
+            LOGGER.warn(String.format("No feature has a valid time property \"%s\". The features are displayed on every frame.", timeProperty));
+            return;
+        }
+
+        this.temporalIndex = new TemporalIndex<Integer>(timedFeatureIds,
+                Arrays.copyOf(startMillis, timedFeatureIds.size()), Arrays.copyOf(endMillis, timedFeatureIds.size()));
+        this.timedFeatureIds = GeoJSONFeatureIndex.toArray(timedFeatureIds);
+        this.staticFeatureIndex = new SpatialIndex<Integer>(staticFeatureIds, staticBboxes);
+    }
+
+    /**
+     * @param geoJSONFile The GeoJSON file.
+     * @param pixelSize The size of a pixel of the panel, in degrees. 0 to index the geometries without simplification.
+     * @return The index of the file, with the geometries simplified to the pixel size.
+     *     The index is rebuilt if the file was modified.
+     * @throws IOException If the file can not be read.
+     */
+    public static GeoJSONFeatureIndex get(File geoJSONFile, double pixelSize) throws IOException {
+        if (GeoJSONFeatureIndex.indexCache == null) {
+            GeoJSONFeatureIndex.indexCache = new HashMap<String, GeoJSONFeatureIndex>();
+        }
+
+        double indexPixelSize = GeoJSONFeatureIndex.getIndexPixelSize(pixelSize);
+        String key = geoJSONFile.getAbsolutePath() + "|" + indexPixelSize;
+        GeoJSONFeatureIndex featureIndex = GeoJSONFeatureIndex.indexCache.get(key);
+        if (featureIndex == null || featureIndex.lastModified != geoJSONFile.lastModified()) {
+            long start = System.currentTimeMillis();
+            long lastModified = geoJSONFile.lastModified();
+            GeoJSONReader reader = GeoJSONReader.forPixelSize(indexPixelSize, SIMPLIFICATION_TOLERANCE_PIXELS, MIN_FEATURE_SIZE_PIXELS);
+            featureIndex = new GeoJSONFeatureIndex(reader.read(geoJSONFile), lastModified);
+            LOGGER.debug(String.format("GeoJSON file %s: %d features indexed in %d ms, %d vertices simplified to %d (pixel size %f)",
+                    geoJSONFile, featureIndex.size(), System.currentTimeMillis() - start,
+                    reader.getInputVertexCount(), reader.getOutputVertexCount(), indexPixelSize));
+            GeoJSONFeatureIndex.indexCache.put(key, featureIndex);
+        }
+
+        return featureIndex;
+    }
+
+    /**
+     * The pixel size is rounded down to a power of 2, regions of similar resolution share the same index.
+     * The index is never simplified more than the panel resolution.
+     * @param pixelSize The size of a pixel of the panel, in degrees.
+     * @return The pixel size used to simplify the indexed geometries. 0 if the pixel size is unknown.
+     */
+    public static double getIndexPixelSize(double pixelSize) {
+        if (!(pixelSize > 0) || Double.isInfinite(pixelSize)) {
+            return 0;
+        }
+        return Math.scalb(1.0, Math.getExponent(pixelSize));
+    }
+
+    public static void clearCache() {
+        if (GeoJSONFeatureIndex.indexCache != null) {
+            GeoJSONFeatureIndex.indexCache.clear();
+            GeoJSONFeatureIndex.indexCache = null;
+        }
+    }
+
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * @return true if the features are selected by frame date. See {@link #getFeatureIds(double, double, double, double, long, long)}.
+     */
+    public boolean isTimeIndexed() {
+        return this.temporalIndex != null;
+    }
+
+    /**
+     * @return The ID of the features intersecting the area, in file order.
+     */
+    public int[] getFeatureIds(double minX, double minY, double maxX, double maxY) {
+        return GeoJSONFeatureIndex.toArray(this.index.query(minX, minY, maxX, maxY));
+    }
+
+    /**
+     * @param fromMillis The start of the frame (inclusive).
+     * @param toMillis The end of the frame (exclusive).
+     * @return The ID of the features intersecting the area and the time range, and the features without time
+     *     intersecting the area, in file order. Equivalent to {@link #getFeatureIds(double, double, double, double)}
+     *     if the file is not time indexed.
+     */
+    public int[] getFeatureIds(double minX, double minY, double maxX, double maxY, long fromMillis, long toMillis) {
+        if (this.temporalIndex == null) {
+            return this.getFeatureIds(minX, minY, maxX, maxY);
+        }
+
+        List<Integer> staticFeatureIds = this.staticFeatureIndex.query(minX, minY, maxX, maxY);
+        int[] timedIndexes = this.temporalIndex.queryIndexes(fromMillis, toMillis);
+
+        int[] featureIds = new int[staticFeatureIds.size() + timedIndexes.length];
+        int count = 0;
+        for (Integer featureId : staticFeatureIds) {
+            featureIds[count++] = featureId;
+        }
+        for (int timedIndex : timedIndexes) {
+            int featureId = this.timedFeatureIds[timedIndex];
+            double[] bbox = this.bboxes.get(featureId);
+            if (bbox[0] <= maxX && bbox[2] >= minX && bbox[1] <= maxY && bbox[3] >= minY) {
+                featureIds[count++] = featureId;
+            }
+        }
+
+        // File order
+        int[] selectedFeatureIds = Arrays.copyOf(featureIds, count);
+        Arrays.sort(selectedFeatureIds);
+        return selectedFeatureIds;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i=0; i<array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * @param minX The minimum longitude of the area.
+     * @param minY The minimum latitude of the area.
+     * @param maxX The maximum longitude of the area.
+     * @param maxY The maximum latitude of the area.
+     * @param reader Used to simplify the features.
+     * @return A FeatureCollection containing the simplified features intersecting the area, in file order.
+     */
+    public JSONObject getFeatureCollection(double minX, double minY, double maxX, double maxY, GeoJSONReader reader) {
+        return this.getFeatureCollection(this.getFeatureIds(minX, minY, maxX, maxY), reader);
+    }
+
+    /**
+     * @param featureIds The ID of the features, see {@link #getFeatureIds(double, double, double, double, long, long)}.
+     * @param reader Used to simplify the features to the panel resolution. The indexed features are already
+     *     simplified to a resolution close to it, see {@link #getIndexPixelSize(double)}.
+     * @return A FeatureCollection containing the simplified features.
+     */
+    public JSONObject getFeatureCollection(int[] featureIds, GeoJSONReader reader) {
+        JSONArray features = new JSONArray();
+        for (int featureId : featureIds) {
+            JSONObject simplifiedFeature = reader.simplifyFeature(this.features.get(featureId));
+            if (simplifiedFeature != null) {
+                features.put(simplifiedFeature);
+            }
+        }
+
+        String[] keys = JSONObject.getNames(this.featureCollection);
+        JSONObject featureCollection = keys == null ? new JSONObject() : new JSONObject(this.featureCollection, keys);
+        return featureCollection.put(FEATURES_KEY, features);
+    }
+
+    /**
+     * @return The bounding box of the feature geometry: [minX, minY, maxX, maxY].
+     *     Features without coordinates get an infinite bounding box, they are never culled.
+     */
+    private static double[] getBbox(JSONObject feature) {
+        double[] bbox = new double[] {
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+        };
+
+        JSONObject geometry = feature.optJSONObject("geometry");
+        if (geometry != null) {
+            GeoJSONFeatureIndex.extendBbox(bbox, geometry);
+        }
+
+        if (bbox[0] > bbox[2]) {
+            return new double[] {
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY
+            };
+        }
+        return bbox;
+    }
+
+    private static void extendBbox(double[] bbox, JSONObject geometry) {
+        JSONArray geometries = geometry.optJSONArray("geometries");
+        if (geometries != null) {
+            for (int i=0; i<geometries.length(); i++) {
+                JSONObject subGeometry = geometries.optJSONObject(i);
+                if (subGeometry != null) {
+                    GeoJSONFeatureIndex.extendBbox(bbox, subGeometry);
+                }
+            }
+        }
+
+        JSONArray coordinates = geometry.optJSONArray("coordinates");
+        if (coordinates != null) {
+            GeoJSONFeatureIndex.extendBbox(bbox, coordinates);
+        }
+    }
+
+    // Coordinates are nested arrays, positions are arrays of numbers: [x, y] or [x, y, z]
+    private static void extendBbox(double[] bbox, JSONArray coordinates) {
+        if (coordinates.length() >= 2 && !(coordinates.opt(0) instanceof JSONArray)) {
+            double x = coordinates.optDouble(0);
+            double y = coordinates.optDouble(1);
+            if (!Double.isNaN(x) && !Double.isNaN(y)) {
+                bbox[0] = Math.min(bbox[0], x);
+                bbox[1] = Math.min(bbox[1], y);
+                bbox[2] = Math.max(bbox[2], x);
+                bbox[3] = Math.max(bbox[3], y);
+            }
+            return;
+        }
+
+        for (int i=0; i<coordinates.length(); i++) {
+            JSONArray child = coordinates.optJSONArray(i);
+            if (child != null) {
+                GeoJSONFeatureIndex.extendBbox(bbox, child);
+            }
+        }
+    }
+}
@@ -5,22 +5,21 @@
 package au.gov.aims.ncanimate.frame.generator.layer;
 
 import au.gov.aims.aws.s3.entity.S3Client;
-import au.gov.aims.layers2svg.Layers2SVGUtils;
 import au.gov.aims.layers2svg.graphics.GeoJSONShape;
-import au.gov.aims.layers2svg.graphics.VectorRasterGraphics2D;
 import au.gov.aims.sld.geom.Layer;
+import org.apache.log4j.Logger;
 import org.json.JSONObject;
 
-import java.awt.geom.AffineTransform;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.List;
 
-public class GeoJSONLayerGenerator extends AbstractLayerGenerator {
-    private boolean cached = false;
-    private List<Layer> styledLayers;
+/**
+ * GeoJSON layer. The features are loaded in a {@link GeoJSONFeatureIndex}.
+ */
+public class GeoJSONLayerGenerator extends AbstractFeatureLayerGenerator {
+    private static final Logger LOGGER = Logger.getLogger(GeoJSONLayerGenerator.class);
+
+    private GeoJSONFeatureIndex featureIndex;
 
     public GeoJSONLayerGenerator(S3Client s3Client) {
         super(s3Client);
@@ -32,44 +31,38 @@ public class GeoJSONLayerGenerator extends AbstractLayerGenerator {
     }
 
     @Override
-    public void render(VectorRasterGraphics2D canvas, int leftScaledOffset, int topScaledOffset) throws Exception {
-        if (!this.cached) {
-            this.cached = true;
-
-            File layerFile = this.getLayerFile();
+    protected boolean loadFeatures(File layerFile) throws Exception {
+        this.featureIndex = GeoJSONFeatureIndex.get(layerFile, this.getPixelSize());
+        return this.featureIndex != null;
+    }
 
-            if (layerFile != null && layerFile.canRead()) {
-                Layer layer = this.getGeoJSONLayer(this.getLayerTitle(), layerFile);
-                this.styledLayers = this.styleLayer(layer);
-            }
-        }
+    @Override
+    protected boolean isTimeIndexed() {
+        return this.featureIndex != null && this.featureIndex.isTimeIndexed();
+    }
 
-        if (this.styledLayers != null && !this.styledLayers.isEmpty()) {
-            for (Layer styledLayer : this.styledLayers) {
-                styledLayer.setName(this.getLayerTitle());
-                canvas.fillAndStroke(styledLayer.createTransformedLayer(AffineTransform.getTranslateInstance(leftScaledOffset, topScaledOffset)));
-            }
-        }
+    @Override
+    protected int[] selectFeatureIds(double[] bbox, long fromMillis, long toMillis) {
+        return this.featureIndex.getFeatureIds(bbox[0], bbox[1], bbox[2], bbox[3], fromMillis, toMillis);
     }
 
-    private Layer getGeoJSONLayer(String layerName, File datasourceFile) throws IOException {
-        InputStream datasourceStream = null;
-        JSONObject datasourceJson = null;
-        try {
-            datasourceStream = new FileInputStream(datasourceFile);
-            String datasourceString = Layers2SVGUtils.readFile(datasourceStream);
-            datasourceJson = new JSONObject(datasourceString);
-        } finally {
-            if (datasourceStream != null) {
-                datasourceStream.close();
-            }
-        }
+    @Override
+    protected List<Layer> styleFeatures(int[] featureIds) throws Exception {
+        // Simplify the geometries to the panel resolution.
+        GeoJSONReader reader = GeoJSONReader.forPixelSize(this.getPixelSize(),
+                GeoJSONFeatureIndex.SIMPLIFICATION_TOLERANCE_PIXELS, GeoJSONFeatureIndex.MIN_FEATURE_SIZE_PIXELS);
+        JSONObject datasourceJson = this.featureIndex.getFeatureCollection(featureIds, reader);
+
+        String layerName = this.getLayerTitle();
+        LOGGER.debug(String.format("Layer %s: %d features selected out of %d, %d sub-pixel features dropped, %d vertices simplified to %d",
+                layerName, reader.getInputFeatureCount(), this.featureIndex.size(), reader.getDroppedFeatureCount(),
+                reader.getInputVertexCount(), reader.getOutputVertexCount()));
 
         GeoJSONShape datasourceGeoJSONShape = new GeoJSONShape(datasourceJson, layerName);
         datasourceGeoJSONShape.parse();
         Layer layer = new Layer(layerName);
         layer.add(datasourceGeoJSONShape);
 
-        return layer;
+        return this.styleLayer(layer);
     }
 }
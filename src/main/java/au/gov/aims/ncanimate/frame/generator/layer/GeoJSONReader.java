@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming GeoJSON reader, which simplifies geometries to the pixel resolution of the panel.
+ *
+ * The file is read one feature at the time, instead of loading the whole file in a String
+ * and parsing it as a single JSONObject. Each feature geometry is simplified as it's read:
+ * - vertices closer than the tolerance to the simplified line are removed (Douglas-Peucker),
+ * - lines, rings and polygons smaller than the minimum size (sub-pixel) are dropped.
+ * Features left without geometry are dropped. Points are kept as they are.
+ *
+ * The returned FeatureCollection only contains the simplified features,
+ * which are then parsed by GeoJSONShape.
+ */
+public class GeoJSONReader {
+    private static final String FEATURES_KEY = "features";
+    private static final String GEOMETRY_KEY = "geometry";
+    private static final String GEOMETRIES_KEY = "geometries";
+    private static final String COORDINATES_KEY = "coordinates";
+    private static final String TYPE_KEY = "type";
+
+    // Tolerance and minimum feature size, in coordinate units (degrees). 0 to disable.
+    private double tolerance;
+    private double minSize;
+
+    private long inputVertexCount;
+    private long outputVertexCount;
+    private int inputFeatureCount;
+    private int droppedFeatureCount;
+
+    /**
+     * @param tolerance Maximum distance between a removed vertex and the simplified geometry, in coordinate units.
+     * @param minSize Lines and polygons which fit in a box of that size are dropped, in coordinate units.
+     */
+    public GeoJSONReader(double tolerance, double minSize) {
+        this.tolerance = tolerance;
+        this.minSize = minSize;
+    }
+
+    /**
+     * @param pixelSize Size of a pixel, in coordinate units. See {@link #getPixelSize(double, double, int, int)}
+     * @param tolerancePixels Tolerance, in pixels.
+     * @param minSizePixels Minimum feature size, in pixels.
+     * @return A reader which simplifies geometries to the pixel resolution.
+     */
+    public static GeoJSONReader forPixelSize(double pixelSize, double tolerancePixels, double minSizePixels) {
+        return new GeoJSONReader(pixelSize * tolerancePixels, pixelSize * minSizePixels);
+    }
+
+    /**
+     * @return The size of the smallest pixel side, in coordinate units.
+     *     The X and Y scale may differ, the smallest is used to never simplify more than a pixel.
+     */
+    public static double getPixelSize(double bboxWidth, double bboxHeight, int scaledPanelWidth, int scaledPanelHeight) {
+        if (scaledPanelWidth <= 0 || scaledPanelHeight <= 0) {
+            return 0;
+        }
+        return Math.min(bboxWidth / scaledPanelWidth, bboxHeight / scaledPanelHeight);
+    }
+
+    public JSONObject read(File geoJSONFile) throws IOException {
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(geoJSONFile), StandardCharsets.UTF_8))) {
+            return this.read(reader);
+        }
+    }
+
+    public JSONObject read(Reader reader) {
+        JSONTokener tokener = new JSONTokener(reader);
+        JSONObject geoJSON = new JSONObject();
+
+        if (tokener.nextClean() != '{') {
+            throw tokener.syntaxError("A GeoJSON document must begin with '{'");
+        }
+        char c = tokener.nextClean();
+        if (c == '}') {
+            return geoJSON;
+        }
+        tokener.back();
+
+        while (true) {
+            c = tokener.nextClean();
+            if (c != '"' && c != '\'') {
+                throw tokener.syntaxError("Expected a key");
+            }
+            String key = tokener.nextString(c);
+            if (tokener.nextClean() != ':') {
+                throw tokener.syntaxError("Expected a ':' after a key");
+            }
+
+            if (FEATURES_KEY.equals(key)) {
+                geoJSON.put(key, this.readFeatures(tokener));
+            } else {
+                geoJSON.put(key, tokener.nextValue());
+            }
+
+            c = tokener.nextClean();
+            if (c == '}') {
+                return geoJSON;
+            }
+            if (c != ',') {
+                throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+        }
+    }
+
+    public long getInputVertexCount() {
+        return this.inputVertexCount;
+    }
+
+    public long getOutputVertexCount() {
+        return this.outputVertexCount;
+    }
+
+    public int getInputFeatureCount() {
+        return this.inputFeatureCount;
+    }
+
+    public int getDroppedFeatureCount() {
+        return this.droppedFeatureCount;
+    }
+
+    // Read the feature array, one feature at the time
+    private JSONArray readFeatures(JSONTokener tokener) {
+        JSONArray features = new JSONArray();
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("Expected a '[' for the features");
+        }
+        char c = tokener.nextClean();
+        if (c == ']') {
+            return features;
+        }
+        tokener.back();
+
+        while (true) {
+            Object feature = tokener.nextValue();
+            if (feature instanceof JSONObject) {
+                JSONObject simplifiedFeature = this.simplifyFeature((JSONObject)feature);
+                if (simplifiedFeature != null) {
+                    features.put(simplifiedFeature);
+                }
+            }
+
+            c = tokener.nextClean();
+            if (c == ']') {
+                return features;
+            }
+            if (c != ',') {
+                throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Simplify the geometry of a feature.
+     * The feature is not modified, features may be shared between regions (see GeoJSONFeatureIndex).
+     * @param feature The GeoJSON feature.
+     * @return The simplified feature, or null if the feature geometry is smaller than the minimum size.
+     */
+    public JSONObject simplifyFeature(JSONObject feature) {
+        this.inputFeatureCount++;
+
+        JSONObject geometry = feature.optJSONObject(GEOMETRY_KEY);
+        if (geometry == null) {
+            return feature;
+        }
+
+        JSONObject simplifiedGeometry = this.simplifyGeometry(geometry);
+        if (simplifiedGeometry == null) {
+            this.droppedFeatureCount++;
+            return null;
+        }
+        return simplifiedGeometry == geometry ? feature :
+                GeoJSONReader.copy(feature).put(GEOMETRY_KEY, simplifiedGeometry);
+    }
+
+    // Returns null if the geometry is dropped, or a modified copy of the geometry
+    private JSONObject simplifyGeometry(JSONObject geometry) {
+        String type = geometry.optString(TYPE_KEY, "");
+
+        if ("GeometryCollection".equals(type)) {
+            JSONArray geometries = geometry.optJSONArray(GEOMETRIES_KEY);
+            if (geometries == null) {
+                return geometry;
+            }
+            JSONArray simplifiedGeometries = new JSONArray();
+            for (int i=0; i<geometries.length(); i++) {
+                JSONObject subGeometry = geometries.optJSONObject(i);
+                JSONObject simplifiedSubGeometry = subGeometry == null ? null : this.simplifyGeometry(subGeometry);
+                if (simplifiedSubGeometry != null) {
+                    simplifiedGeometries.put(simplifiedSubGeometry);
+                }
+            }
+            return simplifiedGeometries.length() == 0 ? null : GeoJSONReader.copy(geometry).put(GEOMETRIES_KEY, simplifiedGeometries);
+        }
+
+        JSONArray coordinates = geometry.optJSONArray(COORDINATES_KEY);
+        if (coordinates == null) {
+            return geometry;
+        }
+
+        JSONArray simplifiedCoordinates;
+        switch (type) {
+            case "LineString":
+                simplifiedCoordinates = this.simplifyLine(coordinates, false);
+                break;
+
+            case "MultiLineString":
+                simplifiedCoordinates = this.simplifyLines(coordinates);
+                break;
+
+            case "Polygon":
+                simplifiedCoordinates = this.simplifyPolygon(coordinates);
+                break;
+
+            case "MultiPolygon":
+                simplifiedCoordinates = new JSONArray();
+                for (int i=0; i<coordinates.length(); i++) {
+                    JSONArray polygon = coordinates.optJSONArray(i);
+                    JSONArray simplifiedPolygon = polygon == null ? null : this.simplifyPolygon(polygon);
+                    if (simplifiedPolygon != null) {
+                        simplifiedCoordinates.put(simplifiedPolygon);
+                    }
+                }
+                if (simplifiedCoordinates.length() == 0) {
+                    simplifiedCoordinates = null;
+                }
+                break;
+
+            default:
+                // Point, MultiPoint
+                return geometry;
+        }
+
+        if (simplifiedCoordinates == null) {
+            return null;
+        }
+        return simplifiedCoordinates == coordinates ? geometry :
+                GeoJSONReader.copy(geometry).put(COORDINATES_KEY, simplifiedCoordinates);
+    }
+
+    // Shallow copy
+    private static JSONObject copy(JSONObject jsonObject) {
+        String[] keys = JSONObject.getNames(jsonObject);
+        return keys == null ? new JSONObject() : new JSONObject(jsonObject, keys);
+    }
+
+    private JSONArray simplifyLines(JSONArray lines) {
+        JSONArray simplifiedLines = new JSONArray();
+        for (int i=0; i<lines.length(); i++) {
+            JSONArray line = lines.optJSONArray(i);
+            JSONArray simplifiedLine = line == null ? null : this.simplifyLine(line, false);
+            if (simplifiedLine != null) {
+                simplifiedLines.put(simplifiedLine);
+            }
+        }
+        return simplifiedLines.length() == 0 ? null : simplifiedLines;
+    }
+
+    // The first ring is the outer ring, the following ones are holes.
+    // A polygon with a sub-pixel outer ring is dropped, sub-pixel holes are removed.
+    private JSONArray simplifyPolygon(JSONArray rings) {
+        JSONArray simplifiedRings = new JSONArray();
+        for (int i=0; i<rings.length(); i++) {
+            JSONArray ring = rings.optJSONArray(i);
+            JSONArray simplifiedRing = ring == null ? null : this.simplifyLine(ring, true);
+            if (simplifiedRing != null) {
+                simplifiedRings.put(simplifiedRing);
+            } else if (i == 0) {
+                return null;
+            }
+        }
+        return simplifiedRings.length() == 0 ? null : simplifiedRings;
+    }
+
+    /**
+     * Simplify a line or a ring.
+     * The positions of the kept vertices are not modified.
+     * @return The simplified positions, or null if the line is smaller than the minimum size.
+     */
+    private JSONArray simplifyLine(JSONArray positions, boolean ring) {
+        int length = positions.length();
+        this.inputVertexCount += length;
+
+        double[] xs = new double[length];
+        double[] ys = new double[length];
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY,
+            maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i=0; i<length; i++) {
+            JSONArray position = positions.optJSONArray(i);
+            if (position == null || position.length() < 2) {
+                // Invalid position, leave it to the GeoJSON parser
+                this.outputVertexCount += length;
+                return positions;
+            }
+            xs[i] = position.getDouble(0);
+            ys[i] = position.getDouble(1);
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+
+        if (length > 0 && maxX - minX < this.minSize && maxY - minY < this.minSize) {
+            return null;
+        }
+
+        int minLength = ring ? 4 : 2;
+        if (this.tolerance <= 0 || length <= minLength) {
+            this.outputVertexCount += length;
+            return positions;
+        }
+
+        boolean[] kept = GeoJSONReader.douglasPeucker(xs, ys, this.tolerance);
+
+        List<Object> simplifiedPositions = new ArrayList<Object>();
+        for (int i=0; i<length; i++) {
+            if (kept[i]) {
+                simplifiedPositions.add(positions.get(i));
+            }
+        }
+
+        // A ring needs at least 4 positions (first and last are the same).
+        // Thin rings may collapse, keep them as they are.
+        if (simplifiedPositions.size() < minLength) {
+            this.outputVertexCount += length;
+            return positions;
+        }
+
+        this.outputVertexCount += simplifiedPositions.size();
+        return new JSONArray(simplifiedPositions);
+    }
+
+    /**
+     * Douglas-Peucker line simplification, without recursion (coastlines can have a lot of vertices).
+     * @return The vertices to keep. The first and last vertices are always kept.
+     */
+    private static boolean[] douglasPeucker(double[] xs, double[] ys, double tolerance) {
+        int length = xs.length;
+        boolean[] kept = new boolean[length];
+        kept[0] = true;
+        kept[length - 1] = true;
+
+        double squaredTolerance = tolerance * tolerance;
+
+        // Stack of [first, last] index pairs
+        int[] stack = new int[length * 2];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        stack[stackSize++] = length - 1;
+
+        while (stackSize > 0) {
+            int last = stack[--stackSize];
+            int first = stack[--stackSize];
+
+            double maxSquaredDistance = 0;
+            int farthest = -1;
+            for (int i=first+1; i<last; i++) {
+                double squaredDistance = GeoJSONReader.squaredSegmentDistance(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+                if (squaredDistance > maxSquaredDistance) {
+                    maxSquaredDistance = squaredDistance;
+                    farthest = i;
+                }
+            }
+
+            if (farthest >= 0 && maxSquaredDistance > squaredTolerance) {
+                kept[farthest] = true;
+                stack[stackSize++] = first;
+                stack[stackSize++] = farthest;
+                stack[stackSize++] = farthest;
+                stack[stackSize++] = last;
+            }
+        }
+
+        return kept;
+    }
+
+    // Squared distance between a point and a segment.
+    // Rings start and end on the same point, the distance to that point is used.
+    private static double squaredSegmentDistance(double x, double y, double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double squaredLength = dx * dx + dy * dy;
+
+        double projX = x1, projY = y1;
+        if (squaredLength > 0) {
+            double t = ((x - x1) * dx + (y - y1) * dy) / squaredLength;
+            if (t >= 1) {
+                projX = x2;
+                projY = y2;
+            } else if (t > 0) {
+                projX = x1 + t * dx;
+                projY = y1 + t * dy;
+            }
+        }
+
+        double distX = x - projX;
+        double distY = y - projY;
+        return distX * distX + distY * distY;
+    }
+}
@@ -16,6 +16,7 @@ import au.gov.aims.ereefs.bean.ncanimate.NcAnimateLegendBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateNetCDFTrueColourVariableBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateNetCDFVariableBean;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateNetCDFVariableBean.ColourSchemeType;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
 import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderBean;
 import au.gov.aims.ereefs.database.CacheStrategy;
 import au.gov.aims.ereefs.database.DatabaseClient;
@@ -26,20 +27,28 @@ import au.gov.aims.ncanimate.commons.timetable.FrameTimetable;
 import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
 import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataFrame;
 import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataSet;
+import au.gov.aims.ncanimate.frame.generator.layer.edalLayer.ArrowAnchorTable;
 import au.gov.aims.ncanimate.frame.generator.layer.edalLayer.DynamicArrowLayer;
+import au.gov.aims.ncanimate.frame.generator.layer.edalLayer.MaskedRasterLayer;
+import au.gov.aims.ncanimate.frame.generator.layer.edalLayer.NoDataMask;
 import au.gov.aims.ncanimate.frame.generator.layer.edalLayer.TrueColourLayer;
 import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import au.gov.aims.ncanimate.frame.generator.download.ArtifactDownloadManager;
 import au.gov.aims.ncanimate.frame.generator.layer.vectorLegend.LegendGenerator;
+import au.gov.aims.ncanimate.frame.generator.report.RunReport;
+import au.gov.aims.ncanimate.frame.generator.report.jfr.DatasetLoadEvent;
+import au.gov.aims.ncanimate.frame.generator.report.jfr.DrawImageEvent;
+import au.gov.aims.ncanimate.frame.generator.report.jfr.S3TransferEvent;
 import au.gov.aims.sld.SldUtils;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.domain.HorizontalDomain;
 import uk.ac.rdg.resc.edal.exceptions.IncorrectDomainException;
 import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
 import uk.ac.rdg.resc.edal.graphics.style.Drawable;
 import uk.ac.rdg.resc.edal.graphics.style.MapImage;
-import uk.ac.rdg.resc.edal.graphics.style.RasterLayer;
 import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
 import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
 import uk.ac.rdg.resc.edal.graphics.style.ThresholdColourScheme;
@@ -56,6 +65,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -84,7 +94,11 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
     // - Loading a dataset takes a fair amount of time
     // - If the netCDFFile do not match the file required to generate the layer, the dataset is reloaded.
     // - If the netCDFFile match, the cached dataset is used.
+    // The last modified date is also checked, since the instance can outlive a run (see GroupFrameGenerator.setKeepCache)
+    // and the file may have been updated since.
     private File cachedNetCDFFile;
+    private long cachedNetCDFLastModified;
+    private GriddedDataset cachedDataset;
     private SimpleFeatureCatalogue<Dataset> cachedFeatures;
 
     // Cached reference to the <code>MapImage</code> object used to render the data
@@ -105,6 +119,15 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
         this.legendGenerators = new ArrayList<LegendGenerator>();
     }
 
+    /**
+     * Set the frame timetable of the current run.
+     * Used when a cached instance is reused by a following run.
+     * @param frameTimetableMap The frame timetable map of the run.
+     */
+    public void setFrameTimetableMap(FrameTimetableMap frameTimetableMap) {
+        this.frameTimetableMap = frameTimetableMap;
+    }
+
     public static String getUniqueId(String layerId) {
         return "NetCDF_" + layerId;
     }
@@ -181,22 +204,39 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
                 }
 
                 File netCDFFile = NcAnimateUtils.getInputFile(netCDFDir, netCDFMetadata);
+                RunReport runReport = RunReport.get(this.getContext());
 
                 // If the file doesn't exist (or can not be read), re-download it
                 if (!netCDFFile.canRead()) {
+                    long downloadStart = runReport.start();
+                    S3TransferEvent downloadEvent = new S3TransferEvent(S3TransferEvent.DOWNLOAD, netCDFMetadata.getFileURI());
+                    downloadEvent.begin();
                     this.beforeDownloadingInputFile(netCDFFile);
                     // Download NetCDF file to local disk (and delete the previous one if any)
                     netCDFFile = NcAnimateUtils.downloadInputFile(this.metadataHelper, this.getS3Client(), netCDFFile, netCDFMetadata);
                     this.afterDownloadingInputFile(netCDFFile);
+                    runReport.stop(RunReport.STAGE_DOWNLOAD, downloadStart);
+                    if (netCDFFile != null) {
+                        runReport.addBytesRead(netCDFFile.length());
+                        downloadEvent.setBytes(netCDFFile.length());
+                    }
+                    downloadEvent.commit(this.getContext(), layerIdStr);
                 }
 
                 if (netCDFFile != null && netCDFFile.canRead()) {
                     // Load the NetCDF file feature catalogue
                     // This operation can be expensive with some files, so it's better to cache the result (until we start using a different NetCDF file)
-                    if (!netCDFFile.equals(this.cachedNetCDFFile)) {
+                    if (!netCDFFile.equals(this.cachedNetCDFFile) || netCDFFile.lastModified() != this.cachedNetCDFLastModified) {
                         this.cachedNetCDFFile = netCDFFile;
+                        this.cachedNetCDFLastModified = netCDFFile.lastModified();
+                        long datasetOpenStart = runReport.start();
+                        DatasetLoadEvent datasetLoadEvent = new DatasetLoadEvent(netCDFFile);
+                        datasetLoadEvent.begin();
                         GriddedDataset dataset = NetCDFUtils.getNetCDFDataset(netCDFFile);
+                        this.cachedDataset = dataset;
                         this.cachedFeatures = new SimpleFeatureCatalogue<Dataset>(dataset, false);
+                        runReport.stop(RunReport.STAGE_DATASET_OPEN, datasetOpenStart);
+                        datasetLoadEvent.commit(this.getContext(), layerIdStr);
                     }
 
                     if (this.cachedFeatures != null) {
@@ -209,13 +249,18 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
                             VariableMetadataBean magnitudeVariableMetadata = this.getMagnitudeVariableMetadata(variableMetadataMap);
                             if (magnitudeVariableMetadata != null) {
                                 drawables.clear();
-                                this.addNetCDFRasterVariable(drawables, magnitudeVariableMetadata);
+                                this.addNetCDFRasterVariable(drawables, magnitudeVariableMetadata, this.getNoDataMaskKey(netCDFMetadata));
                                 NcAnimateNetCDFVariableBean variableConf = layerConf.getVariable();
 
                                 try {
                                     PlottingDomainParams params = this.getParams(netCDFMetadataFrame);
+                                    long drawImageStart = runReport.start();
+                                    DrawImageEvent drawImageEvent = new DrawImageEvent(DrawImageEvent.RASTER, magnitudeVariableMetadata.getId());
+                                    drawImageEvent.begin();
                                     BufferedImage dataImage = this.mapImage.drawImage(params, this.cachedFeatures);
                                     dataImage.flush();
+                                    runReport.stop(RunReport.STAGE_DRAW_IMAGE, drawImageStart);
+                                    drawImageEvent.commit(this.getContext(), layerIdStr);
 
                                     canvas.createLayer(String.format("%s (raster %s)", this.getLayerTitle(), magnitudeVariableMetadata.getId()));
                                     canvas.drawImage(dataImage, leftScaledOffset, topScaledOffset, null);
@@ -243,12 +288,20 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
                                     this.getNetCDFArrowVariable(arrowDirectionVariableMetadata);
 
                                 if (dynamicArrowLayer != null) {
+                                    dynamicArrowLayer.setAnchorTableKey(this.getArrowAnchorTableKey(netCDFMetadata, dynamicArrowLayer.getArrowSize()));
+                                    dynamicArrowLayer.setNoDataMask(this.getNoDataMaskKey(netCDFMetadata),
+                                            this.getHorizontalDomains(Collections.singletonList(arrowDirectionVariableMetadata.getId())));
                                     drawables.add(dynamicArrowLayer);
                                     NcAnimateNetCDFVariableBean arrowVariableConf = layerConf.getArrowVariable();
 
                                     try {
+                                        long drawImageStart = runReport.start();
+                                        DrawImageEvent drawImageEvent = new DrawImageEvent(DrawImageEvent.ARROWS, arrowDirectionVariableMetadata.getId());
+                                        drawImageEvent.begin();
                                         BufferedImage dataImage = this.mapImage.drawImage(this.getParams(netCDFMetadataFrame), this.cachedFeatures);
                                         dataImage.flush();
+                                        runReport.stop(RunReport.STAGE_DRAW_IMAGE, drawImageStart);
+                                        drawImageEvent.commit(this.getContext(), layerIdStr);
 
                                         canvas.createLayer(String.format("%s (arrows %s)", this.getLayerTitle(), arrowDirectionVariableMetadata.getId()));
                                         canvas.drawImage(dataImage, leftScaledOffset, topScaledOffset, null);
@@ -294,11 +347,16 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
                             List<VariableMetadataBean> trueColourVariableMetadataList = this.getTrueColourVariableMetadataList(variableMetadataMap);
                             if (trueColourVariableMetadataList != null && !trueColourVariableMetadataList.isEmpty()) {
                                 drawables.clear();
-                                this.addNetCDFTrueColourVariables(drawables);
+                                this.addNetCDFTrueColourVariables(drawables, this.getNoDataMaskKey(netCDFMetadata));
                                 try {
                                     PlottingDomainParams params = this.getParams(netCDFMetadataFrame);
+                                    long drawImageStart = runReport.start();
+                                    DrawImageEvent drawImageEvent = new DrawImageEvent(DrawImageEvent.TRUE_COLOUR, null);
+                                    drawImageEvent.begin();
                                     BufferedImage dataImage = this.mapImage.drawImage(params, this.cachedFeatures);
                                     dataImage.flush();
+                                    runReport.stop(RunReport.STAGE_DRAW_IMAGE, drawImageStart);
+                                    drawImageEvent.commit(this.getContext(), layerIdStr);
 
                                     canvas.createLayer(String.format("%s (true colour)", this.getLayerTitle()));
                                     canvas.drawImage(dataImage, leftScaledOffset, topScaledOffset, null);
@@ -348,6 +406,54 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
     // This class is intended to be overwritten in subclasses (Grib2)
     public void prepareInputFile(File netCDFFile) throws Exception {}
 
+    /**
+     * The pixels outside the grid depend on the grid (NetCDF definition), the region and the panel size.
+     * See {@link NoDataMask}.
+     */
+    private String getNoDataMaskKey(NetCDFMetadataBean netCDFMetadata) {
+        NcAnimateRegionBean region = this.getContext().getRegion();
+        String regionId = region == null || region.getId() == null ? null : region.getId().getValue();
+        return NoDataMask.getKey(netCDFMetadata.getDefinitionId(), regionId,
+                this.getScaledPanelWidth(), this.getScaledPanelHeight());
+    }
+
+    /**
+     * Horizontal domain of the variables of the loaded dataset, used to compute the {@link NoDataMask}.
+     * @param variableIds The variables rendered.
+     * @return The domain of each variable, or null if a domain is unknown (every pixel is evaluated).
+     */
+    private List<HorizontalDomain> getHorizontalDomains(Collection<String> variableIds) {
+        if (this.cachedDataset == null || variableIds == null || variableIds.isEmpty()) {
+            return null;
+        }
+
+        List<HorizontalDomain> horizontalDomains = new ArrayList<HorizontalDomain>();
+        for (String variableId : variableIds) {
+            try {
+                HorizontalDomain horizontalDomain = this.cachedDataset.getVariableMetadata(variableId).getHorizontalDomain();
+                if (horizontalDomain == null) {
+                    return null;
+                }
+                horizontalDomains.add(horizontalDomain);
+            } catch(Exception ex) {
+                LOGGER.debug(String.format("Could not get the horizontal domain of variable %s. Every pixel will be evaluated.", variableId), ex);
+                return null;
+            }
+        }
+        return horizontalDomains;
+    }
+
+    /**
+     * The arrow positions and heading corrections depend on the grid (NetCDF definition), the region,
+     * the panel size and the arrow size. See {@link ArrowAnchorTable}.
+     */
+    private String getArrowAnchorTableKey(NetCDFMetadataBean netCDFMetadata, int arrowSize) {
+        NcAnimateRegionBean region = this.getContext().getRegion();
+        String regionId = region == null || region.getId() == null ? null : region.getId().getValue();
+        return ArrowAnchorTable.getKey(netCDFMetadata.getDefinitionId(), regionId,
+                this.getScaledPanelWidth(), this.getScaledPanelHeight(), arrowSize);
+    }
+
     private PlottingDomainParams getParams(NetCDFMetadataFrame layerContext) {
         return PlottingDomainParams.paramsForGriddedDataset(
             this.getScaledPanelWidth(), this.getScaledPanelHeight(),
@@ -367,7 +473,7 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
     /**
      * Set the NetCDF variables we want to render in the MapImage
      */
-    private void addNetCDFRasterVariable(List<Drawable> drawables, VariableMetadataBean variableMetadata) throws IOException, URISyntaxException {
+    private void addNetCDFRasterVariable(List<Drawable> drawables, VariableMetadataBean variableMetadata, String noDataMaskKey) throws IOException, URISyntaxException {
         if (variableMetadata == null) {
             return;
         }
@@ -396,9 +502,11 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
                 NetCDFLayerGenerator.getColourScheme(variableConf, variableConf.isLogarithmic());
 
         drawables.add(
-            new RasterLayer(
+            new MaskedRasterLayer(
                 variableMetadata.getId(),
-                colourScheme
+                colourScheme,
+                noDataMaskKey,
+                this.getHorizontalDomains(Collections.singletonList(variableMetadata.getId()))
             )
         );
     }
@@ -571,7 +679,7 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
         return dynamicArrowLayer;
     }
 
-    private void addNetCDFTrueColourVariables(List<Drawable> drawables) {
+    private void addNetCDFTrueColourVariables(List<Drawable> drawables, String noDataMaskKey) {
         NcAnimateLayerBean layerConf = this.getLayerConf();
         Map<String, NcAnimateNetCDFTrueColourVariableBean> trueColourVariableMap = layerConf.getTrueColourVariables();
         boolean isTrueColourLayer = trueColourVariableMap != null && !trueColourVariableMap.isEmpty();
@@ -579,6 +687,7 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
         // True colour layers
         if (isTrueColourLayer) {
             TrueColourLayer trueColourLayer = new TrueColourLayer();
+            List<String> variableIds = new ArrayList<String>();
 
             for (NcAnimateNetCDFTrueColourVariableBean trueColourVariable : trueColourVariableMap.values()) {
                 ScaleRange scaleRange = new ScaleRange(trueColourVariable.getScaleMin(), trueColourVariable.getScaleMax(), false);
@@ -597,8 +706,10 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
                             colours, 250
                     );
                     trueColourLayer.addVariable(trueColourVariable.getVariableId(), colourScheme);
+                    variableIds.add(trueColourVariable.getVariableId());
                 }
             }
+            trueColourLayer.setNoDataMask(noDataMaskKey, this.getHorizontalDomains(variableIds));
 
             drawables.add(trueColourLayer);
         }
@@ -625,7 +736,14 @@ public class NetCDFLayerGenerator extends AbstractLayerGenerator {
                 URI uri = new URI(NcAnimateUtils.parseString(paletteDirectoryUri + "/" + paletteName + ".pal", context, this.getLayerContextMap()));
                 File paletteDir = context.getPaletteDirectory();
                 try {
-                    paletteFile = NcAnimateUtils.downloadFileToDirectory(uri, this.getS3Client(), paletteDir);
+                    RunReport runReport = RunReport.get(context);
+                    long downloadStart = runReport.start();
+                    S3TransferEvent downloadEvent = new S3TransferEvent(S3TransferEvent.DOWNLOAD, uri);
+                    downloadEvent.begin();
+                    paletteFile = ArtifactDownloadManager.getInstance().download(uri, this.getS3Client(), paletteDir);
+                    runReport.stop(RunReport.STAGE_DOWNLOAD, downloadStart);
+                    downloadEvent.setBytes(paletteFile == null ? 0 : paletteFile.length());
+                    downloadEvent.commit(context, this.getLayerId());
 
                     // Register the new palette
                     // NOTE: ColourPalette.addPaletteDirectory scans the repository and adds the missing files
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Static R-tree, bulk loaded with the Sort-Tile-Recursive (STR) algorithm.
+ *
+ * The tree is built once, from every entry, and can not be modified.
+ * Queries return the entries intersecting a bounding box, in insertion order.
+ *
+ * @param <T> The entry type.
+ */
+public class SpatialIndex<T> {
+    private static final int NODE_CAPACITY = 16;
+
+    private Node<T> root;
+    private int size;
+
+    /**
+     * @param entries The entries to index.
+     * @param bboxes The bounding box of each entry: [minX, minY, maxX, maxY]. Same order as entries.
+     */
+    public SpatialIndex(List<T> entries, List<double[]> bboxes) {
+        if (entries.size() != bboxes.size()) {
+            throw new IllegalArgumentException(String.format("Expected one bounding box per entry. Entries: %d, bounding boxes: %d",
+                    entries.size(), bboxes.size()));
+        }
+
+        this.size = entries.size();
+
+        List<Node<T>> nodes = new ArrayList<Node<T>>();
+        for (int i=0; i<entries.size(); i++) {
+            nodes.add(new Node<T>(i, entries.get(i), bboxes.get(i)));
+        }
+
+        while (nodes.size() > 1) {
+            nodes = SpatialIndex.pack(nodes);
+        }
+        this.root = nodes.isEmpty() ? null : nodes.get(0);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return The entries intersecting the bounding box, in insertion order.
+     */
+    public List<T> query(double minX, double minY, double maxX, double maxY) {
+        List<Node<T>> leaves = new ArrayList<Node<T>>();
+        if (this.root != null) {
+            List<Node<T>> stack = new ArrayList<Node<T>>();
+            stack.add(this.root);
+            while (!stack.isEmpty()) {
+                Node<T> node = stack.remove(stack.size() - 1);
+                if (node.intersects(minX, minY, maxX, maxY)) {
+                    if (node.children == null) {
+                        leaves.add(node);
+                    } else {
+                        stack.addAll(node.children);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(leaves, new Comparator<Node<T>>() {
+            @Override
+            public int compare(Node<T> node1, Node<T> node2) {
+                return Integer.compare(node1.index, node2.index);
+            }
+        });
+
+        List<T> entries = new ArrayList<T>(leaves.size());
+        for (Node<T> leaf : leaves) {
+            entries.add(leaf.entry);
+        }
+        return entries;
+    }
+
+    // Group the nodes into parent nodes of NODE_CAPACITY children:
+    // sort by X, cut into vertical slices, sort each slice by Y, then cut into nodes.
+    private static <T> List<Node<T>> pack(List<Node<T>> nodes) {
+        int parentCount = (int)Math.ceil(nodes.size() / (double)NODE_CAPACITY);
+        int sliceCount = (int)Math.ceil(Math.sqrt(parentCount));
+        int sliceSize = sliceCount * NODE_CAPACITY;
+
+        List<Node<T>> sortedNodes = new ArrayList<Node<T>>(nodes);
+        Collections.sort(sortedNodes, new Comparator<Node<T>>() {
+            @Override
+            public int compare(Node<T> node1, Node<T> node2) {
+                return Double.compare(node1.minX + node1.maxX, node2.minX + node2.maxX);
+            }
+        });
+
+        List<Node<T>> parents = new ArrayList<Node<T>>();
+        for (int sliceStart=0; sliceStart<sortedNodes.size(); sliceStart+=sliceSize) {
+            List<Node<T>> slice = new ArrayList<Node<T>>(
+                    sortedNodes.subList(sliceStart, Math.min(sliceStart + sliceSize, sortedNodes.size())));
+            Collections.sort(slice, new Comparator<Node<T>>() {
+                @Override
+                public int compare(Node<T> node1, Node<T> node2) {
+                    return Double.compare(node1.minY + node1.maxY, node2.minY + node2.maxY);
+                }
+            });
+
+            for (int nodeStart=0; nodeStart<slice.size(); nodeStart+=NODE_CAPACITY) {
+                parents.add(new Node<T>(slice.subList(nodeStart, Math.min(nodeStart + NODE_CAPACITY, slice.size()))));
+            }
+        }
+
+        return parents;
+    }
+
+    private static class Node<T> {
+        private double minX, minY, maxX, maxY;
+
+        // Leaf
+        private int index;
+        private T entry;
+
+        // Branch
+        private List<Node<T>> children;
+
+        private Node(int index, T entry, double[] bbox) {
+            this.index = index;
+            this.entry = entry;
+            this.minX = bbox[0];
+            this.minY = bbox[1];
+            this.maxX = bbox[2];
+            this.maxY = bbox[3];
+        }
+
+        private Node(List<Node<T>> children) {
+            this.children = new ArrayList<Node<T>>(children);
+            this.minX = Double.POSITIVE_INFINITY;
+            this.minY = Double.POSITIVE_INFINITY;
+            this.maxX = Double.NEGATIVE_INFINITY;
+            this.maxY = Double.NEGATIVE_INFINITY;
+            for (Node<T> child : children) {
+                this.minX = Math.min(this.minX, child.minX);
+                this.minY = Math.min(this.minY, child.minY);
+                this.maxX = Math.max(this.maxX, child.maxX);
+                this.maxY = Math.max(this.maxY, child.maxY);
+            }
+        }
+
+        private boolean intersects(double queryMinX, double queryMinY, double queryMaxX, double queryMaxY) {
+            return this.minX <= queryMaxX && this.maxX >= queryMinX
+                && this.minY <= queryMaxY && this.maxY >= queryMinY;
+        }
+    }
+}
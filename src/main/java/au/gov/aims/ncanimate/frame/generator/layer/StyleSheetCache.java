@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import au.gov.aims.sld.SldParser;
+import au.gov.aims.sld.StyleSheet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of parsed SLD style sheets, shared by every layer generator (every region and panel size).
+ *
+ * Style sheets are keyed by style file and render scale.
+ * The scale ratios (font size, stroke width, point size) are applied before the style sheet is added to the cache,
+ * cached instances are never modified afterward.
+ *
+ * The file is only read again when its last modified date or size changes. It's then parsed again
+ * if its checksum changed, replacing the cached style sheet.
+ */
+public class StyleSheetCache {
+    // Key: file path, scale. See getKey
+    private static Map<String, CacheEntry> styleSheetCache;
+
+    /**
+     * @param sld The SLD style file.
+     * @param scale The render scale. The style sheet ratios are set to that scale.
+     * @return The parsed style sheet, or null if the file can not be read. Do not modify it.
+     * @throws Exception If the style file is invalid.
+     */
+    public static synchronized StyleSheet get(File sld, float scale) throws Exception {
+        if (sld == null || !sld.canRead()) {
+            return null;
+        }
+
+        if (StyleSheetCache.styleSheetCache == null) {
+            StyleSheetCache.styleSheetCache = new HashMap<String, CacheEntry>();
+        }
+
+        String key = StyleSheetCache.getKey(sld, scale);
+        long lastModified = sld.lastModified();
+        long length = sld.length();
+
+        CacheEntry cacheEntry = StyleSheetCache.styleSheetCache.get(key);
+        if (cacheEntry != null && cacheEntry.lastModified == lastModified && cacheEntry.length == length) {
+            return cacheEntry.styleSheet;
+        }
+
+        byte[] sldBytes = Files.readAllBytes(sld.toPath());
+        String checksum = StyleSheetCache.getChecksum(sldBytes);
+
+        // File touched, but not modified
+        if (cacheEntry != null && cacheEntry.checksum.equals(checksum)) {
+            cacheEntry.lastModified = lastModified;
+            cacheEntry.length = length;
+            return cacheEntry.styleSheet;
+        }
+
+        StyleSheet styleSheet;
+        try (InputStream sldStream = new ByteArrayInputStream(sldBytes)) {
+            SldParser parser = new SldParser();
+            styleSheet = parser.parse(sldStream);
+        }
+
+        if (styleSheet == null) {
+            StyleSheetCache.styleSheetCache.remove(key);
+        } else {
+            if (scale > 0 && scale != 1.0) {
+                styleSheet.setFontSizeRatio(scale);
+                styleSheet.setStrokeWidthRatio(scale);
+                styleSheet.setPointSizeRatio(scale);
+            }
+            // Replaces the style sheet of the previous version of the file, if any
+            StyleSheetCache.styleSheetCache.put(key, new CacheEntry(styleSheet, checksum, lastModified, length));
+        }
+
+        return styleSheet;
+    }
+
+    public static synchronized void clearCache() {
+        if (StyleSheetCache.styleSheetCache != null) {
+            StyleSheetCache.styleSheetCache.clear();
+            StyleSheetCache.styleSheetCache = null;
+        }
+    }
+
+    static synchronized int size() {
+        return StyleSheetCache.styleSheetCache == null ? 0 : StyleSheetCache.styleSheetCache.size();
+    }
+
+    private static String getKey(File sld, float scale) {
+        return String.format("%s_%s", sld.getAbsolutePath(), scale);
+    }
+
+    private static String getChecksum(byte[] sldBytes) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        StringBuilder checksum = new StringBuilder();
+        for (byte hashByte : digest.digest(sldBytes)) {
+            checksum.append(String.format("%02x", hashByte));
+        }
+        return checksum.toString();
+    }
+
+    private static class CacheEntry {
+        private StyleSheet styleSheet;
+        private String checksum;
+        private long lastModified;
+        private long length;
+
+        public CacheEntry(StyleSheet styleSheet, String checksum, long lastModified, long length) {
+            this.styleSheet = styleSheet;
+            this.checksum = checksum;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Static index of time intervals, used to select the features of a frame.
+ *
+ * Entries are grouped by duration class (instants, then durations rounded up to the next power of 2),
+ * and sorted by start time within each class. For each class, a query finds the entries starting
+ * before the end of the frame with a binary search, and only looks back as far as the longest interval
+ * of that class. A few long intervals (a feature valid for a year) don't widen the look back
+ * of the short ones (hourly positions), so selecting the entries of a frame costs O(c log n + k),
+ * where c is the number of duration classes (at most 64) and k is in the order of
+ * the number of entries overlapping the frame.
+ * Queries return the entries overlapping a time range, in insertion order.
+ *
+ * @param <T> The entry type.
+ */
+public class TemporalIndex<T> {
+    // Dates without time zone are UTC. Dates with an offset keep their offset.
+    private static final DateTimeFormatter DATE_TIME_PARSER = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+
+    private List<T> entries;
+
+    // Non empty duration classes, from the shortest to the longest
+    private List<DurationClass> durationClasses;
+
+    /**
+     * @param entries The entries to index.
+     * @param startMillis The start time of each entry. Same order as entries.
+     * @param endMillis The end time of each entry (inclusive), equals to the start time for instants. Same order as entries.
+     */
+    public TemporalIndex(List<T> entries, final long[] startMillis, long[] endMillis) {
+        if (entries.size() != startMillis.length || entries.size() != endMillis.length) {
+            throw new IllegalArgumentException(String.format("Expected one time interval per entry. Entries: %d, start times: %d, end times: %d",
+                    entries.size(), startMillis.length, endMillis.length));
+        }
+
+        this.entries = new ArrayList<T>(entries);
+
+        List<Integer> indexes = new ArrayList<Integer>(entries.size());
+        for (int i=0; i<entries.size(); i++) {
+            indexes.add(i);
+        }
+        Collections.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer index1, Integer index2) {
+                return Long.compare(startMillis[index1], startMillis[index2]);
+            }
+        });
+
+        // Indexes sorted by start time, per duration class. Key: number of bits of the duration (0 for instants)
+        List<List<Integer>> classIndexes = new ArrayList<List<Integer>>();
+        for (int i=0; i<=Long.SIZE; i++) {
+            classIndexes.add(null);
+        }
+        for (Integer index : indexes) {
+            int durationClass = Long.SIZE - Long.numberOfLeadingZeros(TemporalIndex.getDuration(startMillis[index], endMillis[index]));
+            List<Integer> durationClassIndexes = classIndexes.get(durationClass);
+            if (durationClassIndexes == null) {
+                durationClassIndexes = new ArrayList<Integer>();
+                classIndexes.set(durationClass, durationClassIndexes);
+            }
+            durationClassIndexes.add(index);
+        }
+
+        this.durationClasses = new ArrayList<DurationClass>();
+        for (List<Integer> durationClassIndexes : classIndexes) {
+            if (durationClassIndexes != null) {
+                this.durationClasses.add(new DurationClass(durationClassIndexes, startMillis, endMillis));
+            }
+        }
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @param fromMillis The start of the time range (inclusive).
+     * @param toMillis The end of the time range (exclusive).
+     * @return The entries overlapping the time range, in insertion order.
+     */
+    public List<T> query(long fromMillis, long toMillis) {
+        int[] indexes = this.queryIndexes(fromMillis, toMillis);
+        List<T> selectedEntries = new ArrayList<T>(indexes.length);
+        for (int index : indexes) {
+            selectedEntries.add(this.entries.get(index));
+        }
+        return selectedEntries;
+    }
+
+    /**
+     * @param fromMillis The start of the time range (inclusive).
+     * @param toMillis The end of the time range (exclusive).
+     * @return The insertion index of the entries overlapping the time range, in ascending order.
+     */
+    public int[] queryIndexes(long fromMillis, long toMillis) {
+        int[] indexes = new int[16];
+        int count = 0;
+        for (DurationClass durationClass : this.durationClasses) {
+            // Entries of the class starting before that can not overlap the time range. Avoid overflow with very old dates.
+            long lookBackMillis = fromMillis < Long.MIN_VALUE + durationClass.maxDurationMillis ?
+                    Long.MIN_VALUE : fromMillis - durationClass.maxDurationMillis;
+
+            int first = TemporalIndex.lowerBound(durationClass.sortedStartMillis, lookBackMillis);
+            int last = TemporalIndex.lowerBound(durationClass.sortedStartMillis, toMillis);
+            for (int i=first; i<last; i++) {
+                if (durationClass.sortedEndMillis[i] >= fromMillis) {
+                    if (count == indexes.length) {
+                        indexes = Arrays.copyOf(indexes, count * 2);
+                    }
+                    indexes[count++] = durationClass.sortedIndexes[i];
+                }
+            }
+        }
+
+        int[] selectedIndexes = Arrays.copyOf(indexes, count);
+        Arrays.sort(selectedIndexes);
+        return selectedIndexes;
+    }
+
+    /**
+     * Parse a feature time value.
+     * @param value ISO-8601 date / date time string (UTC if no offset is specified), or number of milliseconds since epoch.
+     * @return The time in milliseconds since epoch, or null if the value is not a valid date.
+     */
+    public static Long parseTime(Object value) {
+        if (value instanceof Number) {
+            return ((Number)value).longValue();
+        }
+        if (value instanceof String) {
+            String valueStr = ((String)value).trim();
+            if (!valueStr.isEmpty()) {
+                try {
+                    return DATE_TIME_PARSER.parseMillis(valueStr);
+                } catch(IllegalArgumentException ex) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    // End dates before the start date are considered as instants
+    private static long getDuration(long startMillis, long endMillis) {
+        return Math.max(startMillis, endMillis) - startMillis;
+    }
+
+    // Index of the first element >= value
+    private static int lowerBound(long[] sortedValues, long value) {
+        int low = 0, high = sortedValues.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedValues[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Entries of similar duration, sorted by start time
+    private static class DurationClass {
+        private int[] sortedIndexes;
+        private long[] sortedStartMillis;
+        private long[] sortedEndMillis;
+        private long maxDurationMillis;
+
+        public DurationClass(List<Integer> sortedIndexes, long[] startMillis, long[] endMillis) {
+            int size = sortedIndexes.size();
+            this.sortedIndexes = new int[size];
+            this.sortedStartMillis = new long[size];
+            this.sortedEndMillis = new long[size];
+            this.maxDurationMillis = 0;
+            for (int i=0; i<size; i++) {
+                int index = sortedIndexes.get(i);
+                long duration = TemporalIndex.getDuration(startMillis[index], endMillis[index]);
+                this.sortedIndexes[i] = index;
+                this.sortedStartMillis[i] = startMillis[index];
+                this.sortedEndMillis[i] = startMillis[index] + duration;
+                this.maxDurationMillis = Math.max(this.maxDurationMillis, duration);
+            }
+        }
+    }
+}
@@ -8,21 +8,80 @@ import au.gov.aims.aws.s3.entity.S3Client;
 import au.gov.aims.ereefs.bean.ncanimate.NcAnimateLayerBean;
 import au.gov.aims.layers2svg.graphics.VectorRasterGraphics2D;
 import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import au.gov.aims.ncanimate.frame.generator.download.WMSImageCache;
+import au.gov.aims.ncanimate.frame.generator.report.RunReport;
+import au.gov.aims.ncanimate.frame.generator.template.StringTemplate;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.log4j.Logger;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
+/**
+ * WMS layer.
+ *
+ * Static layers (basemaps) are requested once.
+ * Layers which server URL, layer name or style depend on the frame date are time-dimension layers.
+ * Example, for a daily product:
+ *     "server": "https://example.com/wms?TIME=${ctx.frameDateFrom yyyy-MM-dd}"
+ * The GetMap URL of time-dimension layers is parsed for every frame, and the images of the
+ * following {@link #PREFETCH_FRAME_COUNT} frames are requested in the background while the current frame renders.
+ * Only the frames rendered by this run (product date range and shard) are prefetched.
+ * Frames resolving to the same URL (same TIME) share the same image. See {@link WMSImageCache}.
+ * The cached images of time-dimension layers are refreshed after {@link WMSImageCache#TIME_DIMENSION_MAX_AGE_MS}.
+ */
 public class WMSLayerGenerator extends AbstractLayerGenerator {
-    private boolean cached = false;
+    private static final Logger LOGGER = Logger.getLogger(WMSLayerGenerator.class);
+
+    public static final int PREFETCH_FRAME_COUNT = 4;
+
+    // Frames rendered by the run. See GroupFrameGenerator.getSelectedFrames
+    private List<DateTimeRange> frames;
+
+    // Frames rendered by the run, in chronological order. Used to find the following frames.
+    private List<DateTimeRange> frameDateRanges;
+    private DateTimeRange previousFrameDateRange;
+
+    private URL dataImageURL;
     private BufferedImage dataImage;
 
-    public WMSLayerGenerator(S3Client s3Client) {
+    public WMSLayerGenerator(S3Client s3Client, List<DateTimeRange> frames) {
         super(s3Client);
+        this.frames = frames;
+    }
+
+    /**
+     * Set the frames rendered by the current run.
+     * Used when a cached instance is reused by a following run.
+     * @param frames The frames of the run, within the product date range and the shard.
+     */
+    public void setFrames(List<DateTimeRange> frames) {
+        if (this.frames != frames) {
+            this.frames = frames;
+            this.frameDateRanges = null;
+            this.previousFrameDateRange = null;
+        }
+    }
+
+    public static String getUniqueId(String regionId, String layerId, int panelWidth, int panelHeight) {
+        return "WMS_" + regionId + "_" + layerId + "_" + panelWidth + "x" + panelHeight;
+    }
+
+    /**
+     * @param layerConf The layer configuration.
+     * @return true if the GetMap URL depends on the frame (frame date, etc).
+     */
+    public static boolean isTimeDimension(NcAnimateLayerBean layerConf) {
+        return WMSLayerGenerator.getURLTemplate(layerConf).isFrameDependent();
     }
 
     @Override
@@ -32,12 +91,22 @@ public class WMSLayerGenerator extends AbstractLayerGenerator {
 
     @Override
     public void render(VectorRasterGraphics2D canvas, int leftScaledOffset, int topScaledOffset) throws Exception {
-        if (!this.cached) {
-            this.cached = true;
+        boolean timeDimension = WMSLayerGenerator.isTimeDimension(this.getLayerConf());
 
-            URL url = this.getWMSLayerImageURL();
-            this.dataImage = ImageIO.read(url);
-            this.dataImage.flush();
+        // The URL of static layers doesn't change, no need to parse it again
+        URL url = this.dataImageURL != null && !timeDimension ? this.dataImageURL : this.getWMSLayerImageURL();
+        if (!url.equals(this.dataImageURL)) {
+            RunReport runReport = RunReport.get(this.getContext());
+            long downloadStart = runReport.start();
+            this.dataImage = timeDimension ?
+                    WMSImageCache.getInstance().getImage(url, WMSImageCache.TIME_DIMENSION_MAX_AGE_MS) :
+                    WMSImageCache.getInstance().getImage(url);
+            this.dataImageURL = url;
+            runReport.stop(RunReport.STAGE_DOWNLOAD, downloadStart);
+        }
+
+        if (timeDimension) {
+            this.prefetchFollowingFrames();
         }
 
         if (this.dataImage != null) {
@@ -46,6 +115,84 @@ public class WMSLayerGenerator extends AbstractLayerGenerator {
         }
     }
 
+    /**
+     * Request the images of the frames following the current frame, in the render direction
+     * (chronological, or reverse chronological when the frames are rendered newest first).
+     */
+    private void prefetchFollowingFrames() {
+        FrameGeneratorContext context = this.getContext();
+        DateTimeRange frameDateRange = context.getFrameDateRange();
+        if (frameDateRange == null || frameDateRange.getStartDate() == null) {
+            return;
+        }
+
+        // The layer placeholders depend on the NetCDF files used by the frame,
+        // the current layer context can not be used to parse the URL of other frames.
+        for (String placeholder : WMSLayerGenerator.getURLTemplate(this.getLayerConf()).getPlaceholders()) {
+            if (placeholder.startsWith("layer")) {
+                return;
+            }
+        }
+
+        List<DateTimeRange> frames = this.getFrameDateRanges();
+        int index = frames.indexOf(frameDateRange);
+        if (index < 0) {
+            return;
+        }
+
+        boolean reverse = this.previousFrameDateRange != null && this.previousFrameDateRange.getStartDate() != null &&
+                this.previousFrameDateRange.getStartDate().compareTo(frameDateRange.getStartDate()) > 0;
+        this.previousFrameDateRange = frameDateRange;
+
+        WMSImageCache imageCache = WMSImageCache.getInstance();
+        try {
+            for (int i=1; i<=PREFETCH_FRAME_COUNT; i++) {
+                int followingIndex = reverse ? index - i : index + i;
+                if (followingIndex < 0 || followingIndex >= frames.size()) {
+                    break;
+                }
+
+                context.setFrameDateRange(frames.get(followingIndex));
+                URL followingURL = this.getWMSLayerImageURL();
+                if (!followingURL.equals(this.dataImageURL)) {
+                    imageCache.prefetch(followingURL, WMSImageCache.TIME_DIMENSION_MAX_AGE_MS);
+                }
+            }
+        } catch(Exception ex) {
+            LOGGER.warn(String.format("Could not prefetch the images of layer %s", this.getLayerId()), ex);
+        } finally {
+            context.setFrameDateRange(frameDateRange);
+        }
+    }
+
+    private List<DateTimeRange> getFrameDateRanges() {
+        if (this.frameDateRanges == null) {
+            this.frameDateRanges = new ArrayList<DateTimeRange>();
+            if (this.frames != null) {
+                for (DateTimeRange frameDateRange : this.frames) {
+                    if (frameDateRange != null && frameDateRange.getStartDate() != null) {
+                        this.frameDateRanges.add(frameDateRange);
+                    }
+                }
+            }
+            Collections.sort(this.frameDateRanges, new Comparator<DateTimeRange>() {
+                @Override
+                public int compare(DateTimeRange range1, DateTimeRange range2) {
+                    return range1.getStartDate().compareTo(range2.getStartDate());
+                }
+            });
+        }
+        return this.frameDateRanges;
+    }
+
+    private static StringTemplate getURLTemplate(NcAnimateLayerBean layerConf) {
+        List<String> templates = new ArrayList<String>();
+        templates.add(layerConf.getServer());
+        templates.add(layerConf.getLayerName());
+        templates.add(layerConf.getStyleName());
+        return StringTemplate.get(templates);
+    }
+
     private URL getWMSLayerImageURL() throws URISyntaxException, MalformedURLException {
         NcAnimateLayerBean layerConf = this.getLayerConf();
 
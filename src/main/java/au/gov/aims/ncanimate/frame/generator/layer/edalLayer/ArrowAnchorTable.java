@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer.edalLayer;
+
+import org.apache.log4j.Logger;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Position of the arrows of an arrow layer, and the heading correction at each arrow.
+ *
+ * The arrows are placed on a regular grid of pixels, and the correction of the WGS84 headings
+ * depends on the map projection at the arrow position. None of it depends on the frame,
+ * so the table is computed once per grid, region, panel size and arrow size, and shared by the following frames
+ * (and by every variable and depth of the grid).
+ *
+ * With the map projections used by NcAnimate (conformal), the correction doesn't depend on the heading:
+ * the arrow heading is the data heading plus the offset of the anchor. Anchors where the correction
+ * depends on the heading have a NaN offset, their heading is transformed for every frame.
+ */
+public class ArrowAnchorTable {
+    private static final Logger LOGGER = Logger.getLogger(ArrowAnchorTable.class);
+
+    // Maximum difference between the corrections of 2 headings, for the offset to be used (degrees)
+    private static final double HEADING_OFFSET_TOLERANCE = 1E-6;
+
+    // Key: See getKey
+    private static Map<String, ArrowAnchorTable> tableCache;
+
+    private int width;
+    private int height;
+    private int[] anchorXs;
+    private int[] anchorYs;
+    // Degrees. NaN when the correction depends on the heading.
+    private float[] headingOffsets;
+
+    private ArrowAnchorTable(int width, int height, int[] anchorXs, int[] anchorYs, float[] headingOffsets) {
+        this.width = width;
+        this.height = height;
+        this.anchorXs = anchorXs;
+        this.anchorYs = anchorYs;
+        this.headingOffsets = headingOffsets;
+    }
+
+    /**
+     * @param definitionId The NetCDF file definition ID. Files of a definition share the same grid.
+     * @param regionId The region ID.
+     * @param width The panel width, in pixels.
+     * @param height The panel height, in pixels.
+     * @param arrowSize The arrow size, in pixels.
+     * @return The key of the table, used with {@link #get(String, int, int, int, Array)}.
+     */
+    public static String getKey(String definitionId, String regionId, int width, int height, int arrowSize) {
+        return String.format("%s_%s_%dx%d_%d", definitionId, regionId, width, height, arrowSize);
+    }
+
+    /**
+     * @param key The key of the table, see {@link #getKey(String, String, int, int, int)}.
+     *     Null to compute a table which is not cached.
+     * @param width The image width.
+     * @param height The image height.
+     * @param arrowSize The arrow size, in pixels. Arrows are placed every (2 x arrowSize) pixels.
+     * @param domainObjects The position of each pixel.
+     * @return The table of the grid, computed if it's not in the cache yet.
+     */
+    public static synchronized ArrowAnchorTable get(String key, int width, int height, int arrowSize, Array<HorizontalPosition> domainObjects) {
+        if (key == null) {
+            return ArrowAnchorTable.build(width, height, arrowSize, domainObjects);
+        }
+
+        if (ArrowAnchorTable.tableCache == null) {
+            ArrowAnchorTable.tableCache = new HashMap<String, ArrowAnchorTable>();
+        }
+
+        ArrowAnchorTable table = ArrowAnchorTable.tableCache.get(key);
+        if (table == null || table.width != width || table.height != height) {
+            table = ArrowAnchorTable.build(width, height, arrowSize, domainObjects);
+            LOGGER.debug(String.format("Arrow anchor table %s: %d anchors", key, table.getAnchorCount()));
+            ArrowAnchorTable.tableCache.put(key, table);
+        }
+
+        return table;
+    }
+
+    public static synchronized void clearCache() {
+        if (ArrowAnchorTable.tableCache != null) {
+            ArrowAnchorTable.tableCache.clear();
+            ArrowAnchorTable.tableCache = null;
+        }
+    }
+
+    private static ArrowAnchorTable build(int width, int height, int arrowSize, Array<HorizontalPosition> domainObjects) {
+        int[][] anchors = ArrowAnchorTable.getAnchors(width, height, arrowSize);
+        int[] anchorXs = anchors[0];
+        int[] anchorYs = anchors[1];
+
+        float[] headingOffsets = new float[anchorXs.length];
+        for (int anchor = 0; anchor < anchorXs.length; anchor++) {
+            HorizontalPosition position = domainObjects == null ? null : domainObjects.get(anchorYs[anchor], anchorXs[anchor]);
+            headingOffsets[anchor] = ArrowAnchorTable.computeHeadingOffset(position);
+        }
+
+        return new ArrowAnchorTable(width, height, anchorXs, anchorYs, headingOffsets);
+    }
+
+    private static float computeHeadingOffset(HorizontalPosition position) {
+        if (position == null) {
+            return Float.NaN;
+        }
+
+        return ArrowAnchorTable.computeHeadingOffset(
+                GISUtils.transformWgs84Heading(0.0, position),
+                GISUtils.transformWgs84Heading(90.0, position));
+    }
+
+    /**
+     * @param north The WGS84 heading 0 (north), transformed to the map projection.
+     * @param east The WGS84 heading 90 (east), transformed to the map projection.
+     * @return The correction to add to WGS84 headings, in degrees,
+     *     or NaN if the north and east corrections differ.
+     */
+    static float computeHeadingOffset(Double north, Double east) {
+        if (north == null || east == null) {
+            return Float.NaN;
+        }
+
+        double northOffset = ArrowAnchorTable.normaliseDegrees(north);
+        double eastOffset = ArrowAnchorTable.normaliseDegrees(east - 90.0);
+        if (Math.abs(ArrowAnchorTable.normaliseDegrees(eastOffset - northOffset)) > HEADING_OFFSET_TOLERANCE) {
+            return Float.NaN;
+        }
+
+        return (float)northOffset;
+    }
+
+    // Angle in range [-180, 180[
+    private static double normaliseDegrees(double degrees) {
+        double normalised = degrees % 360.0;
+        if (normalised >= 180.0) {
+            normalised -= 360.0;
+        } else if (normalised < -180.0) {
+            normalised += 360.0;
+        }
+        return normalised;
+    }
+
+    /**
+     * Calculate the pixel position of the arrows.
+     *
+     * The (floating point) number of pixels per arrow is, in ideal situations,
+     * an integer equal to the arrow size * 2.
+     * For non-ideal situations it means that the arrows will not be evenly
+     * spaced (they will be either n or n+1 pixels apart). They will tile
+     * perfectly though.
+     *
+     * @return The X and Y position of each anchor: [anchorXs, anchorYs]. Row by row, from the top left corner.
+     */
+    static int[][] getAnchors(int width, int height, int arrowSize) {
+        int columns = width / (arrowSize * 2);
+        int rows = height / (arrowSize * 2);
+        if (columns <= 0 || rows <= 0) {
+            return new int[][] { new int[0], new int[0] };
+        }
+
+        // NOTE: The right side of the division "width / (arrowSize * 2)" are Integer operations.
+        //     That's almost the same as "arrowSize * 2.0", quantised to an integer grid.
+        double xPixelsPerArrow = ((double) width) / columns;
+        double yPixelsPerArrow = ((double) height) / rows;
+        double xLoc = xPixelsPerArrow / 2;
+        double yLoc = yPixelsPerArrow / 2;
+
+        int[] anchorXs = new int[columns * rows];
+        int[] anchorYs = new int[columns * rows];
+        int anchorCount = 0;
+        for (int j = 0; j < height; j++) {
+            if (yLoc > yPixelsPerArrow) {
+                yLoc -= yPixelsPerArrow;
+                for (int i = 0; i < width; i++) {
+                    if (xLoc > xPixelsPerArrow) {
+                        xLoc -= xPixelsPerArrow;
+                        if (anchorCount == anchorXs.length) {
+                            anchorXs = Arrays.copyOf(anchorXs, anchorCount * 2 + 1);
+                            anchorYs = Arrays.copyOf(anchorYs, anchorCount * 2 + 1);
+                        }
+                        anchorXs[anchorCount] = i;
+                        anchorYs[anchorCount] = j;
+                        anchorCount++;
+                    }
+                    xLoc += 1.0;
+                }
+            }
+            yLoc += 1.0;
+        }
+
+        return new int[][] { Arrays.copyOf(anchorXs, anchorCount), Arrays.copyOf(anchorYs, anchorCount) };
+    }
+
+    public int getAnchorCount() {
+        return this.anchorXs.length;
+    }
+
+    public int getX(int anchor) {
+        return this.anchorXs[anchor];
+    }
+
+    public int getY(int anchor) {
+        return this.anchorYs[anchor];
+    }
+
+    /**
+     * @return The correction to add to a WGS84 heading at the anchor, in degrees,
+     *     or NaN if the heading must be transformed using its position.
+     */
+    public float getHeadingOffset(int anchor) {
+        return this.headingOffsets[anchor];
+    }
+}
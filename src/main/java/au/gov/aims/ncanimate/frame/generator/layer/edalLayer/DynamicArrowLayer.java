@@ -7,6 +7,7 @@ package au.gov.aims.ncanimate.frame.generator.layer.edalLayer;
 import au.gov.aims.ereefs.bean.NetCDFUtils;
 import au.gov.aims.ncanimate.commons.NcAnimateUtils;
 import org.apache.log4j.Logger;
+import uk.ac.rdg.resc.edal.domain.Domain;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
 import uk.ac.rdg.resc.edal.graphics.style.GriddedImageLayer;
@@ -55,6 +56,10 @@ public class DynamicArrowLayer extends GriddedImageLayer {
     private Float scaleMax;
     private float scale;
 
+    private String anchorTableKey;
+    private String noDataMaskKey;
+    private List<? extends Domain<HorizontalPosition>> horizontalDomains;
+
     public enum ArrowStyle {
         UPSTREAM, THIN_ARROW, FAT_ARROW, TRI_ARROW, WIND_BARBS, DYNA_FAT_ARROW
     };
@@ -181,6 +186,27 @@ public class DynamicArrowLayer extends GriddedImageLayer {
         g.draw(ret);
     }
 
+    /**
+     * @param anchorTableKey The key of the arrow anchor table of the grid. See {@link ArrowAnchorTable#getKey(String, String, int, int, int)}.
+     */
+    public void setAnchorTableKey(String anchorTableKey) {
+        this.anchorTableKey = anchorTableKey;
+    }
+
+    /**
+     * @param noDataMaskKey The key of the mask of the grid. See {@link NoDataMask#getKey(String, String, int, int)}.
+     * @param horizontalDomains The horizontal domain of the direction variable, used to compute the mask.
+     *     Null if unknown, every anchor is evaluated.
+     */
+    public void setNoDataMask(String noDataMaskKey, List<? extends Domain<HorizontalPosition>> horizontalDomains) {
+        this.noDataMaskKey = noDataMaskKey;
+        this.horizontalDomains = horizontalDomains;
+    }
+
+    public int getArrowSize() {
+        return this.arrowSize;
+    }
+
     public List<Float> getThresholds() {
         return thresholds;
     }
@@ -201,96 +227,99 @@ public class DynamicArrowLayer extends GriddedImageLayer {
         // NOTE: This is for all types of arrows other than coloured arrows.
         //   The colour is changed before drawing an arrow when coloured arrow is used.
         g.setColor(this.plainArrowColour);
+        if (dirValues == null) {
+            return;
+        }
 
         int width = image.getWidth();
         int height = image.getHeight();
 
-        /*
-         * Calculate the (floating point) number of pixels per arrow. In ideal
-         * situations, this will be an integer equal to the arrow size * 2
-         *
-         * For non-ideal situations it means that the arrows will not be evenly
-         * spaced (they will be either n or n+1 pixels apart). They will tile
-         * perfectly though.
-         *
-         * NOTE: The right side of the division "width / (this.arrowSize * 2)" are Integer operations.
-         *     That's almost the same as "this.arrowSize * 2.0", quantised to an integer grid.
-         */
-        double xPixelsPerArrow = ((double) width) / (width / (this.arrowSize * 2));
-        double yPixelsPerArrow = ((double) height) / (height / (this.arrowSize * 2));
-        double xLoc = xPixelsPerArrow / 2;
-        double yLoc = yPixelsPerArrow / 2;
-
+        // Position and heading correction of the arrows. See ArrowAnchorTable
         Array<HorizontalPosition> domainObjects = dataReader
                 .getMapDomainObjects(this.directionFieldName);
+        ArrowAnchorTable anchorTable = ArrowAnchorTable.get(this.anchorTableKey, width, height, this.arrowSize, domainObjects);
+
+        // Anchors outside the grid are not examined. See NoDataMask
+        NoDataMask mask = NoDataMask.get(this.noDataMaskKey, width, height, domainObjects, this.horizontalDomains);
+
+        int anchorCount = anchorTable.getAnchorCount();
+        for (int anchor = 0; anchor < anchorCount; anchor++) {
+            int i = anchorTable.getX(anchor);
+            int j = anchorTable.getY(anchor);
+            if (!mask.isValid(i, j)) {
+                continue;
+            }
+            // Arrows are only drawn where there is data. Anchors on land are skipped.
+            Number dir = dirValues.get(j, i);
+            if (dir != null && !Double.isNaN(dir.doubleValue())) {
+                /*
+                 * We are at a point where we need to draw an arrow
+                 */
+                Double angle;
+                float headingOffset = anchorTable.getHeadingOffset(anchor);
+                if (Float.isNaN(headingOffset)) {
+                    angle = GISUtils.transformWgs84Heading(dir, domainObjects.get(j, i));
+                } else {
+                    angle = dir.doubleValue() + headingOffset;
+                }
+
+                Double mag = null;
+                if (magValues != null) {
+                    Number magValue = magValues.get(j, i);
+                    if (magValue != null && !Double.isNaN(magValue.doubleValue())) {
+                        mag = magValue.doubleValue();
+                    }
+                }
 
-        for (int j = 0; j < height; j++) {
-            if (yLoc > yPixelsPerArrow) {
-                yLoc -= yPixelsPerArrow;
-                for (int i = 0; i < width; i++) {
-                    if (xLoc > xPixelsPerArrow) {
-                        xLoc -= xPixelsPerArrow;
-
-                        /*
-                         * We are at a point where we need to draw an arrow
-                         */
-                        HorizontalPosition position = domainObjects.get(j, i);
-                        Double angle = dirValues == null ? null : GISUtils.transformWgs84Heading(dirValues.get(j, i), position);
-                        Double mag = magValues == null ? null : GISUtils.transformWgs84Heading(magValues.get(j, i), position);
-
-                        // magArrowSize = size of the arrow relative to magnitude value
-                        float magArrowSize = this.arrowSize * this.getNormalisedMagnitude(mag);
-
-                        if (angle != null && !Float.isNaN(angle.floatValue())) {
-                            double radianAngle = this.getNormalisedRadianAngle(angle);
-
-                            switch (this.arrowStyle) {
-                                case DYNA_FAT_ARROW:
-                                    this.renderDynamicArrowVector(mag, radianAngle, i, j, g);
-                                    break;
-
-                                case UPSTREAM:
-                                    /* Calculate the end point of the arrow */
-                                    double iEnd = i + magArrowSize * Math.sin(radianAngle);
-                                    /*
-                                     * Screen coordinates go down, but north is up,
-                                     * hence the minus sign
-                                     */
-                                    double jEnd = j - magArrowSize * Math.cos(radianAngle);
-                                    /* Draw a dot representing the data location */
-                                    g.fillOval(i - 2, j - 2, 4, 4);
-                                    /* Draw a line representing the vector direction */
-                                    g.setStroke(new BasicStroke(1));
-                                    g.drawLine(i, j, (int) Math.round(iEnd), (int) Math.round(jEnd));
-                                    break;
-
-                                case FAT_ARROW:
-                                    VectorFactory.renderVector("STUMPVEC", radianAngle,
-                                            i, j, magArrowSize / 11f, g);
-                                    break;
-
-                                case TRI_ARROW:
-                                    VectorFactory.renderVector("TRIVEC", radianAngle,
-                                            i, j, magArrowSize / 11f, g);
-                                    break;
-
-                                case THIN_ARROW:
-                                default:
-                                    /*
-                                     * The overall arrow size is 11 for things
-                                     * returned from the VectorFactory, so we divide
-                                     * the arrow size by 11 to get the scale factor.
-                                     */
-                                    VectorFactory.renderVector("LINEVEC", radianAngle,
-                                            i, j, magArrowSize / 11f, g);
-                                    break;
-                            }
-                        }
+                // magArrowSize = size of the arrow relative to magnitude value
+                float magArrowSize = this.arrowSize * this.getNormalisedMagnitude(mag);
+
+                if (angle != null && !Float.isNaN(angle.floatValue())) {
+                    double radianAngle = this.getNormalisedRadianAngle(angle);
+
+                    switch (this.arrowStyle) {
+                        case DYNA_FAT_ARROW:
+                            this.renderDynamicArrowVector(mag, radianAngle, i, j, g);
+                            break;
+
+                        case UPSTREAM:
+                            /* Calculate the end point of the arrow */
+                            double iEnd = i + magArrowSize * Math.sin(radianAngle);
+                            /*
+                             * Screen coordinates go down, but north is up,
+                             * hence the minus sign
+                             */
+                            double jEnd = j - magArrowSize * Math.cos(radianAngle);
+                            /* Draw a dot representing the data location */
+                            g.fillOval(i - 2, j - 2, 4, 4);
+                            /* Draw a line representing the vector direction */
+                            g.setStroke(new BasicStroke(1));
+                            g.drawLine(i, j, (int) Math.round(iEnd), (int) Math.round(jEnd));
+                            break;
+
+                        case FAT_ARROW:
+                            VectorFactory.renderVector("STUMPVEC", radianAngle,
+                                    i, j, magArrowSize / 11f, g);
+                            break;
+
+                        case TRI_ARROW:
+                            VectorFactory.renderVector("TRIVEC", radianAngle,
+                                    i, j, magArrowSize / 11f, g);
+                            break;
+
+                        case THIN_ARROW:
+                        default:
+                            /*
+                             * The overall arrow size is 11 for things
+                             * returned from the VectorFactory, so we divide
+                             * the arrow size by 11 to get the scale factor.
+                             */
+                            VectorFactory.renderVector("LINEVEC", radianAngle,
+                                    i, j, magArrowSize / 11f, g);
+                            break;
                     }
-                    xLoc += 1.0;
                 }
             }
-            yLoc += 1.0;
         }
     }
 
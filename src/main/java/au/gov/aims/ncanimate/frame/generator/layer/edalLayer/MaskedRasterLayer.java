@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer.edalLayer;
+
+import uk.ac.rdg.resc.edal.domain.Domain;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.RasterLayer;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array2D;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Raster layer which only evaluates the colour of the pixels containing data.
+ * Pixels outside the grid (see {@link NoDataMask}) and pixels without data (null or NaN: land, dry cells)
+ * are set to the no data colour of the colour scheme, without going through the colour scheme.
+ */
+public class MaskedRasterLayer extends RasterLayer {
+    private String dataFieldName;
+    private ColourScheme colourScheme;
+    private String noDataMaskKey;
+    private List<? extends Domain<HorizontalPosition>> horizontalDomains;
+
+    /**
+     * @param dataFieldName The variable to render.
+     * @param colourScheme The colour scheme.
+     * @param noDataMaskKey The key of the mask of the grid. See {@link NoDataMask#getKey(String, String, int, int)}.
+     * @param horizontalDomains The horizontal domain of the variable, used to compute the mask.
+     *     Null if unknown, every pixel is evaluated.
+     */
+    public MaskedRasterLayer(String dataFieldName, ColourScheme colourScheme,
+            String noDataMaskKey, List<? extends Domain<HorizontalPosition>> horizontalDomains) {
+        super(dataFieldName, colourScheme);
+        this.dataFieldName = dataFieldName;
+        this.colourScheme = colourScheme;
+        this.noDataMaskKey = noDataMaskKey;
+        this.horizontalDomains = horizontalDomains;
+    }
+
+    @Override
+    protected void drawIntoImage(BufferedImage image, MapFeatureDataReader dataReader)
+            throws EdalException {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int nbPixels = width * height;
+
+        Array2D<Number> values = dataReader.getDataForLayerName(this.dataFieldName);
+        NoDataMask mask = NoDataMask.get(this.noDataMaskKey, width, height,
+                dataReader.getMapDomainObjects(this.dataFieldName), this.horizontalDomains);
+
+        int[] pixels = new int[nbPixels];
+        int noDataColour = this.colourScheme.getColor(null).getRGB();
+        if (noDataColour != 0) {
+            Arrays.fill(pixels, noDataColour);
+        }
+
+        // Pixel index: x + y * width, same order as image.setRGB
+        for (int index = mask.nextValid(0); index >= 0; index = mask.nextValid(index + 1)) {
+            Number value = values.get(index / width, index % width);
+            if (value != null && !Double.isNaN(value.doubleValue())) {
+                pixels[index] = this.colourScheme.getColor(value).getRGB();
+            }
+        }
+
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+    }
+}
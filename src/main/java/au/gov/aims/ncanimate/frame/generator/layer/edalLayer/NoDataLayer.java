@@ -8,6 +8,7 @@ import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
 import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderBean;
 import au.gov.aims.layers2svg.graphics.VectorRasterGraphics2D;
 import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import au.gov.aims.ncanimate.frame.generator.text.TextRenderer;
 import au.gov.aims.sld.TextAlignment;
 
 import java.awt.Color;
@@ -60,7 +61,7 @@ public class NoDataLayer {
         // Draw text
         int halfFontHeight = DATA_NOT_AVAILABLE_FONT_HEIGHT / 2;
         canvas.setPaint(DATA_NOT_AVAILABLE_TEXT_COLOR);
-        canvas.setFont(new Font("SansSerif", Font.BOLD, NcAnimateUtils.scale(DATA_NOT_AVAILABLE_FONT_SIZE, scale)));
+        canvas.setFont(TextRenderer.getFont(Font.BOLD, NcAnimateUtils.scale(DATA_NOT_AVAILABLE_FONT_SIZE, scale)));
 
         canvas.drawString(DATA_NOT_AVAILABLE_LINE_1,
             scaledCentreX + scaledOffsetX,
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer.edalLayer;
+
+import org.apache.log4j.Logger;
+import uk.ac.rdg.resc.edal.domain.Domain;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mask of the pixels which may contain data, for a grid, a region and a panel size.
+ *
+ * Large parts of most panels are outside the model domain (the horizontal grid of the NetCDF file).
+ * Those pixels never contain data, whatever the frame, the depth or the variable.
+ * The mask is computed from the static horizontal grid, not from the data,
+ * so it's computed once and shared by the following frames.
+ * The drawables only evaluate the pixels of the mask (colour scheme, arrows),
+ * the other pixels are set to the no data colour.
+ *
+ * The mask is conservative: the pixels of the mask may still have no data (land, dry cells, cloud masked data, etc).
+ * The drawables check the value of each pixel of the mask, for every frame.
+ */
+public class NoDataMask {
+    private static final Logger LOGGER = Logger.getLogger(NoDataMask.class);
+
+    // Key: See getKey
+    private static Map<String, NoDataMask> maskCache;
+
+    private int width;
+    private int height;
+    // Index: x + y * width, same order as the Array2D iterator
+    private BitSet validPixels;
+
+    public NoDataMask(int width, int height, BitSet validPixels) {
+        this.width = width;
+        this.height = height;
+        this.validPixels = validPixels;
+    }
+
+    /**
+     * @param definitionId The NetCDF file definition ID. Files of a definition share the same grid.
+     * @param regionId The region ID.
+     * @param width The panel width, in pixels.
+     * @param height The panel height, in pixels.
+     * @return The key of the mask, used with {@link #get(String, int, int, Iterable, List)}.
+     */
+    public static String getKey(String definitionId, String regionId, int width, int height) {
+        return String.format("%s_%s_%dx%d", definitionId, regionId, width, height);
+    }
+
+    /**
+     * @param key The mask key, see {@link #getKey(String, String, int, int)}.
+     *     Null to compute a mask which is not cached.
+     * @param width The image width.
+     * @param height The image height.
+     * @param positions The position of each pixel, x-dimension first.
+     * @param domains The horizontal domain of each variable rendered. Pixels are valid if they are in any of the domains.
+     *     Null or empty when the domain is unknown: every pixel is valid.
+     * @return The mask of the grid, computed if it's not in the cache yet.
+     */
+    public static synchronized NoDataMask get(String key, int width, int height,
+            Iterable<HorizontalPosition> positions, List<? extends Domain<HorizontalPosition>> domains) {
+
+        if (key == null) {
+            return NoDataMask.build(width, height, positions, domains);
+        }
+
+        if (NoDataMask.maskCache == null) {
+            NoDataMask.maskCache = new HashMap<String, NoDataMask>();
+        }
+
+        NoDataMask mask = NoDataMask.maskCache.get(key);
+        if (mask == null || mask.width != width || mask.height != height) {
+            mask = NoDataMask.build(width, height, positions, domains);
+            LOGGER.debug(String.format("No data mask %s: %d pixels in the grid out of %d",
+                    key, mask.getValidPixelCount(), width * height));
+            NoDataMask.maskCache.put(key, mask);
+        }
+
+        return mask;
+    }
+
+    public static synchronized void clearCache() {
+        if (NoDataMask.maskCache != null) {
+            NoDataMask.maskCache.clear();
+            NoDataMask.maskCache = null;
+        }
+    }
+
+    private static NoDataMask build(int width, int height,
+            Iterable<HorizontalPosition> positions, List<? extends Domain<HorizontalPosition>> domains) {
+
+        int nbPixels = width * height;
+        BitSet validPixels = new BitSet(nbPixels);
+        if (positions == null || domains == null || domains.isEmpty()) {
+            validPixels.set(0, nbPixels);
+            return new NoDataMask(width, height, validPixels);
+        }
+
+        int index = 0;
+        for (HorizontalPosition position : positions) {
+            if (index >= nbPixels) {
+                break;
+            }
+            if (position != null) {
+                for (Domain<HorizontalPosition> domain : domains) {
+                    // Unknown domain: the pixel may contain data
+                    if (domain == null || domain.contains(position)) {
+                        validPixels.set(index);
+                        break;
+                    }
+                }
+            }
+            index++;
+        }
+
+        return new NoDataMask(width, height, validPixels);
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    public int getValidPixelCount() {
+        return this.validPixels.cardinality();
+    }
+
+    public boolean isValid(int x, int y) {
+        return this.validPixels.get(x + y * this.width);
+    }
+
+    public boolean isValid(int index) {
+        return this.validPixels.get(index);
+    }
+
+    /**
+     * Iterate over the valid pixels:
+     * <pre>
+     * for (int index = mask.nextValid(0); index >= 0; index = mask.nextValid(index + 1)) { ... }
+     * </pre>
+     * @param fromIndex The first pixel index to check.
+     * @return The index of the next valid pixel, or -1 if there is none.
+     */
+    public int nextValid(int fromIndex) {
+        return this.validPixels.nextSetBit(fromIndex);
+    }
+}
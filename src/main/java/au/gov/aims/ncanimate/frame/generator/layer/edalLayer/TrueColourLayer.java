@@ -4,10 +4,12 @@
  */
 package au.gov.aims.ncanimate.frame.generator.layer.edalLayer;
 
+import uk.ac.rdg.resc.edal.domain.Domain;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
 import uk.ac.rdg.resc.edal.graphics.style.GriddedImageLayer;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
 
@@ -20,6 +22,8 @@ import java.util.Set;
 
 public class TrueColourLayer extends GriddedImageLayer {
     private List<NamedColourScheme> namedColourSchemes;
+    private String noDataMaskKey;
+    private List<? extends Domain<HorizontalPosition>> horizontalDomains;
 
     public TrueColourLayer() {
         this.namedColourSchemes = new ArrayList<NamedColourScheme>();
@@ -34,10 +38,24 @@ public class TrueColourLayer extends GriddedImageLayer {
         this.namedColourSchemes.add(new NamedColourScheme(dataFieldName, colourScheme));
     }
 
+    /**
+     * @param noDataMaskKey The key of the mask of the grid. See {@link NoDataMask#getKey(String, String, int, int)}.
+     * @param horizontalDomains The horizontal domain of the variables, used to compute the mask.
+     *     Null if unknown, every pixel is evaluated.
+     */
+    public void setNoDataMask(String noDataMaskKey, List<? extends Domain<HorizontalPosition>> horizontalDomains) {
+        this.noDataMaskKey = noDataMaskKey;
+        this.horizontalDomains = horizontalDomains;
+    }
+
     @Override
     protected void drawIntoImage(BufferedImage image, MapFeatureDataReader dataReader)
             throws EdalException {
 
+        if (this.namedColourSchemes.isEmpty()) {
+            return;
+        }
+
         /*
          * Initialise the array to store colour values
          * NOTE: "int" is 32 bits
@@ -45,47 +63,77 @@ public class TrueColourLayer extends GriddedImageLayer {
          *   We can only store 16,777,216 variable in a "int" array without overflow.
          *   "int" is plenty of space to store the added up values of each pixels.
          */
-        int nbPixels = image.getWidth() * image.getHeight();
+        int width = image.getWidth();
+        int nbPixels = width * image.getHeight();
         int[] redPixelsSum = new int[nbPixels];
         int[] greenPixelsSum = new int[nbPixels];
         int[] bluePixelsSum = new int[nbPixels];
         int[] alphaPixelsSum = new int[nbPixels];
 
-        // Initialise the image - make it all black, transparent
-        int index;
-        for (index = 0; index < nbPixels; index++) {
-            redPixelsSum[index] = 0;
-            greenPixelsSum[index] = 0;
-            bluePixelsSum[index] = 0;
-            alphaPixelsSum[index] = 0;
-        }
+        // Only evaluate the pixels in the grid. See NoDataMask
+        NoDataMask mask = NoDataMask.get(this.noDataMaskKey, width, image.getHeight(),
+                dataReader.getMapDomainObjects(this.namedColourSchemes.get(0).getDataFieldName()), this.horizontalDomains);
 
+        // Colour of the pixels outside the grid
+        int noDataRedSum = 0, noDataGreenSum = 0, noDataBlueSum = 0, noDataAlphaSum = 0;
+
+        int index;
         for (NamedColourScheme namedColourScheme : this.namedColourSchemes) {
+            ColourScheme colourScheme = namedColourScheme.getColourScheme();
+
             /*
              * Extract the data from the catalogue
              */
             Array2D<Number> values = dataReader.getDataForLayerName(namedColourScheme.getDataFieldName());
 
+            // Pixels without data (land, dry cells) get the no data colour,
+            // without going through the colour scheme
+            Color noDataColour = colourScheme.getColor(null);
+            int noDataRed = noDataColour.getRed();
+            int noDataGreen = noDataColour.getGreen();
+            int noDataBlue = noDataColour.getBlue();
+            int noDataAlpha = noDataColour.getAlpha();
+            noDataRedSum   += noDataRed;
+            noDataGreenSum += noDataGreen;
+            noDataBlueSum  += noDataBlue;
+            noDataAlphaSum += noDataAlpha;
+
             /*
-             * The iterator iterates over the x-dimension first, which is the same
+             * Pixel index: x + y * width, which is the same
              * convention as expected for the colour-values array in image.setRGB
              * below
              */
-            index = 0;
-            for (Number value : values) {
-                Color pixelColour = namedColourScheme.getColourScheme().getColor(value);
-                redPixelsSum[index]   += pixelColour.getRed();
-                greenPixelsSum[index] += pixelColour.getGreen();
-                bluePixelsSum[index]  += pixelColour.getBlue();
-                alphaPixelsSum[index] += pixelColour.getAlpha();
-                index++;
+            for (index = mask.nextValid(0); index >= 0; index = mask.nextValid(index + 1)) {
+                Number value = values.get(index / width, index % width);
+                if (value == null || Double.isNaN(value.doubleValue())) {
+                    redPixelsSum[index]   += noDataRed;
+                    greenPixelsSum[index] += noDataGreen;
+                    bluePixelsSum[index]  += noDataBlue;
+                    alphaPixelsSum[index] += noDataAlpha;
+                } else {
+                    Color pixelColour = colourScheme.getColor(value);
+                    redPixelsSum[index]   += pixelColour.getRed();
+                    greenPixelsSum[index] += pixelColour.getGreen();
+                    bluePixelsSum[index]  += pixelColour.getBlue();
+                    alphaPixelsSum[index] += pixelColour.getAlpha();
+                }
             }
         }
 
         // Calculate the mean for each pixels and convert it to int
         int[] pixels = new int[nbPixels];
         float[] colourScalingValues = this.getColourScalingValues();
+        int noDataPixel = new Color(
+            (int)(noDataRedSum / colourScalingValues[0]),
+            (int)(noDataGreenSum / colourScalingValues[1]),
+            (int)(noDataBlueSum / colourScalingValues[2]),
+            (int)(noDataAlphaSum / colourScalingValues[3])
+        ).getRGB();
         for (index = 0; index < nbPixels; index++) {
+            if (!mask.isValid(index)) {
+                pixels[index] = noDataPixel;
+                continue;
+            }
             Color pixelColour = new Color(
                 (int)(redPixelsSum[index] / colourScalingValues[0]),
                 (int)(greenPixelsSum[index] / colourScalingValues[1]),
@@ -95,7 +143,7 @@ public class TrueColourLayer extends GriddedImageLayer {
             pixels[index] = pixelColour.getRGB();
         }
 
-        image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
+        image.setRGB(0, 0, width, image.getHeight(), pixels, 0, width);
     }
 
     private float[] getColourScalingValues() {
@@ -28,6 +28,9 @@ import au.gov.aims.ncanimate.frame.generator.layer.vectorLegend.labels.LegendLab
 import au.gov.aims.ncanimate.frame.generator.layer.vectorLegend.labels.LinearLegendLabels;
 import au.gov.aims.ncanimate.frame.generator.layer.vectorLegend.labels.LogarithmicLegendLabels;
 import au.gov.aims.ncanimate.frame.generator.layer.vectorLegend.labels.ThresholdLegendLabels;
+import au.gov.aims.ncanimate.frame.generator.report.RunReport;
+import au.gov.aims.ncanimate.frame.generator.template.StringTemplate;
+import au.gov.aims.ncanimate.frame.generator.text.TextRenderer;
 import au.gov.aims.sld.SldUtils;
 import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
 import uk.ac.rdg.resc.edal.graphics.style.Drawable;
@@ -106,6 +109,16 @@ public class LegendGenerator {
      * @param topScaledOffset
      */
     public void prepare(MapImage mapImage, int leftScaledOffset, int topScaledOffset) {
+        RunReport runReport = RunReport.get(this.context);
+        long prepareStart = runReport.start();
+        try {
+            this.prepareLegend(mapImage, leftScaledOffset, topScaledOffset);
+        } finally {
+            runReport.stop(RunReport.STAGE_LEGEND_PREPARE, prepareStart);
+        }
+    }
+
+    private void prepareLegend(MapImage mapImage, int leftScaledOffset, int topScaledOffset) {
         NcAnimateConfigBean config = this.context == null ? null : this.context.getNcAnimateConfig();
 
         if (mapImage != null && config != null) {
@@ -182,7 +195,7 @@ public class LegendGenerator {
 
             Font legendTitleFont = (legendTitleConf != null && legendTitleConf.isHidden()) ?
                     null :
-                    new Font(Font.SANS_SERIF, NcAnimateUtils.getFontStyle(legendTitleConf), scaledLegendTitleFontSize);
+                    TextRenderer.getFont(NcAnimateUtils.getFontStyle(legendTitleConf), scaledLegendTitleFontSize);
 
             this.labelTextColour = legendLabelConf == null ? null : SldUtils.parseHexColour(legendLabelConf.getFontColour());
             if (this.labelTextColour == null) {
@@ -193,7 +206,7 @@ public class LegendGenerator {
 
             Font legendLabelFont = (legendLabelConf != null && legendLabelConf.isHidden()) ?
                     null :
-                    new Font(Font.SANS_SERIF, NcAnimateUtils.getFontStyle(legendLabelConf), scaledLegendLabelFontSize);
+                    TextRenderer.getFont(NcAnimateUtils.getFontStyle(legendLabelConf), scaledLegendLabelFontSize);
 
             // Case where we have a 1D colour bar
             // Get the field name and scale range.
@@ -227,11 +240,10 @@ public class LegendGenerator {
                     this.scaledColourBandHeight);
 
             // Get the legend title
-            List<String> legendTitles = legendTitleConf == null ? null : legendTitleConf.getText();
-            // The user didn't provide a legend title. Get whatever we can find from the file metadata
-            if (legendTitles == null) {
-                legendTitles = new ArrayList<String>();
-            }
+            // NOTE: The list is copied to avoid adding the default title to the config bean
+            List<String> legendTitles = legendTitleConf == null || legendTitleConf.getText() == null ?
+                    new ArrayList<String>() :
+                    new ArrayList<String>(legendTitleConf.getText());
 
             String defaultLegendTitle = nameAndRange.getFieldLabel();
 
@@ -247,7 +259,7 @@ public class LegendGenerator {
             }
             legendTitles.add(defaultLegendTitle);
 
-            String parsedLegendTitle = NcAnimateUtils.parseString(legendTitles, this.context, this.layerContextMap);
+            String parsedLegendTitle = StringTemplate.get(legendTitles).parse(this.context, this.layerContextMap);
 
             // Now generate the labels for this legend
             int scaledLegendLabelTextPadding = NcAnimateUtils.scale(DEFAULT_LEGEND_LABEL_PADDING, scale);
@@ -351,6 +363,16 @@ public class LegendGenerator {
      * Inspired on uk.ac.rdg.resc.edal.graphics.style.MapImage
      */
     public void drawLegend(VectorRasterGraphics2D canvas) {
+        RunReport runReport = RunReport.get(this.context);
+        long drawStart = runReport.start();
+        try {
+            this.drawLegendGraphics(canvas);
+        } finally {
+            runReport.stop(RunReport.STAGE_LEGEND_DRAW, drawStart);
+        }
+    }
+
+    private void drawLegendGraphics(VectorRasterGraphics2D canvas) {
         NcAnimateConfigBean config = this.context == null ? null : this.context.getNcAnimateConfig();
 
         if (config != null) {
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.plan;
+
+import au.gov.aims.ereefs.bean.metadata.netcdf.NetCDFMetadataBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateIdBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateLayerBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimatePanelBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetable;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataFrame;
+import au.gov.aims.ncanimate.commons.timetable.NetCDFMetadataSet;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Order in which the frames of a product are rendered, for every region and target height.
+ *
+ * The NetCDF layer generators only keep one dataset open at the time (see NetCDFLayerGenerator).
+ * Rendering every frame of a region / target height before moving to the next one
+ * re-opens every input file once per region and target height.
+ *
+ * The planned order groups the frames which use the same set of input files,
+ * and renders each group for every region and target height before moving to the next group.
+ * Groups are ordered by their first frame, so consecutive groups usually share some files
+ * (example: the monthly GBR4 file, while the daily GBR1 file changes).
+ *
+ * The number of input file switches (dataset loads) is estimated for both orders, see {@link #toJSON()}.
+ */
+public class FrameOrderPlan {
+    private List<WorkItem> defaultOrder;
+    private List<WorkItem> plannedOrder;
+
+    // Input file used by each layer, for each frame. Key: frame, layer ID
+    private Map<DateTimeRange, Map<String, String>> frameInputMap;
+
+    /**
+     * @param ncAnimateConfig The product configuration.
+     * @param frameTimetableMap The frame timetable of the product.
+     * @param frames The frames to render, in timetable order.
+     * @param regions The regions to render.
+     * @param targetHeights The target heights to render. Use a list containing null for products without target height.
+     */
+    public FrameOrderPlan(
+            NcAnimateConfigBean ncAnimateConfig,
+            FrameTimetableMap frameTimetableMap,
+            List<DateTimeRange> frames,
+            List<NcAnimateRegionBean> regions,
+            List<Double> targetHeights) {
+
+        this.frameInputMap = new LinkedHashMap<DateTimeRange, Map<String, String>>();
+        for (DateTimeRange frameDateRange : frames) {
+            this.frameInputMap.put(frameDateRange, FrameOrderPlan.getLayerInputIds(ncAnimateConfig,
+                    frameTimetableMap == null ? null : frameTimetableMap.get(frameDateRange)));
+        }
+
+        // Default order: every frame of a region / target height, then the next one.
+        this.defaultOrder = new ArrayList<WorkItem>();
+        for (NcAnimateRegionBean region : regions) {
+            for (Double targetHeight : targetHeights) {
+                this.defaultOrder.add(new WorkItem(region, targetHeight, frames));
+            }
+        }
+
+        // Planned order: group frames by input file set, then every region / target height of the group.
+        Map<Map<String, String>, List<DateTimeRange>> groupMap = new LinkedHashMap<Map<String, String>, List<DateTimeRange>>();
+        for (Map.Entry<DateTimeRange, Map<String, String>> frameInputEntry : this.frameInputMap.entrySet()) {
+            List<DateTimeRange> groupFrames = groupMap.get(frameInputEntry.getValue());
+            if (groupFrames == null) {
+                groupFrames = new ArrayList<DateTimeRange>();
+                groupMap.put(frameInputEntry.getValue(), groupFrames);
+            }
+            groupFrames.add(frameInputEntry.getKey());
+        }
+
+        this.plannedOrder = new ArrayList<WorkItem>();
+        for (List<DateTimeRange> groupFrames : groupMap.values()) {
+            for (NcAnimateRegionBean region : regions) {
+                for (Double targetHeight : targetHeights) {
+                    this.plannedOrder.add(new WorkItem(region, targetHeight, groupFrames));
+                }
+            }
+        }
+    }
+
+    public List<WorkItem> getDefaultOrder() {
+        return this.defaultOrder;
+    }
+
+    public List<WorkItem> getPlannedOrder() {
+        return this.plannedOrder;
+    }
+
+    public int getDefaultSwitchCount() {
+        return this.countSwitches(this.defaultOrder);
+    }
+
+    public int getPlannedSwitchCount() {
+        return this.countSwitches(this.plannedOrder);
+    }
+
+    public JSONObject toJSON() {
+        int workItemFrames = 0;
+        for (WorkItem workItem : this.plannedOrder) {
+            workItemFrames += workItem.getFrames().size();
+        }
+
+        return new JSONObject()
+            .put("frames", this.frameInputMap.size())
+            .put("renderedFrames", workItemFrames)
+            .put("workItems", this.plannedOrder.size())
+            .put("inputSwitchesBefore", this.getDefaultSwitchCount())
+            .put("inputSwitchesAfter", this.getPlannedSwitchCount());
+    }
+
+    // Number of time a layer generator has to load a different input file, rendering frames in the given order.
+    private int countSwitches(List<WorkItem> order) {
+        int switchCount = 0;
+        Map<String, String> currentInputs = new HashMap<String, String>();
+        for (WorkItem workItem : order) {
+            for (DateTimeRange frameDateRange : workItem.getFrames()) {
+                Map<String, String> layerInputs = this.frameInputMap.get(frameDateRange);
+                if (layerInputs != null) {
+                    for (Map.Entry<String, String> layerInput : layerInputs.entrySet()) {
+                        if (!layerInput.getValue().equals(currentInputs.get(layerInput.getKey()))) {
+                            switchCount++;
+                            currentInputs.put(layerInput.getKey(), layerInput.getValue());
+                        }
+                    }
+                }
+            }
+        }
+        return switchCount;
+    }
+
+    /**
+     * Returns the ID of the NetCDF file used by each layer to render a frame.
+     * @param ncAnimateConfig The product configuration.
+     * @param frameTimetable The frame timetable entry.
+     * @return Map of input file ID, in panel / layer order. Key: layer ID
+     */
+    public static Map<String, String> getLayerInputIds(NcAnimateConfigBean ncAnimateConfig, FrameTimetable frameTimetable) {
+        Map<String, String> layerInputIds = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, NetCDFMetadataBean> layerInput : FrameOrderPlan.getLayerInputs(ncAnimateConfig, frameTimetable).entrySet()) {
+            layerInputIds.put(layerInput.getKey(), layerInput.getValue().getId());
+        }
+        return layerInputIds;
+    }
+
+    /**
+     * Returns the metadata of the NetCDF file used by each layer to render a frame
+     * (first file of each layer set, see NetCDFLayerGenerator.render).
+     * @param ncAnimateConfig The product configuration.
+     * @param frameTimetable The frame timetable entry.
+     * @return Map of input file metadata, in panel / layer order. Key: layer ID
+     */
+    public static Map<String, NetCDFMetadataBean> getLayerInputs(NcAnimateConfigBean ncAnimateConfig, FrameTimetable frameTimetable) {
+        Map<String, NetCDFMetadataBean> layerInputs = new LinkedHashMap<String, NetCDFMetadataBean>();
+        if (frameTimetable == null || frameTimetable.isEmpty()) {
+            return layerInputs;
+        }
+
+        List<NcAnimatePanelBean> panelConfs = ncAnimateConfig.getPanels();
+        if (panelConfs != null) {
+            for (NcAnimatePanelBean panelConf : panelConfs) {
+                List<NcAnimateLayerBean> layers = panelConf.getLayers();
+                if (layers != null) {
+                    for (NcAnimateLayerBean layer : layers) {
+                        NcAnimateIdBean layerId = layer.getId();
+                        if (layerId != null) {
+                            String layerIdStr = layerId.getValue();
+                            NetCDFMetadataSet netCDFMetadataSet = frameTimetable.get(layerIdStr);
+                            NetCDFMetadataFrame netCDFMetadataFrame = netCDFMetadataSet == null || netCDFMetadataSet.isEmpty() ? null : netCDFMetadataSet.first();
+                            NetCDFMetadataBean netCDFMetadata = netCDFMetadataFrame == null ? null : netCDFMetadataFrame.getMetadata();
+                            if (netCDFMetadata != null && netCDFMetadata.getId() != null) {
+                                layerInputs.put(layerIdStr, netCDFMetadata);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return layerInputs;
+    }
+
+    /**
+     * Frames to render for a region and target height.
+     */
+    public static class WorkItem {
+        private NcAnimateRegionBean region;
+        private Double targetHeight;
+        private List<DateTimeRange> frames;
+
+        public WorkItem(NcAnimateRegionBean region, Double targetHeight, List<DateTimeRange> frames) {
+            this.region = region;
+            this.targetHeight = targetHeight;
+            this.frames = frames;
+        }
+
+        public NcAnimateRegionBean getRegion() {
+            return this.region;
+        }
+
+        public Double getTargetHeight() {
+            return this.targetHeight;
+        }
+
+        public List<DateTimeRange> getFrames() {
+            return this.frames;
+        }
+    }
+}
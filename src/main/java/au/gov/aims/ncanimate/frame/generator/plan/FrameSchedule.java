@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.plan;
+
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Order in which the work items of a run are rendered, and when the run must stop.
+ *
+ * Policies:
+ * - OLDEST_FIRST: the frame order plan, as it is (see {@link FrameOrderPlan}).
+ * - NEWEST_FIRST: the frame order plan, reversed. Work items are sorted by their newest frame,
+ *     and their frames are rendered from the newest to the oldest.
+ * - REGION_INTERLEAVED: newest frame first, rendered for every region and target height
+ *     before moving to the previous frame. All regions get their latest frame before any older frame is rendered.
+ *
+ * Used with a deadline, the most important frames are rendered first and the run stops
+ * before starting a frame past the deadline. Frames are written atomically (see CheckpointJournal),
+ * the next run carries on from there.
+ */
+public class FrameSchedule {
+    private static final Comparator<DateTimeRange> FRAME_COMPARATOR = new Comparator<DateTimeRange>() {
+        @Override
+        public int compare(DateTimeRange frame1, DateTimeRange frame2) {
+            return frame1.getStartDate().compareTo(frame2.getStartDate());
+        }
+    };
+
+    public enum Policy {
+        OLDEST_FIRST, NEWEST_FIRST, REGION_INTERLEAVED
+    };
+
+    /**
+     * @param policyStr The policy name, case insensitive. Dashes are accepted in place of underscores.
+     * @return The policy.
+     * @throws IllegalArgumentException If the policy is unknown.
+     */
+    public static FrameSchedule.Policy parsePolicy(String policyStr) {
+        if (policyStr == null || policyStr.trim().isEmpty()) {
+            throw new IllegalArgumentException("Missing schedule policy");
+        }
+
+        try {
+            return FrameSchedule.Policy.valueOf(policyStr.trim().toUpperCase().replace('-', '_'));
+        } catch(IllegalArgumentException ex) {
+            throw new IllegalArgumentException(String.format("Invalid schedule policy %s. Expected one of: %s",
+                    policyStr, Arrays.toString(FrameSchedule.Policy.values())), ex);
+        }
+    }
+
+    /**
+     * @param deadlineStr The deadline: ISO-8601 period, from the start of the run (example: "PT45M"),
+     *     or ISO-8601 date time (example: "2021-03-01T06:00:00.000+10:00").
+     * @param runStart The start of the run, in milliseconds.
+     * @return The deadline, in milliseconds.
+     * @throws IllegalArgumentException If the deadline can not be parsed.
+     */
+    public static long parseDeadline(String deadlineStr, long runStart) {
+        if (deadlineStr == null || deadlineStr.trim().isEmpty()) {
+            throw new IllegalArgumentException("Missing deadline");
+        }
+
+        String trimmedDeadlineStr = deadlineStr.trim();
+        try {
+            if (trimmedDeadlineStr.startsWith("P") || trimmedDeadlineStr.startsWith("p")) {
+                return runStart + Period.parse(trimmedDeadlineStr.toUpperCase()).toStandardDuration().getMillis();
+            }
+            return DateTime.parse(trimmedDeadlineStr).getMillis();
+        } catch(IllegalArgumentException | UnsupportedOperationException ex) {
+            throw new IllegalArgumentException(String.format("Invalid deadline %s. Expected an ISO-8601 period (example: PT45M) or date time.",
+                    deadlineStr), ex);
+        }
+    }
+
+    /**
+     * @param order The work items, in frame order plan order.
+     * @param policy The schedule policy.
+     * @return The work items, in the order they must be rendered.
+     */
+    public static List<FrameOrderPlan.WorkItem> schedule(List<FrameOrderPlan.WorkItem> order, FrameSchedule.Policy policy) {
+        if (policy == null) {
+            return order;
+        }
+
+        switch (policy) {
+            case NEWEST_FIRST:
+                return FrameSchedule.scheduleNewestFirst(order);
+
+            case REGION_INTERLEAVED:
+                return FrameSchedule.scheduleRegionInterleaved(order);
+
+            case OLDEST_FIRST:
+            default:
+                return order;
+        }
+    }
+
+    private static List<FrameOrderPlan.WorkItem> scheduleNewestFirst(List<FrameOrderPlan.WorkItem> order) {
+        List<FrameOrderPlan.WorkItem> scheduledOrder = new ArrayList<FrameOrderPlan.WorkItem>();
+        for (FrameOrderPlan.WorkItem workItem : order) {
+            List<DateTimeRange> frames = new ArrayList<DateTimeRange>(workItem.getFrames());
+            Collections.sort(frames, Collections.reverseOrder(FrameSchedule.FRAME_COMPARATOR));
+            scheduledOrder.add(new FrameOrderPlan.WorkItem(workItem.getRegion(), workItem.getTargetHeight(), frames));
+        }
+
+        // Stable sort: work items with the same newest frame keep their region / target height order
+        Collections.sort(scheduledOrder, new Comparator<FrameOrderPlan.WorkItem>() {
+            @Override
+            public int compare(FrameOrderPlan.WorkItem workItem1, FrameOrderPlan.WorkItem workItem2) {
+                List<DateTimeRange> frames1 = workItem1.getFrames();
+                List<DateTimeRange> frames2 = workItem2.getFrames();
+                if (frames1.isEmpty() || frames2.isEmpty()) {
+                    return Boolean.compare(frames1.isEmpty(), frames2.isEmpty());
+                }
+                return FrameSchedule.FRAME_COMPARATOR.compare(frames2.get(0), frames1.get(0));
+            }
+        });
+
+        return scheduledOrder;
+    }
+
+    private static List<FrameOrderPlan.WorkItem> scheduleRegionInterleaved(List<FrameOrderPlan.WorkItem> order) {
+        // Work items of a single frame, grouped by frame. Regions and target heights keep the plan order.
+        Map<DateTimeRange, List<FrameOrderPlan.WorkItem>> frameWorkItemMap = new LinkedHashMap<DateTimeRange, List<FrameOrderPlan.WorkItem>>();
+        for (FrameOrderPlan.WorkItem workItem : order) {
+            for (DateTimeRange frameDateRange : workItem.getFrames()) {
+                List<FrameOrderPlan.WorkItem> frameWorkItems = frameWorkItemMap.get(frameDateRange);
+                if (frameWorkItems == null) {
+                    frameWorkItems = new ArrayList<FrameOrderPlan.WorkItem>();
+                    frameWorkItemMap.put(frameDateRange, frameWorkItems);
+                }
+                frameWorkItems.add(new FrameOrderPlan.WorkItem(workItem.getRegion(), workItem.getTargetHeight(),
+                        Collections.singletonList(frameDateRange)));
+            }
+        }
+
+        List<DateTimeRange> frames = new ArrayList<DateTimeRange>(frameWorkItemMap.keySet());
+        Collections.sort(frames, Collections.reverseOrder(FrameSchedule.FRAME_COMPARATOR));
+
+        List<FrameOrderPlan.WorkItem> scheduledOrder = new ArrayList<FrameOrderPlan.WorkItem>();
+        for (DateTimeRange frameDateRange : frames) {
+            scheduledOrder.addAll(frameWorkItemMap.get(frameDateRange));
+        }
+        return scheduledOrder;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.plan;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Deterministic partition of the frames of a product between N shards (processes / nodes).
+ *
+ * Frames are grouped by input file, so each file is downloaded and opened by one shard only:
+ * - The input files of a frame are the NetCDF files used by its layers.
+ * - The group key of a frame is its input file which covers the most frames
+ *     (example: the monthly file, when a product also uses daily files).
+ * - Groups are assigned to shards in timetable order, as contiguous blocks of roughly equal number of frames.
+ *
+ * The plan only depends on the product configuration, the date range and the input file metadata.
+ * Every shard must be started with the same parameters, against the same database state,
+ * to get the same plan. Print the manifest (see {@link #toJSON()}) to check who renders what.
+ */
+public class FrameShardPlan {
+    private int shardCount;
+
+    // Frames to render, in timetable order. Value: shard index
+    private Map<DateTimeRange, Integer> frameShardMap;
+
+    // Group key (input file ID) of each frame
+    private Map<DateTimeRange, String> frameGroupMap;
+
+    /**
+     * @param ncAnimateConfig The product configuration.
+     * @param frameTimetableMap The frame timetable of the product.
+     * @param productDateRange The date range to render. Frames outside the range are not part of the plan.
+     * @param shardCount The number of shards.
+     */
+    public FrameShardPlan(NcAnimateConfigBean ncAnimateConfig, FrameTimetableMap frameTimetableMap, DateTimeRange productDateRange, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException(String.format("Invalid shard count %d. Expected 1 or more.", shardCount));
+        }
+        this.shardCount = shardCount;
+        this.frameShardMap = new LinkedHashMap<DateTimeRange, Integer>();
+        this.frameGroupMap = new LinkedHashMap<DateTimeRange, String>();
+
+        this.build(ncAnimateConfig, frameTimetableMap, productDateRange);
+    }
+
+    /**
+     * Parse a shard parameter.
+     * @param shardStr The shard parameter "i/n", where i is the shard index (0 to n-1) and n the number of shards.
+     * @return An array containing the shard index and the shard count.
+     */
+    public static int[] parseShard(String shardStr) {
+        String[] shardParts = shardStr == null ? null : shardStr.trim().split("\\s*/\\s*");
+        if (shardParts == null || shardParts.length != 2) {
+            throw new IllegalArgumentException(String.format("Invalid shard %s. Expected: i/n", shardStr));
+        }
+
+        int shardIndex, shardCount;
+        try {
+            shardIndex = Integer.parseInt(shardParts[0]);
+            shardCount = Integer.parseInt(shardParts[1]);
+        } catch(NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid shard %s. Expected: i/n", shardStr), ex);
+        }
+
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException(String.format("Invalid shard %s. Expected: i/n, with 0 <= i < n", shardStr));
+        }
+
+        return new int[] { shardIndex, shardCount };
+    }
+
+    public int getShardCount() {
+        return this.shardCount;
+    }
+
+    public int getFrameCount() {
+        return this.frameShardMap.size();
+    }
+
+    /**
+     * @param frameDateRange The frame date range.
+     * @return The shard index of the frame, or -1 if the frame is not part of the plan.
+     */
+    public int getShard(DateTimeRange frameDateRange) {
+        Integer shardIndex = this.frameShardMap.get(frameDateRange);
+        return shardIndex == null ? -1 : shardIndex;
+    }
+
+    public boolean isInShard(DateTimeRange frameDateRange, int shardIndex) {
+        return this.getShard(frameDateRange) == shardIndex;
+    }
+
+    /**
+     * @param shardIndex The shard index.
+     * @return The frames of the shard, in timetable order.
+     */
+    public List<DateTimeRange> getFrames(int shardIndex) {
+        List<DateTimeRange> frames = new ArrayList<DateTimeRange>();
+        for (Map.Entry<DateTimeRange, Integer> frameShardEntry : this.frameShardMap.entrySet()) {
+            if (frameShardEntry.getValue() == shardIndex) {
+                frames.add(frameShardEntry.getKey());
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * The manifest of the plan: for each shard, the groups of frames (input file and date range) it renders.
+     * @return The manifest.
+     */
+    public JSONObject toJSON() {
+        JSONArray jsonShards = new JSONArray();
+        for (int shardIndex=0; shardIndex<this.shardCount; shardIndex++) {
+            JSONArray jsonGroups = new JSONArray();
+            JSONObject jsonGroup = null;
+            String currentGroup = null;
+            int groupFrameCount = 0;
+            for (DateTimeRange frameDateRange : this.getFrames(shardIndex)) {
+                String group = this.frameGroupMap.get(frameDateRange);
+                if (jsonGroup == null || (group == null ? currentGroup != null : !group.equals(currentGroup))) {
+                    groupFrameCount = 0;
+                    currentGroup = group;
+                    jsonGroup = new JSONObject()
+                        .put("inputFile", group)
+                        .put("dateFrom", frameDateRange.getStartDate());
+                    jsonGroups.put(jsonGroup);
+                }
+                groupFrameCount++;
+                jsonGroup
+                    .put("dateTo", frameDateRange.getEndDate())
+                    .put("frameCount", groupFrameCount);
+            }
+
+            jsonShards.put(new JSONObject()
+                .put("shard", shardIndex)
+                .put("frameCount", this.getFrames(shardIndex).size())
+                .put("groups", jsonGroups));
+        }
+
+        return new JSONObject()
+            .put("shardCount", this.shardCount)
+            .put("frameCount", this.getFrameCount())
+            .put("shards", jsonShards);
+    }
+
+    private void build(NcAnimateConfigBean ncAnimateConfig, FrameTimetableMap frameTimetableMap, DateTimeRange productDateRange) {
+        if (frameTimetableMap == null) {
+            return;
+        }
+
+        // Input files of each frame, and number of frames using each input file
+        Map<DateTimeRange, Set<String>> frameInputMap = new LinkedHashMap<DateTimeRange, Set<String>>();
+        Map<String, Integer> inputFrameCountMap = new HashMap<String, Integer>();
+        for (DateTimeRange frameDateRange : frameTimetableMap.keySet()) {
+            if (FrameShardPlan.isInDateRange(frameDateRange, productDateRange)) {
+                Set<String> inputIds = new LinkedHashSet<String>(
+                        FrameOrderPlan.getLayerInputIds(ncAnimateConfig, frameTimetableMap.get(frameDateRange)).values());
+                frameInputMap.put(frameDateRange, inputIds);
+                for (String inputId : inputIds) {
+                    Integer inputFrameCount = inputFrameCountMap.get(inputId);
+                    inputFrameCountMap.put(inputId, inputFrameCount == null ? 1 : inputFrameCount + 1);
+                }
+            }
+        }
+
+        // Group frames by the input file covering the most frames.
+        // The groups are in timetable order (order of their first frame).
+        Map<String, List<DateTimeRange>> groupMap = new LinkedHashMap<String, List<DateTimeRange>>();
+        for (Map.Entry<DateTimeRange, Set<String>> frameInputEntry : frameInputMap.entrySet()) {
+            DateTimeRange frameDateRange = frameInputEntry.getKey();
+            String group = null;
+            int groupFrameCount = 0;
+            for (String inputId : frameInputEntry.getValue()) {
+                int inputFrameCount = inputFrameCountMap.get(inputId);
+                if (group == null || inputFrameCount > groupFrameCount || (inputFrameCount == groupFrameCount && inputId.compareTo(group) < 0)) {
+                    group = inputId;
+                    groupFrameCount = inputFrameCount;
+                }
+            }
+
+            // Frames without input file are grouped by themselves
+            String groupKey = group == null ? "frame_" + frameDateRange.getStartDate() : group;
+            List<DateTimeRange> groupFrames = groupMap.get(groupKey);
+            if (groupFrames == null) {
+                groupFrames = new ArrayList<DateTimeRange>();
+                groupMap.put(groupKey, groupFrames);
+            }
+            groupFrames.add(frameDateRange);
+            this.frameGroupMap.put(frameDateRange, group);
+        }
+
+        // Assign contiguous blocks of groups to shards, balanced on the number of frames.
+        // A group goes to the shard where its middle frame falls.
+        int totalFrameCount = frameInputMap.size();
+        int frameIndex = 0;
+        Map<DateTimeRange, Integer> unorderedFrameShardMap = new HashMap<DateTimeRange, Integer>();
+        for (List<DateTimeRange> groupFrames : groupMap.values()) {
+            int middleFrameIndex = frameIndex + groupFrames.size() / 2;
+            int shardIndex = (int)((long)middleFrameIndex * this.shardCount / totalFrameCount);
+            for (DateTimeRange frameDateRange : groupFrames) {
+                unorderedFrameShardMap.put(frameDateRange, shardIndex);
+            }
+            frameIndex += groupFrames.size();
+        }
+
+        for (DateTimeRange frameDateRange : frameInputMap.keySet()) {
+            this.frameShardMap.put(frameDateRange, unorderedFrameShardMap.get(frameDateRange));
+        }
+    }
+
+    /**
+     * Same date filter as GroupFrameGenerator.generateFrame
+     * @param frameDateRange The frame date range.
+     * @param productDateRange The date range to render. Null start or end date means unbounded.
+     * @return true if the frame is within the date range.
+     */
+    public static boolean isInDateRange(DateTimeRange frameDateRange, DateTimeRange productDateRange) {
+        if (productDateRange == null) {
+            return true;
+        }
+        if (productDateRange.getStartDate() != null && frameDateRange.getStartDate().compareTo(productDateRange.getStartDate()) < 0) {
+            return false;
+        }
+        if (productDateRange.getEndDate() != null && frameDateRange.getEndDate().compareTo(productDateRange.getEndDate()) > 0) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.plan;
+
+import au.gov.aims.ereefs.Utils;
+import au.gov.aims.ereefs.bean.metadata.netcdf.NetCDFMetadataBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimatePanelBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ereefs.bean.ncanimate.render.NcAnimateRenderBean;
+import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.frame.generator.FrameGenerator;
+import au.gov.aims.ncanimate.frame.generator.GroupFrameGenerator;
+import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import au.gov.aims.ncanimate.frame.generator.download.NcAnimateArtifactSource;
+import au.gov.aims.ncanimate.frame.generator.report.RunReport;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dry run: what a frame generation run would do, without rendering anything.
+ *
+ * The plan contains:
+ * - The number of frames to render, and how many are stale (missing or older than the input files),
+ *     using the same check as the frame generator (see {@link FrameGenerator#isFrameOutdated(FrameGeneratorContext)}).
+ * - The input files used by the stale frames, and which ones must be downloaded.
+ *     The size of the files to download is requested from their source (S3 object size).
+ *     Files which size can not be requested have no "sizeBytes".
+ * - The CPU time, estimated from the frame time of the last run report of the product.
+ * - The memory, estimated from the canvas and panel sizes, and the heap used by the last run.
+ *
+ * The output is meant to be used by a scheduler to pack jobs onto instances.
+ */
+public class WorkPlanner {
+    private static final Logger LOGGER = Logger.getLogger(WorkPlanner.class);
+
+    // ARGB images
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private GroupFrameGenerator groupFrameGenerator;
+
+    public WorkPlanner(GroupFrameGenerator groupFrameGenerator) {
+        this.groupFrameGenerator = groupFrameGenerator;
+    }
+
+    public JSONObject plan() {
+        NcAnimateConfigBean ncAnimateConfig = this.groupFrameGenerator.getNcAnimateConfig();
+        String productId = ncAnimateConfig.getId().getValue();
+        FrameGenerator frameGenerator = this.groupFrameGenerator.getFrameGenerator();
+
+        List<NcAnimateRegionBean> regions = this.groupFrameGenerator.getSelectedRegions();
+        List<Double> targetHeights = this.groupFrameGenerator.getSelectedTargetHeights();
+        List<DateTimeRange> frames = this.groupFrameGenerator.getSelectedFrames();
+
+        int frameCount = 0;
+        int staleFrameCount = 0;
+        FrameGeneratorContext lastContext = null;
+        JSONArray jsonRegions = new JSONArray();
+
+        // Key: input file ID
+        Map<String, JSONObject> inputFileMap = new LinkedHashMap<String, JSONObject>();
+
+        if (regions != null) {
+            for (NcAnimateRegionBean region : regions) {
+                for (Double targetHeight : targetHeights) {
+                    FrameGeneratorContext context = this.groupFrameGenerator.createContext(region, targetHeight);
+                    lastContext = context;
+
+                    int regionStaleFrameCount = 0;
+                    for (DateTimeRange frameDateRange : frames) {
+                        context.setFrameDateRange(frameDateRange);
+                        frameCount++;
+                        if (frameGenerator.isFrameOutdated(context)) {
+                            staleFrameCount++;
+                            regionStaleFrameCount++;
+                            this.addInputFiles(context, frameDateRange, inputFileMap);
+                        }
+                    }
+
+                    jsonRegions.put(new JSONObject()
+                        .put("regionId", region.getId().getValue())
+                        .put("targetHeight", targetHeight)
+                        .put("frames", frames.size())
+                        .put("staleFrames", regionStaleFrameCount));
+                }
+            }
+        }
+
+        JSONArray jsonInputFiles = new JSONArray();
+        int downloadCount = 0;
+        long localBytes = 0;
+        long downloadBytes = 0;
+        for (JSONObject jsonInputFile : inputFileMap.values()) {
+            jsonInputFiles.put(jsonInputFile);
+            long sizeBytes = jsonInputFile.optLong("sizeBytes", 0);
+            if (jsonInputFile.getBoolean("download")) {
+                downloadCount++;
+                downloadBytes += sizeBytes;
+            } else {
+                localBytes += sizeBytes;
+            }
+        }
+
+        JSONObject jsonLastRun = WorkPlanner.getLastRunSummary(productId);
+        JSONObject jsonFrameStage = jsonLastRun == null || jsonLastRun.optJSONObject("stages") == null ? null :
+                jsonLastRun.getJSONObject("stages").optJSONObject(RunReport.STAGE_FRAME);
+        Double frameMs = jsonFrameStage == null || !jsonFrameStage.has("meanMs") ? null : jsonFrameStage.getDouble("meanMs");
+
+        return new JSONObject()
+            .put("productId", productId)
+            .put("frames", frameCount)
+            .put("staleFrames", staleFrameCount)
+            .put("regions", jsonRegions)
+            .put("inputFiles", jsonInputFiles)
+            .put("downloadCount", downloadCount)
+            .put("downloadBytes", downloadBytes)
+            .put("localInputBytes", localBytes)
+            .put("estimate", new JSONObject()
+                .put("lastRunReport", jsonLastRun == null ? null : jsonLastRun.opt("runDate"))
+                .put("frameMs", frameMs)
+                .put("cpuMs", frameMs == null ? null : frameMs * staleFrameCount)
+                .put("lastRunMaxUsedHeapBytes", jsonLastRun == null ? null : jsonLastRun.opt("maxUsedHeapBytes"))
+                .put("memory", lastContext == null ? null : this.getMemoryEstimate(lastContext)));
+    }
+
+    private void addInputFiles(FrameGeneratorContext context, DateTimeRange frameDateRange, Map<String, JSONObject> inputFileMap) {
+        NcAnimateConfigBean ncAnimateConfig = this.groupFrameGenerator.getNcAnimateConfig();
+        Map<String, NetCDFMetadataBean> layerInputs = FrameOrderPlan.getLayerInputs(ncAnimateConfig,
+                this.groupFrameGenerator.getFrameTimetableMap().get(frameDateRange));
+
+        for (NetCDFMetadataBean netCDFMetadata : layerInputs.values()) {
+            JSONObject jsonInputFile = inputFileMap.get(netCDFMetadata.getId());
+            if (jsonInputFile == null) {
+                // Same location as NetCDFLayerGenerator.renderFrame
+                File netCDFDir = new File(context.getNetCDFDirectory(), Utils.safeFilename(netCDFMetadata.getDefinitionId()));
+                File netCDFFile = NcAnimateUtils.getInputFile(netCDFDir, netCDFMetadata);
+                boolean download = netCDFFile == null || !netCDFFile.canRead();
+
+                jsonInputFile = new JSONObject()
+                    .put("id", netCDFMetadata.getId())
+                    .put("file", netCDFFile == null ? null : netCDFFile.getAbsolutePath())
+                    .put("download", download)
+                    .put("staleFrames", 0);
+                Long sizeBytes = download ? this.getSourceSize(netCDFMetadata) : Long.valueOf(netCDFFile.length());
+                if (sizeBytes != null) {
+                    jsonInputFile.put("sizeBytes", sizeBytes.longValue());
+                }
+                inputFileMap.put(netCDFMetadata.getId(), jsonInputFile);
+            }
+            jsonInputFile.put("staleFrames", jsonInputFile.getInt("staleFrames") + 1);
+        }
+    }
+
+    // Size of the input file to download, requested from the file source.
+    // The metadata of the input file doesn't contain its size.
+    private Long getSourceSize(NetCDFMetadataBean netCDFMetadata) {
+        URI fileURI = netCDFMetadata.getFileURI();
+        if (fileURI == null) {
+            return null;
+        }
+
+        try {
+            return NcAnimateArtifactSource.getSize(fileURI, this.groupFrameGenerator.getS3Client());
+        } catch(Exception ex) {
+            LOGGER.warn(String.format("Could not request the size of the input file %s", fileURI), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Memory needed to render a frame: the canvas image, plus a data image and a static layer image per panel.
+     * Vector formats (SVG) and datasets are not included.
+     */
+    private JSONObject getMemoryEstimate(FrameGeneratorContext context) {
+        NcAnimateConfigBean ncAnimateConfig = this.groupFrameGenerator.getNcAnimateConfig();
+        NcAnimateRenderBean renderConf = ncAnimateConfig.getRender();
+        float scale = renderConf == null ? 1 : renderConf.getScale();
+
+        long canvasBytes = (long)context.getScaledCanvasWidth() * context.getScaledCanvasHeight() * BYTES_PER_PIXEL;
+        long frameBytes = canvasBytes;
+
+        JSONArray jsonPanels = new JSONArray();
+        List<NcAnimatePanelBean> panelConfs = ncAnimateConfig.getPanels();
+        if (panelConfs != null) {
+            for (NcAnimatePanelBean panelConf : panelConfs) {
+                int panelScaledWidth = NcAnimateUtils.scale(NcAnimateUtils.getInt(panelConf.getWidth()), scale);
+                int panelScaledHeight = NcAnimateUtils.scale(NcAnimateUtils.getInt(panelConf.getHeight()), scale);
+                long panelBytes = 2L * panelScaledWidth * panelScaledHeight * BYTES_PER_PIXEL;
+                frameBytes += panelBytes;
+
+                jsonPanels.put(new JSONObject()
+                    .put("panelId", panelConf.getId() == null ? null : panelConf.getId().getValue())
+                    .put("scaledWidth", panelScaledWidth)
+                    .put("scaledHeight", panelScaledHeight)
+                    .put("bytes", panelBytes));
+            }
+        }
+
+        return new JSONObject()
+            .put("canvasBytes", canvasBytes)
+            .put("panels", jsonPanels)
+            .put("frameBytes", frameBytes);
+    }
+
+    /**
+     * @param productId The product ID.
+     * @return The summary of the last run of the product, or null if there is none.
+     */
+    public static JSONObject getLastRunSummary(String productId) {
+        File reportDirectory = GroupFrameGenerator.getRunReportDirectory();
+        File[] summaryFiles = reportDirectory.listFiles();
+        if (summaryFiles == null) {
+            return null;
+        }
+
+        JSONObject jsonLastRun = null;
+        long lastModified = 0;
+        for (File summaryFile : summaryFiles) {
+            String filename = summaryFile.getName();
+            if (filename.startsWith(productId + "_") && filename.endsWith(RunReport.SUMMARY_FILE_SUFFIX) && summaryFile.lastModified() > lastModified) {
+                try {
+                    JSONObject jsonSummary = new JSONObject(new String(Files.readAllBytes(summaryFile.toPath()), StandardCharsets.UTF_8));
+                    // Check the product ID. Some product IDs are prefix of other product IDs.
+                    if (productId.equals(jsonSummary.optString("productId")) && jsonSummary.optInt("generatedFrames", 0) > 0) {
+                        jsonLastRun = jsonSummary;
+                        lastModified = summaryFile.lastModified();
+                    }
+                } catch(Exception ex) {
+                    LOGGER.warn(String.format("Could not read the run summary file %s", summaryFile), ex);
+                }
+            }
+        }
+
+        return jsonLastRun;
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.report;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ncanimate.commons.generator.context.GeneratorContext;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timing and counters of a frame generation run.
+ *
+ * Each stage (download, dataset open, draw image, legend, text, render, upload, etc)
+ * is timed using {@link #start()} and {@link #stop(String, long)}.
+ * The report writes:
+ * - A JSON-lines trace, with one line per generated frame: "[productId]_[runDate]_frames.jsonl"
+ *   Skipped frames (already up to date) are only counted.
+ * - A summary at the end of the run, with percentiles for each stage: "[productId]_[runDate]_summary.json"
+ *
+ * Old reports are deleted when a new report is created: traces after {@link #TRACE_MAX_AGE_MS},
+ * summaries after {@link #SUMMARY_MAX_AGE_MS}. Summaries are kept longer, they are used
+ * to estimate the cost of the next run (see WorkPlanner).
+ *
+ * Bytes read only count the NetCDF input files opened by the NetCDF layers.
+ * Layer files (GeoJSON, CSV, styles, etc) and WMS images are not counted.
+ *
+ * Timers are a System.nanoTime() call and a few array updates,
+ * cheap enough to be left on in production.
+ * The report is not thread safe; each GroupFrameGenerator has its own report.
+ */
+public class RunReport {
+    private static final Logger LOGGER = Logger.getLogger(RunReport.class);
+
+    // Stages
+    public static final String STAGE_FRAME = "frame";
+    public static final String STAGE_DOWNLOAD = "download";
+    public static final String STAGE_DATASET_OPEN = "datasetOpen";
+    public static final String STAGE_DRAW_IMAGE = "drawImage";
+    public static final String STAGE_LEGEND_PREPARE = "legendPrepare";
+    public static final String STAGE_LEGEND_DRAW = "legendDraw";
+    public static final String STAGE_TEXT = "text";
+    public static final String STAGE_RENDER = "render"; // Followed by the format. Example: render.PNG
+    public static final String STAGE_UPLOAD = "upload";
+    public static final String STAGE_LAYER_RENDER = "layerRender"; // Followed by the layer type. Example: layerRender.NetCDF
+    public static final String STAGE_LAYER_POST_RENDER = "layerPostRender";
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    public static final String TRACE_FILE_SUFFIX = "_frames.jsonl";
+    public static final String SUMMARY_FILE_SUFFIX = "_summary.json";
+
+    public static final long TRACE_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000; // 7 days
+    public static final long SUMMARY_MAX_AGE_MS = 90L * 24 * 60 * 60 * 1000; // 90 days
+
+    // Report used when the context has no report. Timers are ignored.
+    private static final RunReport DISABLED = new RunReport();
+
+    private boolean enabled;
+    private String productId;
+    private DateTime runDate;
+    private File traceFile;
+    private File summaryFile;
+    private Writer traceWriter;
+
+    // Run totals
+    private Map<String, LongList> stageDurations;
+    private long runBytesRead;
+    private long runBytesWritten;
+    private int generatedFrameCount;
+    private int skippedFrameCount;
+    private JSONObject plan; // Frame order plan, see FrameOrderPlan
+    private long maxUsedHeap; // Heap used at the end of a frame, used to estimate the memory needed by the product
+
+    // Current frame
+    private long frameStart;
+    private Map<String, long[]> frameStages; // Value: [count, total nanoseconds]
+    private long frameBytesRead;
+    private long frameBytesWritten;
+
+    private RunReport() {
+        this.enabled = false;
+    }
+
+    /**
+     * @param reportDirectory Directory where the trace and summary files are written.
+     * @param productId The product ID, used in the report filenames.
+     * @param regionId The region ID, used in the report filenames when the run is limited to one region. Can be null.
+     */
+    public RunReport(File reportDirectory, String productId, String regionId) {
+        this.enabled = true;
+        this.productId = productId;
+        this.runDate = new DateTime();
+        this.stageDurations = new LinkedHashMap<String, LongList>();
+        this.frameStages = new LinkedHashMap<String, long[]>();
+
+        String filenamePrefix = String.format("%s%s_%s",
+                productId,
+                regionId == null ? "" : "_" + regionId,
+                this.runDate.toString("yyyy-MM-dd'T'HH'h'mm'm'ss's'"));
+        this.traceFile = new File(reportDirectory, filenamePrefix + TRACE_FILE_SUFFIX);
+        this.summaryFile = new File(reportDirectory, filenamePrefix + SUMMARY_FILE_SUFFIX);
+
+        if (!reportDirectory.isDirectory() && !reportDirectory.mkdirs()) {
+            LOGGER.error(String.format("Could not create the report directory %s. Run report disabled.", reportDirectory));
+            this.enabled = false;
+        } else {
+            RunReport.prune(reportDirectory, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Delete the traces older than {@link #TRACE_MAX_AGE_MS}
+     * and the summaries older than {@link #SUMMARY_MAX_AGE_MS}.
+     * @param reportDirectory The report directory.
+     * @param now The current time, in milliseconds.
+     */
+    public static void prune(File reportDirectory, long now) {
+        File[] reportFiles = reportDirectory.listFiles();
+        if (reportFiles == null) {
+            return;
+        }
+
+        for (File reportFile : reportFiles) {
+            String filename = reportFile.getName();
+            long maxAge;
+            if (filename.endsWith(TRACE_FILE_SUFFIX)) {
+                maxAge = TRACE_MAX_AGE_MS;
+            } else if (filename.endsWith(SUMMARY_FILE_SUFFIX)) {
+                maxAge = SUMMARY_MAX_AGE_MS;
+            } else {
+                continue;
+            }
+
+            if (now - reportFile.lastModified() > maxAge && !reportFile.delete()) {
+                LOGGER.warn(String.format("Could not delete the old report file %s", reportFile));
+            }
+        }
+    }
+
+    /**
+     * Returns the report associated with the context, or a disabled report.
+     * Never returns null.
+     * @param context The generator context.
+     * @return The report.
+     */
+    public static RunReport get(GeneratorContext context) {
+        if (context instanceof FrameGeneratorContext) {
+            RunReport runReport = ((FrameGeneratorContext)context).getRunReport();
+            if (runReport != null) {
+                return runReport;
+            }
+        }
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public File getTraceFile() {
+        return this.traceFile;
+    }
+
+    public File getSummaryFile() {
+        return this.summaryFile;
+    }
+
+    /**
+     * @return The start time of a stage, to be passed to {@link #stop(String, long)}.
+     */
+    public long start() {
+        return this.enabled ? System.nanoTime() : 0;
+    }
+
+    public void stop(String stage, long start) {
+        if (this.enabled) {
+            this.addStageDuration(stage, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param bytes Size of a NetCDF input file opened for the frame.
+     */
+    public void addBytesRead(long bytes) {
+        if (this.enabled) {
+            this.frameBytesRead += bytes;
+            this.runBytesRead += bytes;
+        }
+    }
+
+    public void addBytesWritten(long bytes) {
+        if (this.enabled) {
+            this.frameBytesWritten += bytes;
+            this.runBytesWritten += bytes;
+        }
+    }
+
+    public void setPlan(JSONObject plan) {
+        if (this.enabled) {
+            this.plan = plan;
+        }
+    }
+
+    /**
+     * Count frames which were skipped without being started. Example: frames found in the checkpoint journal.
+     * @param count The number of frames skipped.
+     */
+    public void addSkippedFrames(int count) {
+        if (this.enabled) {
+            this.skippedFrameCount += count;
+        }
+    }
+
+    public void startFrame() {
+        if (this.enabled) {
+            this.frameStages.clear();
+            this.frameBytesRead = 0;
+            this.frameBytesWritten = 0;
+            this.frameStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Write the frame trace line. Skipped frames are only counted.
+     * @param context The frame context.
+     * @param generated false if the frame was skipped (already up to date).
+     */
+    public void endFrame(FrameGeneratorContext context, boolean generated) {
+        if (!this.enabled) {
+            return;
+        }
+
+        long frameDuration = System.nanoTime() - this.frameStart;
+        if (generated) {
+            this.generatedFrameCount++;
+            this.addStageDuration(STAGE_FRAME, frameDuration);
+
+            Runtime runtime = Runtime.getRuntime();
+            long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+            if (usedHeap > this.maxUsedHeap) {
+                this.maxUsedHeap = usedHeap;
+            }
+        } else {
+            // Most frames of a run are usually up to date, a trace line for each of them
+            // would make the trace mostly noise.
+            this.skippedFrameCount++;
+            return;
+        }
+
+        NcAnimateRegionBean region = context.getRegion();
+        DateTimeRange frameDateRange = context.getFrameDateRange();
+
+        JSONObject jsonStages = new JSONObject();
+        for (Map.Entry<String, long[]> stageEntry : this.frameStages.entrySet()) {
+            long[] stageValues = stageEntry.getValue();
+            jsonStages.put(stageEntry.getKey(), new JSONObject()
+                .put("count", stageValues[0])
+                .put("ms", RunReport.toMillis(stageValues[1])));
+        }
+
+        JSONObject jsonFrame = new JSONObject()
+            .put("productId", this.productId)
+            .put("regionId", region == null || region.getId() == null ? null : region.getId().getValue())
+            .put("targetHeight", context.getTargetHeight())
+            .put("frameDate", frameDateRange == null ? null : frameDateRange.getStartDate())
+            .put("generated", generated)
+            .put("ms", RunReport.toMillis(frameDuration))
+            .put("bytesRead", this.frameBytesRead)
+            .put("bytesWritten", this.frameBytesWritten)
+            .put("stages", jsonStages);
+
+        try {
+            if (this.traceWriter == null) {
+                this.traceWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.traceFile, true), StandardCharsets.UTF_8));
+            }
+            this.traceWriter.write(jsonFrame.toString());
+            this.traceWriter.write("\n");
+            // Flush every line, to keep the trace of the generated frames if the run crashes
+            this.traceWriter.flush();
+        } catch(IOException ex) {
+            LOGGER.error(String.format("Could not write the frame trace file %s. Run report disabled.", this.traceFile), ex);
+            this.enabled = false;
+        }
+    }
+
+    public JSONObject getSummary() {
+        JSONObject jsonStages = new JSONObject();
+        if (this.stageDurations != null) {
+            for (Map.Entry<String, LongList> stageEntry : this.stageDurations.entrySet()) {
+                long[] durations = stageEntry.getValue().toSortedArray();
+                long total = 0;
+                for (long duration : durations) {
+                    total += duration;
+                }
+
+                jsonStages.put(stageEntry.getKey(), new JSONObject()
+                    .put("count", durations.length)
+                    .put("totalMs", RunReport.toMillis(total))
+                    .put("meanMs", RunReport.toMillis(durations.length == 0 ? 0 : total / durations.length))
+                    .put("p50Ms", RunReport.toMillis(RunReport.percentile(durations, 50)))
+                    .put("p90Ms", RunReport.toMillis(RunReport.percentile(durations, 90)))
+                    .put("p99Ms", RunReport.toMillis(RunReport.percentile(durations, 99)))
+                    .put("maxMs", RunReport.toMillis(durations.length == 0 ? 0 : durations[durations.length - 1])));
+            }
+        }
+
+        return new JSONObject()
+            .put("productId", this.productId)
+            .put("runDate", this.runDate)
+            .put("endDate", new DateTime())
+            .put("generatedFrames", this.generatedFrameCount)
+            .put("skippedFrames", this.skippedFrameCount)
+            .put("bytesRead", this.runBytesRead)
+            .put("bytesWritten", this.runBytesWritten)
+            .put("maxUsedHeapBytes", this.maxUsedHeap)
+            .put("plan", this.plan)
+            .put("stages", jsonStages);
+    }
+
+    /**
+     * Close the trace file and write the run summary.
+     */
+    public void close() {
+        if (!this.enabled) {
+            return;
+        }
+
+        if (this.traceWriter != null) {
+            try {
+                this.traceWriter.close();
+            } catch(IOException ex) {
+                LOGGER.warn(String.format("Could not close the frame trace file %s", this.traceFile), ex);
+            }
+            this.traceWriter = null;
+        }
+
+        try (Writer summaryWriter = new OutputStreamWriter(new FileOutputStream(this.summaryFile), StandardCharsets.UTF_8)) {
+            summaryWriter.write(this.getSummary().toString(4));
+        } catch(IOException ex) {
+            LOGGER.error(String.format("Could not write the run summary file %s", this.summaryFile), ex);
+        }
+        LOGGER.info(String.format("Run report written to %s", this.summaryFile));
+    }
+
+    private void addStageDuration(String stage, long duration) {
+        long[] frameStageValues = this.frameStages.get(stage);
+        if (frameStageValues == null) {
+            frameStageValues = new long[2];
+            this.frameStages.put(stage, frameStageValues);
+        }
+        frameStageValues[0]++;
+        frameStageValues[1] += duration;
+
+        LongList durations = this.stageDurations.get(stage);
+        if (durations == null) {
+            durations = new LongList();
+            this.stageDurations.put(stage, durations);
+        }
+        durations.add(duration);
+    }
+
+    // Nearest-rank percentile
+    private static long percentile(long[] sortedValues, int percentile) {
+        if (sortedValues.length == 0) {
+            return 0;
+        }
+        int rank = (int)Math.ceil(percentile / 100.0 * sortedValues.length);
+        return sortedValues[Math.max(0, Math.min(sortedValues.length - 1, rank - 1))];
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / NANOS_PER_MILLI * 1000) / 1000.0;
+    }
+
+    /**
+     * Growable list of primitive long, to avoid boxing every duration.
+     */
+    private static class LongList {
+        private long[] values = new long[64];
+        private int size = 0;
+
+        public void add(long value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.values.length * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        public long[] toSortedArray() {
+            long[] sortedValues = Arrays.copyOf(this.values, this.size);
+            Arrays.sort(sortedValues);
+            return sortedValues;
+        }
+    }
+}
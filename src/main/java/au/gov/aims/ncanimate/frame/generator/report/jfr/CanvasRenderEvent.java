@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.report.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("au.gov.aims.ncanimate.CanvasRender")
+@Label("Canvas Render")
+@Description("Encoding of the frame canvas into a map format (PNG, SVG, etc)")
+public class CanvasRenderEvent extends NcAnimateEvent {
+    @Label("Format")
+    private String format;
+
+    @Label("Bytes Written")
+    @DataAmount
+    private long bytesWritten;
+
+    public CanvasRenderEvent(String format) {
+        this.format = format;
+    }
+
+    public void setBytesWritten(long bytesWritten) {
+        this.bytesWritten = bytesWritten;
+    }
+}
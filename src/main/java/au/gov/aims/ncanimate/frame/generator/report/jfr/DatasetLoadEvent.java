@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.report.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.File;
+
+@Name("au.gov.aims.ncanimate.DatasetLoad")
+@Label("Dataset Load")
+@Description("Loading of a NetCDF / GRIB file into an EDAL dataset")
+public class DatasetLoadEvent extends NcAnimateEvent {
+    @Label("File")
+    private String file;
+
+    @Label("File Size")
+    @DataAmount
+    private long fileSize;
+
+    public DatasetLoadEvent(File file) {
+        this.file = file == null ? null : file.getPath();
+        this.fileSize = file == null ? 0 : file.length();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.report.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("au.gov.aims.ncanimate.DrawImage")
+@Label("Draw Image")
+@Description("EDAL MapImage.drawImage call: data extraction and rendering of a data layer")
+public class DrawImageEvent extends NcAnimateEvent {
+    public static final String RASTER = "raster";
+    public static final String ARROWS = "arrows";
+    public static final String TRUE_COLOUR = "true colour";
+
+    @Label("Drawable")
+    @Description("Type of data layer: raster, arrows or true colour")
+    private String drawable;
+
+    @Label("Variable ID")
+    private String variableId;
+
+    public DrawImageEvent(String drawable, String variableId) {
+        this.drawable = drawable;
+        this.variableId = variableId;
+    }
+}
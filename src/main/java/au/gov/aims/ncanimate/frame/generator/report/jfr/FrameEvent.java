@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.report.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("au.gov.aims.ncanimate.Frame")
+@Label("Frame")
+@Description("Generation of a frame (all map formats)")
+public class FrameEvent extends NcAnimateEvent {
+    @Label("Generated")
+    @Description("False when the frame files were already up to date")
+    private boolean generated;
+
+    public void setGenerated(boolean generated) {
+        this.generated = generated;
+    }
+}
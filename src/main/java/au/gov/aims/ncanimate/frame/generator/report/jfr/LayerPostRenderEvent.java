@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.report.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("au.gov.aims.ncanimate.LayerPostRender")
+@Label("Layer Post Render")
+@Description("Post rendering of a layer (legends), after all the layers of the panel are rendered")
+public class LayerPostRenderEvent extends NcAnimateEvent {
+    @Label("Layer Type")
+    private String layerType;
+
+    public LayerPostRenderEvent(String layerType) {
+        this.layerType = layerType;
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.report.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("au.gov.aims.ncanimate.LayerRender")
+@Label("Layer Render")
+@Description("Initialisation and rendering of a layer on a frame panel")
+public class LayerRenderEvent extends NcAnimateEvent {
+    @Label("Layer Type")
+    private String layerType;
+
+    public LayerRenderEvent(String layerType) {
+        this.layerType = layerType;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.report.jfr;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ncanimate.commons.generator.context.GeneratorContext;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event of an NcAnimate frame operation.
+ *
+ * Every event carries the product ID, region, target height, frame date and layer ID (when applicable),
+ * so a recording can be grouped by product and layer, and correlated with GC and allocation events.
+ * The events are disabled unless a recording is running, their cost is then an allocation
+ * and a timestamp. Usage:
+ *     FrameEvent event = new FrameEvent();
+ *     event.begin();
+ *     ...
+ *     event.commit(context, layerId);
+ *
+ * NOTE: JFR requires OpenJDK 8u262 or later.
+ */
+@Category("NcAnimate")
+@StackTrace(false)
+public abstract class NcAnimateEvent extends Event {
+    @Label("Product ID")
+    private String productId;
+
+    @Label("Region")
+    private String regionId;
+
+    @Label("Target Height")
+    private double targetHeight = Double.NaN;
+
+    @Label("Frame Date")
+    private String frameDate;
+
+    @Label("Layer ID")
+    private String layerId;
+
+    /**
+     * End the event and commit it, if it's enabled and its duration is above the configured threshold.
+     * @param context The generator context, used to set the product ID, region, target height and frame date.
+     * @param layerId The layer ID, or null if the operation is not related to a layer.
+     */
+    public void commit(GeneratorContext context, String layerId) {
+        this.end();
+        if (!this.shouldCommit()) {
+            return;
+        }
+
+        if (context != null) {
+            NcAnimateConfigBean ncAnimateConfig = context.getNcAnimateConfig();
+            if (ncAnimateConfig != null && ncAnimateConfig.getId() != null) {
+                this.productId = ncAnimateConfig.getId().getValue();
+            }
+
+            NcAnimateRegionBean region = context.getRegion();
+            if (region != null && region.getId() != null) {
+                this.regionId = region.getId().getValue();
+            }
+
+            Double contextTargetHeight = context.getTargetHeight();
+            if (contextTargetHeight != null) {
+                this.targetHeight = contextTargetHeight;
+            }
+
+            if (context instanceof FrameGeneratorContext) {
+                DateTimeRange frameDateRange = ((FrameGeneratorContext)context).getFrameDateRange();
+                if (frameDateRange != null && frameDateRange.getStartDate() != null) {
+                    this.frameDate = frameDateRange.getStartDate().toString();
+                }
+            }
+        }
+        this.layerId = layerId;
+
+        this.commit();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.report.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("au.gov.aims.ncanimate.S3Transfer")
+@Label("S3 Transfer")
+@Description("Download of an input file (NetCDF, layer, style, palette, etc) or upload of a frame file")
+public class S3TransferEvent extends NcAnimateEvent {
+    public static final String DOWNLOAD = "download";
+    public static final String UPLOAD = "upload";
+
+    @Label("Direction")
+    private String direction;
+
+    @Label("URI")
+    private String uri;
+
+    @Label("Bytes")
+    @DataAmount
+    private long bytes;
+
+    public S3TransferEvent(String direction, Object uri) {
+        this.direction = direction;
+        this.uri = uri == null ? null : uri.toString();
+    }
+
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+}
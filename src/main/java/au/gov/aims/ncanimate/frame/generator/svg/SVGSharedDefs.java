@@ -0,0 +1,574 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.svg;
+
+import au.gov.aims.ncanimate.frame.generator.checkpoint.AtomicFiles;
+import org.apache.log4j.Logger;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Write SVG frames with their static layers in a shared defs file.
+ *
+ * - Static vector layers (see AbstractLayerGenerator.isStaticLayer()), which are identical on every frame,
+ *   are written once to a shared defs file (one per frame directory, i.e. per region / target height)
+ *   and referenced from the frames with a <use> element.
+ * - Embedded raster images (base64 data URI) are written next to the frame
+ *   as external image files.
+ *
+ * The SVG document is serialised by the vector library, which can not emit <use> elements.
+ * The references are emitted while the canvas output is streamed to the frame file,
+ * in a single pass, without building a DOM. Once a static layer is in the shared defs file,
+ * its content is skipped without being buffered.
+ *
+ * The frame references files of the frame directory, it must be published with them.
+ * Frames uploaded to S3 on their own are never written with shared defs (see FrameGenerator).
+ *
+ * The shared defs files are kept in memory for the duration of a run. See {@link #clearCache()}.
+ */
+public class SVGSharedDefs {
+    private static final Logger LOGGER = Logger.getLogger(SVGSharedDefs.class);
+
+    public static final String SHARED_DEFS_FILENAME = "shared_defs.svg";
+
+    private static final String SVG_NS = "http://www.w3.org/2000/svg";
+    private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+
+    // Example: clip-path="url(#clip1)"
+    private static final Pattern LOCAL_URL_PATTERN = Pattern.compile("url\\(\\s*#([^)\\s]+)\\s*\\)");
+
+    // Example: xlink:href="data:image/png;base64,iVBORw0KGgo..."
+    private static final Pattern DATA_URI_PATTERN = Pattern.compile("^data:image/(png|jpeg|gif);base64,(.*)$", Pattern.DOTALL);
+
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    // Key: shared defs file
+    private static Map<File, SharedDefsFile> sharedDefsCache;
+
+    /**
+     * Write the SVG rendered by the canvas to the frame file,
+     * replacing static layers with references to the shared defs file
+     * and embedded raster images with external files.
+     * @param renderedSvgFile The SVG rendered by the canvas, usually a temporary file. It's not modified.
+     * @param svgFile The SVG frame file. It's written atomically, see AtomicFiles.
+     * @param staticLayerTitles The title of the static layers of the frame.
+     *     Layers are grouped by the vector library using the layer title, see AbstractLayerGenerator.getLayerTitle()
+     * @throws Exception If the rendered SVG can not be read, or the frame file can not be written.
+     *     The frame file is not written when an exception occurs.
+     */
+    public static void write(File renderedSvgFile, File svgFile, Set<String> staticLayerTitles) throws Exception {
+        File frameDirectory = svgFile.getAbsoluteFile().getParentFile();
+        String frameName = svgFile.getName().replaceFirst("\\.svg$", "");
+
+        SharedDefsFile sharedDefsFile = SVGSharedDefs.getSharedDefsFile(new File(frameDirectory, SHARED_DEFS_FILENAME));
+
+        // Title -> symbol ID
+        Map<String, String> staticLayerSymbolIds = new HashMap<String, String>();
+        boolean missingSymbol = false;
+        if (staticLayerTitles != null) {
+            for (String staticLayerTitle : staticLayerTitles) {
+                String symbolId = SVGSharedDefs.getSymbolId(staticLayerTitle);
+                staticLayerSymbolIds.put(staticLayerTitle, symbolId);
+                if (!sharedDefsFile.contains(symbolId)) {
+                    missingSymbol = true;
+                }
+            }
+        }
+
+        // Elements of the frame defs which may be referenced by static layers (clip path, gradients, etc).
+        // Only collected when a static layer needs to be added to the shared defs file.
+        // Key: element ID, value: events of the top level defs element containing it
+        Map<String, List<XMLEvent>> defsIndex = new HashMap<String, List<XMLEvent>>();
+        // Static layers to add to the shared defs file. Key: symbol ID
+        Map<String, List<XMLEvent>> newSymbols = new LinkedHashMap<String, List<XMLEvent>>();
+
+        File tmpFile = AtomicFiles.getTmpFile(svgFile);
+        try {
+            InputStream inputStream = new FileInputStream(renderedSvgFile);
+            OutputStream outputStream = new FileOutputStream(tmpFile);
+            XMLEventReader reader = null;
+            XMLEventWriter writer = null;
+            try {
+                reader = SVGSharedDefs.createReader(inputStream);
+                writer = XMLOutputFactory.newInstance().createXMLEventWriter(outputStream, StandardCharsets.UTF_8.name());
+
+                int imageIndex = 0;
+                // Depth of the defs element (outside static layers), 0 when outside defs
+                int defsDepth = 0;
+                int depth = 0;
+                List<XMLEvent> defsElement = null;
+
+                while (reader.hasNext()) {
+                    XMLEvent event = reader.nextEvent();
+
+                    if (event.isStartDocument()) {
+                        writer.add(EVENT_FACTORY.createStartDocument(StandardCharsets.UTF_8.name(), "1.0"));
+                        continue;
+                    }
+
+                    if (event.isStartElement()) {
+                        StartElement startElement = event.asStartElement();
+                        String localName = startElement.getName().getLocalPart();
+
+                        String symbolId = "g".equals(localName) ?
+                                SVGSharedDefs.getStaticLayerSymbolId(startElement, staticLayerSymbolIds) : null;
+                        if (symbolId != null) {
+                            // Static layer, already in the shared defs file: skip it.
+                            // Otherwise, keep it to be added to the shared defs file.
+                            List<XMLEvent> layerEvents = sharedDefsFile.contains(symbolId) || newSymbols.containsKey(symbolId) ?
+                                    null : new ArrayList<XMLEvent>();
+                            SVGSharedDefs.readElement(startElement, reader, layerEvents);
+                            if (layerEvents != null) {
+                                newSymbols.put(symbolId, layerEvents);
+                            }
+
+                            List<Namespace> namespaces = Collections.singletonList(EVENT_FACTORY.createNamespace("xlink", XLINK_NS));
+                            List<Attribute> attributes = Collections.singletonList(
+                                    EVENT_FACTORY.createAttribute("xlink", XLINK_NS, "href", SHARED_DEFS_FILENAME + "#" + symbolId));
+                            writer.add(EVENT_FACTORY.createStartElement("", SVG_NS, "use", attributes.iterator(), namespaces.iterator()));
+                            writer.add(EVENT_FACTORY.createEndElement("", SVG_NS, "use"));
+                            continue;
+                        }
+
+                        if ("image".equals(localName)) {
+                            Attribute hrefAttr = SVGSharedDefs.getHrefAttribute(startElement);
+                            if (hrefAttr != null) {
+                                Matcher matcher = DATA_URI_PATTERN.matcher(hrefAttr.getValue());
+                                if (matcher.matches()) {
+                                    String extension = "jpeg".equals(matcher.group(1)) ? "jpg" : matcher.group(1);
+                                    String imageFilename = String.format("%s_%d.%s", frameName, imageIndex++, extension);
+                                    byte[] imageBytes = Base64.getMimeDecoder().decode(matcher.group(2));
+                                    Files.write(new File(frameDirectory, imageFilename).toPath(), imageBytes);
+
+                                    event = SVGSharedDefs.replaceAttributeValue(startElement, hrefAttr.getName(), imageFilename);
+                                }
+                            }
+                        }
+
+                        depth++;
+                        if (missingSymbol) {
+                            if (defsDepth > 0 && depth == defsDepth + 1) {
+                                defsElement = new ArrayList<XMLEvent>();
+                            }
+                            if (defsElement != null) {
+                                defsElement.add(event);
+                                String id = SVGSharedDefs.getId(startElement);
+                                if (id != null) {
+                                    defsIndex.put(id, defsElement);
+                                }
+                            }
+                            if (defsDepth == 0 && "defs".equals(localName)) {
+                                defsDepth = depth;
+                            }
+                        }
+
+                    } else if (event.isEndElement()) {
+                        if (defsElement != null) {
+                            defsElement.add(event);
+                            if (depth == defsDepth + 1) {
+                                defsElement = null;
+                            }
+                        }
+                        if (depth == defsDepth) {
+                            defsDepth = 0;
+                        }
+                        depth--;
+
+                    } else if (defsElement != null) {
+                        defsElement.add(event);
+                    }
+
+                    writer.add(event);
+                }
+                writer.flush();
+            } finally {
+                if (writer != null) {
+                    writer.close();
+                }
+                if (reader != null) {
+                    reader.close();
+                }
+                outputStream.close();
+                inputStream.close();
+            }
+
+            for (Map.Entry<String, List<XMLEvent>> newSymbol : newSymbols.entrySet()) {
+                sharedDefsFile.add(newSymbol.getKey(), SVGSharedDefs.createSymbol(newSymbol.getKey(), newSymbol.getValue(), defsIndex));
+            }
+
+            AtomicFiles.commit(tmpFile, svgFile);
+        } finally {
+            AtomicFiles.discard(tmpFile);
+        }
+    }
+
+    public static synchronized void clearCache() {
+        if (SVGSharedDefs.sharedDefsCache != null) {
+            SVGSharedDefs.sharedDefsCache.clear();
+            SVGSharedDefs.sharedDefsCache = null;
+        }
+    }
+
+    private static synchronized SharedDefsFile getSharedDefsFile(File file) {
+        if (SVGSharedDefs.sharedDefsCache == null) {
+            SVGSharedDefs.sharedDefsCache = new HashMap<File, SharedDefsFile>();
+        }
+
+        SharedDefsFile sharedDefsFile = SVGSharedDefs.sharedDefsCache.get(file);
+        if (sharedDefsFile == null) {
+            sharedDefsFile = new SharedDefsFile(file);
+            SVGSharedDefs.sharedDefsCache.put(file, sharedDefsFile);
+        }
+
+        return sharedDefsFile;
+    }
+
+    // Static layers are the same on every frame of a frame directory, they are identified by their title.
+    private static String getSymbolId(String layerTitle) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        byte[] hash = digest.digest(layerTitle.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder("layer_");
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static String getStaticLayerSymbolId(StartElement group, Map<String, String> staticLayerSymbolIds) {
+        if (staticLayerSymbolIds.isEmpty()) {
+            return null;
+        }
+        Iterator<?> attributes = group.getAttributes();
+        while (attributes.hasNext()) {
+            String symbolId = staticLayerSymbolIds.get(((Attribute)attributes.next()).getValue());
+            if (symbolId != null) {
+                return symbolId;
+            }
+        }
+        return null;
+    }
+
+    private static XMLEventReader createReader(InputStream inputStream) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        // Do not download the SVG DTD
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory.createXMLEventReader(inputStream);
+    }
+
+    /**
+     * Read the element, up to its end element.
+     * @param startElement The start of the element, already read.
+     * @param reader The reader.
+     * @param events List used to collect the events of the element, or null to skip the element.
+     */
+    private static void readElement(StartElement startElement, XMLEventReader reader, List<XMLEvent> events) throws XMLStreamException {
+        if (events != null) {
+            events.add(startElement);
+        }
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                depth--;
+            }
+            if (events != null) {
+                events.add(event);
+            }
+        }
+    }
+
+    private static String getId(StartElement element) {
+        Attribute idAttr = element.getAttributeByName(new QName("id"));
+        return idAttr == null ? null : idAttr.getValue();
+    }
+
+    private static Attribute getHrefAttribute(StartElement element) {
+        Attribute hrefAttr = element.getAttributeByName(new QName(XLINK_NS, "href"));
+        if (hrefAttr == null) {
+            hrefAttr = element.getAttributeByName(new QName("href"));
+        }
+        return hrefAttr;
+    }
+
+    /**
+     * Serialise the static layer, with the elements of the frame defs it references (clip path, gradients, etc).
+     * IDs are prefixed with the symbol ID, to be unique in the shared defs file.
+     */
+    private static String createSymbol(String symbolId, List<XMLEvent> layerEvents, Map<String, List<XMLEvent>> defsIndex) throws Exception {
+        // Find the IDs used by the layer, and the defs elements they reference
+        Set<String> ids = new LinkedHashSet<String>();
+        SVGSharedDefs.collectIds(layerEvents, ids);
+        Set<List<XMLEvent>> referencedElements = Collections.newSetFromMap(new LinkedHashMap<List<XMLEvent>, Boolean>());
+        List<String> pendingIds = new ArrayList<String>(ids);
+        while (!pendingIds.isEmpty()) {
+            List<XMLEvent> referencedElement = defsIndex.get(pendingIds.remove(0));
+            if (referencedElement != null && referencedElements.add(referencedElement)) {
+                Set<String> referencedIds = new LinkedHashSet<String>();
+                SVGSharedDefs.collectIds(referencedElement, referencedIds);
+                for (String referencedId : referencedIds) {
+                    if (ids.add(referencedId)) {
+                        pendingIds.add(referencedId);
+                    }
+                }
+            }
+        }
+
+        Map<String, String> idMap = new HashMap<String, String>();
+        for (String id : ids) {
+            idMap.put(id, symbolId + "_" + id);
+        }
+
+        StringWriter symbolWriter = new StringWriter();
+        XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(symbolWriter);
+        try {
+            List<Attribute> symbolAttributes = Collections.singletonList(EVENT_FACTORY.createAttribute("id", symbolId));
+            writer.add(EVENT_FACTORY.createStartElement("", SVG_NS, "g", symbolAttributes.iterator(), Collections.<Namespace>emptyList().iterator()));
+            if (!referencedElements.isEmpty()) {
+                writer.add(EVENT_FACTORY.createStartElement("", SVG_NS, "defs"));
+                for (List<XMLEvent> referencedElement : referencedElements) {
+                    SVGSharedDefs.writeRenamed(writer, referencedElement, idMap);
+                }
+                writer.add(EVENT_FACTORY.createEndElement("", SVG_NS, "defs"));
+            }
+            SVGSharedDefs.writeRenamed(writer, layerEvents, idMap);
+            writer.add(EVENT_FACTORY.createEndElement("", SVG_NS, "g"));
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+
+        return symbolWriter.toString();
+    }
+
+    /**
+     * Find the IDs defined in the elements, and the IDs referenced by the elements
+     * (clip path, gradients, etc), in order of appearance.
+     */
+    private static void collectIds(List<XMLEvent> events, Set<String> ids) {
+        for (XMLEvent event : events) {
+            if (event.isStartElement()) {
+                Iterator<?> attributes = event.asStartElement().getAttributes();
+                while (attributes.hasNext()) {
+                    Attribute attribute = (Attribute)attributes.next();
+                    String name = attribute.getName().getLocalPart();
+                    String value = attribute.getValue();
+
+                    if ("id".equals(name)) {
+                        ids.add(value);
+                    } else if ("href".equals(name) && value.startsWith("#")) {
+                        ids.add(value.substring(1));
+                    } else {
+                        Matcher matcher = LOCAL_URL_PATTERN.matcher(value);
+                        while (matcher.find()) {
+                            ids.add(matcher.group(1));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeRenamed(XMLEventWriter writer, List<XMLEvent> events, Map<String, String> idMap) throws XMLStreamException {
+        for (XMLEvent event : events) {
+            if (event.isStartElement()) {
+                writer.add(SVGSharedDefs.renameIds(event.asStartElement(), idMap));
+            } else {
+                writer.add(event);
+            }
+        }
+    }
+
+    private static StartElement renameIds(StartElement element, Map<String, String> idMap) {
+        List<Attribute> renamedAttributes = new ArrayList<Attribute>();
+        Iterator<?> attributes = element.getAttributes();
+        while (attributes.hasNext()) {
+            Attribute attribute = (Attribute)attributes.next();
+            String name = attribute.getName().getLocalPart();
+            String value = attribute.getValue();
+            String renamedValue = value;
+
+            if ("id".equals(name)) {
+                if (idMap.containsKey(value)) {
+                    renamedValue = idMap.get(value);
+                }
+            } else if ("href".equals(name) && value.startsWith("#")) {
+                if (idMap.containsKey(value.substring(1))) {
+                    renamedValue = "#" + idMap.get(value.substring(1));
+                }
+            } else {
+                Matcher matcher = LOCAL_URL_PATTERN.matcher(value);
+                StringBuffer renamedValueBuffer = new StringBuffer();
+                while (matcher.find()) {
+                    String id = matcher.group(1);
+                    String newId = idMap.containsKey(id) ? idMap.get(id) : id;
+                    matcher.appendReplacement(renamedValueBuffer, Matcher.quoteReplacement("url(#" + newId + ")"));
+                }
+                matcher.appendTail(renamedValueBuffer);
+                renamedValue = renamedValueBuffer.toString();
+            }
+
+            renamedAttributes.add(renamedValue.equals(value) ? attribute :
+                    EVENT_FACTORY.createAttribute(attribute.getName(), renamedValue));
+        }
+
+        QName name = element.getName();
+        return EVENT_FACTORY.createStartElement(name.getPrefix(), name.getNamespaceURI(), name.getLocalPart(),
+                renamedAttributes.iterator(), element.getNamespaces());
+    }
+
+    private static StartElement replaceAttributeValue(StartElement element, QName attributeName, String value) {
+        List<Attribute> replacedAttributes = new ArrayList<Attribute>();
+        Iterator<?> attributes = element.getAttributes();
+        while (attributes.hasNext()) {
+            Attribute attribute = (Attribute)attributes.next();
+            if (attribute.getName().equals(attributeName)) {
+                attribute = EVENT_FACTORY.createAttribute(attributeName, value);
+            }
+            replacedAttributes.add(attribute);
+        }
+
+        QName name = element.getName();
+        return EVENT_FACTORY.createStartElement(name.getPrefix(), name.getNamespaceURI(), name.getLocalPart(),
+                replacedAttributes.iterator(), element.getNamespaces());
+    }
+
+    /**
+     * SVG file containing the static layers of every frames of a frame directory.
+     * Each symbol is a group containing the static layer and the elements it references.
+     */
+    private static class SharedDefsFile {
+        private File file;
+        // Key: symbol ID, value: serialised symbol
+        private Map<String, String> symbols;
+
+        public SharedDefsFile(File file) {
+            this.file = file;
+            this.symbols = new LinkedHashMap<String, String>();
+
+            if (file.exists()) {
+                try {
+                    this.load();
+                } catch(Exception ex) {
+                    LOGGER.warn(String.format("Invalid shared defs file %s. The file will be re-created.", file), ex);
+                    this.symbols.clear();
+                }
+            }
+        }
+
+        // Read the symbols written by a previous run
+        private void load() throws Exception {
+            InputStream inputStream = new FileInputStream(this.file);
+            XMLEventReader reader = null;
+            try {
+                reader = SVGSharedDefs.createReader(inputStream);
+                int depth = 0;
+                while (reader.hasNext()) {
+                    XMLEvent event = reader.nextEvent();
+                    if (event.isStartElement()) {
+                        depth++;
+                        // The symbols are the children of <svg><defs>
+                        if (depth == 3) {
+                            StartElement symbolElement = event.asStartElement();
+                            List<XMLEvent> symbolEvents = new ArrayList<XMLEvent>();
+                            SVGSharedDefs.readElement(symbolElement, reader, symbolEvents);
+                            depth--;
+
+                            String symbolId = SVGSharedDefs.getId(symbolElement);
+                            if (symbolId != null) {
+                                StringWriter symbolWriter = new StringWriter();
+                                XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(symbolWriter);
+                                try {
+                                    for (XMLEvent symbolEvent : symbolEvents) {
+                                        writer.add(symbolEvent);
+                                    }
+                                    writer.flush();
+                                } finally {
+                                    writer.close();
+                                }
+                                this.symbols.put(symbolId, symbolWriter.toString());
+                            }
+                        }
+                    } else if (event.isEndElement()) {
+                        depth--;
+                    }
+                }
+            } finally {
+                if (reader != null) {
+                    reader.close();
+                }
+                inputStream.close();
+            }
+        }
+
+        public synchronized boolean contains(String symbolId) {
+            return this.symbols.containsKey(symbolId);
+        }
+
+        /**
+         * Add the symbol to the shared defs file, and save the file.
+         * Symbols already in the file are not replaced.
+         */
+        public synchronized void add(String symbolId, String symbol) throws Exception {
+            if (!this.symbols.containsKey(symbolId)) {
+                this.symbols.put(symbolId, symbol);
+                this.save();
+            }
+        }
+
+        // Write to a temporary file first, to never leave a partially written shared defs file behind.
+        private void save() throws Exception {
+            StringBuilder content = new StringBuilder();
+            content.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            content.append(String.format("<svg xmlns=\"%s\" xmlns:xlink=\"%s\"><defs>", SVG_NS, XLINK_NS));
+            for (String symbol : this.symbols.values()) {
+                content.append(symbol);
+            }
+            content.append("</defs></svg>");
+
+            File tmpFile = AtomicFiles.getTmpFile(this.file);
+            try {
+                Files.write(tmpFile.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+                AtomicFiles.commit(tmpFile, this.file);
+            } finally {
+                AtomicFiles.discard(tmpFile);
+            }
+        }
+    }
+}
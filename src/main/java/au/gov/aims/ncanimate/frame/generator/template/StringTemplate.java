@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.template;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateTextBean;
+import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import au.gov.aims.ncanimate.commons.generator.context.GeneratorContext;
+import au.gov.aims.ncanimate.commons.generator.context.LayerContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pre-compiled version of a string parsed with {@link NcAnimateUtils#parseString(List, GeneratorContext, Map)}.
+ *
+ * The template is scanned once to find which placeholders it references.
+ * - Constant strings (no placeholders) are parsed once and cached for the whole run.
+ * - Strings which only reference placeholders that do not change from one frame to another
+ *   (region, target height, canvas size, etc) are parsed once per config / region / target height.
+ * - Strings referencing frame dependent placeholders (frame date, layer metadata, etc)
+ *   are parsed every time.
+ *
+ * Templates are cached by FrameGenerator for the duration of a run. See {@link #clearCache()}.
+ * The same template string can be used by different products (config) which share region IDs,
+ * so parsed values are also keyed by config instance.
+ */
+public class StringTemplate {
+    // Example: ${ctx.frameDateFrom dd-MMM-yyyy}
+    //     Placeholder name: ctx.frameDateFrom
+    private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("\\$\\{\\s*([^}\\s]+)[^}]*\\}");
+
+    // Placeholders (or placeholder prefixes) which value changes from one frame to another.
+    private static final String[] FRAME_DEPENDENT_PREFIXES = new String[] {
+        "ctx.frame",          // frameDateFrom, frameDateTo, frameDateRange, frameFiles, etc
+        "ctx.generationDate", // Date of the generation, may change during a long run
+        "ctx.panel",          // Changes for each panel of the frame
+        "layer.",             // Layer context, depends on the NetCDF file used for the frame
+        "layers."
+    };
+    private static final String CONTEXT_PREFIX = "ctx.";
+
+    private static final String CACHE_KEY_SEPARATOR = "\u0000";
+
+    // Key: template strings, joined with CACHE_KEY_SEPARATOR
+    private static Map<String, StringTemplate> templateCache;
+
+    private List<String> templates;
+    private Set<String> placeholders;
+    private boolean frameDependent;
+
+    // Parsed values of frame independent templates.
+    // Key: config instance, then region ID + target height
+    private Map<NcAnimateConfigBean, Map<String, String>> parsedValueCache;
+
+    private StringTemplate(List<String> templates) {
+        this.templates = templates;
+        this.placeholders = new LinkedHashSet<String>();
+        this.frameDependent = false;
+        this.parsedValueCache = new IdentityHashMap<NcAnimateConfigBean, Map<String, String>>();
+
+        for (String template : templates) {
+            if (template != null) {
+                Matcher matcher = PLACEHOLDER_PATTERN.matcher(template);
+                while (matcher.find()) {
+                    String placeholder = matcher.group(1);
+                    this.placeholders.add(placeholder);
+                    if (StringTemplate.isFrameDependent(placeholder)) {
+                        this.frameDependent = true;
+                    }
+                }
+            }
+        }
+    }
+
+    public static StringTemplate get(String template) {
+        List<String> templates = new ArrayList<String>();
+        templates.add(template);
+        return StringTemplate.get(templates);
+    }
+
+    public static StringTemplate get(NcAnimateTextBean textBean) {
+        List<String> templates = textBean == null ? null : textBean.getText();
+        return StringTemplate.get(templates);
+    }
+
+    public static StringTemplate get(List<String> templates) {
+        if (templates == null) {
+            templates = new ArrayList<String>();
+        }
+
+        StringBuilder keySb = new StringBuilder();
+        for (String template : templates) {
+            keySb.append(template).append(CACHE_KEY_SEPARATOR);
+        }
+        String key = keySb.toString();
+
+        if (StringTemplate.templateCache == null) {
+            StringTemplate.templateCache = new HashMap<String, StringTemplate>();
+        }
+
+        StringTemplate stringTemplate = StringTemplate.templateCache.get(key);
+        if (stringTemplate == null) {
+            stringTemplate = new StringTemplate(new ArrayList<String>(templates));
+            StringTemplate.templateCache.put(key, stringTemplate);
+        }
+
+        return stringTemplate;
+    }
+
+    public static void clearCache() {
+        if (StringTemplate.templateCache != null) {
+            StringTemplate.templateCache.clear();
+            StringTemplate.templateCache = null;
+        }
+    }
+
+    /**
+     * Returns true if the placeholder value may change from one frame to another.
+     * Unknown placeholders (not starting with "ctx.") are considered frame dependent.
+     * @param placeholder Placeholder name, without the format. Example: "ctx.frameDateFrom"
+     * @return true if the placeholder needs to be parsed for every frame.
+     */
+    public static boolean isFrameDependent(String placeholder) {
+        if (placeholder == null) {
+            return false;
+        }
+        for (String prefix : FRAME_DEPENDENT_PREFIXES) {
+            if (placeholder.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return !placeholder.startsWith(CONTEXT_PREFIX);
+    }
+
+    /**
+     * @return The name of the placeholders referenced by the template, in order of appearance.
+     */
+    public Set<String> getPlaceholders() {
+        return Collections.unmodifiableSet(this.placeholders);
+    }
+
+    public boolean isConstant() {
+        return this.placeholders.isEmpty();
+    }
+
+    public boolean isFrameDependent() {
+        return this.frameDependent;
+    }
+
+    public String parse(GeneratorContext context, Map<String, LayerContext> layerContextMap) {
+        if (this.templates.isEmpty()) {
+            return null;
+        }
+
+        if (this.frameDependent) {
+            return NcAnimateUtils.parseString(this.templates, context, layerContextMap);
+        }
+
+        NcAnimateConfigBean ncAnimateConfig = context == null ? null : context.getNcAnimateConfig();
+        Map<String, String> configValueCache = this.parsedValueCache.get(ncAnimateConfig);
+        if (configValueCache == null) {
+            configValueCache = new HashMap<String, String>();
+            this.parsedValueCache.put(ncAnimateConfig, configValueCache);
+        }
+
+        String key = this.isConstant() ? "" : StringTemplate.getContextKey(context);
+        if (configValueCache.containsKey(key)) {
+            return configValueCache.get(key);
+        }
+
+        String value = NcAnimateUtils.parseString(this.templates, context, layerContextMap);
+        configValueCache.put(key, value);
+        return value;
+    }
+
+    private static String getContextKey(GeneratorContext context) {
+        if (context == null) {
+            return "";
+        }
+
+        NcAnimateRegionBean region = context.getRegion();
+        String regionId = region == null || region.getId() == null ? null : region.getId().getValue();
+        return regionId + CACHE_KEY_SEPARATOR + context.getTargetHeight();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.text;
+
+import au.gov.aims.layers2svg.graphics.VectorRasterGraphics2D;
+import au.gov.aims.sld.TextAlignment;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of fonts and text tiles used to write texts on frames.
+ *
+ * Most texts (region name, units, credits, etc) are identical on every frame.
+ * When the frame is only rendered into raster formats (PNG, JPG, etc),
+ * those texts are laid out and rasterised once, then stamped on each frame as an image.
+ * Vector formats (SVG) still receive real text.
+ */
+public class TextRenderer {
+    private static final String FONT_NAME = "SansSerif";
+
+    // Maximum number of text tiles kept in memory.
+    // The cache is cleared between runs, it only needs to be large enough for
+    // the texts of every region / target height of a product.
+    private static final int MAX_TEXT_TILES = 1000;
+
+    // Transparent margin around the text tile, to make sure anti-aliased pixels are not cropped
+    private static final int TEXT_TILE_MARGIN = 2;
+
+    // Key: font style + font size
+    private static Map<String, Font> fontCache;
+
+    // Key: text + font + colour
+    private static Map<String, TextTile> textTileCache;
+
+    public static Font getFont(int style, int size) {
+        String key = style + "_" + size;
+
+        if (TextRenderer.fontCache == null) {
+            TextRenderer.fontCache = new HashMap<String, Font>();
+        }
+
+        Font font = TextRenderer.fontCache.get(key);
+        if (font == null) {
+            font = new Font(FONT_NAME, style, size);
+            TextRenderer.fontCache.put(key, font);
+        }
+
+        return font;
+    }
+
+    /**
+     * Write a text on the canvas.
+     * @param canvas The canvas
+     * @param text The text to write
+     * @param font The text font
+     * @param colour The text colour
+     * @param x The text position, on the X axis
+     * @param y The text base line position, on the Y axis
+     * @param textAlign The text alignment, relative to the X position
+     * @param useTextTile true to stamp a cached rasterised version of the text.
+     *     Only set to true when the canvas is not generating vector graphics and the text is the same on every frame.
+     */
+    public static void drawString(
+            VectorRasterGraphics2D canvas,
+            String text, Font font, Color colour,
+            int x, int y, TextAlignment textAlign,
+            boolean useTextTile) {
+
+        if (useTextTile) {
+            TextTile textTile = TextRenderer.getTextTile(text, font, colour);
+            canvas.drawImage(textTile.getImage(), x + textTile.getOffsetX(textAlign), y + textTile.getOffsetY(), null);
+        } else {
+            canvas.setPaint(colour);
+            canvas.setFont(font);
+            canvas.drawString(text, x, y, textAlign);
+        }
+    }
+
+    public static void clearCache() {
+        if (TextRenderer.textTileCache != null) {
+            TextRenderer.textTileCache.clear();
+            TextRenderer.textTileCache = null;
+        }
+        // NOTE: Fonts are not related to a run. There is no need to clear that cache.
+    }
+
+    private static TextTile getTextTile(String text, Font font, Color colour) {
+        String key = text + "_" + font.getStyle() + "_" + font.getSize() + "_" + colour.getRGB();
+
+        if (TextRenderer.textTileCache == null) {
+            TextRenderer.textTileCache = new LinkedHashMap<String, TextTile>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TextTile> eldest) {
+                    return this.size() > MAX_TEXT_TILES;
+                }
+            };
+        }
+
+        TextTile textTile = TextRenderer.textTileCache.get(key);
+        if (textTile == null) {
+            textTile = new TextTile(text, font, colour);
+            TextRenderer.textTileCache.put(key, textTile);
+        }
+
+        return textTile;
+    }
+
+    private static void initGraphics(Graphics2D graphics) {
+        // Same rendering hints as the frame canvas
+        graphics.setRenderingHint(
+            RenderingHints.KEY_ANTIALIASING,
+            RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setRenderingHint(
+            RenderingHints.KEY_TEXT_ANTIALIASING,
+            RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+    }
+
+    /**
+     * Text laid out and rasterised once.
+     */
+    private static class TextTile {
+        private BufferedImage image;
+        private int textWidth;
+
+        // Position of the top left corner of the tile, relative to the text base line
+        private int tileX;
+        private int tileY;
+
+        public TextTile(String text, Font font, Color colour) {
+            BufferedImage scratchImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D scratchGraphics = scratchImage.createGraphics();
+            TextRenderer.initGraphics(scratchGraphics);
+            scratchGraphics.setFont(font);
+            FontMetrics fontMetrics = scratchGraphics.getFontMetrics();
+            FontRenderContext fontRenderContext = scratchGraphics.getFontRenderContext();
+
+            this.textWidth = fontMetrics.stringWidth(text);
+            GlyphVector glyphVector = font.createGlyphVector(fontRenderContext, text);
+            Rectangle pixelBounds = glyphVector.getPixelBounds(fontRenderContext, 0, 0);
+            scratchGraphics.dispose();
+
+            this.tileX = pixelBounds.x - TEXT_TILE_MARGIN;
+            this.tileY = pixelBounds.y - TEXT_TILE_MARGIN;
+
+            this.image = new BufferedImage(
+                    Math.max(1, pixelBounds.width + 2 * TEXT_TILE_MARGIN),
+                    Math.max(1, pixelBounds.height + 2 * TEXT_TILE_MARGIN),
+                    BufferedImage.TYPE_INT_ARGB);
+
+            Graphics2D graphics = this.image.createGraphics();
+            TextRenderer.initGraphics(graphics);
+            graphics.setColor(colour);
+            graphics.drawGlyphVector(glyphVector, -this.tileX, -this.tileY);
+            graphics.dispose();
+        }
+
+        public BufferedImage getImage() {
+            return this.image;
+        }
+
+        public int getOffsetX(TextAlignment textAlign) {
+            if (TextAlignment.RIGHT.equals(textAlign)) {
+                return this.tileX - this.textWidth;
+            }
+            if (TextAlignment.CENTRE.equals(textAlign)) {
+                return this.tileX - this.textWidth / 2;
+            }
+            return this.tileX;
+        }
+
+        public int getOffsetY() {
+            return this.tileY;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame;
+
+import au.gov.aims.junit.AssertImage;
+import au.gov.aims.ncanimate.frame.generator.FrameGenerator;
+import au.gov.aims.ncanimate.frame.generator.GroupFrameGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class NcAnimateFrameWorkerTest extends DatabaseTestBase {
+    // See NcAnimateFrameTest
+    private static final double HIGH_TOLERANCE = 0.003;
+    private static final double MED_TOLERANCE = 0.002;
+
+    @Test
+    public void testParseJob() {
+        Assert.assertNull("Null line should be ignored", NcAnimateFrameWorker.parseJob(null));
+        Assert.assertNull("Empty line should be ignored", NcAnimateFrameWorker.parseJob("   "));
+        Assert.assertNull("Comment should be ignored", NcAnimateFrameWorker.parseJob("# productId dateFrom dateTo"));
+
+        Assert.assertArrayEquals("Wrong job parameters",
+                new String[] { "gbr4_v2_temp-wind-salt-current", "2014-12-01T00:00:00.000+10:00", "null" },
+                NcAnimateFrameWorker.parseJob("  gbr4_v2_temp-wind-salt-current \t2014-12-01T00:00:00.000+10:00  null "));
+    }
+
+    /**
+     * Run 2 jobs in the same worker. The second job reuses the layer generators of the first one.
+     * @throws Exception
+     */
+    @Test
+    public void testProcessStream() throws Exception {
+        this.insertData();
+        this.insertInputData_fakeData_hydro_gbr4();
+
+        String jobs =
+            "# First 2 frames\n" +
+            "gbr4_v2_temp-wind-salt-current 2014-12-01T00:00:00.000+10:00 2014-12-01T02:00:00.000+10:00\n" +
+            "\n" +
+            "# Last 2 frames\n" +
+            "gbr4_v2_temp-wind-salt-current 2014-12-01T22:00:00.000+10:00 2014-12-02T00:00:00.000+10:00\n" +
+            "invalid-job\n";
+
+        NcAnimateFrameWorker worker = new NcAnimateFrameWorker(new NcAnimateFrame(this.getDatabaseClient(), null, null));
+        GroupFrameGenerator.setKeepCache(true);
+        try {
+            worker.processStream(new ByteArrayInputStream(jobs.getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            GroupFrameGenerator.setKeepCache(false);
+        }
+
+        Assert.assertEquals("Wrong number of jobs", 3, worker.getJobCount());
+        Assert.assertEquals("Wrong number of failed jobs", 1, worker.getFailedJobCount());
+
+        File qldShallowDir = new File("/tmp/ncanimateTests/s3/ncanimate/frames/gbr4_v2_temp-wind-salt-current/qld/height_-1.5");
+        File[] files = qldShallowDir.listFiles();
+        Assert.assertNotNull(String.format("Directory %s is empty", qldShallowDir), files);
+        Assert.assertEquals(String.format("Directory %s doesn't contains the expected number of file", qldShallowDir), 4, files.length);
+    }
+
+    /**
+     * Run 2 products back to back in the same worker.
+     * The text of the second product (panel titles, dates, etc) must not reuse the values of the first product.
+     * @throws Exception
+     */
+    @Test
+    public void testProcessStream_multipleProducts() throws Exception {
+        this.insertData();
+        this.insertInputData_fakeData_hydro_gbr4();
+
+        String jobs =
+            "gbr4_v2_temp-wind-salt-current 2014-12-01T00:00:00.000+10:00 2014-12-01T02:00:00.000+10:00\n" +
+            "gbr4_v2_temp-multi-depth_shallow_hourly 2014-12-02T00:00:00.000+10:00 2014-12-02T02:00:00.000+10:00\n";
+
+        NcAnimateFrameWorker worker = new NcAnimateFrameWorker(new NcAnimateFrame(this.getDatabaseClient(), null, null));
+        GroupFrameGenerator.setKeepCache(true);
+        try {
+            worker.processStream(new ByteArrayInputStream(jobs.getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            GroupFrameGenerator.setKeepCache(false);
+        }
+
+        Assert.assertEquals("Wrong number of jobs", 2, worker.getJobCount());
+        Assert.assertEquals("Wrong number of failed jobs", 0, worker.getFailedJobCount());
+
+        File tempWindSaltCurrentDir = new File("/tmp/ncanimateTests/s3/ncanimate/frames/gbr4_v2_temp-wind-salt-current/qld/height_-1.5");
+        AssertImage.assertEquals(
+                AssertImage.getResourceFile("expectedImages/gbr4_v2_temp-wind-salt-current/qld/height_-1.5/frame_2014-12-01_00h00.png"),
+                new File(tempWindSaltCurrentDir, "frame_2014-12-01_00h00.png"), MED_TOLERANCE);
+
+        File tempMultiDepthDir = new File("/tmp/ncanimateTests/s3/ncanimate/frames/gbr4_v2_temp-multi-depth_shallow_hourly/qld");
+        AssertImage.assertEquals(
+                AssertImage.getResourceFile("expectedImages/gbr4_v2_temp-multi-depth_shallow_hourly/qld/frame_2014-12-02_00h00.png"),
+                new File(tempMultiDepthDir, "frame_2014-12-02_00h00.png"), HIGH_TOLERANCE);
+        AssertImage.assertEquals(
+                AssertImage.getResourceFile("expectedImages/gbr4_v2_temp-multi-depth_shallow_hourly/qld/frame_2014-12-02_01h00.png"),
+                new File(tempMultiDepthDir, "frame_2014-12-02_01h00.png"), HIGH_TOLERANCE);
+    }
+
+    /**
+     * The layer generators are kept between jobs, until there is too many of them.
+     * @throws Exception
+     */
+    @Test
+    public void testTrimCache() throws Exception {
+        this.insertData();
+        this.insertInputData_fakeData_hydro_gbr4();
+
+        String job = "gbr4_v2_temp-wind-salt-current 2014-12-01T00:00:00.000+10:00 2014-12-01T02:00:00.000+10:00";
+
+        NcAnimateFrameWorker worker = new NcAnimateFrameWorker(new NcAnimateFrame(this.getDatabaseClient(), null, null));
+        GroupFrameGenerator.setKeepCache(true);
+        try {
+            Assert.assertTrue("The job failed", worker.processJob(job));
+            int cachedLayerGenerators = FrameGenerator.getCachedLayerGeneratorCount();
+            Assert.assertTrue("The layer generators should be kept after the job", cachedLayerGenerators > 0);
+
+            worker.setMaxCachedLayerGenerators(cachedLayerGenerators - 1);
+            Assert.assertTrue("The job failed", worker.processJob(job));
+            Assert.assertEquals("The layer generators should be cleared after the job", 0, FrameGenerator.getCachedLayerGeneratorCount());
+        } finally {
+            GroupFrameGenerator.setKeepCache(false);
+            FrameGenerator.clearCache();
+        }
+    }
+
+    /**
+     * Job files which can not be renamed are skipped, the worker keeps polling the spool directory.
+     * @throws Exception
+     */
+    @Test
+    public void testPollSpoolDirectory() throws Exception {
+        File spoolDir = new File("/tmp/ncanimateTests/spool");
+        spoolDir.mkdirs();
+
+        File invalidJobFile = new File(spoolDir, "1_invalid.job");
+        Files.write(invalidJobFile.toPath(), "invalid-job\n".getBytes(StandardCharsets.UTF_8));
+        // A non empty directory can not be replaced by the renamed job file
+        File failedDir = new File(spoolDir, "1_invalid.job" + NcAnimateFrameWorker.FAILED_FILE_EXTENSION);
+        failedDir.mkdirs();
+        Files.write(new File(failedDir, "file.txt").toPath(), "content".getBytes(StandardCharsets.UTF_8));
+
+        File emptyJobFile = new File(spoolDir, "2_empty.job");
+        Files.write(emptyJobFile.toPath(), "# No job\n".getBytes(StandardCharsets.UTF_8));
+
+        NcAnimateFrameWorker worker = new NcAnimateFrameWorker(new NcAnimateFrame(this.getDatabaseClient(), null, null));
+        Assert.assertTrue("Job files should be found", worker.pollSpoolDirectory(spoolDir));
+        Assert.assertEquals("Wrong number of jobs", 1, worker.getJobCount());
+        Assert.assertEquals("Wrong number of failed jobs", 1, worker.getFailedJobCount());
+        Assert.assertTrue("The job file which can not be renamed should be left in place", invalidJobFile.exists());
+        Assert.assertTrue("The job file following the file which can not be renamed should be processed",
+                new File(spoolDir, "2_empty.job" + NcAnimateFrameWorker.DONE_FILE_EXTENSION).exists());
+
+        Assert.assertFalse("The job file which can not be renamed should not be processed again", worker.pollSpoolDirectory(spoolDir));
+        Assert.assertEquals("The job file which can not be renamed should not be processed again", 1, worker.getJobCount());
+    }
+
+    @Test
+    public void testDrain() {
+        NcAnimateFrameWorker worker = new NcAnimateFrameWorker(new NcAnimateFrame(this.getDatabaseClient(), null, null));
+        worker.drain();
+
+        Assert.assertTrue("Worker should be stopped", worker.isStopped());
+        Assert.assertTrue("Job should be ignored once the worker is stopped",
+                worker.processJob("gbr4_v2_temp-wind-salt-current null null"));
+        Assert.assertEquals("No job should run once the worker is stopped", 0, worker.getJobCount());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator;
+
+import au.gov.aims.junit.AssertImage;
+import au.gov.aims.ncanimate.frame.DatabaseTestBase;
+import au.gov.aims.ncanimate.frame.NcAnimateFrame;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class FrameGeneratorTest extends DatabaseTestBase {
+    // The raster fast path stamps pre-rasterised layers and texts,
+    // anti-aliasing may differ very slightly.
+    private static final double TOLERANCE = 0.001;
+
+    private static final String PRODUCT_ID = "gbr4_v2_temp_raster-only";
+    private static final String DATE_FROM = "2014-12-01T00:00:00.000+10:00";
+    private static final String DATE_TO = "2014-12-02T00:00:00.000+10:00";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void restoreSettings() {
+        GroupFrameGenerator.setCheckpoint(true);
+    }
+
+    /**
+     * Generate the same frames with and without the raster fast path.
+     * The frames must be identical (within tolerance).
+     * The generation time of both paths is measured by FrameGeneratorBenchmark.
+     * @throws Exception
+     */
+    @Test
+    public void testRasterFastPath() throws Exception {
+        this.insertData();
+        this.insertInputData_fakeData_hydro_gbr4();
+
+        File frameDir = new File("/tmp/ncanimateTests/s3/ncanimate/frames/" + PRODUCT_ID + "/qld/height_-1.5");
+        // The destination of FileUtils.moveDirectory must not exist
+        File vectorPathFrameDir = new File(this.temporaryFolder.getRoot(), "vectorPathFrames");
+
+        NcAnimateFrame ncAnimateFrame = new NcAnimateFrame(this.getDatabaseClient(), null, null);
+
+        // Both runs render the same frames, the second run must not resume from the journal of the first one
+        GroupFrameGenerator.setCheckpoint(false);
+
+        // Generate the frames using the vector API
+        boolean rasterFastPath = FrameGenerator.isRasterFastPath();
+        try {
+            FrameGenerator.setRasterFastPath(false);
+            ncAnimateFrame.generateFromContext(PRODUCT_ID, DATE_FROM, DATE_TO);
+        } finally {
+            FrameGenerator.setRasterFastPath(rasterFastPath);
+        }
+
+        Assert.assertTrue(String.format("Directory %s doesn't exist", frameDir), frameDir.exists());
+        FileUtils.moveDirectory(frameDir, vectorPathFrameDir);
+
+        // Generate the same frames using the raster fast path
+        try {
+            FrameGenerator.setRasterFastPath(true);
+            ncAnimateFrame.generateFromContext(PRODUCT_ID, DATE_FROM, DATE_TO);
+        } finally {
+            FrameGenerator.setRasterFastPath(rasterFastPath);
+        }
+
+        File[] vectorPathFrames = vectorPathFrameDir.listFiles();
+        Assert.assertNotNull(String.format("Directory %s is empty", vectorPathFrameDir), vectorPathFrames);
+        Assert.assertEquals("Unexpected number of frames", 24, vectorPathFrames.length);
+
+        for (File vectorPathFrame : vectorPathFrames) {
+            File rasterPathFrame = new File(frameDir, vectorPathFrame.getName());
+            Assert.assertTrue(String.format("Missing frame %s", rasterPathFrame), rasterPathFrame.exists());
+            AssertImage.assertEquals(vectorPathFrame, rasterPathFrame, TOLERANCE);
+        }
+    }
+}
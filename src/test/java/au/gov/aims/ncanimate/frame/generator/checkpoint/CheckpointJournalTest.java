@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.checkpoint;
+
+import au.gov.aims.ereefs.Utils;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.frame.DatabaseTestBase;
+import au.gov.aims.ncanimate.frame.NcAnimateFrame;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class CheckpointJournalTest extends DatabaseTestBase {
+    private static final File FRAME_DIR = new File("/tmp/ncanimateTests/checkpoint/qld/height_-1.5");
+    private static final DateTimeZone TIMEZONE = DateTimeZone.forID("Australia/Brisbane");
+
+    private static final Map<String, File> FRAME_FILES = CheckpointJournalTest.getFrameFiles();
+
+    @Before
+    public void deleteJournals() {
+        // The journals are saved next to the frame directory
+        Utils.deleteDirectory(FRAME_DIR.getParentFile());
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        DateTimeRange frame0 = CheckpointJournalTest.getFrame(0);
+        DateTimeRange frame1 = CheckpointJournalTest.getFrame(1);
+        DateTimeRange frame2 = CheckpointJournalTest.getFrame(2);
+
+        CheckpointJournal journal = new CheckpointJournal(FRAME_DIR);
+        Assert.assertEquals("Wrong journal file",
+                new File("/tmp/ncanimateTests/checkpoint/qld/.height_-1.5.checkpoint"), journal.getJournalFile());
+        Assert.assertEquals("New journal should be empty", 0, journal.size());
+
+        journal.markComplete(frame0, FRAME_FILES, 1000);
+        journal.markComplete(frame1, FRAME_FILES, 2000);
+        journal.close();
+
+        // Resume
+        journal = new CheckpointJournal(FRAME_DIR);
+        Assert.assertEquals("Wrong number of completed frames", 2, journal.size());
+        Assert.assertTrue("Frame 0 should be complete", journal.isComplete(frame0, FRAME_FILES, 1000));
+        Assert.assertTrue("Frame 1 should be complete", journal.isComplete(frame1, FRAME_FILES, 1000));
+        Assert.assertFalse("Frame 2 should not be complete", journal.isComplete(frame2, FRAME_FILES, 1000));
+
+        // Input files modified after the frame was rendered
+        Assert.assertFalse("Frame 0 should be outdated", journal.isComplete(frame0, FRAME_FILES, 1500));
+        journal.close();
+    }
+
+    @Test
+    public void testTruncatedJournal() throws Exception {
+        DateTimeRange frame0 = CheckpointJournalTest.getFrame(0);
+        DateTimeRange frame1 = CheckpointJournalTest.getFrame(1);
+
+        CheckpointJournal journal = new CheckpointJournal(FRAME_DIR);
+        journal.markComplete(frame0, FRAME_FILES, 1000);
+        journal.close();
+
+        // Simulate a process killed while writing the line of frame 1
+        String truncatedLine = frame1.getStartDate().getMillis() + "_" + frame1.getEndDate().getMillis() + "|PNG=/tmp\t10";
+        try (OutputStream out = new FileOutputStream(journal.getJournalFile(), true)) {
+            out.write(truncatedLine.getBytes(StandardCharsets.UTF_8));
+        }
+
+        journal = new CheckpointJournal(FRAME_DIR);
+        Assert.assertEquals("The truncated line should be ignored", 1, journal.size());
+        Assert.assertTrue("Frame 0 should be complete", journal.isComplete(frame0, FRAME_FILES, 1000));
+        Assert.assertFalse("Frame 1 should not be complete", journal.isComplete(frame1, FRAME_FILES, 0));
+        journal.close();
+
+        // The truncated line is removed when the journal is loaded
+        Assert.assertEquals("The journal should be compacted", 1, FileUtils.readLines(journal.getJournalFile(), StandardCharsets.UTF_8).size());
+    }
+
+    /**
+     * The frame key contains the frame files. A frame rendered with other formats,
+     * or to other files, is not complete.
+     * @throws Exception
+     */
+    @Test
+    public void testFrameFiles() throws Exception {
+        DateTimeRange frame0 = CheckpointJournalTest.getFrame(0);
+
+        CheckpointJournal journal = new CheckpointJournal(FRAME_DIR);
+        journal.markComplete(frame0, FRAME_FILES, 1000);
+
+        Map<String, File> reorderedFrameFiles = new LinkedHashMap<String, File>();
+        reorderedFrameFiles.put("SVG", FRAME_FILES.get("SVG"));
+        reorderedFrameFiles.put("PNG", FRAME_FILES.get("PNG"));
+        Assert.assertTrue("The frame key should not depend on the map order", journal.isComplete(frame0, reorderedFrameFiles, 1000));
+
+        Map<String, File> newFormatFrameFiles = new HashMap<String, File>(FRAME_FILES);
+        newFormatFrameFiles.put("GIF", new File(FRAME_DIR, "frame_2014-12-01_00h00.gif"));
+        Assert.assertFalse("Frame with a new format should not be complete", journal.isComplete(frame0, newFormatFrameFiles, 1000));
+
+        Map<String, File> movedFrameFiles = new HashMap<String, File>();
+        movedFrameFiles.put("PNG", new File("/tmp/ncanimateTests/checkpoint/other/frame_2014-12-01_00h00.png"));
+        movedFrameFiles.put("SVG", new File("/tmp/ncanimateTests/checkpoint/other/frame_2014-12-01_00h00.svg"));
+        Assert.assertFalse("Frame saved to other files should not be complete", journal.isComplete(frame0, movedFrameFiles, 1000));
+        journal.close();
+    }
+
+    /**
+     * Frames re-rendered after a modification of the input files are appended to the journal.
+     * The journal keeps the last line of each frame when it's loaded.
+     * @throws Exception
+     */
+    @Test
+    public void testCompact() throws Exception {
+        DateTimeRange frame0 = CheckpointJournalTest.getFrame(0);
+        DateTimeRange frame1 = CheckpointJournalTest.getFrame(1);
+
+        CheckpointJournal journal = new CheckpointJournal(FRAME_DIR);
+        journal.markComplete(frame0, FRAME_FILES, 1000);
+        journal.markComplete(frame1, FRAME_FILES, 1000);
+        journal.markComplete(frame0, FRAME_FILES, 2000);
+        journal.close();
+        Assert.assertEquals("Wrong number of journal lines", 3, FileUtils.readLines(journal.getJournalFile(), StandardCharsets.UTF_8).size());
+
+        journal = new CheckpointJournal(FRAME_DIR);
+        Assert.assertEquals("Wrong number of completed frames", 2, journal.size());
+        Assert.assertTrue("Frame 0 should be complete", journal.isComplete(frame0, FRAME_FILES, 2000));
+        Assert.assertEquals("The journal should be compacted", 2, FileUtils.readLines(journal.getJournalFile(), StandardCharsets.UTF_8).size());
+        journal.close();
+    }
+
+    /**
+     * Every rendered frame is recorded in the journal of its frame directory,
+     * and no temporary file is left in the frame directory.
+     * @throws Exception
+     */
+    @Test
+    public void testGenerateCheckpoint() throws Exception {
+        this.insertData();
+        this.insertInputData_fakeData_hydro_gbr4();
+
+        NcAnimateFrame ncAnimateFrame = new NcAnimateFrame(this.getDatabaseClient(), null, null);
+        ncAnimateFrame.generateFromContext("gbr4_v2_temp-wind-salt-current", "2014-12-01T00:00:00.000+10:00", "2014-12-01T02:00:00.000+10:00");
+
+        File frameDir = new File("/tmp/ncanimateTests/s3/ncanimate/frames/gbr4_v2_temp-wind-salt-current/qld/height_-1.5");
+        File[] frameFiles = frameDir.listFiles();
+        Assert.assertNotNull(String.format("Directory %s is empty", frameDir), frameFiles);
+        for (File frameFile : frameFiles) {
+            Assert.assertFalse(String.format("Temporary file %s left in the frame directory", frameFile),
+                    frameFile.getName().endsWith(AtomicFiles.TMP_FILE_EXTENSION));
+        }
+
+        CheckpointJournal journal = new CheckpointJournal(frameDir);
+        Assert.assertTrue(String.format("Missing checkpoint journal %s", journal.getJournalFile()), journal.getJournalFile().isFile());
+        Assert.assertEquals("Wrong number of completed frames", 2, journal.size());
+        journal.close();
+
+        // Frame files found on disk, not written by this process, are not journalled:
+        // they may have been left truncated by a process which crashed.
+        Assert.assertTrue("Could not delete the checkpoint journal", journal.getJournalFile().delete());
+        ncAnimateFrame.generateFromContext("gbr4_v2_temp-wind-salt-current", "2014-12-01T00:00:00.000+10:00", "2014-12-01T02:00:00.000+10:00");
+
+        journal = new CheckpointJournal(frameDir);
+        Assert.assertEquals("Frames which were already up to date should not be journalled", 0, journal.size());
+        journal.close();
+    }
+
+    private static Map<String, File> getFrameFiles() {
+        Map<String, File> frameFiles = new HashMap<String, File>();
+        frameFiles.put("PNG", new File(FRAME_DIR, "frame_2014-12-01_00h00.png"));
+        frameFiles.put("SVG", new File(FRAME_DIR, "frame_2014-12-01_00h00.svg"));
+        return frameFiles;
+    }
+
+    private static DateTimeRange getFrame(int hour) {
+        return DateTimeRange.create(
+                new DateTime(2014, 12, 1, hour, 0, TIMEZONE),
+                new DateTime(2014, 12, 1, hour + 1, 0, TIMEZONE));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.download;
+
+import au.gov.aims.aws.s3.entity.S3Client;
+import au.gov.aims.ereefs.Utils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ArtifactDownloadManagerTest {
+    private static final File S3_DIR = new File("/tmp/ncanimateTests/download/s3");
+    private static final File DOWNLOAD_DIR = new File("/tmp/ncanimateTests/download/styles");
+
+    @Before
+    public void init() throws IOException {
+        Utils.deleteDirectory(new File("/tmp/ncanimateTests/download"));
+        Assert.assertTrue("Could not create the fake S3 directory", Utils.prepareDirectory(S3_DIR));
+        Assert.assertTrue("Could not create the download directory", Utils.prepareDirectory(DOWNLOAD_DIR));
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Utils.deleteDirectory(new File("/tmp/ncanimateTests/download"));
+    }
+
+    @Test
+    public void testDownloadOnce() throws Exception {
+        File s3File = ArtifactDownloadManagerTest.writeS3File("style.sld", "version 1");
+        URI uri = s3File.toURI();
+
+        CountingSource source = new CountingSource();
+        ArtifactDownloadManager manager = new ArtifactDownloadManager(source);
+
+        File file = manager.download(uri, null, DOWNLOAD_DIR);
+        Assert.assertEquals("Wrong file content", "version 1", ArtifactDownloadManagerTest.read(file));
+        manager.download(uri, null, DOWNLOAD_DIR);
+        manager.download(uri, null, DOWNLOAD_DIR);
+        Assert.assertEquals("The artefact should be downloaded once", 1, source.fetchCount.get());
+
+        // New manager (new run on the same node): the persistent index is used
+        CountingSource newSource = new CountingSource();
+        ArtifactDownloadManager newManager = new ArtifactDownloadManager(newSource);
+        Assert.assertEquals("Wrong file", file, newManager.download(uri, null, DOWNLOAD_DIR));
+        Assert.assertEquals("The artefact should not be downloaded by the following run", 0, newSource.fetchCount.get());
+
+        // Missing local copy
+        Assert.assertTrue("Could not delete the local copy", file.delete());
+        newManager.download(uri, null, DOWNLOAD_DIR);
+        Assert.assertEquals("A missing local copy should be downloaded again", 1, newSource.fetchCount.get());
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        File s3File = ArtifactDownloadManagerTest.writeS3File("style.sld", "version 1");
+        URI uri = s3File.toURI();
+
+        CountingSource source = new CountingSource();
+        ArtifactDownloadManager manager = new ArtifactDownloadManager(source);
+        manager.download(uri, null, DOWNLOAD_DIR);
+
+        // Modified artefact, with an index validated longer than the revalidation interval ago
+        ArtifactDownloadManagerTest.writeS3File("style.sld", "version 2 (modified)");
+        source.version = "v2";
+        File indexFile = new File(DOWNLOAD_DIR, ArtifactDownloadManager.INDEX_FILENAME);
+        String index = ArtifactDownloadManagerTest.read(indexFile).replaceAll("\"validated\": [0-9]+", "\"validated\": 0");
+        Files.write(indexFile.toPath(), index.getBytes(StandardCharsets.UTF_8));
+
+        ArtifactDownloadManager newManager = new ArtifactDownloadManager(source);
+        File file = newManager.download(uri, null, DOWNLOAD_DIR);
+        Assert.assertEquals("The modified artefact should be downloaded again", 2, source.fetchCount.get());
+        Assert.assertEquals("Wrong file content", "version 2 (modified)", ArtifactDownloadManagerTest.read(file));
+    }
+
+    /**
+     * Artefacts without version (metadata request failed) can not be revalidated, they are downloaded on every request.
+     * @throws Exception
+     */
+    @Test
+    public void testUnversioned() throws Exception {
+        File s3File = ArtifactDownloadManagerTest.writeS3File("style.sld", "version 1");
+        URI uri = s3File.toURI();
+
+        CountingSource source = new CountingSource();
+        source.version = null;
+        ArtifactDownloadManager manager = new ArtifactDownloadManager(source);
+
+        manager.download(uri, null, DOWNLOAD_DIR);
+        ArtifactDownloadManagerTest.writeS3File("style.sld", "version 2 (modified)");
+        File file = manager.download(uri, null, DOWNLOAD_DIR);
+
+        Assert.assertEquals("Unversioned artefacts should be downloaded on every request", 2, source.fetchCount.get());
+        Assert.assertEquals("Wrong file content", "version 2 (modified)", ArtifactDownloadManagerTest.read(file));
+    }
+
+    /**
+     * The local copy of an indexed artefact is reused when its version can not be requested.
+     * @throws Exception
+     */
+    @Test
+    public void testRevalidationFailure() throws Exception {
+        File s3File = ArtifactDownloadManagerTest.writeS3File("style.sld", "version 1");
+        URI uri = s3File.toURI();
+
+        CountingSource source = new CountingSource();
+        new ArtifactDownloadManager(source).download(uri, null, DOWNLOAD_DIR);
+
+        // Index validated longer than the revalidation interval ago
+        File indexFile = new File(DOWNLOAD_DIR, ArtifactDownloadManager.INDEX_FILENAME);
+        String index = ArtifactDownloadManagerTest.read(indexFile).replaceAll("\"validated\": [0-9]+", "\"validated\": 0");
+        Files.write(indexFile.toPath(), index.getBytes(StandardCharsets.UTF_8));
+
+        source.version = null;
+        File file = new ArtifactDownloadManager(source).download(uri, null, DOWNLOAD_DIR);
+        Assert.assertEquals("The local copy should be used", 1, source.fetchCount.get());
+        Assert.assertEquals("Wrong file content", "version 1", ArtifactDownloadManagerTest.read(file));
+    }
+
+    @Test
+    public void testS3Version() {
+        Assert.assertEquals("Wrong ETag version", "etag-\"d41d8cd98f00b204e9800998ecf8427e\"",
+                NcAnimateArtifactSource.getS3Version("\"d41d8cd98f00b204e9800998ecf8427e\"", 1283299200000L));
+        Assert.assertEquals("Wrong last modified version", "modified-1283299200000",
+                NcAnimateArtifactSource.getS3Version(null, 1283299200000L));
+        Assert.assertNull("Missing metadata should give no version", NcAnimateArtifactSource.getS3Version("", null));
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        File s3File = ArtifactDownloadManagerTest.writeS3File("palette.pal", "palette");
+        final URI uri = s3File.toURI();
+
+        final CountingSource source = new CountingSource();
+        source.fetchLatch = new CountDownLatch(1);
+        final ArtifactDownloadManager manager = new ArtifactDownloadManager(source);
+
+        final AtomicInteger errorCount = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0; i<4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        manager.download(uri, null, DOWNLOAD_DIR);
+                    } catch(Exception ex) {
+                        errorCount.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        // Let the requests pile up on the in-flight download
+        Thread.sleep(200);
+        source.fetchLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        Assert.assertEquals("Unexpected download error", 0, errorCount.get());
+        Assert.assertEquals("Concurrent requests should share the same download", 1, source.fetchCount.get());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissingArtefact() throws Exception {
+        new ArtifactDownloadManager(new CountingSource()).download(new File(S3_DIR, "missing.sld").toURI(), null, DOWNLOAD_DIR);
+    }
+
+    private static File writeS3File(String filename, String content) throws IOException {
+        File file = new File(S3_DIR, filename);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    // Local S3 stand-in: copies files, and counts the downloads
+    private static class CountingSource implements ArtifactSource {
+        private AtomicInteger fetchCount = new AtomicInteger(0);
+        private String version = "v1";
+        private CountDownLatch fetchLatch = null;
+
+        @Override
+        public String getVersion(URI uri, S3Client s3Client) throws IOException {
+            if (!new File(uri).exists()) {
+                throw new FileNotFoundException(uri.toString());
+            }
+            return this.version;
+        }
+
+        @Override
+        public File fetch(URI uri, S3Client s3Client, File directory) throws IOException {
+            if (this.fetchLatch != null) {
+                try {
+                    this.fetchLatch.await(10, TimeUnit.SECONDS);
+                } catch(InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            this.fetchCount.incrementAndGet();
+            File source = new File(uri);
+            File destination = new File(directory, source.getName());
+            Files.write(destination.toPath(), Files.readAllBytes(source.toPath()));
+            return destination;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.download;
+
+import au.gov.aims.ereefs.Utils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test the WMS image cache against a local HTTP server, standing in for the WMS server.
+ */
+public class WMSImageCacheTest {
+    private static final File CACHE_DIR = new File("/tmp/ncanimateTests/wms");
+
+    private HttpServer server;
+    private WMSHandler handler;
+
+    @Before
+    public void init() throws IOException {
+        Utils.deleteDirectory(CACHE_DIR);
+
+        this.handler = new WMSHandler();
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/wms", this.handler);
+        this.server.start();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        this.server.stop(0);
+        Utils.deleteDirectory(CACHE_DIR);
+    }
+
+    @Test
+    public void testPersistentCache() throws Exception {
+        URL url = this.getURL("BBOX=143.4375,-19.6875,146.25,-16.875&WIDTH=16&HEIGHT=8");
+
+        WMSImageCache cache = new WMSImageCache(CACHE_DIR);
+        BufferedImage image = cache.getImage(url);
+        WMSImageCacheTest.assertImage(image, 16, 8);
+        Assert.assertEquals("Wrong number of requests", 1, this.handler.requestCount.get());
+
+        File[] cacheFiles = CACHE_DIR.listFiles();
+        Assert.assertNotNull("The cache directory was not created", cacheFiles);
+        Assert.assertEquals("Wrong number of cache files", 1, cacheFiles.length);
+        Assert.assertTrue("Wrong cache file extension", cacheFiles[0].getName().endsWith(WMSImageCache.CACHE_FILE_EXTENSION));
+
+        // New cache instance, simulating a new process: the image is loaded from disk
+        WMSImageCache newCache = new WMSImageCache(CACHE_DIR);
+        BufferedImage cachedImage = newCache.getImage(url);
+        WMSImageCacheTest.assertImage(cachedImage, 16, 8);
+        Assert.assertEquals("Wrong cached image type", BufferedImage.TYPE_INT_ARGB, cachedImage.getType());
+        Assert.assertEquals("The cached image should not be requested again", 1, this.handler.requestCount.get());
+        Assert.assertEquals("Wrong number of requests", 0, newCache.getRequestCount());
+
+        // Different bounding box: different image
+        newCache.getImage(this.getURL("BBOX=143.4375,-19.6875,146.25,-16.0&WIDTH=16&HEIGHT=8"));
+        Assert.assertEquals("A different GetMap URL should be requested", 2, this.handler.requestCount.get());
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        this.handler.failureCount.set(2);
+
+        WMSImageCache cache = new WMSImageCache(CACHE_DIR, 4, 1000, 1000, 3, 10, WMSImageCache.DEFAULT_MAX_AGE_MS);
+        WMSImageCacheTest.assertImage(cache.getImage(this.getURL("WIDTH=4&HEIGHT=4")), 4, 4);
+        Assert.assertEquals("Wrong number of requests", 3, cache.getRequestCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTimeout() throws Exception {
+        this.handler.delayMs = 2000;
+
+        WMSImageCache cache = new WMSImageCache(CACHE_DIR, 4, 200, 200, 2, 10, WMSImageCache.DEFAULT_MAX_AGE_MS);
+        try {
+            cache.getImage(this.getURL("WIDTH=4&HEIGHT=4"));
+        } finally {
+            Assert.assertEquals("Wrong number of requests", 2, cache.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testServiceException() throws Exception {
+        WMSImageCache cache = new WMSImageCache(CACHE_DIR, 4, 1000, 1000, 3, 10, WMSImageCache.DEFAULT_MAX_AGE_MS);
+        try {
+            cache.getImage(this.getURL("LAYERS=missing"));
+            Assert.fail("Expected an IOException");
+        } catch(FileNotFoundException ex) {
+            Assert.fail("Unexpected FileNotFoundException");
+        } catch(IOException ex) {
+            Assert.assertTrue("The exception should contain the server response", ex.getMessage().contains("ServiceException"));
+        }
+        Assert.assertEquals("Invalid requests should not be attempted again", 1, cache.getRequestCount());
+    }
+
+    @Test
+    public void testOutdatedImage() throws Exception {
+        URL url = this.getURL("WIDTH=4&HEIGHT=4");
+        new WMSImageCache(CACHE_DIR).getImage(url);
+
+        // Every image is outdated, but the server is down
+        this.handler.failureCount.set(10);
+        WMSImageCache cache = new WMSImageCache(CACHE_DIR, 4, 1000, 1000, 2, 10, 0);
+        WMSImageCacheTest.assertImage(cache.getImage(url), 4, 4);
+        Assert.assertEquals("Wrong number of requests", 2, cache.getRequestCount());
+    }
+
+    @Test
+    public void testTimeDimensionMaxAge() throws Exception {
+        URL url = this.getURL("TIME=2014-12-01&WIDTH=4&HEIGHT=4");
+        new WMSImageCache(CACHE_DIR).getImage(url);
+
+        // Two hours old: still valid for a basemap, outdated for a time-dimension layer
+        File[] cacheFiles = CACHE_DIR.listFiles();
+        Assert.assertNotNull("The cache directory was not created", cacheFiles);
+        Assert.assertTrue("Could not change the cache file date",
+                cacheFiles[0].setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000L));
+
+        WMSImageCache cache = new WMSImageCache(CACHE_DIR);
+        cache.getImage(url);
+        Assert.assertEquals("The basemap image should not be requested again", 0, cache.getRequestCount());
+
+        WMSImageCache timeCache = new WMSImageCache(CACHE_DIR);
+        WMSImageCacheTest.assertImage(timeCache.getImage(url, WMSImageCache.TIME_DIMENSION_MAX_AGE_MS), 4, 4);
+        Assert.assertEquals("The time-dimension image should be requested again", 1, timeCache.getRequestCount());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        this.handler.delayMs = 300;
+        final URL url = this.getURL("WIDTH=8&HEIGHT=8");
+        final WMSImageCache cache = new WMSImageCache(CACHE_DIR);
+
+        final AtomicInteger errorCount = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0; i<4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        WMSImageCacheTest.assertImage(cache.getImage(url), 8, 8);
+                    } catch(Throwable ex) {
+                        errorCount.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        Assert.assertEquals("Unexpected error", 0, errorCount.get());
+        Assert.assertEquals("Concurrent requests should share the same request", 1, this.handler.requestCount.get());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        this.handler.delayMs = 300;
+        WMSImageCache cache = new WMSImageCache(CACHE_DIR);
+
+        // Daily images, hourly frames: the following frames resolve to the same TIME
+        URL url = this.getURL("TIME=2010-09-01&WIDTH=8&HEIGHT=8");
+        cache.prefetch(url);
+        cache.prefetch(url);
+        cache.prefetch(url);
+
+        // Waits for the background request
+        WMSImageCacheTest.assertImage(cache.getImage(url), 8, 8);
+        Assert.assertEquals("The prefetched image should not be requested again", 1, this.handler.requestCount.get());
+
+        // Image in memory: no request
+        cache.prefetch(url);
+        WMSImageCacheTest.assertImage(cache.getImage(url), 8, 8);
+        Assert.assertEquals("The image in memory should not be requested again", 1, this.handler.requestCount.get());
+
+        cache.getImage(this.getURL("TIME=2010-09-02&WIDTH=8&HEIGHT=8"));
+        Assert.assertEquals("Wrong number of requests", 2, this.handler.requestCount.get());
+    }
+
+    private URL getURL(String query) throws IOException {
+        return new URL(String.format("http://localhost:%d/wms?SERVICE=WMS&REQUEST=GetMap&%s",
+                this.server.getAddress().getPort(), query));
+    }
+
+    private static void assertImage(BufferedImage image, int width, int height) {
+        Assert.assertNotNull("Image is null", image);
+        Assert.assertEquals("Wrong image width", width, image.getWidth());
+        Assert.assertEquals("Wrong image height", height, image.getHeight());
+        Assert.assertEquals("Wrong top left pixel", 0x80FF0000, image.getRGB(0, 0));
+        Assert.assertEquals("Wrong bottom right pixel", 0xFF0000FF, image.getRGB(width - 1, height - 1));
+    }
+
+    // Minimal WMS server: returns a PNG of the requested size, or a ServiceExceptionReport for unknown layers
+    private static class WMSHandler implements HttpHandler {
+        private AtomicInteger requestCount = new AtomicInteger(0);
+        private AtomicInteger failureCount = new AtomicInteger(0);
+        private volatile long delayMs = 0;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            this.requestCount.incrementAndGet();
+            try {
+                if (this.delayMs > 0) {
+                    Thread.sleep(this.delayMs);
+                }
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
+            String query = exchange.getRequestURI().getQuery();
+            if (this.failureCount.getAndDecrement() > 0) {
+                WMSHandler.send(exchange, 503, "text/plain", "Service unavailable".getBytes(StandardCharsets.UTF_8));
+            } else if (query.contains("LAYERS=missing")) {
+                WMSHandler.send(exchange, 200, "application/vnd.ogc.se_xml",
+                        "<ServiceExceptionReport><ServiceException>Unknown layer</ServiceException></ServiceExceptionReport>"
+                                .getBytes(StandardCharsets.UTF_8));
+            } else {
+                int width = WMSHandler.getIntParameter(query, "WIDTH");
+                int height = WMSHandler.getIntParameter(query, "HEIGHT");
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                image.setRGB(0, 0, 0x80FF0000);
+                image.setRGB(width - 1, height - 1, 0xFF0000FF);
+
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageIO.write(image, "png", png);
+                WMSHandler.send(exchange, 200, "image/png", png.toByteArray());
+            }
+        }
+
+        private static int getIntParameter(String query, String name) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith(name + "=")) {
+                    return Integer.parseInt(parameter.substring(name.length() + 1));
+                }
+            }
+            throw new IllegalArgumentException(String.format("Missing parameter %s", name));
+        }
+
+        private static void send(HttpExchange exchange, int status, String contentType, byte[] content) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, content.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(content);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+
+public class CSVPointTableTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void clearCache() {
+        CSVPointTable.clearCache();
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        URL url = CSVPointTableTest.class.getClassLoader().getResource("layers/World_NE_10m-cities_V3_Ranked.csv");
+        Assert.assertNotNull("Missing CSV resource", url);
+        File csvFile = new File(url.toURI());
+
+        CSVPointTable pointTable = CSVPointTable.get(csvFile, "LONGITUDE", "LATITUDE");
+        Assert.assertSame("The table should be cached", pointTable, CSVPointTable.get(csvFile, "LONGITUDE", "LATITUDE"));
+        Assert.assertEquals("Wrong number of points", 7344, pointTable.size());
+        Assert.assertFalse("The file is not time indexed", pointTable.isTimeIndexed());
+
+        int nameColumn = pointTable.getColumnIndex("name");
+        Assert.assertEquals("Wrong name column", 4, nameColumn);
+        Assert.assertEquals("Wrong name", "Cooktown", pointTable.getValue(0, nameColumn));
+        Assert.assertEquals("Wrong longitude", 145.2515, pointTable.getLongitude(0), 0);
+        Assert.assertEquals("Wrong latitude", -15.46903, pointTable.getLatitude(0), 0);
+
+        // Queensland
+        int[] rows = pointTable.getRows(138, -29, 154, -9);
+        Assert.assertTrue("Queensland points not found", rows.length > 0 && rows.length < pointTable.size());
+        for (int row : rows) {
+            Assert.assertTrue("Point outside the area", pointTable.getLongitude(row) >= 138 && pointTable.getLongitude(row) <= 154);
+        }
+    }
+
+    @Test
+    public void testTimeIndex() throws Exception {
+        File csvFile = this.writeCSV("sampling.csv",
+                "NAME,LONGITUDE,LATITUDE,Time\n" +
+                "\"Site A, north\",147.0,-19.0,2010-09-01T06:00:00Z\n" +
+                "Site B,147.1,-19.1,2010-09-02T06:00:00Z\n" +
+                "Site C,invalid,-19.2,2010-09-02T06:00:00Z\n" +
+                "Permanent station,147.3,-19.3,\n");
+
+        CSVPointTable pointTable = CSVPointTable.get(csvFile, "LONGITUDE", "LATITUDE");
+        Assert.assertEquals("Rows without valid coordinates should be ignored", 3, pointTable.size());
+        Assert.assertTrue("The points should be time indexed", pointTable.isTimeIndexed());
+
+        long day1 = TemporalIndex.parseTime("2010-09-01");
+        long day2 = TemporalIndex.parseTime("2010-09-02");
+        long day3 = TemporalIndex.parseTime("2010-09-03");
+        int[] day1Rows = pointTable.getRows(146, -20, 148, -18, day1, day2);
+        Assert.assertArrayEquals("Wrong rows for day 1", new int[] { 0, 2 }, day1Rows);
+        Assert.assertArrayEquals("Wrong rows for day 2", new int[] { 1, 2 }, pointTable.getRows(146, -20, 148, -18, day2, day3));
+        Assert.assertArrayEquals("Wrong rows for the whole region", new int[] { 0, 1, 2 }, pointTable.getRows(146, -20, 148, -18));
+
+        JSONObject feature = pointTable.getFeatureCollection(day1Rows).getJSONArray("features").getJSONObject(0);
+        Assert.assertEquals("Wrong quoted value", "Site A, north", feature.getJSONObject("properties").getString("NAME"));
+        Assert.assertEquals("Wrong longitude", 147.0, feature.getJSONObject("geometry").getJSONArray("coordinates").getDouble(0), 0);
+        Assert.assertEquals("Wrong latitude", -19.0, feature.getJSONObject("geometry").getJSONArray("coordinates").getDouble(1), 0);
+    }
+
+    @Test
+    public void testMarkers() throws Exception {
+        File csvFile = this.writeCSV("sites.csv",
+                "NAME,TYPE,LONGITUDE,LATITUDE\n" +
+                "Site 1,buoy,147.01,-19.01\n" +
+                "Site 2,buoy,147.02,-19.02\n" +
+                "Site 3,logger,147.03,-19.03\n" +
+                "Site 4,buoy,148.5,-19.5\n" +
+                "Site 5,logger,147.04,-19.04\n");
+
+        CSVPointTable pointTable = CSVPointTable.get(csvFile, "LONGITUDE", "LATITUDE");
+        int[] rows = pointTable.getRows(146, -20, 149, -18);
+        Assert.assertEquals("Wrong number of rows", 5, rows.length);
+
+        // 1 pixel per degree
+        AffineTransform transform = AffineTransform.getScaleInstance(1, -1);
+        int typeColumn = pointTable.getColumnIndex("TYPE");
+
+        List<int[]> markersBySymbol = pointTable.getMarkers(rows, transform, new int[] { typeColumn });
+        Assert.assertEquals("Wrong number of symbols", 2, markersBySymbol.size());
+        Assert.assertArrayEquals("Wrong buoy markers", new int[] { 0, 3 }, markersBySymbol.get(0));
+        Assert.assertArrayEquals("Wrong logger markers", new int[] { 2 }, markersBySymbol.get(1));
+
+        // The style doesn't use any property: every point of a pixel is aggregated
+        markersBySymbol = pointTable.getMarkers(rows, transform, new int[0]);
+        Assert.assertEquals("Wrong number of symbols", 1, markersBySymbol.size());
+        Assert.assertArrayEquals("Wrong markers", new int[] { 0, 3 }, markersBySymbol.get(0));
+
+        // Every column: the names are different, nothing is aggregated
+        markersBySymbol = pointTable.getMarkers(rows, transform, null);
+        Assert.assertEquals("Wrong number of symbols", 5, markersBySymbol.size());
+
+        // 100 pixels per degree: the points are in different pixels
+        markersBySymbol = pointTable.getMarkers(rows, AffineTransform.getScaleInstance(100, -100), new int[] { typeColumn });
+        Assert.assertArrayEquals("Wrong buoy markers", new int[] { 0, 1, 3 }, markersBySymbol.get(0));
+        Assert.assertArrayEquals("Wrong logger markers", new int[] { 2, 4 }, markersBySymbol.get(1));
+    }
+
+    @Test
+    public void testStylePropertyNames() throws Exception {
+        URL url = CSVPointTableTest.class.getClassLoader().getResource("styles/World_NE_10m-cities_V3_Ranked_qld.sld");
+        Assert.assertNotNull("Missing style resource", url);
+
+        Set<String> propertyNames = CSVLayerGenerator.getStylePropertyNames(new File(url.toURI()));
+        Assert.assertNotNull("Style properties not found", propertyNames);
+        Assert.assertTrue("Filter property not found", propertyNames.contains("SCALERANK"));
+        Assert.assertTrue("Label property not found", propertyNames.contains("NAME"));
+    }
+
+    private File writeCSV(String filename, String content) throws Exception {
+        File csvFile = this.temporaryFolder.newFile(filename);
+        Files.write(csvFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return csvFile;
+    }
+}
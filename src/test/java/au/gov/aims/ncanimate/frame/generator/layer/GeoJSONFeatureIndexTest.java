@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class GeoJSONFeatureIndexTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void clearCache() {
+        GeoJSONFeatureIndex.clearCache();
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        URL url = GeoJSONFeatureIndexTest.class.getClassLoader().getResource("layers/GBR_AIMS_Reef-boundaries-3M_2016.geojson");
+        Assert.assertNotNull("Missing GeoJSON resource", url);
+        File geoJSONFile = new File(url.toURI());
+
+        GeoJSONFeatureIndex featureIndex = GeoJSONFeatureIndex.get(geoJSONFile, 0);
+        Assert.assertSame("The index should be cached", featureIndex, GeoJSONFeatureIndex.get(geoJSONFile, 0));
+
+        // Whole file
+        GeoJSONReader allReader = new GeoJSONReader(0, 0);
+        JSONObject allFeatureCollection = featureIndex.getFeatureCollection(
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, allReader);
+        Assert.assertEquals("Wrong number of features", featureIndex.size(), allFeatureCollection.getJSONArray("features").length());
+        Assert.assertEquals("Wrong type", "FeatureCollection", allFeatureCollection.getString("type"));
+
+        // Around Townsville
+        double minX = 146.5, minY = -19.5, maxX = 147.5, maxY = -18.5;
+        GeoJSONReader regionReader = new GeoJSONReader(0, 0);
+        JSONArray regionFeatures = featureIndex.getFeatureCollection(minX, minY, maxX, maxY, regionReader).getJSONArray("features");
+        Assert.assertTrue("No feature found in the region", regionFeatures.length() > 0);
+        Assert.assertTrue("Features outside the region should be culled", regionFeatures.length() < featureIndex.size());
+
+        // Every culled feature must be outside the region
+        int expectedCount = 0;
+        JSONArray allFeatures = allFeatureCollection.getJSONArray("features");
+        for (int i=0; i<allFeatures.length(); i++) {
+            if (GeoJSONFeatureIndexTest.intersects(allFeatures.getJSONObject(i), minX, minY, maxX, maxY)) {
+                expectedCount++;
+            }
+        }
+        Assert.assertEquals("Wrong number of features in the region", expectedCount, regionFeatures.length());
+    }
+
+    /**
+     * The indexed geometries are simplified to the panel resolution,
+     * regions of similar resolution share the same index.
+     * @throws Exception
+     */
+    @Test
+    public void testSimplifiedIndex() throws Exception {
+        URL url = GeoJSONFeatureIndexTest.class.getClassLoader().getResource("layers/GBR_AIMS_Reef-boundaries-3M_2016.geojson");
+        Assert.assertNotNull("Missing GeoJSON resource", url);
+        File geoJSONFile = new File(url.toURI());
+
+        Assert.assertEquals("Wrong index pixel size", 0.0078125, GeoJSONFeatureIndex.getIndexPixelSize(0.01), 0);
+        Assert.assertEquals("Wrong index pixel size", 0.0078125, GeoJSONFeatureIndex.getIndexPixelSize(0.015), 0);
+        Assert.assertEquals("Unknown pixel size should not simplify", 0, GeoJSONFeatureIndex.getIndexPixelSize(0), 0);
+
+        GeoJSONFeatureIndex fullIndex = GeoJSONFeatureIndex.get(geoJSONFile, 0);
+        GeoJSONFeatureIndex simplifiedIndex = GeoJSONFeatureIndex.get(geoJSONFile, 0.01);
+        Assert.assertNotSame("Each resolution should have its own index", fullIndex, simplifiedIndex);
+        Assert.assertSame("Similar resolutions should share the index", simplifiedIndex, GeoJSONFeatureIndex.get(geoJSONFile, 0.015));
+
+        GeoJSONReader fullReader = new GeoJSONReader(0, 0);
+        fullIndex.getFeatureCollection(
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, fullReader);
+        GeoJSONReader simplifiedReader = new GeoJSONReader(0, 0);
+        simplifiedIndex.getFeatureCollection(
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, simplifiedReader);
+        Assert.assertTrue("The indexed geometries should be simplified",
+                simplifiedReader.getInputVertexCount() < fullReader.getInputVertexCount());
+    }
+
+    @Test
+    public void testTimeIndex() throws Exception {
+        // Drifter positions, a plume observation valid for 2 days, and a static feature
+        JSONObject geoJSON = new JSONObject()
+            .put("type", "FeatureCollection")
+            .put(GeoJSONFeatureIndex.TIME_PROPERTY_KEY, "date")
+            .put(GeoJSONFeatureIndex.TIME_END_PROPERTY_KEY, "endDate")
+            .put("features", new JSONArray()
+                .put(GeoJSONFeatureIndexTest.point("drifter", 147.0, -19.0).put("properties", new JSONObject().put("date", "2010-09-01T06:00:00Z")))
+                .put(GeoJSONFeatureIndexTest.point("drifter", 147.1, -19.1).put("properties", new JSONObject().put("date", "2010-09-02T06:00:00Z")))
+                .put(GeoJSONFeatureIndexTest.point("plume", 147.2, -19.2).put("properties", new JSONObject().put("date", "2010-09-01").put("endDate", "2010-09-02T23:59:59Z")))
+                .put(GeoJSONFeatureIndexTest.point("station", 147.3, -19.3))
+                .put(GeoJSONFeatureIndexTest.point("drifter", 160.0, -19.0).put("properties", new JSONObject().put("date", "2010-09-01T06:00:00Z"))));
+
+        File geoJSONFile = this.temporaryFolder.newFile("drifters.geojson");
+        Files.write(geoJSONFile.toPath(), geoJSON.toString().getBytes(StandardCharsets.UTF_8));
+
+        GeoJSONFeatureIndex featureIndex = GeoJSONFeatureIndex.get(geoJSONFile, 0);
+        Assert.assertTrue("The features should be time indexed", featureIndex.isTimeIndexed());
+
+        long day1 = TemporalIndex.parseTime("2010-09-01");
+        long day2 = TemporalIndex.parseTime("2010-09-02");
+        long day3 = TemporalIndex.parseTime("2010-09-03");
+        long day4 = TemporalIndex.parseTime("2010-09-04");
+
+        // Region: excludes the last feature
+        Assert.assertArrayEquals("Wrong features for day 1", new int[] { 0, 2, 3 }, featureIndex.getFeatureIds(146, -20, 148, -18, day1, day2));
+        Assert.assertArrayEquals("Wrong features for day 2", new int[] { 1, 2, 3 }, featureIndex.getFeatureIds(146, -20, 148, -18, day2, day3));
+        Assert.assertArrayEquals("Only the static feature should be displayed on day 3", new int[] { 3 }, featureIndex.getFeatureIds(146, -20, 148, -18, day3, day4));
+        Assert.assertArrayEquals("Wrong features for the whole region", new int[] { 0, 1, 2, 3 }, featureIndex.getFeatureIds(146, -20, 148, -18));
+
+        JSONArray features = featureIndex.getFeatureCollection(featureIndex.getFeatureIds(146, -20, 148, -18, day1, day2), new GeoJSONReader(0, 0))
+                .getJSONArray("features");
+        Assert.assertEquals("Wrong number of features", 3, features.length());
+        Assert.assertEquals("Wrong first feature", "drifter", features.getJSONObject(0).getString("id"));
+    }
+
+    private static JSONObject point(String id, double x, double y) {
+        return new JSONObject()
+            .put("type", "Feature")
+            .put("id", id)
+            .put("geometry", new JSONObject()
+                .put("type", "Point")
+                .put("coordinates", new JSONArray().put(x).put(y)));
+    }
+
+    // Brute force bbox check of a polygon feature
+    private static boolean intersects(JSONObject feature, double minX, double minY, double maxX, double maxY) {
+        JSONObject geometry = feature.getJSONObject("geometry");
+        JSONArray polygons = "MultiPolygon".equals(geometry.getString("type")) ?
+                geometry.getJSONArray("coordinates") : new JSONArray().put(geometry.getJSONArray("coordinates"));
+
+        double featureMinX = Double.POSITIVE_INFINITY, featureMinY = Double.POSITIVE_INFINITY,
+            featureMaxX = Double.NEGATIVE_INFINITY, featureMaxY = Double.NEGATIVE_INFINITY;
+        for (int p=0; p<polygons.length(); p++) {
+            JSONArray rings = polygons.getJSONArray(p);
+            for (int r=0; r<rings.length(); r++) {
+                JSONArray ring = rings.getJSONArray(r);
+                for (int i=0; i<ring.length(); i++) {
+                    double x = ring.getJSONArray(i).getDouble(0);
+                    double y = ring.getJSONArray(i).getDouble(1);
+                    featureMinX = Math.min(featureMinX, x);
+                    featureMinY = Math.min(featureMinY, y);
+                    featureMaxX = Math.max(featureMaxX, x);
+                    featureMaxY = Math.max(featureMaxY, y);
+                }
+            }
+        }
+        return featureMinX <= maxX && featureMaxX >= minX && featureMinY <= maxY && featureMaxY >= minY;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.net.URL;
+
+public class GeoJSONReaderTest {
+
+    @Test
+    public void testSimplifyLine() {
+        // Vertices of the first line are within 0.001 of a straight line
+        String geoJSON = "{ \"type\": \"FeatureCollection\", \"features\": [" +
+            "{ \"type\": \"Feature\", \"properties\": { \"NAME\": \"line\" }, \"geometry\": { \"type\": \"LineString\", \"coordinates\": " +
+                "[ [ 0, 0 ], [ 1, 0.001 ], [ 2, -0.001 ], [ 3, 0 ], [ 3, 1 ] ] } }," +
+            "{ \"type\": \"Feature\", \"properties\": { \"NAME\": \"tiny\" }, \"geometry\": { \"type\": \"Polygon\", \"coordinates\": " +
+                "[ [ [ 5, 5 ], [ 5.001, 5 ], [ 5.001, 5.001 ], [ 5, 5 ] ] ] } }," +
+            "{ \"type\": \"Feature\", \"properties\": { \"NAME\": \"point\" }, \"geometry\": { \"type\": \"Point\", \"coordinates\": [ 7, 7 ] } }" +
+        "] }";
+
+        GeoJSONReader reader = new GeoJSONReader(0.01, 0.01);
+        JSONObject simplified = reader.read(new StringReader(geoJSON));
+
+        Assert.assertEquals("Wrong type", "FeatureCollection", simplified.getString("type"));
+        JSONArray features = simplified.getJSONArray("features");
+        Assert.assertEquals("The sub-pixel polygon should be dropped", 2, features.length());
+        Assert.assertEquals("Wrong number of dropped features", 1, reader.getDroppedFeatureCount());
+
+        JSONArray line = features.getJSONObject(0).getJSONObject("geometry").getJSONArray("coordinates");
+        Assert.assertEquals("Wrong number of simplified vertices", 3, line.length());
+        Assert.assertEquals("Wrong first vertex", 0, line.getJSONArray(0).getDouble(0), 0);
+        Assert.assertEquals("Wrong corner vertex", 3, line.getJSONArray(1).getDouble(0), 0);
+        Assert.assertEquals("Wrong last vertex", 1, line.getJSONArray(2).getDouble(1), 0);
+
+        Assert.assertEquals("The point should be untouched", "point", features.getJSONObject(1).getJSONObject("properties").getString("NAME"));
+    }
+
+    @Test
+    public void testNoSimplification() throws Exception {
+        File geoJSONFile = GeoJSONReaderTest.getResourceFile("layers/CoralSea_JCU_3DGBR_Geomorph_2012_3M.geojson");
+
+        GeoJSONReader reader = new GeoJSONReader(0, 0);
+        JSONObject geoJSON = reader.read(geoJSONFile);
+        Assert.assertEquals("Features should not be dropped", 0, reader.getDroppedFeatureCount());
+        Assert.assertEquals("Vertices should not be removed", reader.getInputVertexCount(), reader.getOutputVertexCount());
+        Assert.assertEquals("Wrong number of features", reader.getInputFeatureCount(), geoJSON.getJSONArray("features").length());
+        Assert.assertNotNull("Missing crs", geoJSON.optJSONObject("crs"));
+    }
+
+    @Test
+    public void testPixelSimplification() throws Exception {
+        File geoJSONFile = GeoJSONReaderTest.getResourceFile("layers/GBR_AIMS_Reef-boundaries-3M_2016.geojson");
+
+        // Queensland region, rendered in a 600 x 800 pixels panel
+        double pixelSize = GeoJSONReader.getPixelSize(13, 16, 600, 800);
+        GeoJSONReader reader = GeoJSONReader.forPixelSize(pixelSize, 0.5, 0.5);
+        JSONObject geoJSON = reader.read(geoJSONFile);
+
+        Assert.assertTrue("Vertices should be removed", reader.getOutputVertexCount() < reader.getInputVertexCount());
+        Assert.assertEquals("Wrong number of features",
+                reader.getInputFeatureCount() - reader.getDroppedFeatureCount(), geoJSON.getJSONArray("features").length());
+    }
+
+    private static File getResourceFile(String resource) throws Exception {
+        URL url = GeoJSONReaderTest.class.getClassLoader().getResource(resource);
+        Assert.assertNotNull(String.format("Missing resource %s", resource), url);
+        return new File(url.toURI());
+    }
+}
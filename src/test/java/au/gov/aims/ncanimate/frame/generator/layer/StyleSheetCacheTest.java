@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import au.gov.aims.sld.StyleSheet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public class StyleSheetCacheTest {
+
+    @After
+    public void clearCache() {
+        StyleSheetCache.clearCache();
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        URL url = StyleSheetCacheTest.class.getClassLoader().getResource("styles/Polygon_Outline-Red.sld");
+        Assert.assertNotNull("Missing style resource", url);
+
+        File sld = File.createTempFile("ncanimate_style_", ".sld");
+        try {
+            Files.copy(new File(url.toURI()).toPath(), sld.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            StyleSheet styleSheet = StyleSheetCache.get(sld, 1);
+            Assert.assertNotNull("The style sheet could not be parsed", styleSheet);
+            Assert.assertSame("The style sheet should be cached", styleSheet, StyleSheetCache.get(sld, 1));
+            Assert.assertNotSame("Each scale needs its own style sheet", styleSheet, StyleSheetCache.get(sld, 2));
+
+            // Touched file: same checksum
+            Assert.assertTrue("Could not set the last modified date", sld.setLastModified(sld.lastModified() - 10000));
+            Assert.assertSame("A touched style file should not be parsed again", styleSheet, StyleSheetCache.get(sld, 1));
+
+            // Modified file: new checksum
+            Files.write(sld.toPath(), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            Assert.assertNotSame("A modified style file should be parsed again", styleSheet, StyleSheetCache.get(sld, 1));
+            Assert.assertEquals("The style sheet of the previous version should be evicted", 2, StyleSheetCache.size());
+
+            Assert.assertNull("Missing files have no style sheet", StyleSheetCache.get(new File(sld.getParentFile(), "missing.sld"), 1));
+        } finally {
+            sld.delete();
+        }
+    }
+}
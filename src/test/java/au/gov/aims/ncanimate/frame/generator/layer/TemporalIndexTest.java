@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TemporalIndexTest {
+
+    @Test
+    public void testQuery() {
+        Random random = new Random(42);
+        int size = 5000;
+        List<Integer> entries = new ArrayList<Integer>();
+        long[] startMillis = new long[size];
+        long[] endMillis = new long[size];
+        for (int i=0; i<size; i++) {
+            entries.add(i);
+            startMillis[i] = random.nextInt(1000000);
+            // Mix of instants and intervals
+            endMillis[i] = i % 3 == 0 ? startMillis[i] : startMillis[i] + random.nextInt(5000);
+        }
+
+        TemporalIndex<Integer> index = new TemporalIndex<Integer>(entries, startMillis, endMillis);
+        Assert.assertEquals("Wrong index size", size, index.size());
+
+        for (int query=0; query<200; query++) {
+            long from = random.nextInt(1000000);
+            long to = from + random.nextInt(10000);
+
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i=0; i<size; i++) {
+                if (startMillis[i] < to && endMillis[i] >= from) {
+                    expected.add(i);
+                }
+            }
+
+            Assert.assertEquals(String.format("Wrong entries for [%d, %d[", from, to), expected, index.query(from, to));
+        }
+    }
+
+    @Test
+    public void testLongIntervals() {
+        // Hourly positions over a year, with a few features valid for months
+        Random random = new Random(42);
+        int size = 8760;
+        long hour = 60 * 60 * 1000L;
+        List<Integer> entries = new ArrayList<Integer>();
+        long[] startMillis = new long[size];
+        long[] endMillis = new long[size];
+        for (int i=0; i<size; i++) {
+            entries.add(i);
+            startMillis[i] = i * hour;
+            endMillis[i] = i % 1000 == 0 ? startMillis[i] + random.nextInt(4000) * hour : startMillis[i];
+        }
+
+        TemporalIndex<Integer> index = new TemporalIndex<Integer>(entries, startMillis, endMillis);
+        for (int query=0; query<200; query++) {
+            long from = random.nextInt(size) * hour;
+            long to = from + hour;
+
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i=0; i<size; i++) {
+                if (startMillis[i] < to && endMillis[i] >= from) {
+                    expected.add(i);
+                }
+            }
+
+            Assert.assertEquals(String.format("Wrong entries for [%d, %d[", from, to), expected, index.query(from, to));
+        }
+    }
+
+    @Test
+    public void testBounds() {
+        List<String> entries = new ArrayList<String>();
+        entries.add("instant");
+        entries.add("interval");
+        TemporalIndex<String> index = new TemporalIndex<String>(entries, new long[] { 1000, 500 }, new long[] { 1000, 2000 });
+
+        Assert.assertEquals("The end of the range is exclusive", 1, index.query(0, 1000).size());
+        Assert.assertEquals("The start of the range is inclusive", 2, index.query(1000, 1001).size());
+        Assert.assertEquals("The end of the interval is inclusive", "interval", index.query(2000, 3000).get(0));
+        Assert.assertTrue("No entry after the last interval", index.query(2001, 3000).isEmpty());
+        Assert.assertEquals("Wrong whole range query", 2, index.query(Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void testParseTime() {
+        Assert.assertEquals("Wrong UTC date", Long.valueOf(1283299200000L), TemporalIndex.parseTime("2010-09-01"));
+        Assert.assertEquals("Wrong UTC date time", Long.valueOf(1283340600000L), TemporalIndex.parseTime("2010-09-01T11:30:00Z"));
+        Assert.assertEquals("Wrong date time with offset", Long.valueOf(1283340600000L), TemporalIndex.parseTime("2010-09-01T21:30:00+10:00"));
+        Assert.assertEquals("Wrong epoch time", Long.valueOf(1283299200000L), TemporalIndex.parseTime(1283299200000L));
+        Assert.assertNull("Invalid date should be null", TemporalIndex.parseTime("14:30 yesterday"));
+        Assert.assertNull("Empty date should be null", TemporalIndex.parseTime(""));
+        Assert.assertNull("Null date should be null", TemporalIndex.parseTime(null));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer.edalLayer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ArrowAnchorTableTest {
+
+    @After
+    public void clearCache() {
+        ArrowAnchorTable.clearCache();
+    }
+
+    @Test
+    public void testAnchors() {
+        // 100 x 60 image, arrows every 20 pixels: 5 columns, 3 rows
+        int[][] anchors = ArrowAnchorTable.getAnchors(100, 60, 10);
+        Assert.assertArrayEquals("Wrong anchor X",
+                new int[] { 11, 31, 51, 71, 91, 11, 31, 51, 71, 91, 11, 31, 51, 71, 91 }, anchors[0]);
+        Assert.assertArrayEquals("Wrong anchor Y",
+                new int[] { 11, 11, 11, 11, 11, 31, 31, 31, 31, 31, 51, 51, 51, 51, 51 }, anchors[1]);
+    }
+
+    @Test
+    public void testAnchorsMatchArrowLayer() {
+        // Panel sizes which are not a multiple of the arrow spacing
+        int[][] sizes = new int[][] {
+            { 100, 60, 10 },
+            { 587, 412, 20 },
+            { 1024, 768, 7 },
+            { 333, 999, 13 },
+            { 41, 40, 20 }
+        };
+
+        for (int[] size : sizes) {
+            int[][] expected = ArrowAnchorTableTest.getArrowLayerAnchors(size[0], size[1], size[2]);
+            int[][] anchors = ArrowAnchorTable.getAnchors(size[0], size[1], size[2]);
+            String message = String.format("%dx%d, arrow size %d", size[0], size[1], size[2]);
+            Assert.assertArrayEquals("Wrong anchor X: " + message, expected[0], anchors[0]);
+            Assert.assertArrayEquals("Wrong anchor Y: " + message, expected[1], anchors[1]);
+        }
+    }
+
+    @Test
+    public void testNoAnchor() {
+        // The image is smaller than the arrow spacing
+        int[][] anchors = ArrowAnchorTable.getAnchors(30, 300, 20);
+        Assert.assertEquals("There should be no anchor", 0, anchors[0].length);
+        Assert.assertEquals("There should be no anchor", 0, anchors[1].length);
+    }
+
+    @Test
+    public void testComputeHeadingOffset() {
+        // Lat / lon grid: WGS84 headings are not transformed
+        Assert.assertEquals("The offset should be 0 on a lat/lon grid",
+                0f, ArrowAnchorTable.computeHeadingOffset(0.0, 90.0), 0);
+
+        // Conformal projection: north and east are rotated by the same angle
+        Assert.assertEquals("Wrong rotation offset",
+                10f, ArrowAnchorTable.computeHeadingOffset(10.0, 100.0), 1E-6);
+        Assert.assertEquals("Wrong negative rotation offset",
+                -5f, ArrowAnchorTable.computeHeadingOffset(355.0, 85.0), 1E-6);
+
+        // The correction depends on the heading
+        Assert.assertTrue("The offset should be NaN when the north and east corrections differ",
+                Float.isNaN(ArrowAnchorTable.computeHeadingOffset(10.0, 95.0)));
+        Assert.assertTrue("The offset should be NaN when the heading can not be transformed",
+                Float.isNaN(ArrowAnchorTable.computeHeadingOffset(null, 90.0)));
+    }
+
+    @Test
+    public void testKey() {
+        // The key doesn't depend on the variable nor the depth: they share the same grid
+        String key = ArrowAnchorTable.getKey("gbr4_v2", "qld", 587, 412, 20);
+        Assert.assertFalse("The key should depend on the region",
+                key.equals(ArrowAnchorTable.getKey("gbr4_v2", "brisbane", 587, 412, 20)));
+        Assert.assertFalse("The key should depend on the panel size",
+                key.equals(ArrowAnchorTable.getKey("gbr4_v2", "qld", 412, 587, 20)));
+        Assert.assertFalse("The key should depend on the arrow size",
+                key.equals(ArrowAnchorTable.getKey("gbr4_v2", "qld", 587, 412, 10)));
+    }
+
+    // Anchors found by the pixel loop of the arrow layer (before the anchor table)
+    private static int[][] getArrowLayerAnchors(int width, int height, int arrowSize) {
+        List<Integer> anchorXs = new ArrayList<Integer>();
+        List<Integer> anchorYs = new ArrayList<Integer>();
+
+        double xPixelsPerArrow = ((double) width) / (width / (arrowSize * 2));
+        double yPixelsPerArrow = ((double) height) / (height / (arrowSize * 2));
+        double xLoc = xPixelsPerArrow / 2;
+        double yLoc = yPixelsPerArrow / 2;
+        for (int j = 0; j < height; j++) {
+            if (yLoc > yPixelsPerArrow) {
+                yLoc -= yPixelsPerArrow;
+                for (int i = 0; i < width; i++) {
+                    if (xLoc > xPixelsPerArrow) {
+                        xLoc -= xPixelsPerArrow;
+                        anchorXs.add(i);
+                        anchorYs.add(j);
+                    }
+                    xLoc += 1.0;
+                }
+            }
+            yLoc += 1.0;
+        }
+
+        int[][] anchors = new int[][] { new int[anchorXs.size()], new int[anchorYs.size()] };
+        for (int anchor = 0; anchor < anchorXs.size(); anchor++) {
+            anchors[0][anchor] = anchorXs.get(anchor);
+            anchors[1][anchor] = anchorYs.get(anchor);
+        }
+        return anchors;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.layer.edalLayer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.rdg.resc.edal.domain.Domain;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class NoDataMaskTest {
+
+    @After
+    public void clearCache() {
+        NoDataMask.clearCache();
+    }
+
+    @Test
+    public void testMask() {
+        // 3 x 2 image, the grid covers x >= 1
+        List<HorizontalPosition> positions = NoDataMaskTest.getPositions(3, 2);
+
+        NoDataMask mask = NoDataMask.get(null, 3, 2, positions, Collections.singletonList(new BoxDomain(1, 2)));
+        Assert.assertEquals("Wrong number of valid pixels", 4, mask.getValidPixelCount());
+        Assert.assertFalse("Pixel outside the grid should not be valid", mask.isValid(0, 0));
+        Assert.assertTrue("Pixel should be valid", mask.isValid(1, 0));
+        Assert.assertTrue("Pixel should be valid", mask.isValid(2, 1));
+
+        List<Integer> validIndexes = new ArrayList<Integer>();
+        for (int index = mask.nextValid(0); index >= 0; index = mask.nextValid(index + 1)) {
+            validIndexes.add(index);
+        }
+        Assert.assertEquals("Wrong valid pixels", Arrays.asList(1, 2, 4, 5), validIndexes);
+    }
+
+    @Test
+    public void testMultipleDomains() {
+        List<HorizontalPosition> positions = NoDataMaskTest.getPositions(4, 1);
+
+        NoDataMask mask = NoDataMask.get(null, 4, 1, positions, Arrays.asList(new BoxDomain(0, 0), new BoxDomain(2, 2)));
+        Assert.assertEquals("Pixels in any domain should be valid", 2, mask.getValidPixelCount());
+        Assert.assertTrue("Pixel should be valid", mask.isValid(0));
+        Assert.assertTrue("Pixel should be valid", mask.isValid(2));
+    }
+
+    @Test
+    public void testUnknownDomain() {
+        List<HorizontalPosition> positions = NoDataMaskTest.getPositions(2, 2);
+
+        Assert.assertEquals("Every pixel should be valid when the domain is unknown", 4,
+                NoDataMask.get(null, 2, 2, positions, null).getValidPixelCount());
+        Assert.assertEquals("Every pixel should be valid when the domain is unknown", 4,
+                NoDataMask.get(null, 2, 2, positions, Arrays.asList(new BoxDomain(0, 0), null)).getValidPixelCount());
+    }
+
+    @Test
+    public void testCache() {
+        String key = NoDataMask.getKey("gbr4_v2", "qld", 2, 2);
+        List<HorizontalPosition> positions = NoDataMaskTest.getPositions(2, 2);
+
+        NoDataMask mask = NoDataMask.get(key, 2, 2, positions, Collections.singletonList(new BoxDomain(1, 1)));
+        Assert.assertEquals("Wrong number of valid pixels", 2, mask.getValidPixelCount());
+        Assert.assertSame("The mask should be cached", mask,
+                NoDataMask.get(key, 2, 2, positions, Collections.singletonList(new BoxDomain(0, 1))));
+
+        // Different region: different mask
+        String otherKey = NoDataMask.getKey("gbr4_v2", "brisbane", 2, 2);
+        Assert.assertEquals("Wrong number of valid pixels", 4,
+                NoDataMask.get(otherKey, 2, 2, positions, Collections.singletonList(new BoxDomain(0, 1))).getValidPixelCount());
+        Assert.assertFalse("The key should depend on the panel size",
+                key.equals(NoDataMask.getKey("gbr4_v2", "qld", 4, 1)));
+    }
+
+    // Position of each pixel, x-dimension first: x = column index, y = row index
+    private static List<HorizontalPosition> getPositions(int width, int height) {
+        List<HorizontalPosition> positions = new ArrayList<HorizontalPosition>();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                positions.add(new HorizontalPosition(x, y));
+            }
+        }
+        return positions;
+    }
+
+    // Grid covering the columns [minX, maxX]
+    private static class BoxDomain implements Domain<HorizontalPosition> {
+        private double minX;
+        private double maxX;
+
+        public BoxDomain(double minX, double maxX) {
+            this.minX = minX;
+            this.maxX = maxX;
+        }
+
+        @Override
+        public boolean contains(HorizontalPosition position) {
+            return position.getX() >= this.minX && position.getX() <= this.maxX;
+        }
+    }
+}
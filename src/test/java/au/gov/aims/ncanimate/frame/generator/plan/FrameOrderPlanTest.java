@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.plan;
+
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateRegionBean;
+import au.gov.aims.ereefs.database.CacheStrategy;
+import au.gov.aims.ereefs.helper.NcAnimateConfigHelper;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.commons.timetable.FrameTimetableMap;
+import au.gov.aims.ncanimate.frame.DatabaseTestBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FrameOrderPlanTest extends DatabaseTestBase {
+
+    /**
+     * The product uses 2 input files (one per day), for 2 regions and 2 target heights.
+     * The planned order must render the same frames, with fewer input file switches.
+     * @throws Exception
+     */
+    @Test
+    public void testFrameOrderPlan() throws Exception {
+        this.insertData();
+        this.insertInputData_fakeData_hydro_gbr4();
+
+        NcAnimateConfigHelper configHelper = new NcAnimateConfigHelper(this.getDatabaseClient(), CacheStrategy.DISK);
+        NcAnimateConfigBean ncAnimateConfig = configHelper.getNcAnimateConfig("gbr4_v2_temp-wind-salt-current");
+        DateTimeRange productDateRange = DateTimeRange.create(null, null);
+        FrameTimetableMap frameTimetableMap = new FrameTimetableMap(ncAnimateConfig, productDateRange, this.getDatabaseClient());
+
+        List<DateTimeRange> frames = new ArrayList<DateTimeRange>(frameTimetableMap.keySet());
+        List<NcAnimateRegionBean> regions = new ArrayList<NcAnimateRegionBean>();
+        regions.add(ncAnimateConfig.getRegions().get("qld"));
+        regions.add(ncAnimateConfig.getRegions().get("torres-strait"));
+        List<Double> targetHeights = ncAnimateConfig.getTargetHeights();
+
+        FrameOrderPlan orderPlan = new FrameOrderPlan(ncAnimateConfig, frameTimetableMap, frames, regions, targetHeights);
+
+        Map<String, Integer> defaultFrames = FrameOrderPlanTest.countFrames(orderPlan.getDefaultOrder());
+        Map<String, Integer> plannedFrames = FrameOrderPlanTest.countFrames(orderPlan.getPlannedOrder());
+        Assert.assertEquals("The planned order must render the same frames", defaultFrames, plannedFrames);
+        Assert.assertEquals("Wrong number of frames", frames.size() * regions.size() * targetHeights.size(), plannedFrames.size());
+
+        int switchesBefore = orderPlan.getDefaultSwitchCount();
+        int switchesAfter = orderPlan.getPlannedSwitchCount();
+        Assert.assertTrue(String.format("Planned order has more input file switches (%d) than the default order (%d)", switchesAfter, switchesBefore),
+                switchesAfter < switchesBefore);
+    }
+
+    // Number of time each frame is rendered. Key: region_height_date
+    private static Map<String, Integer> countFrames(List<FrameOrderPlan.WorkItem> order) {
+        Map<String, Integer> frameCountMap = new HashMap<String, Integer>();
+        for (FrameOrderPlan.WorkItem workItem : order) {
+            for (DateTimeRange frameDateRange : workItem.getFrames()) {
+                String key = workItem.getRegion().getId().getValue() + "_" + workItem.getTargetHeight() + "_" + frameDateRange.getStartDate();
+                Integer frameCount = frameCountMap.get(key);
+                frameCountMap.put(key, frameCount == null ? 1 : frameCount + 1);
+            }
+        }
+        return frameCountMap;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.plan;
+
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.frame.DatabaseTestBase;
+import au.gov.aims.ncanimate.frame.NcAnimateFrame;
+import au.gov.aims.ncanimate.frame.generator.GroupFrameGenerator;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FrameScheduleTest extends DatabaseTestBase {
+    private static final DateTimeZone TIMEZONE = DateTimeZone.forID("Australia/Brisbane");
+
+    @Test
+    public void testParsePolicy() {
+        Assert.assertEquals("Wrong policy", FrameSchedule.Policy.NEWEST_FIRST, FrameSchedule.parsePolicy("newest-first"));
+        Assert.assertEquals("Wrong policy", FrameSchedule.Policy.REGION_INTERLEAVED, FrameSchedule.parsePolicy(" REGION_INTERLEAVED "));
+
+        for (String invalidPolicy : new String[] { null, "", "random" }) {
+            try {
+                FrameSchedule.parsePolicy(invalidPolicy);
+                Assert.fail(String.format("Invalid policy %s should be rejected", invalidPolicy));
+            } catch(IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testParseDeadline() {
+        long runStart = new DateTime(2021, 3, 1, 5, 0, TIMEZONE).getMillis();
+        Assert.assertEquals("Wrong period deadline", runStart + 45 * 60 * 1000, FrameSchedule.parseDeadline("PT45M", runStart));
+        Assert.assertEquals("Wrong date deadline", new DateTime(2021, 3, 1, 6, 0, TIMEZONE).getMillis(),
+                FrameSchedule.parseDeadline("2021-03-01T06:00:00.000+10:00", runStart));
+
+        for (String invalidDeadline : new String[] { null, "", "45 minutes", "P1M" }) {
+            try {
+                FrameSchedule.parseDeadline(invalidDeadline, runStart);
+                Assert.fail(String.format("Invalid deadline %s should be rejected", invalidDeadline));
+            } catch(IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testSchedule() {
+        DateTimeRange frame0 = FrameScheduleTest.getFrame(0);
+        DateTimeRange frame1 = FrameScheduleTest.getFrame(1);
+        DateTimeRange frame2 = FrameScheduleTest.getFrame(2);
+
+        // 2 groups of frames (input files), for 2 target heights
+        List<FrameOrderPlan.WorkItem> order = new ArrayList<FrameOrderPlan.WorkItem>();
+        order.add(new FrameOrderPlan.WorkItem(null, -1.5, Arrays.asList(frame0, frame1)));
+        order.add(new FrameOrderPlan.WorkItem(null, -49.0, Arrays.asList(frame0, frame1)));
+        order.add(new FrameOrderPlan.WorkItem(null, -1.5, Arrays.asList(frame2)));
+        order.add(new FrameOrderPlan.WorkItem(null, -49.0, Arrays.asList(frame2)));
+
+        Assert.assertSame("Oldest first should keep the plan order", order, FrameSchedule.schedule(order, FrameSchedule.Policy.OLDEST_FIRST));
+
+        List<FrameOrderPlan.WorkItem> newestFirst = FrameSchedule.schedule(order, FrameSchedule.Policy.NEWEST_FIRST);
+        Assert.assertEquals("Wrong number of work items", 4, newestFirst.size());
+        Assert.assertEquals("Wrong first work item", Arrays.asList(frame2), newestFirst.get(0).getFrames());
+        Assert.assertEquals("Wrong first work item height", -1.5, newestFirst.get(0).getTargetHeight(), 0);
+        Assert.assertEquals("Wrong second work item height", -49.0, newestFirst.get(1).getTargetHeight(), 0);
+        Assert.assertEquals("Frames should be in reverse order", Arrays.asList(frame1, frame0), newestFirst.get(2).getFrames());
+
+        List<FrameOrderPlan.WorkItem> interleaved = FrameSchedule.schedule(order, FrameSchedule.Policy.REGION_INTERLEAVED);
+        Assert.assertEquals("Wrong number of work items", 6, interleaved.size());
+        DateTimeRange[] expectedFrames = new DateTimeRange[] { frame2, frame2, frame1, frame1, frame0, frame0 };
+        for (int i=0; i<expectedFrames.length; i++) {
+            Assert.assertEquals(String.format("Wrong frame for work item %d", i), Arrays.asList(expectedFrames[i]), interleaved.get(i).getFrames());
+            Assert.assertEquals(String.format("Wrong target height for work item %d", i), i % 2 == 0 ? -1.5 : -49.0, interleaved.get(i).getTargetHeight(), 0);
+        }
+    }
+
+    /**
+     * A run started after its deadline renders no frame.
+     * @throws Exception
+     */
+    @Test
+    public void testDeadline() throws Exception {
+        this.insertData();
+        this.insertInputData_fakeData_hydro_gbr4();
+
+        NcAnimateFrame ncAnimateFrame = new NcAnimateFrame(this.getDatabaseClient(), null, null);
+        GroupFrameGenerator.setDeadline("PT0S");
+        try {
+            ncAnimateFrame.generateFromContext("gbr4_v2_temp-wind-salt-current", "2014-12-01T00:00:00.000+10:00", "2014-12-01T02:00:00.000+10:00");
+        } finally {
+            GroupFrameGenerator.setDeadline(null);
+        }
+
+        File frameDir = new File("/tmp/ncanimateTests/s3/ncanimate/frames/gbr4_v2_temp-wind-salt-current/qld/height_-1.5");
+        File[] frameFiles = frameDir.listFiles();
+        Assert.assertTrue("No frame should be rendered after the deadline", frameFiles == null || frameFiles.length == 0);
+    }
+
+    private static DateTimeRange getFrame(int hour) {
+        return DateTimeRange.create(
+                new DateTime(2014, 12, 1, hour, 0, TIMEZONE),
+                new DateTime(2014, 12, 1, hour + 1, 0, TIMEZONE));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.plan;
+
+import au.gov.aims.ncanimate.frame.DatabaseTestBase;
+import au.gov.aims.ncanimate.frame.NcAnimateFrame;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+public class FrameShardPlanTest extends DatabaseTestBase {
+
+    @Test
+    public void testParseShard() {
+        Assert.assertArrayEquals("Wrong shard", new int[] { 0, 1 }, FrameShardPlan.parseShard("0/1"));
+        Assert.assertArrayEquals("Wrong shard", new int[] { 2, 4 }, FrameShardPlan.parseShard(" 2 / 4 "));
+
+        for (String invalidShard : new String[] { null, "", "1", "4/4", "-1/4", "1/0", "a/b", "1/2/3" }) {
+            try {
+                FrameShardPlan.parseShard(invalidShard);
+                Assert.fail(String.format("Invalid shard %s should be rejected", invalidShard));
+            } catch(IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * The product uses 2 input files (one per day).
+     * Each file must be rendered by a single shard.
+     * @throws Exception
+     */
+    @Test
+    public void testShardPlan() throws Exception {
+        this.insertData();
+        this.insertInputData_fakeData_hydro_gbr4();
+
+        NcAnimateFrame ncAnimateFrame = new NcAnimateFrame(this.getDatabaseClient(), null, null);
+
+        for (int shardCount : new int[] { 1, 2, 3 }) {
+            FrameShardPlan shardPlan = ncAnimateFrame.getShardPlan("gbr4_v2_temp-wind-salt-current", null, null, shardCount);
+            Assert.assertTrue("The plan contains no frame", shardPlan.getFrameCount() > 0);
+
+            JSONObject jsonManifest = shardPlan.toJSON();
+            JSONArray jsonShards = jsonManifest.getJSONArray("shards");
+            Assert.assertEquals("Wrong number of shards in the manifest", shardCount, jsonShards.length());
+
+            int frameCount = 0;
+            Map<String, Integer> inputFileShards = new HashMap<String, Integer>();
+            for (int i=0; i<jsonShards.length(); i++) {
+                JSONObject jsonShard = jsonShards.getJSONObject(i);
+                Assert.assertEquals("Wrong shard frame count", shardPlan.getFrames(i).size(), jsonShard.getInt("frameCount"));
+                frameCount += jsonShard.getInt("frameCount");
+
+                JSONArray jsonGroups = jsonShard.getJSONArray("groups");
+                for (int j=0; j<jsonGroups.length(); j++) {
+                    String inputFile = jsonGroups.getJSONObject(j).optString("inputFile", null);
+                    Assert.assertNotNull("Frame without input file", inputFile);
+
+                    Integer inputFileShard = inputFileShards.get(inputFile);
+                    Assert.assertTrue(String.format("Input file %s is rendered by shard %s and %d", inputFile, inputFileShard, i),
+                            inputFileShard == null || inputFileShard == i);
+                    inputFileShards.put(inputFile, i);
+                }
+            }
+
+            Assert.assertEquals(String.format("Wrong total number of frames with %d shards", shardCount), shardPlan.getFrameCount(), frameCount);
+            Assert.assertEquals("Wrong number of input files", 2, inputFileShards.size());
+            if (shardCount > 1) {
+                Assert.assertEquals("The input files should be rendered by different shards", 2, new HashSet<Integer>(inputFileShards.values()).size());
+            }
+        }
+    }
+}
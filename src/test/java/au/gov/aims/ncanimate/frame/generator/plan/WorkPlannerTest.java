@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.plan;
+
+import au.gov.aims.ncanimate.frame.DatabaseTestBase;
+import au.gov.aims.ncanimate.frame.NcAnimateFrame;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class WorkPlannerTest extends DatabaseTestBase {
+
+    /**
+     * Plan the first 2 frames of a product, render them, then plan again.
+     * @throws Exception
+     */
+    @Test
+    public void testPlan() throws Exception {
+        this.insertData();
+        this.insertInputData_fakeData_hydro_gbr4();
+
+        String productId = "gbr4_v2_temp-wind-salt-current";
+        String dateFrom = "2014-12-01T00:00:00.000+10:00";
+        String dateTo = "2014-12-01T02:00:00.000+10:00";
+
+        NcAnimateFrame ncAnimateFrame = new NcAnimateFrame(this.getDatabaseClient(), null, null);
+
+        JSONObject jsonPlan = ncAnimateFrame.plan(productId, dateFrom, dateTo);
+        int frameCount = jsonPlan.getInt("frames");
+        Assert.assertTrue("The plan contains no frame", frameCount > 0);
+        Assert.assertEquals("Every frame should be stale before the first run", frameCount, jsonPlan.getInt("staleFrames"));
+
+        JSONArray jsonInputFiles = jsonPlan.getJSONArray("inputFiles");
+        Assert.assertEquals("Wrong number of input files", 1, jsonInputFiles.length());
+        JSONObject jsonInputFile = jsonInputFiles.getJSONObject(0);
+        Assert.assertEquals("Wrong number of stale frames for the input file", frameCount, jsonInputFile.getInt("staleFrames"));
+
+        // The input file is not downloaded yet, its size is requested from its source
+        long inputFileSize = new File("/tmp/ncanimateTests/netcdfFiles/gbr4_v2_2014-12-01.nc").length();
+        Assert.assertTrue("The input file should be downloaded", jsonInputFile.getBoolean("download"));
+        Assert.assertEquals("Wrong input file size", inputFileSize, jsonInputFile.getLong("sizeBytes"));
+        Assert.assertEquals("Wrong download size", inputFileSize, jsonPlan.getLong("downloadBytes"));
+
+        JSONObject jsonMemory = jsonPlan.getJSONObject("estimate").getJSONObject("memory");
+        Assert.assertTrue("Missing canvas memory estimate", jsonMemory.getLong("canvasBytes") > 0);
+        Assert.assertTrue("Frame memory estimate is smaller than the canvas", jsonMemory.getLong("frameBytes") > jsonMemory.getLong("canvasBytes"));
+
+        ncAnimateFrame.generateFromContext(productId, dateFrom, dateTo);
+
+        jsonPlan = ncAnimateFrame.plan(productId, dateFrom, dateTo);
+        Assert.assertEquals("Wrong number of frames after the run", frameCount, jsonPlan.getInt("frames"));
+        Assert.assertEquals("No frame should be stale after the run", 0, jsonPlan.getInt("staleFrames"));
+        Assert.assertEquals("No input file should be needed after the run", 0, jsonPlan.getJSONArray("inputFiles").length());
+        Assert.assertNotNull("The estimate should use the last run report", jsonPlan.getJSONObject("estimate").opt("frameMs"));
+    }
+}
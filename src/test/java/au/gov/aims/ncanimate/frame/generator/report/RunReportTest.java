@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.report;
+
+import au.gov.aims.ereefs.Utils;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.database.CacheStrategy;
+import au.gov.aims.ereefs.helper.NcAnimateConfigHelper;
+import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.frame.DatabaseTestBase;
+import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class RunReportTest extends DatabaseTestBase {
+    private static final File REPORT_DIR = new File("/tmp/ncanimateTests/reports");
+
+    @Test
+    public void testReport() throws Exception {
+        super.insertData();
+        Utils.deleteDirectory(REPORT_DIR);
+
+        NcAnimateConfigHelper ncAnimateConfigHelper =
+            new NcAnimateConfigHelper(this.getDatabaseClient(), CacheStrategy.DISK);
+        NcAnimateConfigBean ncAnimateConfig = ncAnimateConfigHelper.getNcAnimateConfig("gbr4_v2_temp-wind-salt-current");
+        DateTimeZone timezone = NcAnimateUtils.getTimezone(ncAnimateConfig);
+
+        RunReport runReport = new RunReport(REPORT_DIR, "gbr4_v2_temp-wind-salt-current", null);
+
+        FrameGeneratorContext context = new FrameGeneratorContext(ncAnimateConfig);
+        context.setRegion(ncAnimateConfig.getRegions().get("qld"));
+        context.setTargetHeight(-1.5);
+        context.setRunReport(runReport);
+        Assert.assertSame("Unexpected report found in context", runReport, RunReport.get(context));
+
+        for (int hour = 0; hour < 4; hour++) {
+            context.setFrameDateRange(DateTimeRange.create(
+                    new DateTime(2014, 12, 1, hour, 0, timezone),
+                    new DateTime(2014, 12, 1, hour + 1, 0, timezone)));
+
+            runReport.startFrame();
+            long start = runReport.start();
+            Thread.sleep(2);
+            runReport.stop(RunReport.STAGE_DRAW_IMAGE, start);
+            runReport.addBytesWritten(100);
+
+            // The last frame is up to date
+            runReport.endFrame(context, hour < 3);
+        }
+        runReport.close();
+
+        List<String> traceLines = FileUtils.readLines(runReport.getTraceFile(), StandardCharsets.UTF_8);
+        // The skipped frame is only counted, it has no trace line
+        Assert.assertEquals("Unexpected number of frame trace lines", 3, traceLines.size());
+        JSONObject firstFrame = new JSONObject(traceLines.get(0));
+        Assert.assertEquals("qld", firstFrame.getString("regionId"));
+        Assert.assertTrue("Missing drawImage stage", firstFrame.getJSONObject("stages").has(RunReport.STAGE_DRAW_IMAGE));
+        Assert.assertEquals(100, firstFrame.getLong("bytesWritten"));
+
+        JSONObject summary = new JSONObject(FileUtils.readFileToString(runReport.getSummaryFile(), StandardCharsets.UTF_8));
+        Assert.assertEquals(3, summary.getInt("generatedFrames"));
+        Assert.assertEquals(1, summary.getInt("skippedFrames"));
+        Assert.assertEquals(400, summary.getLong("bytesWritten"));
+
+        JSONObject drawImageSummary = summary.getJSONObject("stages").getJSONObject(RunReport.STAGE_DRAW_IMAGE);
+        Assert.assertEquals(4, drawImageSummary.getInt("count"));
+        Assert.assertTrue("Unexpected p50", drawImageSummary.getDouble("p50Ms") >= 2);
+        Assert.assertTrue("Unexpected p99", drawImageSummary.getDouble("p99Ms") >= drawImageSummary.getDouble("p50Ms"));
+        Assert.assertEquals(3, summary.getJSONObject("stages").getJSONObject(RunReport.STAGE_FRAME).getInt("count"));
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+        Utils.deleteDirectory(REPORT_DIR);
+        Assert.assertTrue("Could not create the report directory", REPORT_DIR.mkdirs());
+
+        long now = System.currentTimeMillis();
+        long day = 24L * 60 * 60 * 1000;
+
+        File oldTrace = this.createReportFile("product_2014-12-01T00h00m00s_frames.jsonl", now - 8 * day);
+        File recentTrace = this.createReportFile("product_2014-12-20T00h00m00s_frames.jsonl", now - day);
+        File oldSummary = this.createReportFile("product_2014-01-01T00h00m00s_summary.json", now - 91 * day);
+        File recentSummary = this.createReportFile("product_2014-12-01T00h00m00s_summary.json", now - 8 * day);
+        File otherFile = this.createReportFile("notes.txt", now - 365 * day);
+
+        RunReport.prune(REPORT_DIR, now);
+
+        Assert.assertFalse("Old trace was not deleted", oldTrace.exists());
+        Assert.assertTrue("Recent trace was deleted", recentTrace.exists());
+        Assert.assertFalse("Old summary was not deleted", oldSummary.exists());
+        Assert.assertTrue("Recent summary was deleted", recentSummary.exists());
+        Assert.assertTrue("Unrelated file was deleted", otherFile.exists());
+    }
+
+    private File createReportFile(String filename, long lastModified) throws Exception {
+        File reportFile = new File(REPORT_DIR, filename);
+        FileUtils.writeStringToFile(reportFile, "{}", StandardCharsets.UTF_8);
+        Assert.assertTrue("Could not set the last modified date", reportFile.setLastModified(lastModified));
+        return reportFile;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.svg;
+
+import au.gov.aims.ereefs.Utils;
+import au.gov.aims.ncanimate.frame.generator.checkpoint.AtomicFiles;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class SVGSharedDefsTest {
+    private static final File FRAME_DIR = new File("/tmp/ncanimateTests/svgSharedDefs");
+
+    // 1x1 transparent PNG
+    private static final String PNG_BASE64 = "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNkYPhfDwAChwGA60e6kgAAAABJRU5ErkJggg==";
+
+    private static final Pattern USE_PATTERN = Pattern.compile("href=\"shared_defs\\.svg#(layer_[0-9a-f]+)\"");
+
+    @Before
+    public void init() throws Exception {
+        Utils.deleteDirectory(FRAME_DIR);
+        FRAME_DIR.mkdirs();
+    }
+
+    @After
+    public void clearCache() {
+        SVGSharedDefs.clearCache();
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        File frame1 = new File(FRAME_DIR, "frame_2014-12-01_00h00.svg");
+        File frame2 = new File(FRAME_DIR, "frame_2014-12-01_01h00.svg");
+
+        // The titles of the static layers are given by the layer generators
+        Set<String> staticLayerTitles = Collections.singleton("temp australia (GeoJSON layer)");
+        SVGSharedDefs.write(this.writeRenderedFrame("clip1"), frame1, staticLayerTitles);
+        SVGSharedDefs.write(this.writeRenderedFrame("clip7"), frame2, staticLayerTitles);
+
+        String frame1Content = FileUtils.readFileToString(frame1, StandardCharsets.UTF_8);
+        String frame2Content = FileUtils.readFileToString(frame2, StandardCharsets.UTF_8);
+
+        // The static layer is replaced with a reference to the shared defs
+        Assert.assertFalse("The static layer geometry was not removed from the frame", frame1Content.contains("M 0 0 L 10 10"));
+        Assert.assertFalse("The static layer geometry was not removed from the frame", frame2Content.contains("M 0 0 L 10 10"));
+        Matcher matcher1 = USE_PATTERN.matcher(frame1Content);
+        Matcher matcher2 = USE_PATTERN.matcher(frame2Content);
+        Assert.assertTrue("Missing static layer reference", matcher1.find());
+        Assert.assertTrue("Missing static layer reference", matcher2.find());
+
+        // Same layer, with different clip ID, is only written once
+        Assert.assertEquals("The static layer was not shared between frames", matcher1.group(1), matcher2.group(1));
+
+        String sharedDefsContent = FileUtils.readFileToString(new File(FRAME_DIR, SVGSharedDefs.SHARED_DEFS_FILENAME), StandardCharsets.UTF_8);
+        Assert.assertTrue("The static layer was not written to the shared defs", sharedDefsContent.contains("M 0 0 L 10 10"));
+        Assert.assertEquals("The static layer was written more than once",
+                sharedDefsContent.indexOf("M 0 0 L 10 10"), sharedDefsContent.lastIndexOf("M 0 0 L 10 10"));
+        Assert.assertTrue("The clip path was not copied to the shared defs", sharedDefsContent.contains("clipPath"));
+        Assert.assertTrue("The clip path reference was not renamed", sharedDefsContent.contains("url(#" + matcher1.group(1) + "_clip1)"));
+
+        // Layers which are not static are left in the frame
+        Assert.assertTrue("The dynamic layer was moved to the shared defs", frame1Content.contains("M 5 5 L 20 20"));
+        Assert.assertFalse("The dynamic layer was moved to the shared defs", sharedDefsContent.contains("M 5 5 L 20 20"));
+
+        // Raster layers are written to external files
+        Assert.assertFalse("The raster layer is still embedded", frame1Content.contains(PNG_BASE64));
+        Assert.assertTrue("Missing raster layer reference", frame1Content.contains("frame_2014-12-01_00h00_0.png"));
+        Assert.assertTrue("Missing raster layer file", new File(FRAME_DIR, "frame_2014-12-01_00h00_0.png").exists());
+
+        Assert.assertFalse("The temporary file was not removed", AtomicFiles.getTmpFile(frame1).exists());
+    }
+
+    @Test
+    public void testReloadSharedDefs() throws Exception {
+        Set<String> staticLayerTitles = Collections.singleton("temp australia (GeoJSON layer)");
+        File frame1 = new File(FRAME_DIR, "frame_2014-12-01_00h00.svg");
+        SVGSharedDefs.write(this.writeRenderedFrame("clip1"), frame1, staticLayerTitles);
+
+        // New run: the shared defs file is read from disk
+        SVGSharedDefs.clearCache();
+        File frame2 = new File(FRAME_DIR, "frame_2014-12-01_01h00.svg");
+        SVGSharedDefs.write(this.writeRenderedFrame("clip7"), frame2, staticLayerTitles);
+
+        String sharedDefsContent = FileUtils.readFileToString(new File(FRAME_DIR, SVGSharedDefs.SHARED_DEFS_FILENAME), StandardCharsets.UTF_8);
+        Assert.assertEquals("The static layer was written more than once",
+                sharedDefsContent.indexOf("M 0 0 L 10 10"), sharedDefsContent.lastIndexOf("M 0 0 L 10 10"));
+        Assert.assertFalse("The static layer geometry was not removed from the frame",
+                FileUtils.readFileToString(frame2, StandardCharsets.UTF_8).contains("M 0 0 L 10 10"));
+    }
+
+    // SVG file as rendered by the canvas
+    private File writeRenderedFrame(String clipId) throws Exception {
+        String svg = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"100\" height=\"100\">" +
+                "<defs><clipPath id=\"" + clipId + "\"><rect x=\"0\" y=\"0\" width=\"100\" height=\"100\"/></clipPath></defs>" +
+                "<g id=\"temp ereefs-model_gbr4-v2 (NetCDF layer)\">" +
+                    "<image x=\"0\" y=\"0\" width=\"1\" height=\"1\" xlink:href=\"data:image/png;base64," + PNG_BASE64 + "\"/>" +
+                "</g>" +
+                "<g id=\"temp australia (GeoJSON layer)\">" +
+                    "<path d=\"M 0 0 L 10 10\" clip-path=\"url(#" + clipId + ")\"/>" +
+                "</g>" +
+                "<g id=\"temp ships (GeoJSON layer)\">" +
+                    "<path d=\"M 5 5 L 20 20\"/>" +
+                "</g>" +
+            "</svg>";
+
+        File renderedFile = new File(FRAME_DIR, "rendered.svg" + AtomicFiles.TMP_FILE_EXTENSION);
+        FileUtils.writeStringToFile(renderedFile, svg, StandardCharsets.UTF_8);
+        return renderedFile;
+    }
+}
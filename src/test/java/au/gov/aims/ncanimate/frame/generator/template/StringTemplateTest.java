@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) Australian Institute of Marine Science, 2021.
+ * @author Gael Lafond <g.lafond@aims.gov.au>
+ */
+package au.gov.aims.ncanimate.frame.generator.template;
+
+import au.gov.aims.ereefs.bean.metadata.TimeIncrement;
+import au.gov.aims.ereefs.bean.metadata.TimeIncrementUnit;
+import au.gov.aims.ereefs.bean.ncanimate.NcAnimateConfigBean;
+import au.gov.aims.ereefs.database.CacheStrategy;
+import au.gov.aims.ereefs.helper.NcAnimateConfigHelper;
+import au.gov.aims.ncanimate.commons.NcAnimateUtils;
+import au.gov.aims.ncanimate.commons.timetable.DateTimeRange;
+import au.gov.aims.ncanimate.frame.DatabaseTestBase;
+import au.gov.aims.ncanimate.frame.generator.context.FrameGeneratorContext;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StringTemplateTest extends DatabaseTestBase {
+
+    @After
+    public void clearTemplateCache() {
+        StringTemplate.clearCache();
+    }
+
+    @Test
+    public void testPlaceholders() {
+        StringTemplate constantTemplate = StringTemplate.get("Temperature");
+        Assert.assertTrue("Template without placeholder is not constant", constantTemplate.isConstant());
+        Assert.assertFalse("Template without placeholder is frame dependent", constantTemplate.isFrameDependent());
+
+        StringTemplate regionTemplate = StringTemplate.get("${ctx.region.label} at ${ctx.targetHeight %.1f}m");
+        Assert.assertEquals(Arrays.asList("ctx.region.label", "ctx.targetHeight"),
+                new ArrayList<String>(regionTemplate.getPlaceholders()));
+        Assert.assertFalse("Region template is constant", regionTemplate.isConstant());
+        Assert.assertFalse("Region template is frame dependent", regionTemplate.isFrameDependent());
+
+        StringTemplate dateTemplate = StringTemplate.get("${ctx.frameDateFrom dd-MMM-yyyy} ${ctx.frameDateFrom HH:mm}");
+        Assert.assertEquals(Arrays.asList("ctx.frameDateFrom"),
+                new ArrayList<String>(dateTemplate.getPlaceholders()));
+        Assert.assertTrue("Date template is not frame dependent", dateTemplate.isFrameDependent());
+
+        StringTemplate licenceTemplate = StringTemplate.get("Data: ${layers.licences}");
+        Assert.assertTrue("Layer template is not frame dependent", licenceTemplate.isFrameDependent());
+
+        Assert.assertSame("Templates are not cached", regionTemplate,
+                StringTemplate.get("${ctx.region.label} at ${ctx.targetHeight %.1f}m"));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        super.insertData();
+
+        NcAnimateConfigHelper ncAnimateConfigHelper =
+            new NcAnimateConfigHelper(this.getDatabaseClient(), CacheStrategy.DISK);
+        NcAnimateConfigBean ncAnimateConfig = ncAnimateConfigHelper.getNcAnimateConfig("gbr4_v2_temp-wind-salt-current");
+        DateTimeZone timezone = NcAnimateUtils.getTimezone(ncAnimateConfig);
+
+        DateTimeRange productDateRange = DateTimeRange.create(
+                new DateTime(2010, 1, 1, 0, 30, timezone),
+                new DateTime(2011, 1, 1, 0, 30, timezone));
+
+        FrameGeneratorContext context = new FrameGeneratorContext(ncAnimateConfig);
+        context.setDateRange(productDateRange);
+        context.setRegion(ncAnimateConfig.getRegions().get("brisbane"));
+        context.setTargetHeight(-12.0);
+        context.setFrameTimeIncrement(new TimeIncrement(1, TimeIncrementUnit.HOUR));
+
+        List<String> patterns = Arrays.asList(
+            "Temperature",
+            "${ctx.region.label} ${ctx.targetHeight %.1f}",
+            "${ctx.frameDateFrom dd-MMM-yyyy_hh:mm}"
+        );
+
+        // Parse each pattern for 2 different frames, and compare with the non-cached parser
+        for (int hour = 12; hour < 14; hour++) {
+            context.setFrameDateRange(DateTimeRange.create(
+                    new DateTime(2010, 5, 2, hour, 30, timezone),
+                    new DateTime(2010, 5, 2, hour + 1, 30, timezone)));
+
+            for (String pattern : patterns) {
+                Assert.assertEquals(String.format("Unexpected parsed value for pattern %s", pattern),
+                        NcAnimateUtils.parseString(pattern, context),
+                        StringTemplate.get(pattern).parse(context, null));
+            }
+        }
+
+        // Changing the target height must not return the cached value
+        String pattern = "${ctx.targetHeight %.1f}";
+        String deepValue = StringTemplate.get(pattern).parse(context, null);
+        context.setTargetHeight(-1.5);
+        String shallowValue = StringTemplate.get(pattern).parse(context, null);
+        Assert.assertEquals(NcAnimateUtils.parseString(pattern, context), shallowValue);
+        Assert.assertNotEquals(deepValue, shallowValue);
+    }
+
+    @Test
+    public void testParseMultipleProducts() throws Exception {
+        super.insertData();
+
+        NcAnimateConfigHelper ncAnimateConfigHelper =
+            new NcAnimateConfigHelper(this.getDatabaseClient(), CacheStrategy.DISK);
+
+        // Both products have a "qld" region, but not the same number of panels
+        String pattern = "${ctx.region.label} ${ctx.productWidth}x${ctx.productHeight}";
+        for (String productId : Arrays.asList("gbr4_v2_temp-wind-salt-current", "gbr4_v2_temp_raster-only")) {
+            NcAnimateConfigBean ncAnimateConfig = ncAnimateConfigHelper.getNcAnimateConfig(productId);
+
+            FrameGeneratorContext context = new FrameGeneratorContext(ncAnimateConfig);
+            context.setRegion(ncAnimateConfig.getRegions().get("qld"));
+            context.setTargetHeight(-1.5);
+
+            Assert.assertEquals(String.format("Value parsed for a previous product returned for product %s", productId),
+                    NcAnimateUtils.parseString(pattern, context),
+                    StringTemplate.get(pattern).parse(context, null));
+        }
+    }
+}